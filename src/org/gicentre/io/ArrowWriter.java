@@ -0,0 +1,646 @@
+package org.gicentre.io;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ********************************************************************************************
+/** Writes out the layout of a treemap as an Apache Arrow IPC file (also known as Feather version 2).
+ *  Each node, including the root, becomes a row holding its id, the id of its parent, its level,
+ *  label, size and colour, its rectangle (<code>x</code>, <code>y</code>, <code>w</code>,
+ *  <code>h</code>) and the displacement (<code>dx</code>, <code>dy</code>) from the centre of its
+ *  rectangle to its geographic location. Ids are assigned in breadth-first order starting with 0 at
+ *  the root, so they match the <code>TreemapID</code> attribute of shapefile and FlatGeobuf output.
+ *  <br>
+ *  Rows are written in record batches whose columns are assembled directly in a single buffer, so
+ *  the file can be memory-mapped by Arrow libraries (e.g. <code>pyarrow.ipc.open_file()</code>,
+ *  <code>pandas.read_feather()</code> or Spark) without any parsing. See
+ *  <a href="https://arrow.apache.org/docs/format/Columnar.html">arrow.apache.org</a> for details
+ *  of the format.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ArrowWriter
+{
+    // --------------------------- Class variables -----------------------------
+
+    private static final byte[] MAGIC = {'A','R','R','O','W','1',0,0};
+    private static final int BATCH_SIZE = 64*1024;      // Maximum number of rows in each record batch.
+    private static final short METADATA_VERSION = 4;    // Arrow format version 5.
+    private static final byte SCHEMA = 1;               // Message header types.
+    private static final byte RECORD_BATCH = 3;
+    private static final byte INT = 2;                  // Column types.
+    private static final byte FLOATING_POINT = 3;
+    private static final byte UTF8 = 5;
+
+    private static final String[] COLUMN_NAMES = {"id", "parentId", "level", "label", "size", "colour",
+                                                  "x", "y", "w", "h", "dx", "dy"};
+    private static final byte[] COLUMN_TYPES = {INT, INT, INT, UTF8, FLOATING_POINT, FLOATING_POINT,
+                                                FLOATING_POINT, FLOATING_POINT, FLOATING_POINT, FLOATING_POINT,
+                                                FLOATING_POINT, FLOATING_POINT};
+    private static final boolean[] IS_NULLABLE = {false, true, false, false, false, true,
+                                                  true, true, true, true, true, true};
+    private static final int ID = 0, PARENT_ID = 1, LEVEL = 2, LABEL = 3, SIZE = 4, COLOUR = 5,
+                             X = 6, Y = 7, W = 8, H = 9, DX = 10, DY = 11;
+
+    // --------------------------- Object variables ----------------------------
+
+    private FileChannel channel;
+    private long filePosition;                          // Number of bytes written to the file.
+    private ByteBuffer meta;                            // Workspace for assembling message metadata.
+    private ByteBuffer body;                            // Workspace for assembling the columns of a record batch.
+
+    private TreeMapNode[] nodes;                        // All nodes in breadth-first order.
+    private int[] parentIds;
+    private int numNodes;
+
+    private int[] validityPos, offsetsPos, dataPos;     // Position of each column's buffers in the batch body.
+    private long[] bufferOffsets, bufferLengths;
+    private int numBuffers;
+    private long[] nullCounts;
+
+    private TreeMapNode locationParent;                 // Parent whose children's locations define the displacements.
+    private double minLocX, minLocY, locXRange, locYRange;
+
+    private ProgressListener progressListener;          // Informed of rows written (or null).
+    private CancellationToken cancellationToken;        // Checked for cancellation while writing (or null).
+    private WriteProgress progress;                     // Progress of the file being written.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates an Arrow writer. Each writer holds its own state, so separate writers may be used to
+      * write different files at the same time.
+      */
+    public ArrowWriter()
+    {
+        super();
+    }
+
+    // --------------------------- Static Methods ------------------------------
+
+    /** Writes an Arrow IPC file based on the supplied treemap node (and all of its decendents).
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public static boolean writeNodes(TreeMapNode node, String fileName)
+    {
+        return new ArrowWriter().write(node, fileName);
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Determines the objects informed of progress and checked for cancellation while rows are written. Both happen
+      * as rows are assembled into record batches and again once each batch has been written. A cancelled file is
+      * removed and <code>write()</code> reports failure.
+      * @param listener Listener to inform of the number of rows written, or null if not reported.
+      * @param token Token to check for cancellation, or null if writing cannot be cancelled.
+      */
+    public void setProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.progressListener = listener;
+        this.cancellationToken = token;
+    }
+
+    /** Writes an Arrow IPC file based on the supplied treemap node (and all of its decendents). Nodes without a
+      * rectangle have null coordinates and nodes without a geographic location have null displacements.
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, String fileName)
+    {
+        collectNodes(node);
+
+        int numBatches = (numNodes + BATCH_SIZE - 1)/BATCH_SIZE;
+        long[] blockOffsets = new long[numBatches];
+        int[] blockMetaLengths = new int[numBatches];
+        long[] blockBodyLengths = new long[numBatches];
+
+        meta = ByteBuffer.allocate(8*1024 + 24*numBatches);
+        meta.order(ByteOrder.LITTLE_ENDIAN);
+        body = ByteBuffer.allocate(64*1024);
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        validityPos = new int[COLUMN_NAMES.length];
+        offsetsPos = new int[COLUMN_NAMES.length];
+        dataPos = new int[COLUMN_NAMES.length];
+        bufferOffsets = new long[3*COLUMN_NAMES.length];
+        bufferLengths = new long[3*COLUMN_NAMES.length];
+        nullCounts = new long[COLUMN_NAMES.length];
+        locationParent = null;
+        progress = new WriteProgress(progressListener, cancellationToken);
+
+        try (FileOutputStream stream = new FileOutputStream(fileName))
+        {
+            channel = stream.getChannel();
+            filePosition = 0;
+            write(ByteBuffer.wrap(MAGIC));
+
+            // Schema message.
+            int headerSlot = startMessage(SCHEMA, 0);
+            putSchema(headerSlot);
+            writeMessage(0);
+
+            for (int i=0; i<numBatches; i++)
+            {
+                int start = i*BATCH_SIZE;
+                int end = Math.min(numNodes, start+BATCH_SIZE);
+                int bodyLength = putBatch(start, end);
+
+                blockOffsets[i] = filePosition;
+                headerSlot = startMessage(RECORD_BATCH, bodyLength);
+                putBatchHeader(headerSlot, end-start);
+                blockMetaLengths[i] = writeMessage(bodyLength);
+                blockBodyLengths[i] = bodyLength;
+                progress.update(end, numNodes);
+            }
+
+            // Footer repeats the schema and records the position of each record batch.
+            meta.clear();
+            meta.putInt(0);
+            int footer = putTable(0, 20, 16, 4, 12, 8);
+            meta.putShort(footer+16, METADATA_VERSION);
+            putSchema(footer+4);
+            startVector(footer+12, 0, 8);
+            startVector(footer+8, numBatches, 8);
+            for (int i=0; i<numBatches; i++)
+            {
+                meta.putLong(blockOffsets[i]);
+                meta.putInt(blockMetaLengths[i]);
+                meta.putInt(0);
+                meta.putLong(blockBodyLengths[i]);
+            }
+            align(8);
+            int footerLength = meta.position();
+            meta.putInt(footerLength);
+            meta.put(MAGIC, 0, 6);
+            meta.flip();
+            write(meta);
+        }
+        catch (FileNotFoundException e)
+        {
+            System.err.println("Cannot create Arrow file ("+fileName+").");
+            return false;
+        }
+        catch (WriteProgress.CancelledException e)
+        {
+            new File(fileName).delete();
+            System.err.println("Writing of Arrow file ("+fileName+") cancelled.");
+            return false;
+        }
+        catch (IOException e)
+        {
+            // The file has been closed by now, so remove it as it is incomplete.
+            new File(fileName).delete();
+            System.err.println("Problem writing Arrow file ("+fileName+"): "+e.getMessage());
+            return false;
+        }
+        finally
+        {
+            channel = null;
+            meta = null;
+            body = null;
+            nodes = null;
+            parentIds = null;
+            locationParent = null;
+            progress = null;
+        }
+        return true;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Stores the given node and all of its descendants in breadth-first order along with the position of
+      * each node's parent.
+      * @param root Root of the tree to store.
+      */
+    private void collectNodes(TreeMapNode root)
+    {
+        nodes = new TreeMapNode[Math.max(16, root.getChildCount()+1)];
+        parentIds = new int[nodes.length];
+        nodes[0] = root;
+        parentIds[0] = -1;
+        numNodes = 1;
+
+        for (int i=0; i<numNodes; i++)
+        {
+            TreeMapNode node = nodes[i];
+            int numChildren = node.getChildCount();
+            if (numNodes+numChildren > nodes.length)
+            {
+                int capacity = Math.max(nodes.length*2, numNodes+numChildren);
+                nodes = Arrays.copyOf(nodes, capacity);
+                parentIds = Arrays.copyOf(parentIds, capacity);
+            }
+            for (TreeMapNode child : node.getChildren())
+            {
+                nodes[numNodes] = child;
+                parentIds[numNodes++] = i;
+            }
+        }
+    }
+
+    /** Assembles the columns of the given range of nodes in the body buffer. Each column has a validity bitmap
+      * (empty if the column cannot hold nulls) followed by its values, and for text its offsets and then its
+      * characters. Every buffer starts on an 8 byte boundary.
+      * @param start Index of the first node in the batch.
+      * @param end Index one beyond the last node in the batch.
+      * @return Length of the body in bytes.
+      * @throws IOException If the labels of the nodes are too long to store in a single record batch or writing
+      *                     has been cancelled.
+      */
+    private int putBatch(int start, int end) throws IOException
+    {
+        int numRows = end-start;
+        long labelLength = 0;
+        for (int i=start; i<end; i++)
+        {
+            labelLength += UTF8Encoder.encodedLength(labelOf(nodes[i]));
+        }
+        if (labelLength > Integer.MAX_VALUE/2)
+        {
+            throw new IOException("Labels too long to store in a single Arrow record batch.");
+        }
+
+        // Find the position of each buffer.
+        int pos = 0;
+        numBuffers = 0;
+        for (int c=0; c<COLUMN_NAMES.length; c++)
+        {
+            validityPos[c] = pos;
+            pos = addBuffer(pos, IS_NULLABLE[c] ? (numRows+7)/8 : 0);
+            if (COLUMN_TYPES[c] == UTF8)
+            {
+                offsetsPos[c] = pos;
+                pos = addBuffer(pos, 4*(numRows+1));
+                dataPos[c] = pos;
+                pos = addBuffer(pos, (int)labelLength);
+            }
+            else
+            {
+                dataPos[c] = pos;
+                pos = addBuffer(pos, (COLUMN_TYPES[c] == INT) ? 4*numRows : 8*numRows);
+            }
+        }
+        int bodyLength = pos;
+
+        if (body.capacity() < bodyLength)
+        {
+            body = ByteBuffer.allocate(Math.max(bodyLength, 2*body.capacity()));
+            body.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        body.clear();
+        Arrays.fill(body.array(), 0, bodyLength, (byte)0);
+        Arrays.fill(nullCounts, 0);
+
+        int labelOffset = 0;
+        for (int row=0; row<numRows; row++)
+        {
+            progress.update(start+row, numNodes);
+            TreeMapNode node = nodes[start+row];
+
+            body.putInt(dataPos[ID]+4*row, start+row);
+            int parentId = parentIds[start+row];
+            if (parentId >= 0)
+            {
+                body.putInt(dataPos[PARENT_ID]+4*row, parentId);
+                setValid(PARENT_ID, row);
+            }
+            else
+            {
+                nullCounts[PARENT_ID]++;
+            }
+            body.putInt(dataPos[LEVEL]+4*row, node.getLevel());
+
+            body.putInt(offsetsPos[LABEL]+4*row, labelOffset);
+            body.position(dataPos[LABEL]+labelOffset);
+            UTF8Encoder.encode(body, labelOf(node));
+            labelOffset = body.position()-dataPos[LABEL];
+
+            body.putDouble(dataPos[SIZE]+8*row, node.getAccumSize());
+            Float colour = node.getColourValue();
+            putDouble(COLOUR, row, (colour == null) ? Double.NaN : colour.doubleValue(), colour != null);
+
+            Rectangle2D rect = node.getRectangle();
+            boolean hasRect = (rect != null);
+            putDouble(X, row, hasRect ? rect.getX() : 0, hasRect);
+            putDouble(Y, row, hasRect ? rect.getY() : 0, hasRect);
+            putDouble(W, row, hasRect ? rect.getWidth() : 0, hasRect);
+            putDouble(H, row, hasRect ? rect.getHeight() : 0, hasRect);
+
+            Point2D geoCentre = hasRect ? findGeoCentre(node) : null;
+            boolean hasDisp = (geoCentre != null);
+            putDouble(DX, row, hasDisp ? geoCentre.getX()-rect.getCenterX() : 0, hasDisp);
+            putDouble(DY, row, hasDisp ? geoCentre.getY()-rect.getCenterY() : 0, hasDisp);
+        }
+        body.putInt(offsetsPos[LABEL]+4*numRows, labelOffset);
+        body.position(0);
+        body.limit(bodyLength);
+        return bodyLength;
+    }
+
+    /** Records the position and length of a buffer in the body of a record batch.
+      * @param pos Position of the start of the buffer.
+      * @param length Number of bytes of data in the buffer.
+      * @return Position of the start of the next buffer.
+      */
+    private int addBuffer(int pos, int length)
+    {
+        bufferOffsets[numBuffers] = pos;
+        bufferLengths[numBuffers++] = length;
+        return pos + ((length+7) & ~7);
+    }
+
+    /** Adds a floating point value to the given column of the body buffer.
+      * @param column Column to which the value is added.
+      * @param row Row of the value within the record batch.
+      * @param value Value to add.
+      * @param isValid True if the value is present, false if it should be stored as null.
+      */
+    private void putDouble(int column, int row, double value, boolean isValid)
+    {
+        if (isValid)
+        {
+            body.putDouble(dataPos[column]+8*row, value);
+            setValid(column, row);
+        }
+        else
+        {
+            nullCounts[column]++;
+        }
+    }
+
+    /** Marks the value in the given row of the given column as present in the column's validity bitmap.
+      * @param column Column containing the value.
+      * @param row Row of the value within the record batch.
+      */
+    private void setValid(int column, int row)
+    {
+        int pos = validityPos[column] + (row >> 3);
+        body.put(pos, (byte)(body.get(pos) | (1 << (row & 7))));
+    }
+
+    /** Finds the location of the given node transformed into the rectangle of its parent, as used when drawing
+      * displacement vectors. Siblings are stored next to each other, so the extent of their locations is only
+      * found once for each parent.
+      * @param node Node whose transformed location is to be found.
+      * @return Transformed location in treemap coordinates, or null if the node has no geographic location.
+      */
+    private Point2D findGeoCentre(TreeMapNode node)
+    {
+        TreeMapNode parent = node.getParent();
+        if ((parent == null) || (parent.getLocation() == null) || (parent.getRectangle() == null) || (node.getLocation() == null))
+        {
+            return null;
+        }
+
+        if (parent != locationParent)
+        {
+            locationParent = parent;
+            double maxLocX = -Double.MAX_VALUE;
+            double maxLocY = -Double.MAX_VALUE;
+            minLocX = Double.MAX_VALUE;
+            minLocY = Double.MAX_VALUE;
+            for (TreeMapNode sibling : parent.getChildren())
+            {
+                Point2D location = sibling.getLocation();
+                if (location != null)
+                {
+                    minLocX = Math.min(minLocX, location.getX());
+                    minLocY = Math.min(minLocY, location.getY());
+                    maxLocX = Math.max(maxLocX, location.getX());
+                    maxLocY = Math.max(maxLocY, location.getY());
+                }
+            }
+            locXRange = maxLocX-minLocX;
+            locYRange = maxLocY-minLocY;
+        }
+
+        if ((locXRange <= 0) || (locYRange <= 0))
+        {
+            return null;
+        }
+        Rectangle2D bounds = parent.getRectangle();
+        return new Point2D.Double(bounds.getX() + bounds.getWidth()*(node.getLocation().getX()-minLocX)/locXRange,
+                                  bounds.getY() + bounds.getHeight() - bounds.getHeight()*(node.getLocation().getY()-minLocY)/locYRange);
+    }
+
+    /** Adds the header of a record batch message describing the location of each buffer in its body.
+      * @param slot Position of the offset that should refer to the record batch.
+      * @param numRows Number of rows in the batch.
+      */
+    private void putBatchHeader(int slot, int numRows)
+    {
+        int batch = putTable(slot, 24, 8, 4, 16);
+        meta.putLong(batch+8, numRows);
+
+        startVector(batch+4, COLUMN_NAMES.length, 8);
+        for (int c=0; c<COLUMN_NAMES.length; c++)
+        {
+            meta.putLong(numRows);
+            meta.putLong(nullCounts[c]);
+        }
+        startVector(batch+16, numBuffers, 8);
+        for (int i=0; i<numBuffers; i++)
+        {
+            meta.putLong(bufferOffsets[i]);
+            meta.putLong(bufferLengths[i]);
+        }
+    }
+
+    /** Adds the schema describing the name and type of each column.
+      * @param slot Position of the offset that should refer to the schema.
+      */
+    private void putSchema(int slot)
+    {
+        int schema = putTable(slot, 8, 0, 4);
+        startVector(schema+4, COLUMN_NAMES.length, 4);
+        int fieldSlots = meta.position();
+        for (int c=0; c<COLUMN_NAMES.length; c++)
+        {
+            meta.putInt(0);
+        }
+
+        for (int c=0; c<COLUMN_NAMES.length; c++)
+        {
+            // Fields name, nullable, type_type, type, dictionary and children.
+            int field = putTable(fieldSlots+4*c, 20, 4, 16, 17, 8, 0, 12);
+            meta.put(field+16, IS_NULLABLE[c] ? (byte)1 : (byte)0);
+            meta.put(field+17, COLUMN_TYPES[c]);
+            putString(field+4, COLUMN_NAMES[c]);
+
+            if (COLUMN_TYPES[c] == INT)
+            {
+                // Signed 32 bit integer.
+                int type = putTable(field+8, 12, 4, 8);
+                meta.putInt(type+4, 32);
+                meta.put(type+8, (byte)1);
+            }
+            else if (COLUMN_TYPES[c] == FLOATING_POINT)
+            {
+                // Double precision.
+                int type = putTable(field+8, 8, 4);
+                meta.putShort(type+4, (short)2);
+            }
+            else
+            {
+                putTable(field+8, 4);
+            }
+            startVector(field+12, 0, 4);
+        }
+    }
+
+    /** Starts a new encapsulated message in the metadata buffer.
+      * @param headerType Type of message header.
+      * @param bodyLength Length of the message body in bytes.
+      * @return Position of the offset that should refer to the message header.
+      */
+    private int startMessage(byte headerType, long bodyLength)
+    {
+        meta.clear();
+        meta.putInt(0xFFFFFFFF);
+        meta.putInt(0);
+        meta.putInt(0);
+
+        // Message fields version, header_type, header and bodyLength.
+        int message = putTable(8, 24, 16, 18, 4, 8);
+        meta.putShort(message+16, METADATA_VERSION);
+        meta.put(message+18, headerType);
+        meta.putLong(message+8, bodyLength);
+        return message+4;
+    }
+
+    /** Writes the message in the metadata buffer followed by the given number of bytes from the body buffer.
+      * @param bodyLength Length of the message body.
+      * @return Length of the message metadata including its prefix.
+      * @throws IOException If there is a problem writing the message.
+      */
+    private int writeMessage(int bodyLength) throws IOException
+    {
+        align(8);
+        int metaLength = meta.position();
+        meta.putInt(4, metaLength-8);
+        meta.flip();
+        write(meta);
+        if (bodyLength > 0)
+        {
+            write(body);
+        }
+        return metaLength;
+    }
+
+    /** Adds a table to the metadata buffer preceded by its vtable. The table starts on an 8 byte boundary and its
+      * contents are initially zero.
+      * @param slot Position of the offset that should refer to the table.
+      * @param tableSize Size of the table in bytes.
+      * @param fieldOffsets Position of each field within the table, or 0 if the field is not present.
+      * @return Position of the start of the table.
+      */
+    private int putTable(int slot, int tableSize, int... fieldOffsets)
+    {
+        align(2);
+        int vtable = meta.position();
+        meta.putShort((short)(4+2*fieldOffsets.length));
+        meta.putShort((short)tableSize);
+        for (int offset : fieldOffsets)
+        {
+            meta.putShort((short)offset);
+        }
+        align(8);
+        int table = meta.position();
+        meta.putInt(slot, table-slot);
+        meta.putInt(table-vtable);
+        for (int i=4; i<tableSize; i++)
+        {
+            meta.put((byte)0);
+        }
+        return table;
+    }
+
+    /** Adds a string to the metadata buffer.
+      * @param slot Position of the offset that should refer to the string.
+      * @param text Text of the string.
+      */
+    private void putString(int slot, String text)
+    {
+        align(4);
+        meta.putInt(slot, meta.position()-slot);
+        meta.putInt(UTF8Encoder.encodedLength(text));
+        UTF8Encoder.encode(meta, text);
+        meta.put((byte)0);
+    }
+
+    /** Adds the length of a vector to the metadata buffer, positioned so that its elements are correctly aligned.
+      * The elements should be added immediately after calling this method.
+      * @param slot Position of the offset that should refer to the vector.
+      * @param numElements Number of elements in the vector.
+      * @param elementAlignment Alignment of the vector elements in bytes.
+      */
+    private void startVector(int slot, int numElements, int elementAlignment)
+    {
+        align(4);
+        while ((meta.position()+4) % elementAlignment != 0)
+        {
+            meta.put((byte)0);
+        }
+        meta.putInt(slot, meta.position()-slot);
+        meta.putInt(numElements);
+    }
+
+    /** Adds zero bytes to the metadata buffer until its position is a multiple of the given number of bytes.
+      * @param numBytes Alignment required.
+      */
+    private void align(int numBytes)
+    {
+        while (meta.position() % numBytes != 0)
+        {
+            meta.put((byte)0);
+        }
+    }
+
+    /** Writes the remaining contents of the given buffer to the file.
+      * @param buffer Buffer to write.
+      * @throws IOException If there is a problem writing to the file.
+      */
+    private void write(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            filePosition += channel.write(buffer);
+        }
+    }
+
+    /** Provides the label of the given node, or an empty string if it has none.
+      * @param node Node whose label is required.
+      * @return Label of the node.
+      */
+    private static String labelOf(TreeMapNode node)
+    {
+        String label = node.getLabel();
+        return (label == null) ? "" : label;
+    }
+}
@@ -0,0 +1,621 @@
+package org.gicentre.io;
+
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ********************************************************************************************
+/** Writes out the coordinates of treemap rectangles as comma separated text, optionally gzip
+ *  compressed. Each row holds the label, path, level, size and colour of a node followed by the
+ *  corners of its rectangle. Numbers are formatted to a fixed number of decimal places directly
+ *  into a reusable output buffer, so writing very large treemaps is limited by the speed of the
+ *  output device rather than by formatting.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class CoordinateWriter
+{
+    // --------------------------- Class variables -----------------------------
+
+    /** Maximum number of decimal places that can be written. */
+    public static final int MAX_PRECISION = 15;
+
+    private static final int BUFFER_SIZE = 256*1024;    // Size of output buffer in bytes.
+    private static final int VALUE_PRECISION = 6;       // Decimal places of size and colour values.
+    private static final double MAX_FIXED = 9e15;       // Scaled numbers larger than this are formatted with BigDecimal.
+    private static final double[] POW10 = {1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,1e12,1e13,1e14,1e15};
+    private static final long[] LONG_POW10 = {1L,10L,100L,1000L,10000L,100000L,1000000L,10000000L,100000000L,
+                                              1000000000L,10000000000L,100000000000L,1000000000000L,
+                                              10000000000000L,100000000000000L,1000000000000000L};
+    private static final byte[] HEADER = "Label,Path,Level,Size,Colour,MinX,MinY,MaxX,MaxY\n".getBytes();
+
+    // --------------------------- Object variables ----------------------------
+
+    private int precision;                              // Decimal places of coordinates.
+    private boolean isDepthFirst;
+    private int compressionLevel;
+    private int compressionThreads;
+
+    private OutputStream out;
+    private byte[] buffer;                              // Output waiting to be written.
+    private int length;                                 // Number of bytes in the output buffer.
+    private byte[] label;                               // Workspace holding the encoded label of the current node.
+    private ByteBuffer labelBuffer;                     // Wraps the label workspace for encoding.
+    private int labelLength;
+    private int numSkipped;                             // Nodes with no rectangle.
+    private ProgressListener progressListener;          // Informed of nodes written (or null).
+    private CancellationToken cancellationToken;        // Checked for cancellation while writing (or null).
+    private WriteProgress progress;                     // Progress of the nodes being written.
+    private long numProcessed;                          // Nodes written or skipped so far.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a coordinate writer that writes coordinates to 2 decimal places in breadth-first order. Each
+      * writer holds its own state, so separate writers may be used to write different files at the same time.
+      */
+    public CoordinateWriter()
+    {
+        super();
+        precision = 2;
+        isDepthFirst = false;
+        compressionLevel = -1;
+        compressionThreads = 0;
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Determines the number of decimal places used when writing coordinates. Trailing zeros are not written,
+      * so a coordinate of 1.5 is written as <code>1.5</code> rather than <code>1.50</code>. Sizes and colours
+      * are always written with up to 6 decimal places.
+      * @param precision Number of decimal places between 0 and {@link #MAX_PRECISION}.
+      */
+    public void setPrecision(int precision)
+    {
+        if ((precision < 0) || (precision > MAX_PRECISION))
+        {
+            throw new IllegalArgumentException("Coordinate precision must be between 0 and "+MAX_PRECISION+" but "+precision+" was given.");
+        }
+        this.precision = precision;
+    }
+
+    /** Determines the order in which nodes are written. Breadth-first order writes all nodes at one level before
+      * those at the next. Depth-first order writes each node immediately before its descendants. By default nodes
+      * are written in breadth-first order.
+      * @param isDepthFirst Nodes written in depth-first order if true, breadth-first if false.
+      */
+    public void setDepthFirst(boolean isDepthFirst)
+    {
+        this.isDepthFirst = isDepthFirst;
+    }
+
+    /** Determines how gzip compressed output is compressed.
+      * @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+      * @param numThreads Number of threads used for compression, or 0 to use all available processors.
+      */
+    public void setCompression(int level, int numThreads)
+    {
+        this.compressionLevel = level;
+        this.compressionThreads = numThreads;
+    }
+
+    /** Determines the objects informed of progress and checked for cancellation while coordinates are written.
+      * The number of nodes is not counted in advance, so progress is reported with an unknown total until the
+      * last node has been written. If writing to a file is cancelled, the incomplete file is removed.
+      * @param listener Listener to inform of the number of nodes written, or null if not reported.
+      * @param token Token checked after each batch of nodes, or null if writing cannot be cancelled.
+      */
+    public void setProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.progressListener = listener;
+        this.cancellationToken = token;
+    }
+
+    /** Writes the coordinates of all descendants of the given node to the given file. If the file name ends in
+      * <code>.gz</code> the output is gzip compressed.
+      * @param node Treemap node whose descendants are to be written.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, String fileName)
+    {
+        boolean isWritten;
+        try (FileOutputStream fileStream = new FileOutputStream(fileName);
+             OutputStream stream = fileName.toLowerCase().endsWith(".gz") ?
+                     new ParallelDeflaterOutputStream(fileStream, compressionLevel, compressionThreads, true) : fileStream)
+        {
+            isWritten = write(node, stream);
+        }
+        catch (FileNotFoundException e)
+        {
+            System.err.println("Cannot create coordinate file ("+fileName+").");
+            return false;
+        }
+        catch (IOException e)
+        {
+            isWritten = false;
+        }
+
+        if (isWritten == false)
+        {
+            // The file has been closed by now, so remove it as it is incomplete.
+            new File(fileName).delete();
+            if ((cancellationToken == null) || (cancellationToken.isCancelled() == false))
+            {
+                System.err.println("Problem writing coordinate file ("+fileName+").");
+            }
+        }
+        return isWritten;
+    }
+
+    /** Writes the coordinates of all descendants of the given node to the given stream. The stream is not closed
+      * once the coordinates have been written.
+      * @param node Treemap node whose descendants are to be written.
+      * @param stream Stream to which the coordinates are written.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, OutputStream stream)
+    {
+        out = stream;
+        buffer = new byte[BUFFER_SIZE];
+        length = 0;
+        label = new byte[256];
+        labelBuffer = ByteBuffer.wrap(label);
+        numSkipped = 0;
+        progress = new WriteProgress(progressListener, cancellationToken);
+        numProcessed = 0;
+
+        try
+        {
+            ensureCapacity(HEADER.length);
+            System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+            length = HEADER.length;
+
+            if (isDepthFirst)
+            {
+                writeDepthFirst(node);
+            }
+            else
+            {
+                writeBreadthFirst(node);
+            }
+            flush();
+            out.flush();
+            progress.finish(numProcessed);
+        }
+        catch (WriteProgress.CancelledException e)
+        {
+            System.err.println("Writing of treemap coordinates cancelled.");
+            return false;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Problem writing treemap coordinates.");
+            return false;
+        }
+        finally
+        {
+            out = null;
+            buffer = null;
+            label = null;
+            labelBuffer = null;
+            progress = null;
+        }
+
+        if (numSkipped > 0)
+        {
+            System.err.println("  "+numSkipped+" nodes not written since they are too small to display.");
+        }
+        return true;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Writes the descendants of the given node in breadth-first order. Each branch node stores its own path so
+      * that its children can share it.
+      * @param root Node whose descendants are to be written.
+      * @throws IOException If there is a problem writing the nodes.
+      */
+    private void writeBreadthFirst(TreeMapNode root) throws IOException
+    {
+        int capacity = Math.max(16, root.getChildCount());
+        TreeMapNode[] queue = new TreeMapNode[capacity];
+        byte[][] parentPaths = new byte[capacity][];
+        int[] levels = new int[capacity];
+
+        byte[] rootPath = new byte[0];
+        int rootLevel = root.getLevel();
+        int head = 0;
+        int tail = 0;
+        for (TreeMapNode child : root.getChildren())
+        {
+            queue[tail] = child;
+            parentPaths[tail] = rootPath;
+            levels[tail++] = rootLevel+1;
+        }
+
+        while (head < tail)
+        {
+            TreeMapNode node = queue[head];
+            byte[] parentPath = parentPaths[head];
+            int level = levels[head];
+            queue[head] = null;
+            parentPaths[head++] = null;
+            progress.update(++numProcessed, -1);
+
+            if (node.getRectangle() == null)
+            {
+                numSkipped++;
+                continue;
+            }
+            encodeLabel(node.getLabel());
+            putRow(node, parentPath, parentPath.length, level);
+
+            int numChildren = node.getChildCount();
+            if (numChildren == 0)
+            {
+                continue;
+            }
+
+            // Children share a copy of this node's path.
+            byte[] path = new byte[pathLength(parentPath.length)];
+            putPath(path, parentPath, parentPath.length);
+
+            if (tail+numChildren > queue.length)
+            {
+                // Move the waiting nodes to the start of the queue, enlarging it if they do not leave enough space.
+                int numWaiting = tail-head;
+                int newCapacity = Math.max(queue.length, 2*(numWaiting+numChildren));
+                TreeMapNode[] newQueue = new TreeMapNode[newCapacity];
+                byte[][] newPaths = new byte[newCapacity][];
+                int[] newLevels = new int[newCapacity];
+                System.arraycopy(queue, head, newQueue, 0, numWaiting);
+                System.arraycopy(parentPaths, head, newPaths, 0, numWaiting);
+                System.arraycopy(levels, head, newLevels, 0, numWaiting);
+                queue = newQueue;
+                parentPaths = newPaths;
+                levels = newLevels;
+                head = 0;
+                tail = numWaiting;
+            }
+            for (TreeMapNode child : node.getChildren())
+            {
+                queue[tail] = child;
+                parentPaths[tail] = path;
+                levels[tail++] = level+1;
+            }
+        }
+    }
+
+    /** Writes the descendants of the given node in depth-first order. The path of the most recent branch at each
+      * level is kept in a single array since a node's descendants are always written before its next sibling.
+      * @param root Node whose descendants are to be written.
+      * @throws IOException If there is a problem writing the nodes.
+      */
+    private void writeDepthFirst(TreeMapNode root) throws IOException
+    {
+        TreeMapNode[] stack = new TreeMapNode[Math.max(16, root.getChildCount())];
+        int[] depths = new int[stack.length];
+        int[] pathEnds = new int[16];                   // Length of the path of the current branch at each depth.
+        byte[] path = new byte[256];
+
+        int rootLevel = root.getLevel();
+        int top = 0;
+        List<TreeMapNode> children = root.getChildren();
+        for (int i=children.size()-1; i>=0; i--)
+        {
+            stack[top] = children.get(i);
+            depths[top++] = 1;
+        }
+
+        while (top > 0)
+        {
+            TreeMapNode node = stack[--top];
+            int depth = depths[top];
+            stack[top] = null;
+            progress.update(++numProcessed, -1);
+
+            if (node.getRectangle() == null)
+            {
+                numSkipped++;
+                continue;
+            }
+            int parentLength = pathEnds[depth-1];
+            encodeLabel(node.getLabel());
+            putRow(node, path, parentLength, rootLevel+depth);
+
+            children = node.getChildren();
+            if (children.isEmpty())
+            {
+                continue;
+            }
+
+            // Store this node's path for use by its descendants.
+            int pathLength = pathLength(parentLength);
+            if (pathLength > path.length)
+            {
+                path = Arrays.copyOf(path, Math.max(2*path.length, pathLength));
+            }
+            if (depth+1 > pathEnds.length)
+            {
+                pathEnds = Arrays.copyOf(pathEnds, 2*pathEnds.length);
+            }
+            pathEnds[depth] = putPath(path, path, parentLength);
+
+            if (top+children.size() > stack.length)
+            {
+                int capacity = Math.max(2*stack.length, top+children.size());
+                stack = Arrays.copyOf(stack, capacity);
+                depths = Arrays.copyOf(depths, capacity);
+            }
+            for (int i=children.size()-1; i>=0; i--)
+            {
+                stack[top] = children.get(i);
+                depths[top++] = depth+1;
+            }
+        }
+    }
+
+    /** Adds a row describing the given node to the output buffer. The node's label should already have been encoded.
+      * @param node Node to write.
+      * @param parentPath Encoded path of the node's parent.
+      * @param parentLength Number of bytes of the parent path.
+      * @param level Level of the node in the tree.
+      * @throws IOException If there is a problem writing the buffer contents.
+      */
+    private void putRow(TreeMapNode node, byte[] parentPath, int parentLength, int level) throws IOException
+    {
+        // Quoted text, 4 coordinates and 2 values each of at most 40 characters and an integer.
+        ensureCapacity(2*labelLength + parentLength + 320);
+
+        buffer[length++] = '"';
+        System.arraycopy(label, 0, buffer, length, labelLength);
+        length += labelLength;
+        buffer[length++] = '"';
+        buffer[length++] = ',';
+
+        buffer[length++] = '"';
+        length = putPath(buffer, parentPath, parentLength);
+        buffer[length++] = '"';
+        buffer[length++] = ',';
+
+        putLong(level);
+        buffer[length++] = ',';
+        putFixed(node.getAccumSize(), VALUE_PRECISION);
+        buffer[length++] = ',';
+        Float colour = node.getColourValue();
+        if (colour != null)
+        {
+            putFixed(colour.floatValue(), VALUE_PRECISION);
+        }
+
+        Rectangle2D rect = node.getRectangle();
+        buffer[length++] = ',';
+        putFixed(rect.getX(), precision);
+        buffer[length++] = ',';
+        putFixed(rect.getY(), precision);
+        buffer[length++] = ',';
+        putFixed(rect.getX()+rect.getWidth(), precision);
+        buffer[length++] = ',';
+        putFixed(rect.getY()+rect.getHeight(), precision);
+        buffer[length++] = '\n';
+    }
+
+    /** Reports the number of bytes needed to hold the path of the current node.
+      * @param parentLength Length of the encoded path of the node's parent.
+      * @return Length of the encoded path of the current node.
+      */
+    private int pathLength(int parentLength)
+    {
+        return (parentLength > 0) ? parentLength + 1 + labelLength : labelLength;
+    }
+
+    /** Stores the path of the current node in the given array. The path is its parent's path followed by its own
+      * label, separated by a '/' if the parent path is not empty.
+      * @param dest Array in which to store the path. This must have room for the path starting at the position given
+      *             by the output buffer length if it is the output buffer, or at 0 if not.
+      * @param parentPath Encoded path of the node's parent, which may be the start of the destination array.
+      * @param parentLength Number of bytes of the parent path.
+      * @return Position in the destination array of the end of the stored path.
+      */
+    private int putPath(byte[] dest, byte[] parentPath, int parentLength)
+    {
+        int pos = (dest == buffer) ? length : 0;
+        if (parentPath != dest)
+        {
+            System.arraycopy(parentPath, 0, dest, pos, parentLength);
+        }
+        pos += parentLength;
+        if (parentLength > 0)
+        {
+            dest[pos++] = '/';
+        }
+        System.arraycopy(label, 0, dest, pos, labelLength);
+        return pos + labelLength;
+    }
+
+    /** Encodes the given text as UTF-8 in the label workspace, doubling any quotation marks so that it can be
+      * written as quoted CSV text. Unpaired surrogate characters are replaced with '?'.
+      * @param text Text to encode.
+      */
+    private void encodeLabel(String text)
+    {
+        int numBytes = UTF8Encoder.encodedLength(text);
+        if (2*numBytes > label.length)
+        {
+            label = new byte[Math.max(2*label.length, 2*numBytes)];
+            labelBuffer = ByteBuffer.wrap(label);
+        }
+        labelBuffer.clear();
+        UTF8Encoder.encode(labelBuffer, text);
+
+        // Quotation marks are single bytes in UTF-8 that cannot be part of any other character.
+        int numQuotes = 0;
+        for (int i=0; i<numBytes; i++)
+        {
+            if (label[i] == '"')
+            {
+                numQuotes++;
+            }
+        }
+        labelLength = numBytes + numQuotes;
+
+        if (numQuotes > 0)
+        {
+            // Double each quotation mark, working backwards so the text can be moved along in place.
+            int pos = labelLength;
+            for (int i=numBytes-1; i>=0; i--)
+            {
+                label[--pos] = label[i];
+                if (label[i] == '"')
+                {
+                    label[--pos] = '"';
+                }
+            }
+        }
+    }
+
+    /** Adds the given number to the output buffer rounded to the given number of decimal places, without any
+      * trailing zeros. As with <code>DecimalFormat</code>, the exact value of the number is rounded half-even and
+      * negative numbers that round to zero are written as <code>-0</code>. Numbers that are not finite are written
+      * as empty fields.
+      * @param value Number to add.
+      * @param numDecimals Maximum number of decimal places to write.
+      */
+    private void putFixed(double value, int numDecimals)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            return;
+        }
+
+        double scaled = value*POW10[numDecimals];
+        if (Math.abs(scaled) >= MAX_FIXED)
+        {
+            // Very large numbers are rare, so are formatted exactly rather than quickly.
+            String text = new BigDecimal(value).setScale(numDecimals, RoundingMode.HALF_EVEN).stripTrailingZeros().toPlainString();
+            if (length+text.length() > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, length+text.length()+BUFFER_SIZE);
+            }
+            for (int i=0; i<text.length(); i++)
+            {
+                buffer[length++] = (byte)text.charAt(i);
+            }
+            return;
+        }
+
+        long units;
+        double whole = Math.floor(scaled);
+        double remainder = scaled-whole;
+        if (Math.abs(remainder-0.5) <= 2*Math.ulp(scaled))
+        {
+            // The scaled number may have been rounded to either side of half way, so round the exact value instead.
+            units = new BigDecimal(value).setScale(numDecimals, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+        }
+        else
+        {
+            units = (long)whole + ((remainder > 0.5) ? 1 : 0);
+        }
+
+        if (Double.doubleToRawLongBits(value) < 0)
+        {
+            // Sign bit is set, including for negative numbers that round to zero.
+            buffer[length++] = '-';
+            units = -units;
+        }
+        long wholePart = units/LONG_POW10[numDecimals];
+        long fraction = units - wholePart*LONG_POW10[numDecimals];
+        putLong(wholePart);
+
+        if (fraction != 0)
+        {
+            int numDigits = numDecimals;
+            while (fraction % 10 == 0)
+            {
+                fraction /= 10;
+                numDigits--;
+            }
+            buffer[length++] = '.';
+            int end = length + numDigits;
+            for (int i=end-1; i>=length; i--)
+            {
+                buffer[i] = (byte)('0' + fraction % 10);
+                fraction /= 10;
+            }
+            length = end;
+        }
+    }
+
+    /** Adds the given non-negative whole number to the output buffer.
+      * @param value Number to add.
+      */
+    private void putLong(long value)
+    {
+        int numDigits = 1;
+        while ((numDigits < LONG_POW10.length) && (value >= LONG_POW10[numDigits]))
+        {
+            numDigits++;
+        }
+        if (numDigits == LONG_POW10.length)
+        {
+            numDigits = Long.toString(value).length();
+        }
+
+        int end = length + numDigits;
+        for (int i=end-1; i>=length; i--)
+        {
+            buffer[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+    }
+
+    /** Ensures the output buffer has room for the given number of bytes, writing out its contents if necessary.
+      * @param numBytes Number of bytes that are about to be added to the buffer.
+      * @throws IOException If there is a problem writing the buffer contents.
+      */
+    private void ensureCapacity(int numBytes) throws IOException
+    {
+        if (length+numBytes > buffer.length)
+        {
+            flush();
+            if (numBytes > buffer.length)
+            {
+                buffer = new byte[numBytes];
+            }
+        }
+    }
+
+    /** Writes the contents of the output buffer and empties it.
+      * @throws IOException If there is a problem writing the buffer contents.
+      */
+    private void flush() throws IOException
+    {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+}
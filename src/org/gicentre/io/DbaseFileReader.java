@@ -0,0 +1,293 @@
+package org.gicentre.io;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//  ********************************************************************************************
+/** Reads the records of a Dbase (<code>.dbf</code>) file such as the attribute table of a shapefile.
+ *  The file is memory-mapped rather than read through a stream, so any record can be accessed
+ *  directly and numeric fields are parsed without creating intermediate objects. Typical usage:
+ *  <pre>
+ *  DbaseFileReader r = new DbaseFileReader("myFile.dbf");
+ *  int nameField = r.findField("Name");
+ *  int valueField = r.findField("Value");
+ *  for (int i=0; i&lt;r.getNumRecords(); i++)
+ *  {
+ *      String name = r.readString(i,nameField);
+ *      double value = r.readDouble(i,valueField);
+ *      ...
+ *  }
+ *  r.close();
+ *  </pre>
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class DbaseFileReader
+{
+    // --------------------------- Class and object variables -----------------------------
+
+    private static final int MAX_EXACT_DIGITS = 15;     // Numbers with no more digits than this are parsed directly.
+    private static final double[] POW10 = {1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,1e12,1e13,1e14,1e15,
+                                           1e16,1e17,1e18,1e19,1e20,1e21,1e22};
+
+    private DbaseFileHeader header;
+    private FileInputStream stream;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int[] fieldOffsets;                         // Position of each field from the start of a record.
+    private byte[] fieldBytes;                          // Workspace for extracting field contents.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Opens the given Dbase file for reading.
+      * @param fileName Name of the <code>.dbf</code> file to read.
+      * @throws IOException If the file cannot be read or is not a valid Dbase file.
+      */
+    public DbaseFileReader(String fileName) throws IOException
+    {
+        stream = new FileInputStream(fileName);
+        channel = stream.getChannel();
+        header = new DbaseFileHeader();
+        try
+        {
+            header.readHeader(channel);
+            if (header.getHeaderLength() + (long)header.getNumRecords()*header.getRecordLength() > channel.size())
+            {
+                throw new IOException("Dbase file "+fileName+" is shorter than its header indicates.");
+            }
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                // The whole file is mapped into a single buffer, which can only be addressed with int positions.
+                throw new IOException("Dbase file "+fileName+" is too large to read ("+channel.size()+
+                                      " bytes). Files of up to "+Integer.MAX_VALUE+" bytes are supported.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            stream.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Field positions are calculated from their lengths since not all files store their data addresses.
+        fieldOffsets = new int[header.getNumFields()];
+        int offset = 1;                                 // Skip the deletion marker.
+        for (int i=0; i<fieldOffsets.length; i++)
+        {
+            fieldOffsets[i] = offset;
+            offset += header.getFieldLength(i);
+        }
+        fieldBytes = new byte[Math.max(1, header.getLargestFieldSize())];
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Provides the header describing the fields of this file.
+      * @return Dbase file header.
+      */
+    public DbaseFileHeader getHeader()
+    {
+        return header;
+    }
+
+    /** Reports the number of records in the file, including any marked as deleted.
+      * @return Number of records.
+      */
+    public int getNumRecords()
+    {
+        return header.getNumRecords();
+    }
+
+    /** Finds the field with the given name. Field names are not case sensitive.
+      * @param fieldName Name of field to find.
+      * @return Index of the field or -1 if no field has the given name.
+      */
+    public int findField(String fieldName)
+    {
+        for (int i=0; i<header.getNumFields(); i++)
+        {
+            if (header.getFieldName(i).equalsIgnoreCase(fieldName))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Reports whether the given record has been marked as deleted.
+      * @param record Index of the record to query (starting at 0).
+      * @return True if the record is deleted.
+      */
+    public boolean isDeleted(int record)
+    {
+        return buffer.get(recordPosition(record)) == '*';
+    }
+
+    /** Reads the contents of the given field as text with leading and trailing spaces removed.
+      * @param record Index of the record to read (starting at 0).
+      * @param field Index of the field to read.
+      * @return Text content of the field.
+      */
+    public String readString(int record, int field)
+    {
+        int length = header.getFieldLength(field);
+        buffer.position(recordPosition(record)+fieldOffsets[field]);
+        buffer.get(fieldBytes, 0, length);
+
+        int start = 0;
+        int end = length;
+        while ((start < end) && ((fieldBytes[start] == ' ') || (fieldBytes[start] == 0)))
+        {
+            start++;
+        }
+        while ((end > start) && ((fieldBytes[end-1] == ' ') || (fieldBytes[end-1] == 0)))
+        {
+            end--;
+        }
+        return new String(fieldBytes, start, end-start);
+    }
+
+    /** Reads the contents of the given field as a number. Plain decimal numbers are parsed directly from the
+      * file contents, giving the same value as <code>Double.parseDouble()</code>.
+      * @param record Index of the record to read (starting at 0).
+      * @param field Index of the field to read.
+      * @return Numeric content of the field, or NaN if the field is empty or not a number.
+      */
+    public double readDouble(int record, int field)
+    {
+        int pos = recordPosition(record)+fieldOffsets[field];
+        int end = pos + header.getFieldLength(field);
+
+        while ((pos < end) && (buffer.get(pos) == ' '))
+        {
+            pos++;
+        }
+        while ((end > pos) && ((buffer.get(end-1) == ' ') || (buffer.get(end-1) == 0)))
+        {
+            end--;
+        }
+        if (pos == end)
+        {
+            return Double.NaN;
+        }
+
+        boolean isNegative = false;
+        byte b = buffer.get(pos);
+        if ((b == '-') || (b == '+'))
+        {
+            isNegative = (b == '-');
+            pos++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;                              // Significant digits, excluding leading zeros.
+        int numDecimals = 0;
+        boolean hasDigit = false;
+        boolean hasPoint = false;
+        for (int i=pos; i<end; i++)
+        {
+            b = buffer.get(i);
+            if ((b >= '0') && (b <= '9'))
+            {
+                if ((numDigits > 0) || (b != '0'))
+                {
+                    numDigits++;
+                }
+                hasDigit = true;
+                mantissa = mantissa*10 + (b-'0');
+                if (hasPoint)
+                {
+                    numDecimals++;
+                }
+            }
+            else if ((b == '.') && (hasPoint == false))
+            {
+                hasPoint = true;
+            }
+            else
+            {
+                // Exponents and malformed values are handled by the Java parser.
+                return parseDouble(record, field);
+            }
+
+            if ((numDigits > MAX_EXACT_DIGITS) || (numDecimals >= POW10.length))
+            {
+                return parseDouble(record, field);
+            }
+        }
+        if (hasDigit == false)
+        {
+            return Double.NaN;
+        }
+
+        // Both mantissa and power of ten are exact so a single division gives a correctly rounded result.
+        double value = mantissa/POW10[numDecimals];
+        return isNegative ? -value : value;
+    }
+
+    /** Closes the file. No further records can be read once it has been closed.
+      * @throws IOException If there is a problem closing the file.
+      */
+    public void close() throws IOException
+    {
+        buffer = null;
+        channel.close();
+        stream.close();
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Reports the position in the file of the given record.
+      * @param record Index of the record (starting at 0).
+      * @return Byte offset of the start of the record.
+      * @throws IndexOutOfBoundsException If the record is not in the file.
+      */
+    private int recordPosition(int record)
+    {
+        if ((record < 0) || (record >= header.getNumRecords()))
+        {
+            throw new IndexOutOfBoundsException("Record "+record+" is not in the Dbase file ("+header.getNumRecords()+" records).");
+        }
+
+        // Calculated as a long as the offset of a large record index need not fit in an int. Records
+        // in the file always do as the file's size has been checked.
+        return (int)(header.getHeaderLength() + (long)record*header.getRecordLength());
+    }
+
+    /** Parses the given field as a number using the Java number parser.
+      * @param record Index of the record to read.
+      * @param field Index of the field to read.
+      * @return Numeric content of the field or NaN if not a number.
+      */
+    private double parseDouble(int record, int field)
+    {
+        try
+        {
+            return Double.parseDouble(readString(record, field));
+        }
+        catch (NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+}
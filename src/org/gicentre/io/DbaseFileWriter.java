@@ -21,6 +21,17 @@ import java.nio.channels.*;
  *  w.close();
  *  </pre>
  *  You must supply the <code>moreRecords</code> and <code>getMyRecord()</code> logic.
+ *  <p>
+ *  Alternatively, records can be written one field at a time without creating objects for each
+ *  value. Numbers and text are formatted directly into the output buffer:
+ *  <pre>
+ *  w.startRecord();
+ *  w.writeInt(id);
+ *  w.writeString(name);
+ *  w.writeDouble(value);
+ *  w.endRecord();
+ *  </pre>
+ *  Records are buffered, so <code>close()</code> must be called once all records have been written.
  *  @author Ian Schneider with minor modifications by Jo Wood, giCentre.
  *  @version 3.3.0, 18th April, 2016.
  */
@@ -45,10 +56,20 @@ public class DbaseFileWriter
 {
     // ------------------------------- Object Variables -------------------------------
   
+    private static final int BUFFER_SIZE = 64*1024;     // Approximate size of output buffer in bytes.
+    private static final int MAX_FAST_DECIMALS = 15;    // Numbers with more decimal places are formatted with a NumberFormat.
+    private static final double TWO_POW_53 = 9007199254740992.0;
+    private static final double TWO_POW_62 = 4611686018427387904.0;
+    private static final double[] POW10 = {1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,1e12,1e13,1e14,1e15,1e16};
+    private static final double[] POW10_NEG = {1e-0,1e-1,1e-2,1e-3,1e-4,1e-5,1e-6,1e-7,1e-8,1e-9,1e-10,1e-11,1e-12,1e-13,1e-14,1e-15,1e-16};
+
     private DbaseFileHeader header;
     private DbaseFileWriter.FieldFormatter formatter = new DbaseFileWriter.FieldFormatter();
     private WritableByteChannel channel;
     private ByteBuffer buffer;
+    private int recordStart;                            // Position in buffer of the start of the current record.
+    private int column;                                 // Next field to write in the current record, or -1 if no record started.
+    private byte[] digits;                              // Workspace for formatting numbers.
     private final Number NULL_NUMBER = new Integer(0);
     private final String NULL_STRING = "";
     private final Date NULL_DATE = new Date();
@@ -83,17 +104,120 @@ public class DbaseFileWriter
             throw new IOException("Wrong number of fields " + record.length + " expected " +  header.getNumFields());
         }
     
-        buffer.position(0);
+        startRecord();
+        for (int i = 0; i < header.getNumFields(); i++) 
+        {
+            writeObject(record[i]);
+        }
+        endRecord();
+    }
+
+    /** Starts a new record. Each field should then be written in column order with the typed write methods
+      * before calling <code>endRecord()</code>.
+      * @throws IOException If the previous record was not completed or there is a problem writing buffered records.
+      */
+    public void startRecord() throws IOException
+    {
+        if (column >= 0)
+        {
+            throw new IOException("Previous record not completed. Wrote " + column + " fields, expected " + header.getNumFields());
+        }
+        if (buffer.remaining() < header.getRecordLength())
+        {
+            flush();
+        }
+        recordStart = buffer.position();
     
         // Put the 'not-deleted' marker
         buffer.put( (byte) ' ');
-    
-        for (int i = 0; i < header.getNumFields(); i++) 
+        column = 0;
+    }
+
+    /** Completes the current record.
+      * @throws IOException If the record does not contain the number of fields defined in the header or does not fit
+      *                     the record length defined in the header.
+      */
+    public void endRecord() throws IOException
+    {
+        if (column != header.getNumFields())
+        {
+            throw new IOException("Wrong number of fields " + column + " expected " +  header.getNumFields());
+        }
+        if (buffer.position() - recordStart > header.getRecordLength())
+        {
+            throw new IOException("Record of " + (buffer.position() - recordStart) + " bytes exceeds record length of " + header.getRecordLength());
+        }
+        buffer.position(recordStart + header.getRecordLength());
+        column = -1;
+    }
+
+    /** Writes an integer value as the next field of the current record.
+      * @param value Value to write.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    public void writeInt(long value) throws IOException
+    {
+        int col = nextColumn();
+        char type = header.getFieldType(col);
+        int decimals = header.getFieldDecimalCount(col);
+        if ((isNumeric(type) == false) || (decimals > MAX_FAST_DECIMALS) || (value == Long.MIN_VALUE))
         {
-            String fieldString = fieldString(record[i], i);
-            buffer.put(fieldString.getBytes());
+            putField(fieldString(Long.valueOf(value), col));
+            return;
+        }
+        putNumber(value < 0, Math.abs(value), decimals, header.getFieldLength(col));
+    }
+
+    /** Writes a floating point value as the next field of the current record. Values are rounded to the number of
+      * decimal places of the field in the same way as a <code>NumberFormat</code>.
+      * @param value Value to write.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    public void writeDouble(double value) throws IOException
+    {
+        int col = nextColumn();
+        char type = header.getFieldType(col);
+        int decimals = header.getFieldDecimalCount(col);
+        if (isNumeric(type) && (decimals <= MAX_FAST_DECIMALS) && putDouble(value, decimals, header.getFieldLength(col)))
+        {
+            return;
+        }
+        putField(fieldString(Double.valueOf(value), col));
+    }
+
+    /** Writes a text value as the next field of the current record. Text longer than the field is truncated.
+      * @param value Value to write, or null to write an empty field.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    public void writeString(String value) throws IOException
+    {
+        int col = nextColumn();
+        if ((isText(header.getFieldType(col)) == false) || (putText(value, header.getFieldLength(col)) == false))
+        {
+            putField(fieldString(value, col));
+        }
+    }
+
+    /** Writes an empty value as the next field of the current record. Numeric fields are given a value of 0.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    public void writeNull() throws IOException
+    {
+        int col = nextColumn();
+        char type = header.getFieldType(col);
+        int decimals = header.getFieldDecimalCount(col);
+        if (isText(type))
+        {
+            putText(NULL_STRING, header.getFieldLength(col));
+        }
+        else if (isNumeric(type) && (decimals <= MAX_FAST_DECIMALS))
+        {
+            putNumber(false, 0, decimals, header.getFieldLength(col));
+        }
+        else
+        {
+            putField(fieldString(null, col));
         }
-        write();
     }
     
     
@@ -103,6 +227,8 @@ public class DbaseFileWriter
       */
     public void close() throws IOException 
     {
+        flush();
+
         // IANS - GEOT 193, bogus 0x00 written. According to dbf spec, optional
         // eof 0x1a marker is, well, optional. Since the original code wrote a
         // 0x00 (which is wrong anyway) lets just do away with this :)
@@ -130,20 +256,261 @@ public class DbaseFileWriter
       */
     private void init()
     {
-        buffer = ByteBuffer.allocateDirect(header.getRecordLength());
+        int recordLength = header.getRecordLength();
+        buffer = ByteBuffer.allocateDirect(recordLength*Math.max(1, BUFFER_SIZE/recordLength));
+        column = -1;
+        digits = new byte[48];
     }
   
     /** Empties the output buffer to the output channel.
       * @throws IOException If problems occur while writing.
       */
-    private void write() throws IOException 
+    private void flush() throws IOException 
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) 
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Reports the column of the next field to be written in the current record and advances to the following one.
+      * @return Column of the next field to write.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    private int nextColumn() throws IOException
     {
-        buffer.position(0);
-        int r = buffer.remaining();
-        while ( (r -= channel.write(buffer)) > 0) 
+        if (column < 0)
         {
-            // Do nothing
+            throw new IOException("Cannot write field before starting a record.");
         }
+        if (column >= header.getNumFields())
+        {
+            throw new IOException("Too many fields. Expected " + header.getNumFields());
+        }
+        return column++;
+    }
+
+    /** Writes the given object as the next field of the current record, using the writer suited to its type.
+      * @param obj Object to write.
+      * @throws IOException If a record has not been started or all of its fields have been written.
+      */
+    private void writeObject(Object obj) throws IOException
+    {
+        if (obj == null)
+        {
+            writeNull();
+        }
+        else if ((obj instanceof Integer) || (obj instanceof Long) || (obj instanceof Short) || (obj instanceof Byte))
+        {
+            writeInt(((Number)obj).longValue());
+        }
+        else if ((obj instanceof Double) || (obj instanceof Float))
+        {
+            writeDouble(((Number)obj).doubleValue());
+        }
+        else if (obj instanceof String)
+        {
+            writeString((String)obj);
+        }
+        else
+        {
+            putField(fieldString(obj, nextColumn()));
+        }
+    }
+
+    /** Adds the encoded bytes of the given field string to the current record.
+      * @param fieldString Formatted field to add.
+      */
+    private void putField(String fieldString)
+    {
+        buffer.put(fieldString.getBytes());
+    }
+
+    /** Adds the given text padded with spaces or truncated to the given field length to the current record.
+      * Only ASCII text is written directly since other characters may be encoded with more than one byte.
+      * @param text Text to add, or null to add an empty field.
+      * @param fieldLength Length of the field in characters.
+      * @return True if the text was added, or false if it contains non-ASCII characters and nothing was added.
+      */
+    private boolean putText(String text, int fieldLength)
+    {
+        int length = (text == null) ? 0 : Math.min(text.length(), fieldLength);
+        for (int i=0; i<length; i++)
+        {
+            if (text.charAt(i) >= 0x80)
+            {
+                return false;
+            }
+        }
+        for (int i=0; i<length; i++)
+        {
+            buffer.put((byte)text.charAt(i));
+        }
+        for (int i=length; i<fieldLength; i++)
+        {
+            buffer.put((byte)' ');
+        }
+        return true;
+    }
+
+    /** Adds the given value rounded to the given number of decimal places to the current record, provided it can 
+      * be formatted identically to a <code>NumberFormat</code> without creating any objects. Values are rounded 
+      * half-even. This is only attempted where the double's precision is fine enough for correct rounding of its
+      * binary value to match the rounding of its shortest decimal representation and where the value is not close
+      * to a rounding tie.
+      * @param value Value to add.
+      * @param decimals Number of decimal places.
+      * @param fieldLength Length of the field in characters.
+      * @return True if the value was added, or false if nothing was added and it should be formatted by other means.
+      */
+    private boolean putDouble(double value, int decimals, int fieldLength)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            return false;
+        }
+
+        // Negative zero and negative values that round to zero keep their sign.
+        boolean isNegative = Double.doubleToRawLongBits(value) < 0;
+        double absValue = Math.abs(value);
+        boolean isSmallInteger = (absValue < TWO_POW_53) && (absValue == Math.rint(absValue));
+        if ((isSmallInteger == false) && (Math.ulp(absValue) >= POW10_NEG[decimals+1]))
+        {
+            return false;
+        }
+
+        double scaled = absValue*POW10[decimals];
+        if (scaled >= TWO_POW_62)
+        {
+            return false;
+        }
+        double whole = Math.floor(scaled);
+        double fraction = scaled - whole;
+        if (Math.abs(fraction-0.5) <= 2*Math.ulp(scaled))
+        {
+            return false;       // Too close to a tie to be sure of the rounding direction.
+        }
+        long roundedValue = (long)whole;
+        if (fraction > 0.5)
+        {
+            roundedValue++;
+        }
+
+        // Scaled value is already rounded, so its digits are placed directly.
+        putDigits(isNegative, roundedValue, decimals, fieldLength);
+        return true;
+    }
+
+    /** Adds the given whole number with the given number of zero decimal places to the current record.
+      * @param isNegative True if the number is to be shown as negative.
+      * @param absValue Magnitude of the number.
+      * @param decimals Number of decimal places.
+      * @param fieldLength Length of the field in characters.
+      */
+    private void putNumber(boolean isNegative, long absValue, int decimals, int fieldLength)
+    {
+        int length = 0;
+        if (isNegative)
+        {
+            digits[length++] = '-';
+        }
+        length = appendDigits(absValue, length);
+        if (decimals > 0)
+        {
+            digits[length++] = '.';
+            for (int i=0; i<decimals; i++)
+            {
+                digits[length++] = '0';
+            }
+        }
+        putPadded(length, fieldLength);
+    }
+
+    /** Adds the given scaled number to the current record with a decimal point inserted before the given number of
+      * its final digits.
+      * @param isNegative True if the number is to be shown as negative.
+      * @param scaledValue Magnitude of the number multiplied by 10 to the power of the number of decimal places.
+      * @param decimals Number of decimal places.
+      * @param fieldLength Length of the field in characters.
+      */
+    private void putDigits(boolean isNegative, long scaledValue, int decimals, int fieldLength)
+    {
+        if (decimals == 0)
+        {
+            putNumber(isNegative, scaledValue, 0, fieldLength);
+            return;
+        }
+
+        long divisor = (long)POW10[decimals];
+        int length = 0;
+        if (isNegative)
+        {
+            digits[length++] = '-';
+        }
+        length = appendDigits(scaledValue/divisor, length);
+        digits[length++] = '.';
+        long fraction = scaledValue%divisor;
+        for (int i=decimals-1; i>=0; i--)
+        {
+            digits[length+i] = (byte)('0' + fraction%10);
+            fraction /= 10;
+        }
+        putPadded(length+decimals, fieldLength);
+    }
+
+    /** Appends the decimal digits of the given non-negative number to the digit workspace.
+      * @param value Number to append.
+      * @param start Position in the workspace at which to append the digits.
+      * @return Position in the workspace following the last digit.
+      */
+    private int appendDigits(long value, int start)
+    {
+        int numDigits = 1;
+        for (long v=value/10; v>0; v/=10)
+        {
+            numDigits++;
+        }
+        long v = value;
+        for (int i=start+numDigits-1; i>=start; i--)
+        {
+            digits[i] = (byte)('0' + v%10);
+            v /= 10;
+        }
+        return start+numDigits;
+    }
+
+    /** Adds the formatted number in the digit workspace to the current record, right-aligned within the field.
+      * Numbers too long for the field are truncated.
+      * @param length Number of characters in the digit workspace.
+      * @param fieldLength Length of the field in characters.
+      */
+    private void putPadded(int length, int fieldLength)
+    {
+        for (int i=length; i<fieldLength; i++)
+        {
+            buffer.put((byte)' ');
+        }
+        buffer.put(digits, 0, Math.min(length, fieldLength));
+    }
+
+    /** Reports whether the given field type holds numbers.
+      * @param type Dbase field type.
+      * @return True if the field type holds numbers.
+      */
+    private static boolean isNumeric(char type)
+    {
+        return (type == 'N') || (type == 'n') || (type == 'F') || (type == 'f');
+    }
+
+    /** Reports whether the given field type holds text.
+      * @param type Dbase field type.
+      * @return True if the field type holds text.
+      */
+    private static boolean isText(char type)
+    {
+        return (type == 'C') || (type == 'c') || (type == 'M') || (type == 'G');
     }
     
     /** Converts the given object into its fieldstring representation.
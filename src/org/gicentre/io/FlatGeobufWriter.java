@@ -0,0 +1,554 @@
+package org.gicentre.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ********************************************************************************************
+/** Writes out a treemap as a FlatGeobuf (<code>.fgb</code>) file. Each treemap rectangle becomes a
+ *  polygon feature with the same attributes and geographic coordinates as those written to a shapefile
+ *  by {@link ShapefileWriter}. Features are preceded by a packed Hilbert R-tree so that web clients can
+ *  use HTTP range requests to fetch only those features within a bounding box. The FlatBuffers used by
+ *  the format are encoded directly into a reusable output buffer, so no objects are created per feature.
+ *  See <a href="https://flatgeobuf.org">flatgeobuf.org</a> for details of the format.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class FlatGeobufWriter
+{
+    // --------------------------- Class variables -----------------------------
+
+    private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+    private static final int BUFFER_SIZE = 64*1024;     // Size of output buffer in bytes.
+    private static final int NODE_SIZE = 16;            // Number of children of each spatial index node.
+    private static final int NODE_BYTES = 40;           // Bounds and offset of each spatial index node.
+    private static final int HILBERT_MAX = 65535;       // Resolution of the grid used for ordering features.
+    private static final int POLYGON = 3;               // FlatGeobuf geometry type.
+
+    // Feature attributes and their FlatGeobuf column types.
+    private static final String[] COLUMN_NAMES = {"TreemapID", "Label", "Size", "Colour", "Depth", "Leaf"};
+    private static final byte[] COLUMN_TYPES   = {5, 11, 10, 10, 5, 2};      // Int, String, Double, Double, Int, Bool.
+    private static final int COL_ID = 0, COL_LABEL = 1, COL_SIZE = 2, COL_COLOUR = 3, COL_DEPTH = 4, COL_LEAF = 5;
+
+    // Each feature is a FlatBuffer with a fixed layout up to the start of its property data.
+    private static final int FEATURE_START = 128;       // Position of property data in a feature.
+    private static final int PROPERTY_BYTES = 31;       // Length of properties excluding the label text and colour.
+    private static final int COLOUR_BYTES = 10;         // Length of the colour property when present.
+
+    // --------------------------- Object variables ----------------------------
+
+    private ByteBuffer buffer;                          // Output waiting to be written.
+    private FileChannel channel;
+    private ProgressListener progressListener;          // Informed of features written (or null).
+    private CancellationToken cancellationToken;        // Checked for cancellation while writing (or null).
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a FlatGeobuf writer. Each writer holds its own state, so separate writers may be used to
+      * write different files at the same time.
+      */
+    public FlatGeobufWriter()
+    {
+        super();
+    }
+
+    // --------------------------- Static Methods ------------------------------
+
+    /** Writes a FlatGeobuf file based on the supplied treemap node (and all of its decendents).
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public static boolean writeNodes(TreeMapNode node, String fileName)
+    {
+        return new FlatGeobufWriter().write(node, fileName);
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Determines the objects informed of progress and checked for cancellation while features are written.
+      * If writing is cancelled, the incomplete file is removed and <code>write()</code> reports failure.
+      * @param listener Listener to inform of the number of features written, or null if not reported.
+      * @param token Token checked after each batch of features, or null if writing cannot be cancelled.
+      */
+    public void setProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.progressListener = listener;
+        this.cancellationToken = token;
+    }
+
+    /** Writes a FlatGeobuf file based on the supplied treemap node (and all of its decendents). Nodes are written as
+      * polygon features with the attributes <code>TreemapID</code>, <code>Label</code>, <code>Size</code>,
+      * <code>Colour</code>, <code>Depth</code> and <code>Leaf</code>. Features are written in the order of their
+      * position along a Hilbert curve as required by the spatial index, but their <code>TreemapID</code>s are
+      * numbered in breadth-first order, as they are in other output formats.
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, String fileName)
+    {
+        NodeTable nodes = new NodeTable(node);
+
+        if (nodes.numNodes == 0)
+        {
+            System.err.println("Cannot write FlatGeobuf for '"+node.getLabel()+"' as node has no children.");
+            return false;
+        }
+        if (nodes.calcGeoCoords(node, "FlatGeobuf") == false)
+        {
+            return false;
+        }
+
+        int[] order = hilbertOrder(nodes);
+        WriteProgress progress = new WriteProgress(progressListener, cancellationToken);
+
+        try (FileOutputStream stream = new FileOutputStream(fileName))
+        {
+            channel = stream.getChannel();
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.put(MAGIC);
+            putHeader(nodes, node.getLabel());
+            putIndex(nodes, order);
+
+            for (int i=0; i<order.length; i++)
+            {
+                putFeature(nodes, order[i]);
+                progress.update(i+1, order.length);
+            }
+            flush();
+        }
+        catch (FileNotFoundException e)
+        {
+            System.err.println("Cannot create FlatGeobuf file ("+fileName+").");
+            return false;
+        }
+        catch (WriteProgress.CancelledException e)
+        {
+            new File(fileName).delete();
+            System.err.println("Writing of FlatGeobuf file ("+fileName+") cancelled.");
+            return false;
+        }
+        catch (IOException e)
+        {
+            // The file has been closed by now, so remove it as it is incomplete.
+            new File(fileName).delete();
+            System.err.println("Problem writing FlatGeobuf file ("+fileName+").");
+            return false;
+        }
+        finally
+        {
+            buffer = null;
+            channel = null;
+        }
+        return true;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Adds the file header to the output. This is a size-prefixed FlatBuffer describing the geometry type,
+      * extent, number of features and attribute columns. As in any size-prefixed FlatBuffer, 8 byte values are
+      * aligned relative to the start of the size prefix, so they lie 4 bytes past an 8 byte boundary in the
+      * positions given here, which are relative to the end of the prefix.
+      * @param nodes Stored nodes to be written.
+      * @param name Name of the dataset.
+      * @throws IOException If there is a problem writing the header.
+      */
+    private void putHeader(NodeTable nodes, String name) throws IOException
+    {
+        int nameLength = UTF8Encoder.encodedLength(name);
+        int size = 104 + pad4(nameLength+1) + 4 + 4*COLUMN_NAMES.length;
+        for (int i=0; i<COLUMN_NAMES.length; i++)
+        {
+            size += 20 + pad4(4+COLUMN_NAMES[i].length()+1);
+        }
+        reserve(4+size);
+
+        buffer.putInt(size);
+        int start = buffer.position();
+
+        // Root table offset and vtable for header fields name, envelope, geometry_type, has_z, has_m, has_t,
+        // has_tm, columns, features_count and index_node_size.
+        buffer.putInt(32);
+        buffer.putInt(0);
+        buffer.putShort((short)24).putShort((short)28);
+        buffer.putShort((short)4).putShort((short)8).putShort((short)26);
+        buffer.putShort((short)0).putShort((short)0).putShort((short)0).putShort((short)0);
+        buffer.putShort((short)20).putShort((short)12).putShort((short)24);
+
+        // Header table at 32.
+        int columnsPos = 104 + pad4(nameLength+1);
+        buffer.putInt(24);                              // Offset back to vtable.
+        buffer.putInt(100-36);                          // Name.
+        buffer.putInt(64-40);                           // Envelope.
+        buffer.putLong(nodes.numNodes);                 // Features count at 44.
+        buffer.putInt(columnsPos-52);                   // Columns.
+        buffer.putShort((short)NODE_SIZE);
+        buffer.put((byte)POLYGON);
+        buffer.put((byte)0);
+
+        // Envelope vector with its doubles aligned to 8 bytes.
+        buffer.putInt(0);
+        buffer.putInt(4);
+        buffer.putDouble(nodes.geoBounds.getMinX()).putDouble(nodes.geoBounds.getMinY());
+        buffer.putDouble(nodes.geoBounds.getMaxX()).putDouble(nodes.geoBounds.getMaxY());
+
+        // Name string at 100.
+        buffer.putInt(nameLength);
+        UTF8Encoder.encode(buffer, name);
+        putPadding(pad4(nameLength+1)-nameLength);
+
+        // Columns vector followed by the column tables it refers to.
+        buffer.putInt(COLUMN_NAMES.length);
+        int columnPos = columnsPos + 4 + 4*COLUMN_NAMES.length;
+        for (int i=0; i<COLUMN_NAMES.length; i++)
+        {
+            buffer.putInt(columnPos+8 - (columnsPos+4+4*i));
+            columnPos += 20 + pad4(4+COLUMN_NAMES[i].length()+1);
+        }
+        for (int i=0; i<COLUMN_NAMES.length; i++)
+        {
+            // Vtable for column fields name and type followed by the column table.
+            buffer.putShort((short)8).putShort((short)12).putShort((short)4).putShort((short)8);
+            buffer.putInt(8);
+            buffer.putInt(8);
+            buffer.put(COLUMN_TYPES[i]);
+            putPadding(3);
+
+            buffer.putInt(COLUMN_NAMES[i].length());
+            UTF8Encoder.encode(buffer, COLUMN_NAMES[i]);
+            putPadding(pad4(4+COLUMN_NAMES[i].length()+1)-4-COLUMN_NAMES[i].length());
+        }
+
+        if (buffer.position()-start != size)
+        {
+            throw new IOException("FlatGeobuf header is "+(buffer.position()-start)+" bytes rather than "+size);
+        }
+    }
+
+    /** Adds the packed Hilbert R-tree spatial index to the output. The index is stored with the root first and the
+      * leaves, one for each feature in the order in which they are written, last. Each leaf stores the position
+      * of its feature relative to the start of the features, while other nodes store the index of their first child.
+      * @param nodes Stored nodes to be written.
+      * @param order Order in which the nodes are to be written.
+      * @throws IOException If there is a problem writing the index.
+      */
+    private void putIndex(NodeTable nodes, int[] order) throws IOException
+    {
+        // Calculate the number of index nodes at each level, starting with the leaves.
+        int numItems = order.length;
+        int[] levelNumNodes = new int[32];
+        int numLevels = 0;
+        int n = numItems;
+        int numIndexNodes = n;
+        levelNumNodes[numLevels++] = n;
+        do
+        {
+            n = (n + NODE_SIZE - 1)/NODE_SIZE;
+            numIndexNodes += n;
+            levelNumNodes[numLevels++] = n;
+        }
+        while (n != 1);
+
+        int[] levelStart = new int[numLevels];
+        n = numIndexNodes;
+        for (int i=0; i<numLevels; i++)
+        {
+            levelStart[i] = n - levelNumNodes[i];
+            n -= levelNumNodes[i];
+        }
+
+        double[] bounds = new double[numIndexNodes*4];
+        long[] offsets = new long[numIndexNodes];
+
+        // Leaves hold the bounds of each feature and its position in the file.
+        long featureOffset = 0;
+        for (int i=0; i<numItems; i++)
+        {
+            int node = order[i];
+            int leaf = levelStart[0]+i;
+            bounds[leaf*4]   = nodes.geoMinX[node];
+            bounds[leaf*4+1] = nodes.geoMinY[node];
+            bounds[leaf*4+2] = nodes.geoMaxX[node];
+            bounds[leaf*4+3] = nodes.geoMaxY[node];
+            offsets[leaf] = featureOffset;
+            featureOffset += 4 + featureSize(nodes, node);
+        }
+
+        // Each parent holds the combined bounds of up to NODE_SIZE children.
+        for (int level=0; level<numLevels-1; level++)
+        {
+            int pos = levelStart[level];
+            int end = pos + levelNumNodes[level];
+            int parent = levelStart[level+1];
+            while (pos < end)
+            {
+                offsets[parent] = pos;
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                for (int j=0; (j<NODE_SIZE) && (pos<end); j++, pos++)
+                {
+                    minX = Math.min(minX, bounds[pos*4]);
+                    minY = Math.min(minY, bounds[pos*4+1]);
+                    maxX = Math.max(maxX, bounds[pos*4+2]);
+                    maxY = Math.max(maxY, bounds[pos*4+3]);
+                }
+                bounds[parent*4]   = minX;
+                bounds[parent*4+1] = minY;
+                bounds[parent*4+2] = maxX;
+                bounds[parent*4+3] = maxY;
+                parent++;
+            }
+        }
+
+        for (int i=0; i<numIndexNodes; i++)
+        {
+            reserve(NODE_BYTES);
+            buffer.putDouble(bounds[i*4]).putDouble(bounds[i*4+1]).putDouble(bounds[i*4+2]).putDouble(bounds[i*4+3]);
+            buffer.putLong(offsets[i]);
+        }
+    }
+
+    /** Adds the given node to the output as a size-prefixed feature FlatBuffer containing its polygon and attributes.
+      * Positions are relative to the end of the size prefix, so the coordinates start 4 bytes past an 8 byte boundary
+      * in order to be aligned relative to the start of the prefix.
+      * @param nodes Stored nodes containing the node to add.
+      * @param i Index of the node to add.
+      * @throws IOException If there is a problem writing the feature.
+      */
+    private void putFeature(NodeTable nodes, int i) throws IOException
+    {
+        int size = featureSize(nodes, i);
+        int labelLength = UTF8Encoder.encodedLength(nodes.labels[i]);
+        int propertyLength = PROPERTY_BYTES + labelLength + (nodes.hasColour[i] ? COLOUR_BYTES : 0);
+        reserve(4+size);
+
+        double minX = nodes.geoMinX[i];
+        double minY = nodes.geoMinY[i];
+        double maxX = nodes.geoMaxX[i];
+        double maxY = nodes.geoMaxY[i];
+
+        buffer.putInt(size);
+
+        // Root table offset and vtable for feature fields geometry and properties.
+        buffer.putInt(12);
+        buffer.putShort((short)8).putShort((short)12).putShort((short)4).putShort((short)8);
+
+        // Feature table at 12.
+        buffer.putInt(8);
+        buffer.putInt(32-16);                           // Geometry.
+        buffer.putInt(FEATURE_START-4-20);              // Properties.
+
+        // Vtable for geometry fields ends and xy, followed by the geometry table at 32.
+        buffer.putShort((short)8).putShort((short)8).putShort((short)0).putShort((short)4);
+        buffer.putInt(8);
+        buffer.putInt(40-36);                           // Coordinates.
+
+        // Coordinates as a single anticlockwise ring with its doubles aligned to 8 bytes.
+        buffer.putInt(10);
+        buffer.putDouble(minX).putDouble(minY);
+        buffer.putDouble(maxX).putDouble(minY);
+        buffer.putDouble(maxX).putDouble(maxY);
+        buffer.putDouble(minX).putDouble(maxY);
+        buffer.putDouble(minX).putDouble(minY);
+
+        // Properties stored as column index followed by value.
+        buffer.putInt(propertyLength);
+        buffer.putShort((short)COL_ID).putInt(i+1);
+        buffer.putShort((short)COL_LABEL).putInt(labelLength);
+        UTF8Encoder.encode(buffer, nodes.labels[i]);
+        buffer.putShort((short)COL_SIZE).putDouble(nodes.sizes[i]);
+        if (nodes.hasColour[i])
+        {
+            buffer.putShort((short)COL_COLOUR).putDouble(nodes.colours[i]);
+        }
+        buffer.putShort((short)COL_DEPTH).putInt(nodes.levels[i]);
+        buffer.putShort((short)COL_LEAF).put(nodes.isLeaf[i] ? (byte)1 : (byte)0);
+        putPadding(size-FEATURE_START-propertyLength);
+    }
+
+    /** Reports the size of the FlatBuffer used to store the given node, excluding its size prefix.
+      * @param nodes Stored nodes containing the node to measure.
+      * @param i Index of the node to measure.
+      * @return Number of bytes used to store the node.
+      */
+    private static int featureSize(NodeTable nodes, int i)
+    {
+        int propertyLength = PROPERTY_BYTES + UTF8Encoder.encodedLength(nodes.labels[i]) + (nodes.hasColour[i] ? COLOUR_BYTES : 0);
+        return pad4(FEATURE_START + propertyLength);
+    }
+
+    /** Finds the order in which to write the stored nodes. Nodes are sorted by the position of the centre of
+      * their rectangles along a Hilbert curve in the same (descending) order as other FlatGeobuf writers.
+      * @param nodes Stored nodes to be written.
+      * @return Indices of the stored nodes in the order in which they should be written.
+      */
+    private static int[] hilbertOrder(NodeTable nodes)
+    {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<nodes.numNodes; i++)
+        {
+            minX = Math.min(minX, nodes.geoMinX[i]);
+            minY = Math.min(minY, nodes.geoMinY[i]);
+            maxX = Math.max(maxX, nodes.geoMaxX[i]);
+            maxY = Math.max(maxY, nodes.geoMaxY[i]);
+        }
+        double width = maxX-minX;
+        double height = maxY-minY;
+
+        // Sort keys hold the inverted curve position above the node index, with the sign bit flipped so that
+        // a signed sort places the unsigned curve positions in descending order.
+        long[] keys = new long[nodes.numNodes];
+        for (int i=0; i<nodes.numNodes; i++)
+        {
+            int x = 0;
+            int y = 0;
+            if (width != 0)
+            {
+                x = (int)Math.floor(HILBERT_MAX*((nodes.geoMinX[i]+nodes.geoMaxX[i])/2 - minX)/width);
+            }
+            if (height != 0)
+            {
+                y = (int)Math.floor(HILBERT_MAX*((nodes.geoMinY[i]+nodes.geoMaxY[i])/2 - minY)/height);
+            }
+            long position = hilbert(x, y) & 0xffffffffL;
+            keys[i] = (((~position & 0xffffffffL) << 32) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[nodes.numNodes];
+        for (int i=0; i<order.length; i++)
+        {
+            order[i] = (int)keys[i];
+        }
+        return order;
+    }
+
+    /** Finds the position along a 16 bit Hilbert curve of the given grid cell. Based on the public domain
+      * algorithm by Rawrunprotected used by FlatGeobuf.
+      * @param x Column of the grid cell (between 0 and 65535).
+      * @param y Row of the grid cell (between 0 and 65535).
+      * @return Position along the Hilbert curve treated as an unsigned 32 bit number.
+      */
+    private static int hilbert(int x, int y)
+    {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    /** Ensures the output buffer has room for the given number of bytes, writing out its contents if necessary.
+      * @param numBytes Number of bytes that are about to be added to the buffer.
+      * @throws IOException If there is a problem writing the buffer contents.
+      */
+    private void reserve(int numBytes) throws IOException
+    {
+        if (buffer.remaining() < numBytes)
+        {
+            flush();
+            if (buffer.capacity() < numBytes)
+            {
+                buffer = ByteBuffer.allocateDirect(numBytes);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /** Writes the contents of the output buffer to the file and empties the buffer.
+      * @throws IOException If there is a problem writing to the file.
+      */
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Adds the given number of zero bytes to the output buffer.
+      * @param numBytes Number of bytes to add.
+      */
+    private void putPadding(int numBytes)
+    {
+        for (int i=0; i<numBytes; i++)
+        {
+            buffer.put((byte)0);
+        }
+    }
+
+    /** Rounds the given length up to a multiple of 4 bytes.
+      * @param length Length to round.
+      * @return Smallest multiple of 4 that is no smaller than the given length.
+      */
+    private static int pad4(int length)
+    {
+        return (length+3) & ~3;
+    }
+}
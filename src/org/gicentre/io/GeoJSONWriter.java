@@ -0,0 +1,282 @@
+package org.gicentre.io;
+
+import java.io.*;
+
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ********************************************************************************************
+/** Writes out a treemap as a GeoJSON feature collection. Each treemap rectangle becomes a polygon
+ *  feature with the same attributes and geographic coordinates as those written to a shapefile by
+ *  {@link ShapefileWriter}. Features are streamed to the file one per line as they are generated,
+ *  so the whole collection is never held in memory as text.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class GeoJSONWriter
+{
+    // --------------------------- Class variables -----------------------------
+
+    private static final int BUFFER_SIZE = 64*1024;     // Number of characters assembled before being written.
+    private static final char[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+
+    // --------------------------- Object variables ----------------------------
+
+    private StringBuilder text;                         // Text waiting to be written.
+    private char[] chars;                               // Workspace for passing text to the writer.
+    private ProgressListener progressListener;          // Informed of features written (or null).
+    private CancellationToken cancellationToken;        // Checked for cancellation while writing (or null).
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a GeoJSON writer. Each writer holds its own state, so separate writers may be used to
+      * write different files at the same time.
+      */
+    public GeoJSONWriter()
+    {
+        super();
+    }
+
+    // --------------------------- Static Methods ------------------------------
+
+    /** Writes a GeoJSON file based on the supplied treemap node (and all of its decendents).
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public static boolean writeNodes(TreeMapNode node, String fileName)
+    {
+        return new GeoJSONWriter().write(node, fileName);
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Determines the objects informed of progress and checked for cancellation while features are written.
+      * A cancelled file is removed rather than left with an unterminated feature collection.
+      * @param listener Listener to inform of the number of features written, or null if not reported.
+      * @param token Token checked after each batch of features, or null if writing cannot be cancelled.
+      */
+    public void setProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.progressListener = listener;
+        this.cancellationToken = token;
+    }
+
+    /** Writes a GeoJSON file based on the supplied treemap node (and all of its decendents). Nodes are written in
+      * breadth-first order as polygon features with the properties <code>TreemapID</code>, <code>Label</code>,
+      * <code>Size</code>, <code>Colour</code>, <code>Depth</code> and <code>Leaf</code>.
+      * @param node Treemap node to write.
+      * @param fileName Name of the file to create.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, String fileName)
+    {
+        NodeTable nodes = new NodeTable(node);
+
+        if (nodes.numNodes == 0)
+        {
+            System.err.println("Cannot write GeoJSON for '"+node.getLabel()+"' as node has no children.");
+            return false;
+        }
+        if (nodes.calcGeoCoords(node, "GeoJSON") == false)
+        {
+            return false;
+        }
+
+        text = new StringBuilder(BUFFER_SIZE+1024);
+        chars = new char[BUFFER_SIZE+1024];
+        WriteProgress progress = new WriteProgress(progressListener, cancellationToken);
+
+        try (FileOutputStream stream = new FileOutputStream(fileName);
+             Writer out = new OutputStreamWriter(stream, "UTF-8"))
+        {
+            text.append("{\"type\":\"FeatureCollection\",\"bbox\":[");
+            text.append(nodes.geoBounds.getMinX()).append(',').append(nodes.geoBounds.getMinY()).append(',');
+            text.append(nodes.geoBounds.getMaxX()).append(',').append(nodes.geoBounds.getMaxY());
+            text.append("],\"features\":[\n");
+
+            for (int i=0; i<nodes.numNodes; i++)
+            {
+                if (i > 0)
+                {
+                    text.append(",\n");
+                }
+                appendFeature(nodes, i);
+
+                if (text.length() >= BUFFER_SIZE)
+                {
+                    flush(out);
+                }
+                progress.update(i+1, nodes.numNodes);
+            }
+            text.append("\n]}\n");
+            flush(out);
+        }
+        catch (FileNotFoundException e)
+        {
+            System.err.println("Cannot create GeoJSON file ("+fileName+").");
+            return false;
+        }
+        catch (WriteProgress.CancelledException e)
+        {
+            new File(fileName).delete();
+            System.err.println("Writing of GeoJSON file ("+fileName+") cancelled.");
+            return false;
+        }
+        catch (IOException e)
+        {
+            // The file has been closed by now, so remove it as it is incomplete.
+            new File(fileName).delete();
+            System.err.println("Problem writing GeoJSON file ("+fileName+").");
+            return false;
+        }
+        finally
+        {
+            text = null;
+            chars = null;
+        }
+        return true;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Adds the given node to the text to be written as a GeoJSON polygon feature. The rectangle is written as a
+      * single anticlockwise ring as recommended by RFC 7946.
+      * @param nodes Stored nodes containing the node to add.
+      * @param i Index of the node to add.
+      */
+    private void appendFeature(NodeTable nodes, int i)
+    {
+        double minX = nodes.geoMinX[i];
+        double minY = nodes.geoMinY[i];
+        double maxX = nodes.geoMaxX[i];
+        double maxY = nodes.geoMaxY[i];
+
+        text.append("{\"type\":\"Feature\",\"properties\":{\"TreemapID\":").append(i+1);
+        text.append(",\"Label\":");
+        appendString(nodes.labels[i]);
+        text.append(",\"Size\":");
+        appendNumber(nodes.sizes[i]);
+        text.append(",\"Colour\":");
+        if (nodes.hasColour[i])
+        {
+            appendNumber(nodes.colours[i]);
+        }
+        else
+        {
+            text.append("null");
+        }
+        text.append(",\"Depth\":").append(nodes.levels[i]);
+        text.append(",\"Leaf\":").append(nodes.isLeaf[i]);
+
+        text.append("},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[");
+        text.append('[').append(minX).append(',').append(minY).append("],");
+        text.append('[').append(maxX).append(',').append(minY).append("],");
+        text.append('[').append(maxX).append(',').append(maxY).append("],");
+        text.append('[').append(minX).append(',').append(maxY).append("],");
+        text.append('[').append(minX).append(',').append(minY).append("]]]}}");
+    }
+
+    /** Adds the given number to the text to be written. Numbers that cannot be represented in JSON are written as null.
+      * @param value Number to add.
+      */
+    private void appendNumber(double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            text.append("null");
+        }
+        else
+        {
+            text.append(value);
+        }
+    }
+
+    /** Adds the given single precision number to the text to be written, so that it is written with no more digits
+      * than are needed to identify it. Numbers that cannot be represented in JSON are written as null.
+      * @param value Number to add.
+      */
+    private void appendNumber(float value)
+    {
+        if (Float.isNaN(value) || Float.isInfinite(value))
+        {
+            text.append("null");
+        }
+        else
+        {
+            text.append(value);
+        }
+    }
+
+    /** Adds the given text to the text to be written as a quoted JSON string, escaping any characters that
+      * JSON does not allow to appear in a string.
+      * @param value Text to add.
+      */
+    private void appendString(String value)
+    {
+        text.append('"');
+        for (int i=0; i<value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if ((c == '"') || (c == '\\'))
+            {
+                text.append('\\').append(c);
+            }
+            else if (c < ' ')
+            {
+                switch (c)
+                {
+                    case '\n':
+                        text.append("\\n");
+                        break;
+                    case '\r':
+                        text.append("\\r");
+                        break;
+                    case '\t':
+                        text.append("\\t");
+                        break;
+                    default:
+                        text.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                }
+            }
+            else
+            {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    /** Writes out any text waiting to be written and empties the text buffer.
+      * @param out Writer to which the text is written.
+      * @throws IOException If there is a problem writing the text.
+      */
+    private void flush(Writer out) throws IOException
+    {
+        int length = text.length();
+        if (length > chars.length)
+        {
+            chars = new char[length];
+        }
+        text.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        text.setLength(0);
+    }
+}
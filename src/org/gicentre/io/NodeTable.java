@@ -0,0 +1,182 @@
+package org.gicentre.io;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ********************************************************************************************
+/** Stores the attributes and rectangles of the descendants of a treemap node as a set of parallel
+ *  arrays, ready to be written out in one of the supported vector formats. Nodes are stored in
+ *  breadth-first order so that every format numbers its features in the same way.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class NodeTable
+{
+    // --------------------------- Object variables ----------------------------
+
+    int numNodes;                                       // Number of nodes stored.
+    String[] labels;
+    double[] rectX, rectY, rectW, rectH;                // Treemap rectangles (NaN if node has no rectangle).
+    double[] sizes;
+    float[] colours;
+    boolean[] hasColour;
+    int[] levels;
+    boolean[] isLeaf;
+    int maxLabelSize;
+    double[] geoMinX, geoMinY, geoMaxX, geoMaxY;        // Rectangles in geographic coordinates with origin at bottom-left.
+    Rectangle2D geoBounds;                              // Geographic bounds of the node whose descendants are stored.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Stores the attributes and rectangles of all descendants of the given node in breadth-first order.
+      * @param node Node whose descendants are to be stored.
+      */
+    NodeTable(TreeMapNode node)
+    {
+        numNodes = 0;
+        maxLabelSize = 0;
+        allocate(Math.max(16, node.getChildCount()));
+
+        // Perform a breadth-first search of all nodes. The queue also records the order in which nodes are stored.
+        TreeMapNode[] queue = new TreeMapNode[labels.length];
+        int tail = 0;
+        for (TreeMapNode child : node.getChildren())
+        {
+            queue[tail++] = child;
+        }
+
+        while (numNodes < tail)
+        {
+            TreeMapNode child = queue[numNodes];
+            queue[numNodes] = null;
+
+            labels[numNodes] = child.getLabel();
+            maxLabelSize = Math.max(maxLabelSize, labels[numNodes].length());
+            sizes[numNodes] = child.getAccumSize();
+            Float colour = child.getColourValue();
+            hasColour[numNodes] = (colour != null);
+            colours[numNodes] = hasColour[numNodes] ? colour.floatValue() : 0;
+            levels[numNodes] = child.getLevel();
+            isLeaf[numNodes] = child.isLeaf();
+
+            Rectangle2D r = child.getRectangle();
+            rectX[numNodes] = (r == null) ? Double.NaN : r.getX();
+            rectY[numNodes] = (r == null) ? Double.NaN : r.getY();
+            rectW[numNodes] = (r == null) ? Double.NaN : r.getWidth();
+            rectH[numNodes] = (r == null) ? Double.NaN : r.getHeight();
+            numNodes++;
+
+            int numGrandchildren = child.getChildCount();
+            if (tail+numGrandchildren > queue.length)
+            {
+                int capacity = Math.max(queue.length*2, tail+numGrandchildren);
+                queue = Arrays.copyOf(queue, capacity);
+                allocate(capacity);
+            }
+            for (TreeMapNode grandchild : child.getChildren())
+            {
+                queue[tail++] = grandchild;
+            }
+        }
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Converts the stored treemap rectangles into geographic coordinates with the origin at the bottom-left rather
+      * than top-left. Conversion will fail if the given node or any of the stored nodes has no rectangle.
+      * @param node Node whose descendants have been stored.
+      * @param format Name of the output format, used when reporting problems.
+      * @return True if the rectangles were converted successfully.
+      */
+    boolean calcGeoCoords(TreeMapNode node, String format)
+    {
+        Rectangle2D bounds = node.getRectangle();
+        if (bounds == null)
+        {
+            System.err.println("Cannot write node '"+node.getLabel()+"' to "+format+" as it has no rectangle coordinates.");
+            return false;
+        }
+        for (int i=0; i<numNodes; i++)
+        {
+            if (Double.isNaN(rectX[i]))
+            {
+                System.err.println("Cannot write node '"+labels[i]+"' to "+format+" as it has no rectangle coordinates.");
+                return false;
+            }
+        }
+
+        geoBounds = node.calcGeoBounds();
+        double scaleX = geoBounds.getWidth()/bounds.getWidth();
+        double scaleY = geoBounds.getHeight()/bounds.getHeight();
+        double cy2 = 2*geoBounds.getY()+geoBounds.getHeight();
+
+        geoMinX = new double[numNodes];
+        geoMinY = new double[numNodes];
+        geoMaxX = new double[numNodes];
+        geoMaxY = new double[numNodes];
+
+        for (int i=0; i<numNodes; i++)
+        {
+            double geoX = geoBounds.getX()+ geoBounds.getWidth()*(rectX[i]-bounds.getX())/bounds.getWidth();
+            double geoY = geoBounds.getY()+ geoBounds.getHeight()*(rectY[i]-bounds.getY())/bounds.getHeight();
+            geoMinX[i] = geoX;
+            geoMaxX[i] = geoX+rectW[i]*scaleX;
+            geoMaxY[i] = cy2-geoY;
+            geoMinY[i] = cy2-(geoY+rectH[i]*scaleY);
+        }
+        return true;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Ensures the node attribute arrays can hold at least the given number of nodes, keeping any values already stored.
+      * @param capacity Minimum number of nodes that can be stored.
+      */
+    private void allocate(int capacity)
+    {
+        if (labels == null)
+        {
+            labels    = new String[capacity];
+            rectX     = new double[capacity];
+            rectY     = new double[capacity];
+            rectW     = new double[capacity];
+            rectH     = new double[capacity];
+            sizes     = new double[capacity];
+            colours   = new float[capacity];
+            hasColour = new boolean[capacity];
+            levels    = new int[capacity];
+            isLeaf    = new boolean[capacity];
+        }
+        else if (labels.length < capacity)
+        {
+            labels    = Arrays.copyOf(labels, capacity);
+            rectX     = Arrays.copyOf(rectX, capacity);
+            rectY     = Arrays.copyOf(rectY, capacity);
+            rectW     = Arrays.copyOf(rectW, capacity);
+            rectH     = Arrays.copyOf(rectH, capacity);
+            sizes     = Arrays.copyOf(sizes, capacity);
+            colours   = Arrays.copyOf(colours, capacity);
+            hasColour = Arrays.copyOf(hasColour, capacity);
+            levels    = Arrays.copyOf(levels, capacity);
+            isLeaf    = Arrays.copyOf(isLeaf, capacity);
+        }
+    }
+}
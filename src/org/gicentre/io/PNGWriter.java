@@ -0,0 +1,478 @@
+package org.gicentre.io;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+//  ********************************************************************************************
+/** Writes a PNG image one band of rows at a time. Rows are filtered and compressed as they arrive
+ *  and written as a sequence of IDAT chunks, so only the current band and a single previous row
+ *  ever need to be held in memory. This allows images much larger than the available heap to be
+ *  created, provided they can be rendered in horizontal bands. Rows are supplied as packed
+ *  <code>int</code> ARGB pixels, the same layout used by a <code>TYPE_INT_ARGB</code> BufferedImage.
+ *  Compression can optionally be spread over several processor cores, in which case the image data
+ *  are compressed in independent blocks that are joined into a single standard zlib stream.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class PNGWriter
+{
+	// --------------------------- Class and object variables -----------------------------
+
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int IDAT_SIZE = 65536;     // Maximum size of each compressed data chunk.
+
+	private DataOutputStream out;
+	private int width, height, bytesPerPixel;
+	private int rowsWritten;
+	private byte[] prevRow, currRow;                // Unfiltered bytes of previous and current row.
+	private byte[][] filtered;                      // Current row under each of the 5 PNG filters.
+	private OutputStream compressor;                // Compresses filtered rows into IDAT chunks.
+	private Deflater deflater;                      // Single thread compressor, or null if compressing in parallel.
+	private CRC32 crc;
+	private File file;                              // File being written, or null if writing to a supplied stream.
+	private boolean isClosed;
+
+	// ----------------------------- Constructor --------------------------------
+
+	/** Creates a PNG writer that will send an image of the given dimensions to the given output stream.
+	 *  The PNG signature and header are written immediately.
+	 *  @param outStream Stream to which the PNG image is written. Will be closed when the image is complete.
+	 *  @param width Width of the image in pixels.
+	 *  @param height Height of the image in pixels.
+	 *  @param hasAlpha True if the alpha channel should be stored, false for an opaque RGB image.
+	 *  @throws IOException if the header cannot be written.
+	 */
+	public PNGWriter(OutputStream outStream, int width, int height, boolean hasAlpha) throws IOException
+	{
+		this(outStream, width, height, hasAlpha, Deflater.DEFAULT_COMPRESSION, 1);
+	}
+
+	/** Creates a PNG writer that will send an image of the given dimensions to the given output stream using
+	 *  the given compression settings. The PNG signature and header are written immediately.
+	 *  @param outStream Stream to which the PNG image is written. Will be closed when the image is complete.
+	 *  @param width Width of the image in pixels.
+	 *  @param height Height of the image in pixels.
+	 *  @param hasAlpha True if the alpha channel should be stored, false for an opaque RGB image.
+	 *  @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+	 *  @param numThreads Number of threads used for compression, or 0 to use all available processors.
+	 *  @throws IOException if the header cannot be written.
+	 */
+	public PNGWriter(OutputStream outStream, int width, int height, boolean hasAlpha, int level, int numThreads) throws IOException
+	{
+		this(outStream, null, width, height, hasAlpha, level, numThreads);
+	}
+
+	/** Creates a PNG writer that will write an image of the given dimensions to the given file using the given
+	 *  compression settings. The PNG signature and header are written immediately. If the image cannot be
+	 *  completed, the partially written file is deleted.
+	 *  @param file File to which the PNG image is written.
+	 *  @param width Width of the image in pixels.
+	 *  @param height Height of the image in pixels.
+	 *  @param hasAlpha True if the alpha channel should be stored, false for an opaque RGB image.
+	 *  @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+	 *  @param numThreads Number of threads used for compression, or 0 to use all available processors.
+	 *  @throws IOException if the file cannot be created or its header cannot be written.
+	 */
+	public PNGWriter(File file, int width, int height, boolean hasAlpha, int level, int numThreads) throws IOException
+	{
+		this(new FileOutputStream(file), file, width, height, hasAlpha, level, numThreads);
+	}
+
+	/** Creates a PNG writer that will send an image of the given dimensions to the given output stream, writing
+	 *  the PNG signature and header immediately.
+	 *  @param outStream Stream to which the PNG image is written. Will be closed when the image is complete.
+	 *  @param file File written by the output stream and deleted if the image is incomplete, or null if not a file.
+	 *  @param width Width of the image in pixels.
+	 *  @param height Height of the image in pixels.
+	 *  @param hasAlpha True if the alpha channel should be stored, false for an opaque RGB image.
+	 *  @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+	 *  @param numThreads Number of threads used for compression, or 0 to use all available processors.
+	 *  @throws IOException if the header cannot be written.
+	 */
+	private PNGWriter(OutputStream outStream, File file, int width, int height, boolean hasAlpha, int level, int numThreads) throws IOException
+	{
+		this.out = new DataOutputStream(new BufferedOutputStream(outStream,IDAT_SIZE+12));
+		this.file = file;
+		this.isClosed = false;
+		this.width = width;
+		this.height = height;
+		this.bytesPerPixel = hasAlpha ? 4 : 3;
+
+		int rowBytes = width*bytesPerPixel;
+		prevRow = new byte[rowBytes];
+		currRow = new byte[rowBytes];
+		filtered = new byte[5][rowBytes+1];
+		for (int f=0; f<5; f++)
+		{
+			filtered[f][0] = (byte)f;
+		}
+		crc = new CRC32();
+		rowsWritten = 0;
+
+		boolean isStarted = false;
+		try
+		{
+			writeHeader(hasAlpha);
+
+			if (numThreads == 1)
+			{
+				deflater = new Deflater(level);
+				compressor = new DeflaterOutputStream(new IDATOutputStream(), deflater, IDAT_SIZE);
+			}
+			else
+			{
+				compressor = new ParallelDeflaterOutputStream(new IDATOutputStream(), level, numThreads, false);
+			}
+			isStarted = true;
+		}
+		finally
+		{
+			if (isStarted == false)
+			{
+				discard();
+			}
+		}
+	}
+
+	// --------------------------------- Methods ----------------------------------
+
+	/** Adds the given rows of pixels to the image. Rows should be supplied in order from top to bottom.
+	 *  @param argb Packed ARGB pixel values of the rows, stored row by row.
+	 *  @param offset Index in the array of the first pixel of the first row.
+	 *  @param scanWidth Number of array elements between the start of one row and the next.
+	 *  @param numRows Number of rows to add.
+	 *  @throws IOException if the rows cannot be written.
+	 */
+	public void writeRows(int[] argb, int offset, int scanWidth, int numRows) throws IOException
+	{
+		if (rowsWritten+numRows > height)
+		{
+			throw new IOException("Attempt to write more than "+height+" rows to PNG image.");
+		}
+
+		for (int row=0; row<numRows; row++)
+		{
+			int pixel = offset + row*scanWidth;
+			int b = 0;
+			for (int col=0; col<width; col++)
+			{
+				int colour = argb[pixel++];
+				currRow[b++] = (byte)(colour >> 16);
+				currRow[b++] = (byte)(colour >> 8);
+				currRow[b++] = (byte)colour;
+				if (bytesPerPixel == 4)
+				{
+					currRow[b++] = (byte)(colour >> 24);
+				}
+			}
+
+			compressor.write(filterRow(currRow, prevRow, bytesPerPixel, filtered));
+
+			byte[] temp = prevRow;
+			prevRow = currRow;
+			currRow = temp;
+		}
+		rowsWritten += numRows;
+	}
+
+	/** Completes the image by writing any remaining compressed data and the end of image marker, then
+	 *  closes the output stream. If the image has not received all its rows or cannot be completed, the
+	 *  compressor is released, the output stream closed and any file being written is deleted. Closing
+	 *  a writer that has already been closed has no effect.
+	 *  @throws IOException if the image has not received all its rows or cannot be written.
+	 */
+	public void close() throws IOException
+	{
+		if (isClosed)
+		{
+			return;
+		}
+		if (rowsWritten != height)
+		{
+			discard();
+			throw new IOException("PNG image closed after "+rowsWritten+" of "+height+" rows written.");
+		}
+
+		boolean isComplete = false;
+		try
+		{
+			compressor.close();
+			writeChunk("IEND", new byte[0], 0);
+			out.close();
+			isComplete = true;
+		}
+		finally
+		{
+			if (isComplete)
+			{
+				isClosed = true;
+				if (deflater != null)
+				{
+					deflater.end();
+				}
+			}
+			else
+			{
+				discard();
+			}
+		}
+	}
+
+	// ----------------------------- Private Methods ----------------------------------
+
+	/** Writes the PNG signature and header chunk.
+	 *  @param hasAlpha True if the image stores an alpha channel.
+	 *  @throws IOException if the header cannot be written.
+	 */
+	private void writeHeader(boolean hasAlpha) throws IOException
+	{
+		out.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream headerData = new DataOutputStream(header);
+		headerData.writeInt(width);
+		headerData.writeInt(height);
+		headerData.writeByte(8);                        // Bit depth.
+		headerData.writeByte(hasAlpha ? 6 : 2);         // Colour type (RGBA or RGB).
+		headerData.writeByte(0);                        // Deflate compression.
+		headerData.writeByte(0);                        // Adaptive filtering.
+		headerData.writeByte(0);                        // No interlacing.
+		writeChunk("IHDR", header.toByteArray(), header.size());
+	}
+
+	/** Abandons an incomplete image, releasing the compressor, closing the output stream and deleting any
+	 *  partially written file. Problems closing the streams are ignored as the image is being discarded.
+	 */
+	private void discard()
+	{
+		isClosed = true;
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+			// Ignored as the image is incomplete.
+		}
+
+		if (deflater != null)
+		{
+			deflater.end();
+		}
+		else if (compressor != null)
+		{
+			// Closing stops the compression threads. Its remaining output is lost as the stream is already closed.
+			try
+			{
+				compressor.close();
+			}
+			catch (IOException e)
+			{
+				// Ignored as the image is incomplete.
+			}
+		}
+
+		if ((file != null) && file.exists() && (file.delete() == false))
+		{
+			System.err.println("Could not delete incomplete PNG file '"+file+"'.");
+		}
+	}
+
+	/** Writes a PNG chunk of the given type.
+	 *  @param type Four letter chunk type.
+	 *  @param data Chunk data.
+	 *  @param length Number of bytes of data to write.
+	 *  @throws IOException if the chunk cannot be written.
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException
+	{
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.reset();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+
+	/** Applies each of the five PNG filters to the given row and selects the one likely to compress best,
+	 *  using the minimum sum of absolute differences heuristic recommended by the PNG specification.
+	 *  @param row Unfiltered bytes of the row.
+	 *  @param prev Unfiltered bytes of the previous row (all zero for the first row).
+	 *  @param bpp Number of bytes per pixel.
+	 *  @param filtered Buffers to hold each filtered version of the row, each prefixed by its filter type.
+	 *  @return The selected filtered row, including its filter type byte.
+	 */
+	static byte[] filterRow(byte[] row, byte[] prev, int bpp, byte[][] filtered)
+	{
+		long sumNone=0, sumSub=0, sumUp=0, sumAvg=0, sumPaeth=0;
+		for (int i=0; i<row.length; i++)
+		{
+			int x = row[i] & 0xff;
+			int a = (i >= bpp) ? row[i-bpp] & 0xff : 0;
+			int b = prev[i] & 0xff;
+			int c = (i >= bpp) ? prev[i-bpp] & 0xff : 0;
+
+			byte none  = (byte)x;
+			byte sub   = (byte)(x-a);
+			byte up    = (byte)(x-b);
+			byte avg   = (byte)(x-((a+b)>>1));
+			byte paeth = (byte)(x-paethPredictor(a, b, c));
+
+			filtered[0][i+1] = none;
+			filtered[1][i+1] = sub;
+			filtered[2][i+1] = up;
+			filtered[3][i+1] = avg;
+			filtered[4][i+1] = paeth;
+
+			sumNone  += Math.abs(none);
+			sumSub   += Math.abs(sub);
+			sumUp    += Math.abs(up);
+			sumAvg   += Math.abs(avg);
+			sumPaeth += Math.abs(paeth);
+		}
+
+		int best = 0;
+		long bestSum = sumNone;
+		if (sumSub < bestSum)
+		{
+			best = 1;
+			bestSum = sumSub;
+		}
+		if (sumUp < bestSum)
+		{
+			best = 2;
+			bestSum = sumUp;
+		}
+		if (sumAvg < bestSum)
+		{
+			best = 3;
+			bestSum = sumAvg;
+		}
+		if (sumPaeth < bestSum)
+		{
+			best = 4;
+		}
+		return filtered[best];
+	}
+
+	/** Finds the Paeth predictor of a pixel byte from its left, upper and upper left neighbours.
+	 *  @param a Byte to the left.
+	 *  @param b Byte above.
+	 *  @param c Byte above and to the left.
+	 *  @return Neighbour closest to the linear prediction a+b-c.
+	 */
+	private static int paethPredictor(int a, int b, int c)
+	{
+		int p = a+b-c;
+		int pa = Math.abs(p-a);
+		int pb = Math.abs(p-b);
+		int pc = Math.abs(p-c);
+		if ((pa <= pb) && (pa <= pc))
+		{
+			return a;
+		}
+		if (pb <= pc)
+		{
+			return b;
+		}
+		return c;
+	}
+
+	// ------------------------------ Nested classes ---------------------------------
+
+	/** Collects compressed image data and writes it as a sequence of IDAT chunks.
+	 */
+	private class IDATOutputStream extends OutputStream
+	{
+		private byte[] buffer;
+		private int length;
+
+		/** Creates an empty IDAT chunk buffer.
+		 */
+		IDATOutputStream()
+		{
+			buffer = new byte[IDAT_SIZE];
+			length = 0;
+		}
+
+		/** Adds a single byte of compressed data.
+		 *  @param b Byte to add.
+		 *  @throws IOException if a full chunk cannot be written.
+		 */
+		@Override
+		public void write(int b) throws IOException
+		{
+			buffer[length++] = (byte)b;
+			if (length == IDAT_SIZE)
+			{
+				flush();
+			}
+		}
+
+		/** Adds the given compressed data, writing a chunk whenever the buffer is full.
+		 *  @param data Array holding the data to add.
+		 *  @param offset Position in the array of the first byte to add.
+		 *  @param numBytes Number of bytes to add.
+		 *  @throws IOException if a full chunk cannot be written.
+		 */
+		@Override
+		public void write(byte[] data, int offset, int numBytes) throws IOException
+		{
+			while (numBytes > 0)
+			{
+				int n = Math.min(numBytes, IDAT_SIZE-length);
+				System.arraycopy(data, offset, buffer, length, n);
+				length += n;
+				offset += n;
+				numBytes -= n;
+				if (length == IDAT_SIZE)
+				{
+					flush();
+				}
+			}
+		}
+
+		/** Writes any buffered data as an IDAT chunk.
+		 *  @throws IOException if the chunk cannot be written.
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			if (length > 0)
+			{
+				writeChunk("IDAT", buffer, length);
+				length = 0;
+			}
+		}
+
+		/** Writes any remaining data as a final IDAT chunk. The PNG output stream itself is left open.
+		 *  @throws IOException if the chunk cannot be written.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package org.gicentre.io;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+//  ********************************************************************************************
+/** Output stream that compresses its data using several processor cores at once. Data are split
+ *  into independent blocks which are deflated in parallel, each primed with the last 32k of the
+ *  preceding block so compression is almost as good as a single stream. Each block ends on a
+ *  byte boundary with an empty stored block so the compressed blocks can simply be concatenated
+ *  (the approach used by <i>pigz</i>). The result is a single standard gzip or zlib stream that
+ *  can be read by any decompressor. If the stream fails before it is complete, closing it stops the
+ *  compression threads and, if the stream was created to write a file, deletes the partial file.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ParallelDeflaterOutputStream extends FilterOutputStream
+{
+    // --------------------------- Class and object variables -----------------------------
+
+    private static final int BLOCK_SIZE = 128*1024;     // Uncompressed size of each independently compressed block.
+    private static final int DICT_SIZE = 32*1024;       // Size of deflate history window.
+
+    private boolean isGzip;
+    private int level;
+    private Checksum checksum;
+    private long totalIn;
+    private byte[] block;                               // Block currently being filled.
+    private int blockLength;
+    private byte[] dictionary;                          // Last part of the previously submitted block.
+    private ExecutorService executor;
+    private LinkedList<Future<byte[]>> pending;         // Compressed blocks in the order they must be written.
+    private int maxPending;
+    private boolean isFinished;
+    private boolean isFailed;                           // True if a write has failed so the output is incomplete.
+    private boolean isClosed;
+    private File file;                                  // File being written, or null if writing to a supplied stream.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a compressing stream that sends its output to the given stream.
+      * @param out Stream to receive the compressed data.
+      * @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+      * @param numThreads Number of threads used for compression, or 0 to use all available processors.
+      * @param isGzip True if the output should be in gzip format, false for zlib format (as used in PNG files).
+      * @throws IOException if the stream header cannot be written.
+      */
+    public ParallelDeflaterOutputStream(OutputStream out, int level, int numThreads, boolean isGzip) throws IOException
+    {
+        this(out, null, level, numThreads, isGzip);
+    }
+
+    /** Creates a compressing stream that writes its output to the given file. If the stream cannot be completed,
+      * the partially written file is deleted when the stream is closed.
+      * @param file File to receive the compressed data.
+      * @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+      * @param numThreads Number of threads used for compression, or 0 to use all available processors.
+      * @param isGzip True if the output should be in gzip format, false for zlib format (as used in PNG files).
+      * @throws IOException if the file cannot be created or the stream header cannot be written.
+      */
+    public ParallelDeflaterOutputStream(File file, int level, int numThreads, boolean isGzip) throws IOException
+    {
+        this(new BufferedOutputStream(new FileOutputStream(file), BLOCK_SIZE), file, level, numThreads, isGzip);
+    }
+
+    /** Creates a compressing stream that sends its output to the given stream.
+      * @param out Stream to receive the compressed data.
+      * @param file File written by the output stream and deleted if the output is incomplete, or null if not a file.
+      * @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+      * @param numThreads Number of threads used for compression, or 0 to use all available processors.
+      * @param isGzip True if the output should be in gzip format, false for zlib format (as used in PNG files).
+      * @throws IOException if the stream header cannot be written.
+      */
+    private ParallelDeflaterOutputStream(OutputStream out, File file, int level, int numThreads, boolean isGzip) throws IOException
+    {
+        super(out);
+        this.file = file;
+        if ((level < -1) || (level > 9))
+        {
+            discard();
+            throw new IllegalArgumentException("Compression level must be between -1 and 9 but "+level+" was given.");
+        }
+        if (numThreads <= 0)
+        {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.level = level;
+        this.isGzip = isGzip;
+        checksum = isGzip ? new CRC32() : new Adler32();
+        totalIn = 0;
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        dictionary = null;
+        pending = new LinkedList<Future<byte[]>>();
+        maxPending = numThreads*2;
+        isFinished = false;
+        isFailed = false;
+        isClosed = false;
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "Compressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try
+        {
+            if (isGzip)
+            {
+                out.write(new byte[] {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff});
+            }
+            else
+            {
+                // Deflate with 32k window, flag bits chosen so that header is a multiple of 31.
+                int header = (8 | (7 << 4)) << 8;
+                header |= (level == 9 ? 3 : (level >= 0 && level <= 1) ? 0 : 2) << 6;
+                if (header % 31 != 0)
+                {
+                    header += 31 - (header % 31);
+                }
+                out.write(header >> 8);
+                out.write(header & 0xff);
+            }
+        }
+        catch (IOException e)
+        {
+            discard();
+            throw e;
+        }
+    }
+
+    // --------------------------------- Methods ----------------------------------
+
+    /** Writes a single byte to the compressed stream.
+      * @param b Byte to write.
+      * @throws IOException if the byte cannot be written.
+      */
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    /** Writes the given bytes to the compressed stream.
+      * @param data Array holding the bytes to write.
+      * @param offset Position in the array of the first byte to write.
+      * @param length Number of bytes to write.
+      * @throws IOException if the bytes cannot be written.
+      */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (isFinished)
+        {
+            throw new IOException("Cannot write to a finished compressed stream.");
+        }
+        if (isFailed)
+        {
+            throw new IOException("Cannot write to a compressed stream after an earlier failure.");
+        }
+        checksum.update(data, offset, length);
+        totalIn += length;
+
+        while (length > 0)
+        {
+            int numBytes = Math.min(length, BLOCK_SIZE-blockLength);
+            System.arraycopy(data, offset, block, blockLength, numBytes);
+            blockLength += numBytes;
+            offset += numBytes;
+            length -= numBytes;
+
+            if (blockLength == BLOCK_SIZE)
+            {
+                try
+                {
+                    submitBlock(false);
+                }
+                catch (IOException e)
+                {
+                    isFailed = true;
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Compresses any remaining data and writes the stream trailer without closing the underlying stream.
+      * @throws IOException if the remaining data cannot be written.
+      */
+    public void finish() throws IOException
+    {
+        if (isFinished)
+        {
+            return;
+        }
+        if (isFailed)
+        {
+            throw new IOException("Cannot finish a compressed stream after an earlier failure.");
+        }
+
+        try
+        {
+            submitBlock(true);
+            while (pending.isEmpty() == false)
+            {
+                writeNextBlock();
+            }
+            executor.shutdown();
+
+            long check = checksum.getValue();
+            if (isGzip)
+            {
+                writeIntLittleEndian((int)check);
+                writeIntLittleEndian((int)totalIn);
+            }
+            else
+            {
+                out.write((int)(check >> 24) & 0xff);
+                out.write((int)(check >> 16) & 0xff);
+                out.write((int)(check >>  8) & 0xff);
+                out.write((int)check & 0xff);
+            }
+            isFinished = true;
+        }
+        catch (IOException e)
+        {
+            isFailed = true;
+            throw e;
+        }
+    }
+
+    /** Compresses any remaining data, writes the stream trailer and closes the underlying stream. If the
+      * output cannot be completed, or an earlier write failed, the compression threads are stopped, the
+      * underlying stream closed and any partially written file deleted before the failure is reported.
+      * Closing a stream that has already been closed has no effect.
+      * @throws IOException if the stream cannot be completed or closed.
+      */
+    @Override
+    public void close() throws IOException
+    {
+        if (isClosed)
+        {
+            return;
+        }
+
+        boolean isComplete = false;
+        try
+        {
+            finish();
+            out.close();
+            isComplete = true;
+        }
+        finally
+        {
+            executor.shutdownNow();
+            if (isComplete)
+            {
+                isClosed = true;
+            }
+            else
+            {
+                isFailed = true;
+                discard();
+            }
+        }
+    }
+
+    // ----------------------------- Private Methods ----------------------------------
+
+    /** Abandons incomplete output, closing the underlying stream and deleting any partially written file.
+      * Problems closing the stream are ignored as the output is being discarded.
+      */
+    private void discard()
+    {
+        isClosed = true;
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            // Ignored as the output is incomplete.
+        }
+
+        if ((file != null) && file.exists() && (file.delete() == false))
+        {
+            System.err.println("Could not delete incomplete compressed file '"+file+"'.");
+        }
+    }
+
+    /** Submits the current block for compression and starts a new one.
+      * @param isLast True if this is the final block in the stream.
+      * @throws IOException if earlier blocks cannot be written.
+      */
+    private void submitBlock(final boolean isLast) throws IOException
+    {
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        final byte[] dict = dictionary;
+
+        // The tail of this block primes the compressor of the next.
+        if (inputLength >= DICT_SIZE)
+        {
+            dictionary = new byte[DICT_SIZE];
+            System.arraycopy(input, inputLength-DICT_SIZE, dictionary, 0, DICT_SIZE);
+        }
+        else if (inputLength > 0)
+        {
+            int prevLength = (dict == null) ? 0 : Math.min(dict.length, DICT_SIZE-inputLength);
+            dictionary = new byte[prevLength+inputLength];
+            if (prevLength > 0)
+            {
+                System.arraycopy(dict, dict.length-prevLength, dictionary, 0, prevLength);
+            }
+            System.arraycopy(input, 0, dictionary, prevLength, inputLength);
+        }
+
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call()
+            {
+                return compress(input, inputLength, dict, level, isLast);
+            }
+        }));
+
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+
+        // Limit the number of blocks held in memory waiting to be written.
+        while (pending.size() > maxPending)
+        {
+            writeNextBlock();
+        }
+    }
+
+    /** Waits for the oldest outstanding block to be compressed and writes it to the output stream.
+      * @throws IOException if the block cannot be compressed or written.
+      */
+    private void writeNextBlock() throws IOException
+    {
+        try
+        {
+            out.write(pending.removeFirst().get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted.");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Problem compressing data: "+e.getCause());
+        }
+    }
+
+    /** Compresses a single block as raw deflate data.
+      * @param input Uncompressed data.
+      * @param length Number of bytes of data to compress.
+      * @param dict Data preceding this block used to prime the compressor, or null if this is the first block.
+      * @param level Compression level.
+      * @param isLast True if this is the final block, in which case the deflate stream is terminated.
+      * @return Compressed data ending on a byte boundary.
+      */
+    static byte[] compress(byte[] input, int length, byte[] dict, int level, boolean isLast)
+    {
+        Deflater deflater = new Deflater(level, true);
+        if (dict != null)
+        {
+            deflater.setDictionary(dict);
+        }
+        deflater.setInput(input, 0, length);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length/2+64);
+        byte[] buffer = new byte[16384];
+        if (isLast)
+        {
+            deflater.finish();
+            while (deflater.finished() == false)
+            {
+                int numBytes = deflater.deflate(buffer);
+                compressed.write(buffer, 0, numBytes);
+            }
+        }
+        else
+        {
+            // Sync flush completes the block on a byte boundary without ending the stream.
+            int numBytes;
+            do
+            {
+                numBytes = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, numBytes);
+            }
+            while (numBytes == buffer.length);
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    /** Writes a 4-byte integer in little endian order to the underlying stream.
+      * @param value Value to write.
+      * @throws IOException if the value cannot be written.
+      */
+    private void writeIntLittleEndian(int value) throws IOException
+    {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,397 @@
+package org.gicentre.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//  ********************************************************************************************
+/** Writes a quadtree spatial index of a set of rectangles as a <code>.qix</code> file. This is
+ *  the index format created by MapServer's <i>shptree</i> utility and read by MapServer, GDAL/OGR
+ *  and QGIS, allowing clients to find the shapefile records overlapping a bounding box without
+ *  scanning the entire <code>.shp</code> file. Each rectangle is stored in the deepest quadtree
+ *  node whose bounds completely contain it.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class QuadtreeIndexWriter
+{
+    // --------------------------- Class and object variables -----------------------------
+
+    private static final double SPLIT_RATIO = 0.55;     // Proportion of a node covered by each half, so that halves overlap.
+    private static final int BUFFER_SIZE = 64*1024;     // Size of output buffer in bytes.
+    private static final int NODE_BYTES = 44;           // Size of a node record excluding its shape IDs.
+
+    private double[] minX, minY, maxX, maxY;            // Bounds of the indexed rectangles.
+    private int numShapes;
+    private int maxDepth;
+
+    private int numQuads;                               // Number of quadtree nodes.
+    private double[] quadBounds;                        // Bounds of each quadtree node (minX, minY, maxX, maxY).
+    private int[] firstChild;                           // Index of first of 4 consecutive child nodes, or -1 if a leaf.
+    private int[] firstShape, lastShape, quadShapes;    // List of shapes held by each quadtree node.
+    private int[] nextShape;                            // Next shape in the same quadtree node, or -1 if the last.
+    private boolean[] hasShapes;                        // True if a quadtree node or any of its descendants hold a rectangle.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a quadtree index of the given rectangles. Rectangles are identified by their position in the arrays,
+      * which should correspond to the (zero-based) order of records in the shapefile. Arrays are not copied so
+      * should not be changed until the index has been written.
+      * @param minX Minimum x coordinate of each rectangle.
+      * @param minY Minimum y coordinate of each rectangle.
+      * @param maxX Maximum x coordinate of each rectangle.
+      * @param maxY Maximum y coordinate of each rectangle.
+      * @param numShapes Number of rectangles to index.
+      */
+    public QuadtreeIndexWriter(double[] minX, double[] minY, double[] maxX, double[] maxY, int numShapes)
+    {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.numShapes = numShapes;
+
+        // Same default depth as shptree, giving on average no more than 8 shapes per leaf node.
+        maxDepth = 0;
+        long numLeaves = 1;
+        while (numLeaves*4 < numShapes)
+        {
+            maxDepth++;
+            numLeaves *= 2;
+        }
+        buildTree();
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Writes the index to the given file.
+      * @param fileName Name of the <code>.qix</code> file to create.
+      * @return True if the index was written successfully.
+      */
+    public boolean write(String fileName)
+    {
+        int[] order = new int[numQuads];
+        int[] subtreeBytes = new int[numQuads];
+        int numWritten = orderNodes(order, subtreeBytes);
+
+        try
+        {
+            FileOutputStream stream = new FileOutputStream(fileName);
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Header: signature, byte order (1 for little-endian), version and 3 reserved bytes.
+            buffer.put((byte)'S').put((byte)'Q').put((byte)'T');
+            buffer.put((byte)1).put((byte)1).put((byte)0).put((byte)0).put((byte)0);
+            buffer.putInt(numShapes);
+            buffer.putInt(maxDepth);
+
+            // Nodes in depth-first order, each preceded by the size of its descendants so readers can skip them.
+            for (int i=0; i<numWritten; i++)
+            {
+                int quad = order[i];
+                int numChildren = countChildren(quad);
+                int nodeBytes = NODE_BYTES + 4*quadShapes[quad];
+
+                if (buffer.remaining() < NODE_BYTES)
+                {
+                    flush(buffer, channel);
+                }
+                buffer.putInt(subtreeBytes[quad]-nodeBytes);
+                buffer.putDouble(quadBounds[quad*4]).putDouble(quadBounds[quad*4+1]);
+                buffer.putDouble(quadBounds[quad*4+2]).putDouble(quadBounds[quad*4+3]);
+                buffer.putInt(quadShapes[quad]);
+                for (int shape=firstShape[quad]; shape>=0; shape=nextShape[shape])
+                {
+                    if (buffer.remaining() < 4)
+                    {
+                        flush(buffer, channel);
+                    }
+                    buffer.putInt(shape);
+                }
+                if (buffer.remaining() < 4)
+                {
+                    flush(buffer, channel);
+                }
+                buffer.putInt(numChildren);
+            }
+            flush(buffer, channel);
+
+            channel.close();
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Problem writing spatial index <"+fileName+">");
+            return false;
+        }
+        return true;
+    }
+
+    /** Reports the maximum depth of the quadtree.
+      * @return Maximum number of levels in the quadtree.
+      */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Builds the quadtree by placing each rectangle in the deepest node that completely contains it.
+      */
+    private void buildTree()
+    {
+        int capacity = 64;
+        quadBounds = new double[capacity*4];
+        firstChild = new int[capacity];
+        firstShape = new int[capacity];
+        lastShape = new int[capacity];
+        quadShapes = new int[capacity];
+        nextShape = new int[numShapes];
+        numQuads = 1;
+        firstChild[0] = -1;
+        firstShape[0] = -1;
+        lastShape[0] = -1;
+
+        // Root covers all rectangles.
+        quadBounds[0] = Double.MAX_VALUE;
+        quadBounds[1] = Double.MAX_VALUE;
+        quadBounds[2] = -Double.MAX_VALUE;
+        quadBounds[3] = -Double.MAX_VALUE;
+        for (int i=0; i<numShapes; i++)
+        {
+            quadBounds[0] = Math.min(quadBounds[0], minX[i]);
+            quadBounds[1] = Math.min(quadBounds[1], minY[i]);
+            quadBounds[2] = Math.max(quadBounds[2], maxX[i]);
+            quadBounds[3] = Math.max(quadBounds[3], maxY[i]);
+        }
+
+        double[] quads = new double[16];
+        for (int i=0; i<numShapes; i++)
+        {
+            int quad = 0;
+            for (int depth=1; depth<maxDepth; depth++)
+            {
+                if (firstChild[quad] < 0)
+                {
+                    splitQuad(quad, quads);
+                    if (findContainingQuad(quads, 0, i) < 0)
+                    {
+                        break;
+                    }
+
+                    // Rectangle fits in a quadrant so create all 4 children.
+                    if (numQuads+4 > firstChild.length)
+                    {
+                        capacity = Math.max(firstChild.length*2, numQuads+4);
+                        quadBounds = Arrays.copyOf(quadBounds, capacity*4);
+                        firstChild = Arrays.copyOf(firstChild, capacity);
+                        firstShape = Arrays.copyOf(firstShape, capacity);
+                        lastShape = Arrays.copyOf(lastShape, capacity);
+                        quadShapes = Arrays.copyOf(quadShapes, capacity);
+                    }
+                    firstChild[quad] = numQuads;
+                    System.arraycopy(quads, 0, quadBounds, numQuads*4, 16);
+                    for (int child=numQuads; child<numQuads+4; child++)
+                    {
+                        firstChild[child] = -1;
+                        firstShape[child] = -1;
+                        lastShape[child] = -1;
+                    }
+                    numQuads += 4;
+                }
+
+                int child = findContainingQuad(quadBounds, firstChild[quad], i);
+                if (child < 0)
+                {
+                    break;
+                }
+                quad = child;
+            }
+
+            // Append shape to its node's list so IDs are stored in ascending order.
+            nextShape[i] = -1;
+            if (lastShape[quad] < 0)
+            {
+                firstShape[quad] = i;
+            }
+            else
+            {
+                nextShape[lastShape[quad]] = i;
+            }
+            lastShape[quad] = i;
+            quadShapes[quad]++;
+        }
+    }
+
+    /** Calculates the bounds of the 4 quadrants of the given quadtree node. Quadrants are found by halving the node
+      * along its longer side and then halving each half along its longer side, with halves overlapping slightly.
+      * @param quad Quadtree node to split.
+      * @param quads Array to hold the minX, minY, maxX and maxY of each of the 4 quadrants.
+      */
+    private void splitQuad(int quad, double[] quads)
+    {
+        splitBounds(quadBounds, quad*4, quads, 0, 8);
+        splitBounds(quads, 0, quads, 0, 4);
+        splitBounds(quads, 8, quads, 8, 12);
+    }
+
+    /** Splits the given bounds into two overlapping halves along its longer side.
+      * @param src Array holding the bounds to split.
+      * @param srcPos Position of the bounds to split.
+      * @param dst Array to receive the bounds of the two halves. May be the same as the source array.
+      * @param pos1 Position in which to store the first half.
+      * @param pos2 Position in which to store the second half.
+      */
+    private static void splitBounds(double[] src, int srcPos, double[] dst, int pos1, int pos2)
+    {
+        double x1 = src[srcPos], y1 = src[srcPos+1], x2 = src[srcPos+2], y2 = src[srcPos+3];
+        dst[pos1] = x1;
+        dst[pos1+1] = y1;
+        dst[pos1+2] = x2;
+        dst[pos1+3] = y2;
+        dst[pos2] = x1;
+        dst[pos2+1] = y1;
+        dst[pos2+2] = x2;
+        dst[pos2+3] = y2;
+
+        if (x2-x1 > y2-y1)
+        {
+            double range = (x2-x1)*SPLIT_RATIO;
+            dst[pos1+2] = x1 + range;
+            dst[pos2] = x2 - range;
+        }
+        else
+        {
+            double range = (y2-y1)*SPLIT_RATIO;
+            dst[pos1+3] = y1 + range;
+            dst[pos2+1] = y2 - range;
+        }
+    }
+
+    /** Finds the first of 4 consecutive bounds that completely contains the given rectangle.
+      * @param bounds Array holding bounds to search.
+      * @param first Index of the first of the 4 bounds to search.
+      * @param shape Index of the rectangle to find.
+      * @return Index of the first containing bounds or -1 if none contains the rectangle.
+      */
+    private int findContainingQuad(double[] bounds, int first, int shape)
+    {
+        for (int quad=first; quad<first+4; quad++)
+        {
+            int b = quad*4;
+            if ((bounds[b] <= minX[shape]) && (bounds[b+1] <= minY[shape]) &&
+                (bounds[b+2] >= maxX[shape]) && (bounds[b+3] >= maxY[shape]))
+            {
+                return quad;
+            }
+        }
+        return -1;
+    }
+
+    /** Reports the number of children of the given quadtree node that hold at least one rectangle in their subtree.
+      * Empty children are not written to the index.
+      * @param quad Quadtree node to query.
+      * @return Number of non-empty children.
+      */
+    private int countChildren(int quad)
+    {
+        int numChildren = 0;
+        if (firstChild[quad] >= 0)
+        {
+            for (int child=firstChild[quad]; child<firstChild[quad]+4; child++)
+            {
+                if (hasShapes[child])
+                {
+                    numChildren++;
+                }
+            }
+        }
+        return numChildren;
+    }
+
+    /** Finds the depth-first order in which non-empty quadtree nodes are written and the number of bytes used to
+      * store each node and its descendants.
+      * @param order Array to hold the depth-first order of nodes.
+      * @param subtreeBytes Array to hold the number of bytes used by each node and its descendants.
+      * @return Number of nodes to write.
+      */
+    private int orderNodes(int[] order, int[] subtreeBytes)
+    {
+        // Children are always created after their parents, so a reverse pass visits children first.
+        hasShapes = new boolean[numQuads];
+        for (int quad=numQuads-1; quad>=0; quad--)
+        {
+            subtreeBytes[quad] = NODE_BYTES + 4*quadShapes[quad];
+            hasShapes[quad] = (quadShapes[quad] > 0) || (quad == 0);
+            if (firstChild[quad] >= 0)
+            {
+                for (int child=firstChild[quad]; child<firstChild[quad]+4; child++)
+                {
+                    if (hasShapes[child])
+                    {
+                        subtreeBytes[quad] += subtreeBytes[child];
+                        hasShapes[quad] = true;
+                    }
+                }
+            }
+        }
+
+        // Depth-first order with children in quadrant order.
+        int[] stack = new int[numQuads];
+        int top = 0;
+        int numOrdered = 0;
+        stack[top++] = 0;
+        while (top > 0)
+        {
+            int quad = stack[--top];
+            order[numOrdered++] = quad;
+            if (firstChild[quad] >= 0)
+            {
+                for (int child=firstChild[quad]+3; child>=firstChild[quad]; child--)
+                {
+                    if (hasShapes[child])
+                    {
+                        stack[top++] = child;
+                    }
+                }
+            }
+        }
+        return numOrdered;
+    }
+
+    /** Writes the contents of the given buffer to the given channel and clears the buffer ready for reuse.
+      * @param buffer Buffer to write.
+      * @param channel Channel to receive the buffer contents.
+      * @throws IOException If problem writing to the channel.
+      */
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,397 @@
+package org.gicentre.io;
+
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//  ********************************************************************************************
+/** Reads the geometry of an ESRI shapefile (<code>.shp</code>) one record at a time. The file is
+ *  memory-mapped and each record is read in place, so no objects are created per record. Rather
+ *  than storing the full geometry, the reader provides a single representative location for each
+ *  record: the area-weighted centroid of polygons, the length-weighted centre of lines and the mean
+ *  position of points. Typical usage:
+ *  <pre>
+ *  ShapefileReader r = new ShapefileReader("myFile.shp");
+ *  while (r.next())
+ *  {
+ *      if (r.hasCentroid())
+ *      {
+ *          double x = r.getCentroidX();
+ *          double y = r.getCentroidY();
+ *          ...
+ *      }
+ *  }
+ *  r.close();
+ *  </pre>
+ *  Records are read in file order, which matches the order of records in the shapefile's
+ *  <code>.dbf</code> attribute table.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ShapefileReader
+{
+    // --------------------------- Class and object variables -----------------------------
+
+    /** Shape type of records with no geometry. */
+    public static final int NULL_SHAPE = 0;
+    /** Shape type of single point records. */
+    public static final int POINT = 1;
+    /** Shape type of line records. */
+    public static final int POLYLINE = 3;
+    /** Shape type of area records. */
+    public static final int POLYGON = 5;
+    /** Shape type of records containing several points. */
+    public static final int MULTIPOINT = 8;
+    /** Shape type of 3D surface records. */
+    public static final int MULTIPATCH = 31;
+
+    private static final int HEADER_LENGTH = 100;       // Size of file header in bytes.
+    private static final int FILE_CODE = 9994;
+
+    private FileInputStream stream;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int fileLength;                             // Length of file in bytes.
+    private int shapeType;
+    private Rectangle2D bounds;
+
+    private int nextRecord;                             // Position of the next record in the file.
+    private int recordIndex;                            // Index of current record (starting at 0).
+    private int recordShapeType;                        // Shape type of current record.
+    private double centroidX, centroidY;                // Representative location of current record (NaN if none).
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Opens the given shapefile for reading.
+      * @param fileName Name of the <code>.shp</code> file to read.
+      * @throws IOException If the file cannot be read or is not a valid shapefile.
+      */
+    public ShapefileReader(String fileName) throws IOException
+    {
+        stream = new FileInputStream(fileName);
+        channel = stream.getChannel();
+        try
+        {
+            if (channel.size() < HEADER_LENGTH)
+            {
+                throw new IOException(fileName+" is too short to be a shapefile.");
+            }
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException(fileName+" is too large to be a shapefile.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt(0) != FILE_CODE)
+            {
+                throw new IOException(fileName+" is not a shapefile.");
+            }
+
+            // File length is given in 16-bit words.
+            fileLength = (int)Math.min(buffer.getInt(24)*2L, buffer.capacity());
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            stream.close();
+            throw e;
+        }
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        shapeType = buffer.getInt(32);
+        double minX = buffer.getDouble(36);
+        double minY = buffer.getDouble(44);
+        bounds = new Rectangle2D.Double(minX, minY, buffer.getDouble(52)-minX, buffer.getDouble(60)-minY);
+
+        nextRecord = HEADER_LENGTH;
+        recordIndex = -1;
+        recordShapeType = NULL_SHAPE;
+        centroidX = Double.NaN;
+        centroidY = Double.NaN;
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Reports the type of shape stored in the file.
+      * @return Shape type code of the file, such as <code>POLYGON</code>. Z and M variants are reported with their
+      *         original codes (e.g. 15 for PolygonZ).
+      */
+    public int getShapeType()
+    {
+        return shapeType;
+    }
+
+    /** Reports the bounds of all the shapes in the file as given in the file header.
+      * @return Bounds of the file's geometry.
+      */
+    public Rectangle2D getBounds()
+    {
+        return bounds;
+    }
+
+    /** Reads the next record in the file.
+      * @return True if a record was read or false if there are no more records.
+      * @throws IOException If the record is truncated or malformed.
+      */
+    public boolean next() throws IOException
+    {
+        if (nextRecord+8 > fileLength)
+        {
+            return false;
+        }
+
+        // Content length is given in 16-bit words, so is doubled as a long in case a corrupt value would overflow.
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        long recordLength = buffer.getInt(nextRecord+4)*2L;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int start = nextRecord+8;
+        if ((recordLength < 4) || (start+recordLength > fileLength))
+        {
+            throw new IOException("Truncated shapefile record at byte "+nextRecord+".");
+        }
+        int contentLength = (int)recordLength;
+        nextRecord = start+contentLength;
+        recordIndex++;
+        recordShapeType = buffer.getInt(start);
+        centroidX = Double.NaN;
+        centroidY = Double.NaN;
+
+        if (recordShapeType == NULL_SHAPE)
+        {
+            return true;
+        }
+        if (recordShapeType == MULTIPATCH)
+        {
+            checkLength(contentLength, 36);
+            setBoundsCentre(start);
+            return true;
+        }
+
+        switch (recordShapeType % 10)
+        {
+            case POINT:
+                checkLength(contentLength, 20);
+                centroidX = buffer.getDouble(start+4);
+                centroidY = buffer.getDouble(start+12);
+                break;
+
+            case MULTIPOINT:
+                checkLength(contentLength, 40);
+                calcPointCentroid(start, contentLength);
+                break;
+
+            case POLYLINE:
+            case POLYGON:
+                checkLength(contentLength, 44);
+                calcPartCentroid(start, contentLength, (recordShapeType % 10) == POLYGON);
+                break;
+
+            default:
+                throw new IOException("Unsupported shape type "+recordShapeType+" in shapefile record "+(recordIndex+1)+".");
+        }
+        return true;
+    }
+
+    /** Reports the index of the most recently read record.
+      * @return Index of the current record, starting at 0.
+      */
+    public int getRecordIndex()
+    {
+        return recordIndex;
+    }
+
+    /** Reports the shape type of the most recently read record.
+      * @return Shape type of the current record, which may be <code>NULL_SHAPE</code>.
+      */
+    public int getRecordShapeType()
+    {
+        return recordShapeType;
+    }
+
+    /** Reports whether the most recently read record has a location.
+      * @return True if the current record has a centroid, or false if it has no geometry.
+      */
+    public boolean hasCentroid()
+    {
+        return Double.isNaN(centroidX) == false;
+    }
+
+    /** Reports the x coordinate of the centroid of the most recently read record.
+      * @return x coordinate of the centroid or NaN if the record has no geometry.
+      */
+    public double getCentroidX()
+    {
+        return centroidX;
+    }
+
+    /** Reports the y coordinate of the centroid of the most recently read record.
+      * @return y coordinate of the centroid or NaN if the record has no geometry.
+      */
+    public double getCentroidY()
+    {
+        return centroidY;
+    }
+
+    /** Closes the file. No further records can be read once it has been closed.
+      * @throws IOException If there is a problem closing the file.
+      */
+    public void close() throws IOException
+    {
+        buffer = null;
+        channel.close();
+        stream.close();
+    }
+
+    // ----------------------------- Private methods --------------------------------
+
+    /** Calculates the mean position of the points in a multipoint record.
+      * @param start Position of the start of the record contents.
+      * @param contentLength Length of the record contents in bytes.
+      * @throws IOException If the record is too short for its number of points.
+      */
+    private void calcPointCentroid(int start, int contentLength) throws IOException
+    {
+        int numPoints = buffer.getInt(start+36);
+        checkLength(contentLength, 40+16L*numPoints);
+        if (numPoints <= 0)
+        {
+            return;
+        }
+
+        double sumX = 0;
+        double sumY = 0;
+        int pos = start+40;
+        for (int i=0; i<numPoints; i++)
+        {
+            sumX += buffer.getDouble(pos);
+            sumY += buffer.getDouble(pos+8);
+            pos += 16;
+        }
+        centroidX = sumX/numPoints;
+        centroidY = sumY/numPoints;
+    }
+
+    /** Calculates the centroid of a polygon or polyline record. Polygons use the area-weighted centroid of all rings,
+      * where holes (which are stored anticlockwise) reduce the area. Lines use the centre of each segment weighted by
+      * its length. If the shape has no area or length, the centre of its bounding box is used.
+      * @param start Position of the start of the record contents.
+      * @param contentLength Length of the record contents in bytes.
+      * @param isPolygon True if the record is a polygon, false if a polyline.
+      * @throws IOException If the record is too short for its number of parts and points.
+      */
+    private void calcPartCentroid(int start, int contentLength, boolean isPolygon) throws IOException
+    {
+        int numParts = buffer.getInt(start+36);
+        int numPoints = buffer.getInt(start+40);
+        if ((numParts < 0) || (numPoints < 0))
+        {
+            throw new IOException("Invalid number of parts or points in shapefile record "+(recordIndex+1)+".");
+        }
+        checkLength(contentLength, 44+4L*numParts+16L*numPoints);
+        if (numPoints == 0)
+        {
+            return;
+        }
+
+        int partsPos = start+44;
+        int pointsPos = partsPos+4*numParts;
+
+        // Coordinates are taken relative to the first point to reduce rounding error.
+        double originX = buffer.getDouble(pointsPos);
+        double originY = buffer.getDouble(pointsPos+8);
+        double sumWeight = 0;
+        double sumX = 0;
+        double sumY = 0;
+
+        for (int part=0; part<numParts; part++)
+        {
+            int first = buffer.getInt(partsPos+4*part);
+            int last = (part == numParts-1) ? numPoints : buffer.getInt(partsPos+4*(part+1));
+            if ((first < 0) || (last > numPoints) || (first >= last))
+            {
+                continue;
+            }
+
+            int pos = pointsPos+16*first;
+            double x1 = buffer.getDouble(pos)-originX;
+            double y1 = buffer.getDouble(pos+8)-originY;
+            for (int i=first+1; i<last; i++)
+            {
+                pos += 16;
+                double x2 = buffer.getDouble(pos)-originX;
+                double y2 = buffer.getDouble(pos+8)-originY;
+
+                if (isPolygon)
+                {
+                    // Shapefile rings are clockwise so are negated to give positive area.
+                    double cross = x2*y1 - x1*y2;
+                    sumWeight += cross;
+                    sumX += (x1+x2)*cross;
+                    sumY += (y1+y2)*cross;
+                }
+                else
+                {
+                    double length = Math.sqrt((x2-x1)*(x2-x1) + (y2-y1)*(y2-y1));
+                    sumWeight += length;
+                    sumX += (x1+x2)*length;
+                    sumY += (y1+y2)*length;
+                }
+                x1 = x2;
+                y1 = y2;
+            }
+        }
+
+        if (sumWeight == 0)
+        {
+            setBoundsCentre(start);
+            return;
+        }
+
+        // Area-weighted sums are 6 times the area times the centroid; length-weighted sums are twice the length times it.
+        double scale = isPolygon ? 3*sumWeight : 2*sumWeight;
+        centroidX = originX + sumX/scale;
+        centroidY = originY + sumY/scale;
+    }
+
+    /** Sets the centroid of the current record to be the centre of its bounding box.
+      * @param start Position of the start of the record contents.
+      */
+    private void setBoundsCentre(int start)
+    {
+        centroidX = (buffer.getDouble(start+4) + buffer.getDouble(start+20))/2;
+        centroidY = (buffer.getDouble(start+12) + buffer.getDouble(start+28))/2;
+    }
+
+    /** Checks that the current record is long enough to hold the given number of bytes.
+      * @param contentLength Length of the record contents in bytes.
+      * @param requiredLength Number of bytes required.
+      * @throws IOException If the record is shorter than required.
+      */
+    private void checkLength(int contentLength, long requiredLength) throws IOException
+    {
+        if (contentLength < requiredLength)
+        {
+            throw new IOException("Shapefile record "+(recordIndex+1)+" is shorter than its contents require.");
+        }
+    }
+}
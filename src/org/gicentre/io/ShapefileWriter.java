@@ -2,16 +2,23 @@ package org.gicentre.io;
 
 import java.awt.geom.Rectangle2D;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
 import org.gicentre.treemappa.TreeMapNode;
 
 //  ********************************************************************************************
 /** Writes out a treemap as a collection of ESRI shapefiles. A shapefile consists of 3 separate
  *  files - <code><i>name</i>.shp</code> containing the geometry; <code><i>name</i>.shx</code> 
  *  containing the file offsets for the components that make up the geometry; and 
- *  <code><i>name</i>.dbf</code> containing the attributes.
+ *  <code><i>name</i>.dbf</code> containing the attributes. Optionally a quadtree spatial index
+ *  <code><i>name</i>.qix</code> can also be written.
   * @author Jo Wood, giCentre.
   * @version 3.3.0, 18th April, 2016.
   */
@@ -35,22 +42,35 @@ public class ShapefileWriter
 {
     // --------------------------- Class variables -----------------------------
    
-    private static int recordNumber;
-    private static int numAreaVertices;
-    private static int numAreaObjects;
-    private static int numAreaParts;
-        
-   // ----------------------------- Constructor --------------------------------
-	
-	/** There should be no need to call the constructor explicitly since
-	  * all methods are static. 
-	  */
-	public ShapefileWriter()
-	{
-		super();
-	}
-	
-	// --------------------------- Static Methods ------------------------------
+    private static final int SHAPE_TYPE = 5;            // Area (polygon) type.
+    private static final int NUM_COORDS = 5;            // Areas must be closed (duplicate first and last point) so each rectangle has 5 vertices.
+    private static final int NUM_PARTS = 1;
+    private static final int RECORD_LENGTH = 2 + 16 + 2 + 2 + NUM_PARTS*2 + NUM_COORDS*8;   // Record content length in 16-bit words.
+    private static final int RECORD_BYTES = 8 + RECORD_LENGTH*2;                            // Record header and content in bytes.
+    private static final int BUFFER_SIZE = 64*1024;     // Size of output buffers in bytes.
+    private static final int MAX_LABEL_LENGTH = 254;
+    private static final int PARALLEL_THRESHOLD = 10000;    // Shapefiles with fewer nodes than this are written in a single thread.
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;  // Largest shapefile readable by clients that store offsets as signed ints.
+
+    // --------------------------- Object variables ----------------------------
+
+    private NodeTable nodes;                            // Attributes and rectangles of the nodes to write.
+    private boolean writeIndex;                         // Quadtree spatial index written if true.
+    private ProgressListener progressListener;          // Informed of records written (or null).
+    private CancellationToken cancellationToken;        // Checked for cancellation while writing (or null).
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates a shapefile writer. Each writer holds its own state, so separate writers may be used to 
+      * write different shapefiles at the same time.
+      */
+    public ShapefileWriter()
+    {
+        super();
+        writeIndex = false;
+    }
+
+    // --------------------------- Static Methods ------------------------------
 
     /** Writes a shapefile based on the supplied treemap node (and all of its decendents).
       * The given fileName can be supplied with or without an extension, but this method will
@@ -61,7 +81,47 @@ public class ShapefileWriter
       * @return True if written successfully.
       */
     public static boolean writeNodes(TreeMapNode node, String fileName)
-    {	
+    {
+        return new ShapefileWriter().write(node, fileName);
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Determines whether a quadtree spatial index is written alongside the shapefile. If true, a file with the extension
+      * <code>.qix</code> is written that allows GIS clients such as MapServer, GDAL/OGR and QGIS to find the records within
+      * a bounding box without reading the whole shapefile. By default no index is written.
+      * @param writeIndex Spatial index written if true.
+      */
+    public void setWriteIndex(boolean writeIndex)
+    {
+        this.writeIndex = writeIndex;
+    }
+
+    /** Determines the objects informed of progress and checked for cancellation while a shapefile is written.
+      * Progress counts the attribute and geometry records written. If writing is cancelled, all files
+      * written so far are removed.
+      * @param listener Listener to inform of the number of records written, or null if not reported.
+      * @param token Token checked after each batch of records, or null if writing cannot be cancelled.
+      */
+    public void setProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.progressListener = listener;
+        this.cancellationToken = token;
+    }
+
+    /** Writes a shapefile based on the supplied treemap node (and all of its decendents).
+      * The given fileName can be supplied with or without an extension, but this method will
+      * write three files with the same base and extensions <code>.shp</code>, <code>.shx</code>
+      * and <code>.dbf</code>. The tree is traversed only once, regardless of the number of files written.
+      * Once the order of nodes has been fixed by the traversal, large trees have their attributes and 
+      * geometry written at the same time in separate threads. If any of the files cannot be written, all
+      * of the files are deleted so that an incomplete shapefile is not left behind.
+      * @param node Treemap node to write. 
+      * @param fileName Name of core of the three files to create.
+      * @return True if written successfully.
+      */
+    public boolean write(TreeMapNode node, String fileName)
+    {
         // Generate names of the 3 output files.
         int dotIndex = fileName.lastIndexOf('.');
         String baseName = new String(fileName);
@@ -71,159 +131,145 @@ public class ShapefileWriter
             baseName = fileName.substring(0,dotIndex);
         }
         
-        // Determine the number of nodes.
-        int numChildren = 0;
-        
-        // Perform a breadth-first search of all nodes.
-        LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>();
-		for (TreeMapNode child : node.getChildren())
+        nodes = new NodeTable(node);
+
+        if (nodes.numNodes == 0)
         {
-            queue.add(child);
-        } 
-	    
-		while (!queue.isEmpty())
-		{
-			// Write out the node at the head of the queue.
-	        TreeMapNode child = queue.removeFirst();
-	        numChildren++;
-	        
-	        for (TreeMapNode grandchild : child.getChildren())
-        	{
-        		queue.add(grandchild);
-        	} 
-		}
-	                
-        if (numChildren == 0)
+            System.err.println("Cannot write shapefile for '"+node.getLabel()+"' as node has no children.");
+            return false;
+        }
+
+        if (writeFiles(node, baseName))
         {
-        	System.err.println("Cannot write shapefile for '"+node.getLabel()+"' as node has no children.");
-        	return false;
+            return true;
         }
-        
-        numAreaVertices = 5*numChildren;	// Areas must be closed (duplicate first and last point) so each rectangle has 5 vertices.
-        numAreaObjects = numChildren;
-        numAreaParts  = numAreaObjects;
-                
-        if (numAreaVertices > 0)
+
+        if ((cancellationToken != null) && cancellationToken.isCancelled())
+        {
+            System.err.println("Writing of shapefile ("+baseName+".shp) cancelled.");
+        }
+
+        // Remove any files that were written as the shapefile is incomplete.
+        for (String extension : new String[] {".shp", ".shx", ".dbf", ".qix"})
         {
-            if (writeDBF(node,baseName) == false)
+            File file = new File(baseName+extension);
+            if (file.isFile() && (file.delete() == false))
             {
-                return false;
+                System.err.println("Could not delete incomplete shapefile component ("+file+").");
             }
-            
-            if (writeShape(node,baseName) == false)
-            {
-                return false;
-            } 
         }
-        return true;   
+        return false;
     }
     
     // ------------------------------- Private Methods ----------------------------------
-            
-    /** Writes out the attributes of the given node's children as a DBF file (dBase III format).
-      * @param node Node with children to write. 
-      * @param baseName Prefix of the DBF file to write. Will be appended with <code>P.dbf</code>, <code>L.dbf</code>
-      *                 or <code>A.dbf</code> depending on the geometry type.
+
+    /** Writes the attribute table, geometry and optional spatial index of the stored nodes.
+      * @param node Node whose descendants have been stored.
+      * @param baseName Prefix of the files to write.
+      * @return True if all files written successfully.
+      */
+    private boolean writeFiles(TreeMapNode node, String baseName)
+    {
+        WriteProgress progress = new WriteProgress(progressListener, cancellationToken);
+        if ((nodes.numNodes < PARALLEL_THRESHOLD) || (Runtime.getRuntime().availableProcessors() < 2))
+        {
+            return writeDBF(baseName, progress, 0, 2L*nodes.numNodes) && 
+                   writeShape(node, baseName, progress, nodes.numNodes, 2L*nodes.numNodes) && 
+                   writeIndex(baseName);
+        }
+        
+        // Stored nodes are not changed while writing, so the attribute table can be written alongside the geometry.
+        // Only the geometry reports progress so that the listener is not called from the DBF thread.
+        final String dbfName = baseName;
+        final WriteProgress dbfProgress = progress.withoutListener();
+        FutureTask<Boolean> dbfTask = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call()
+            {
+                return Boolean.valueOf(writeDBF(dbfName, dbfProgress, 0, nodes.numNodes));
+            }
+        });
+        Thread dbfThread = new Thread(dbfTask, "DBF writer");
+        dbfThread.setDaemon(true);
+        dbfThread.start();
+        
+        boolean isShapeWritten = writeShape(node, baseName, progress, 0, nodes.numNodes) && writeIndex(baseName);
+        
+        try
+        {
+            return dbfTask.get().booleanValue() && isShapeWritten;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            System.err.println("Writing of shapefile DBF ("+baseName+".dbf) interrupted.");
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println("Problem writing Shapefile DBF ("+baseName+".dbf): "+e.getCause());
+            return false;
+        }
+    }
+
+    /** Writes out the attributes of the stored nodes as a DBF file (dBase III format).
+      * @param baseName Prefix of the DBF file to write.
+      * @param progress Progress to update as each record is written.
+      * @param offset Number of records counted as written before this file is started.
+      * @param total Total number of records to report progress against.
       * @return True if attribute table written successfully. 
       */
-    @SuppressWarnings("boxing")
-	private static boolean writeDBF(TreeMapNode node, String baseName)
+    private boolean writeDBF(String baseName, WriteProgress progress, long offset, long total)
     {
-        // NOTE: This should be called after the number of objects to be written has been determined.
         String fileName = new String(baseName+".dbf");
-        int numRecords = numAreaObjects;
-        LinkedList<TreeMapNode> queue;
 
-        try
+        // Create the dbase header.
+        DbaseFileHeader header = new DbaseFileHeader();
+
+        int labelSize = nodes.maxLabelSize;
+        if (labelSize > MAX_LABEL_LENGTH)
         {
-            // Create the dbase header.
-            DbaseFileHeader header = new DbaseFileHeader();
-            
-            int numCols = 6;
-            
-            // Find maximum label size.
-            int maxLabelSize = 0;
-            queue = new LinkedList<TreeMapNode>();
-    		for (TreeMapNode child : node.getChildren())
-            {
-                queue.add(child);
-            } 
-    	    
-    		while (!queue.isEmpty())
-    		{
-    			// Write out the node at the head of the queue.
-    	        TreeMapNode child = queue.removeFirst();
-            	int labelSize = child.getLabel().length();
-            	if (labelSize > maxLabelSize)
-            	{
-            		maxLabelSize = labelSize;
-            	}
-            	
-            	for (TreeMapNode grandchild : child.getChildren())
-            	{
-            		queue.add(grandchild);
-            	} 
-            }
-            
-            if (maxLabelSize > 254)
-            {
-                System.err.println("Maximum label length is 254 characters in length. Some labels may be truncated for shapefile output.");
-                maxLabelSize = 254;
-            }
-           
-            header.addColumn("TreemapID",'N',8,6); 
-            header.addColumn("Label",'C',maxLabelSize,0); 
-            header.addColumn("Size",'N',18,6);
-            header.addColumn("Colour",'N',18,6);
-            header.addColumn("Depth",'N',3,0);
-            header.addColumn("Leaf",'C',1,0); 
-            
-            header.setNumRecords(numRecords);
-
-            FileOutputStream fos = new FileOutputStream(fileName);
-            FileChannel channel = fos.getChannel();
-            DbaseFileWriter writer = new DbaseFileWriter(header,channel);
-            int id = 1;
-            
-            // Perform a breadth-first search of all nodes.
-            queue = new LinkedList<TreeMapNode>();
-    		for (TreeMapNode child : node.getChildren())
+            System.err.println("Maximum label length is 254 characters in length. Some labels may be truncated for shapefile output.");
+            labelSize = MAX_LABEL_LENGTH;
+        }
+
+        header.addColumn("TreemapID",'N',8,6); 
+        header.addColumn("Label",'C',labelSize,0); 
+        header.addColumn("Size",'N',18,6);
+        header.addColumn("Colour",'N',18,6);
+        header.addColumn("Depth",'N',3,0);
+        header.addColumn("Leaf",'C',1,0); 
+
+        header.setNumRecords(nodes.numNodes);
+
+        try (FileOutputStream fos = new FileOutputStream(fileName))
+        {
+            DbaseFileWriter writer = new DbaseFileWriter(header,fos.getChannel());
+
+            for (int i=0; i<nodes.numNodes; i++)
             {
-                queue.add(child);
-            } 
-    	    
-    		while (!queue.isEmpty())
-    		{
-    			// Write out the node at the head of the queue.
-    	        TreeMapNode child = queue.removeFirst();
-    	    
-            	Object rowObjects[] = new Object[numCols];
-            	rowObjects[0] = id++;
-            	rowObjects[1] = child.getLabel();
-            	rowObjects[2] = child.getAccumSize();
-            	rowObjects[3] = child.getColourValue();
-            	rowObjects[4] = child.getLevel();
-            	if (child.isLeaf())
-            	{
-            		rowObjects[5] = new String("Y");
-            	}
-            	else
-            	{
-            		rowObjects[5] = new String("N");
-            	}
-            
-            	writer.write(rowObjects);
-            	
-            	for (TreeMapNode grandchild : child.getChildren())
-            	{
-            		queue.add(grandchild);
-            	} 
+                writer.startRecord();
+                writer.writeInt(i+1);
+                writer.writeString(nodes.labels[i]);
+                writer.writeDouble(nodes.sizes[i]);
+                if (nodes.hasColour[i])
+                {
+                    writer.writeDouble(nodes.colours[i]);
+                }
+                else
+                {
+                    writer.writeNull();
+                }
+                writer.writeInt(nodes.levels[i]);
+                writer.writeString(nodes.isLeaf[i] ? "Y" : "N");
+                writer.endRecord();
+                progress.update(offset+i+1, total);
             }
             writer.close();
-            channel.close();
-            fos.close();
         }
-
+        catch (WriteProgress.CancelledException e)
+        {
+            return false;
+        }
         catch (IOException e)
         {
             System.err.println("Problem writing Shapefile DBF ("+fileName+").");
@@ -233,154 +279,94 @@ public class ShapefileWriter
         return true;  
     }
         
-    /** Writes out all the descendants of the given node as <code>.shp</code> and <code>.shx</code> files (the geometry and index of a shapefile).
-      * @param node Node containing children to write. 
+    /** Writes out the stored rectangles as <code>.shp</code> and <code>.shx</code> files (the geometry and index of a shapefile).
+      * Records are assembled in buffers and written to the file channels in blocks.
+      * @param node Node whose descendants have been stored.
       * @param baseName Prefix of the <code>.shp</code> and <code>.shx</code> files to write.
+      * @param progress Progress to update as each record is written.
+      * @param offset Number of records counted as written before this file is started.
+      * @param total Total number of records to report progress against.
       * @return True if geometry written successfully. 
       */
-    private static boolean writeShape(TreeMapNode node, String baseName)
+    private boolean writeShape(TreeMapNode node, String baseName, WriteProgress progress, long offset, long total)
     {        
         String shpName = new String(baseName+".shp");
         String shxName = new String(baseName+".shx");
         
-        if (node.getRectangle() == null)
+        if (nodes.calcGeoCoords(node, "shapefile") == false)
         {
-        	System.err.println("Cannot write node '"+node.getLabel()+"' to shapefile as it has no rectangle coordinates.");
-        	return false;
+            return false;
         }
+        Rectangle2D geoBounds = nodes.geoBounds;
 
-        Rectangle2D bounds = node.getRectangle();
-        Rectangle2D geoBounds = node.calcGeoBounds();
+        // Note that file size is specified in 16 bit words. Offsets are stored as ints, so larger files cannot be read.
+        long shpFileSize = 50 + nodes.numNodes*(4L+RECORD_LENGTH);
+        long shxFileSize = 50 + nodes.numNodes*4L;
+        if (shpFileSize*2 > MAX_FILE_BYTES)
+        {
+            System.err.println("Cannot write shape file <"+shpName+"> as "+nodes.numNodes+" records would exceed the 2GB shapefile limit.");
+            return false;
+        }
+
+        try (FileOutputStream shpStream = new FileOutputStream(shpName);
+             FileOutputStream shxStream = new FileOutputStream(shxName))
+        {
+            FileChannel shpChannel = shpStream.getChannel();
+            FileChannel shxChannel = shxStream.getChannel();
+            ByteBuffer shpBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ByteBuffer shxBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+            putHeader(shpBuffer, (int)shpFileSize, geoBounds);
+            putHeader(shxBuffer, (int)shxFileSize, geoBounds);
 
-        double scaleX = geoBounds.getWidth()/bounds.getWidth();
-        double scaleY = geoBounds.getHeight()/bounds.getHeight(); 
-                
-        try
-        {                  
-            FileOutputStream shpStream      = new FileOutputStream(shpName);
-            BufferedOutputStream shpBStream = new BufferedOutputStream(shpStream);
-            
-            FileOutputStream shxStream      = new FileOutputStream(shxName);
-            BufferedOutputStream shxBStream = new BufferedOutputStream(shxStream);
-            
-            // Geometry type-specific information.           
-            int shapeType = 5; 				// Area type.
-            // Note that file size is specified in 16 bit words.
-            int shpFileSize = 50 + numAreaObjects*26 + numAreaParts*2 + numAreaVertices*8;
-            int shxFileSize = 50 + numAreaObjects*4;  
-             
-            // Write out headers.
-            writeIntBigEndian(9994,shpBStream);         // Shapefile identifier.
-            writeIntBigEndian(9994,shxBStream);
-             
-            for (int i=0; i<5; i++)                     // 5 blank bytes.
-            {
-                writeIntBigEndian(0,shpBStream);
-                writeIntBigEndian(0,shxBStream);
-            }
-           
-            writeIntBigEndian(shpFileSize,shpBStream);  // Length of file in 16-bit words.
-            writeIntBigEndian(shxFileSize,shxBStream);
-            writeIntLittleEndian(1000,shpBStream);      // Version number.
-            writeIntLittleEndian(1000,shxBStream);
-            writeIntLittleEndian(shapeType,shpBStream); // Type of shape (geometry).
-            writeIntLittleEndian(shapeType,shxBStream);
-
-            writeDoubleLittleEndian(geoBounds.getX(),shpBStream);
-            writeDoubleLittleEndian(geoBounds.getX(),shxBStream);
-            writeDoubleLittleEndian(geoBounds.getY(),shpBStream);
-            writeDoubleLittleEndian(geoBounds.getY(),shxBStream);
-            writeDoubleLittleEndian(geoBounds.getX()+geoBounds.getWidth(),shpBStream);
-            writeDoubleLittleEndian(geoBounds.getX()+geoBounds.getWidth(),shxBStream);
-            writeDoubleLittleEndian(geoBounds.getY()+geoBounds.getHeight(),shpBStream);
-            writeDoubleLittleEndian(geoBounds.getY()+geoBounds.getHeight(),shxBStream);
-            
-            writeDoubleLittleEndian(0,shpBStream);  // Zmin.
-            writeDoubleLittleEndian(0,shxBStream);
-            writeDoubleLittleEndian(0,shpBStream);  // Zmax.
-            writeDoubleLittleEndian(0,shxBStream);
-            writeDoubleLittleEndian(0,shpBStream);  // Measured min.
-            writeDoubleLittleEndian(0,shxBStream);
-            writeDoubleLittleEndian(0,shpBStream);  // Measured max.
-            writeDoubleLittleEndian(0,shxBStream);
-                     
             // Add geometry records.
-            recordNumber = 1;
             int recordOffset = 50;
-                        
-            // Perform a breadth-first search of all nodes.
-            LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>();
-    		for (TreeMapNode child : node.getChildren())
+            for (int i=0; i<nodes.numNodes; i++)
             {
-                queue.add(child);
-            } 
-    	    
-    		while (!queue.isEmpty())
-    		{
-    			// Write out the node at the head of the queue.
-    	        TreeMapNode child = queue.removeFirst();
-    	        
-            	Rectangle2D r = child.getRectangle();          	
-            	Rectangle2D geoR = new Rectangle2D.Double(geoBounds.getX()+ geoBounds.getWidth()*(r.getX()-bounds.getX())/bounds.getWidth(),
-            					        				  geoBounds.getY()+ geoBounds.getHeight()*(r.getY()-bounds.getY())/bounds.getHeight(),
-            											  r.getWidth()*scaleX,r.getHeight()*scaleY);     	
-	            int numCoords = 5;
-	            int numParts  = 1;
-	            double cy2 = 2*geoBounds.getY()+geoBounds.getHeight();
-	            
-	           // Store shapefile coordinate with origin at bottom-left rather than top-left
-	            double x[] = new double[]{geoR.getX(),geoR.getX()+geoR.getWidth(),geoR.getX()+geoR.getWidth(),geoR.getX(),geoR.getX()};
-	            double y[] = new double[]{cy2-geoR.getY(),cy2-geoR.getY(),cy2-(geoR.getY()+geoR.getHeight()),cy2-(geoR.getY()+geoR.getHeight()),cy2-geoR.getY()};           
-	            	       
-	            // Store array of subpath pointers.
-	            int parts[] = new int[numParts];
-	            parts[0] = 0;
-	                   
-	            int recordLength = 2 + 16 + 2 + 2 + numParts*2 + numCoords*8;
-	           	                
-	            // Record header.
-	            writeIntBigEndian(recordNumber,shpBStream);
-	            writeIntBigEndian(recordLength,shpBStream);
-	                
-	            // Add index record.
-	            writeIntBigEndian(recordOffset,shxBStream);
-	            writeIntBigEndian(recordLength,shxBStream); 
-	            recordOffset += (recordLength+4);
-	                
-	            // Record contents.
-	            writeIntLittleEndian(5,shpBStream); 
-	 
-	            writeDoubleLittleEndian(geoR.getX(),shpBStream);
-	            writeDoubleLittleEndian(cy2-geoR.getY(),shpBStream);
-	            writeDoubleLittleEndian(geoR.getX()+geoR.getWidth(),shpBStream);
-	            writeDoubleLittleEndian(cy2-(geoR.getY()+geoR.getHeight()),shpBStream);
-	                    
-	            writeIntLittleEndian(numParts,shpBStream);
-	            writeIntLittleEndian(numCoords,shpBStream);  
-	                    
-	            for (int part=0; part<numParts; part++)
-	            {
-	            	writeIntLittleEndian(parts[part],shpBStream);
-	            }
-	                    
-	            for (int coord=0; coord<numCoords; coord++)
-	            {
-	            	writeDoubleLittleEndian(x[coord],shpBStream);
-	            	writeDoubleLittleEndian(y[coord],shpBStream);
-	            }
-	        	                    
-	            recordNumber++;
-	            
-	            for (TreeMapNode grandchild : child.getChildren())
-	        	{
-	        		queue.add(grandchild);
-	        	} 
+                if (shpBuffer.remaining() < RECORD_BYTES)
+                {
+                    flush(shpBuffer, shpChannel);
+                }
+                if (shxBuffer.remaining() < 8)
+                {
+                    flush(shxBuffer, shxChannel);
+                }
+
+                double minX = nodes.geoMinX[i];
+                double maxX = nodes.geoMaxX[i];
+                double top = nodes.geoMaxY[i];
+                double bottom = nodes.geoMinY[i];
+
+                // Record header.
+                shpBuffer.order(ByteOrder.BIG_ENDIAN);
+                shpBuffer.putInt(i+1);
+                shpBuffer.putInt(RECORD_LENGTH);
+
+                // Index record.
+                shxBuffer.putInt(recordOffset);
+                shxBuffer.putInt(RECORD_LENGTH);
+                recordOffset += (RECORD_LENGTH+4);
+
+                // Record contents.
+                shpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                shpBuffer.putInt(SHAPE_TYPE);
+                shpBuffer.putDouble(minX).putDouble(top).putDouble(maxX).putDouble(bottom);
+                shpBuffer.putInt(NUM_PARTS);
+                shpBuffer.putInt(NUM_COORDS);
+                shpBuffer.putInt(0);        // Start of the only part.
+                shpBuffer.putDouble(minX).putDouble(top);
+                shpBuffer.putDouble(maxX).putDouble(top);
+                shpBuffer.putDouble(maxX).putDouble(bottom);
+                shpBuffer.putDouble(minX).putDouble(bottom);
+                shpBuffer.putDouble(minX).putDouble(top);
+                progress.update(offset+i+1, total);
             }
-      
-            shpBStream.close();
-            shpStream.close();
-            shxBStream.close();
-            shxStream.close();
+            flush(shpBuffer, shpChannel);
+            flush(shxBuffer, shxChannel);
+        }
+        catch (WriteProgress.CancelledException e)
+        {
+            return false;
         }
         catch (IOException e)
         {
@@ -390,94 +376,63 @@ public class ShapefileWriter
         
         return true;
     }
-    
-    
-    // -------------------------- Private file writing methods -------------------------------
-    
-    /** Writes a 32 bit unsigned big-endian ('Motorola') word of data to the
-      * given output stream.
-      * @param value Value to write to output stream.
-      * @param os Output stream to process.
-      * @return True if written successfully.
+
+    /** Writes out the stored rectangles as a quadtree spatial index if one has been requested. Should only be called
+      * once the rectangles have been converted into geographic coordinates.
+      * @param baseName Prefix of the <code>.qix</code> file to write.
+      * @return True if no index was requested or if the index was written successfully.
       */
-    private static boolean writeIntBigEndian(int value, OutputStream os) 
-    { 
-    	// 4 bytes 
-        try
-        {
-        	byte[] intBytes = new byte[4];
-        	intBytes[0] = (byte)((value >> 24)& 0xff);
-        	intBytes[1] = (byte)((value >> 16)& 0xff);
-        	intBytes[2] = (byte)((value >> 8) & 0xff);
-        	intBytes[3] = (byte) (value       & 0xff);
-        	//filePointer += 4;
-        	os.write(intBytes);
-        }
-        catch (IOException e)
+    private boolean writeIndex(String baseName)
+    {
+        if (writeIndex == false)
         {
-           System.err.println("Cannot write 32 bit word to output stream: "+e);
+            return true;
         }
-
-        return true;
+        return new QuadtreeIndexWriter(nodes.geoMinX, nodes.geoMinY, nodes.geoMaxX, nodes.geoMaxY, nodes.numNodes).write(baseName+".qix");
     }
-    
-    /** Writes a 32 bit unsigned little-endian ('Intel') word of data to the
-      * given output stream.
-      * @param value Value to write to output stream.
-      * @param os Output stream to process.
-      * @return True if written successfully.
+
+    /** Adds a shapefile header to the given buffer. The same header structure is used by both <code>.shp</code> and
+      * <code>.shx</code> files.
+      * @param buffer Buffer to which the header is added.
+      * @param fileSize Length of the file in 16-bit words.
+      * @param geoBounds Bounds of the geometry stored in the file.
       */
-    protected static boolean writeIntLittleEndian(int value, OutputStream os) 
-    { 
-    	// 4 bytes 
-        try
-        {
-        	byte[] intBytes = new byte[4];
-        	intBytes[0] = (byte) (value       & 0xff);
-        	intBytes[1] = (byte)((value >> 8) & 0xff);
-        	intBytes[2] = (byte)((value >> 16)& 0xff);
-        	intBytes[3] = (byte)((value >> 24)& 0xff);        	
-        	
-            //filePointer += 4;
-            os.write(intBytes);
-        }
-        catch (IOException e)
+    private static void putHeader(ByteBuffer buffer, int fileSize, Rectangle2D geoBounds)
+    {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(9994);                // Shapefile identifier.
+        for (int i=0; i<5; i++)             // 5 blank words.
         {
-            System.err.println("Cannot write 32 bit word to output stream: "+e);
+            buffer.putInt(0);
         }
+        buffer.putInt(fileSize);            // Length of file in 16-bit words.
 
-    	return true;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1000);                // Version number.
+        buffer.putInt(SHAPE_TYPE);          // Type of shape (geometry).
+        buffer.putDouble(geoBounds.getX());
+        buffer.putDouble(geoBounds.getY());
+        buffer.putDouble(geoBounds.getX()+geoBounds.getWidth());
+        buffer.putDouble(geoBounds.getY()+geoBounds.getHeight());
+        buffer.putDouble(0);                // Zmin.
+        buffer.putDouble(0);                // Zmax.
+        buffer.putDouble(0);                // Measured min.
+        buffer.putDouble(0);                // Measured max.
+        buffer.order(ByteOrder.BIG_ENDIAN);
     }
-    
-    /** Writes a little-endian 8-byte double to the given output stream.
-      * @param value Value to write to output stream.
-      * @param os Output stream.
-      * @return True if written successfully.
+
+    /** Writes the contents of the given buffer to the given channel and clears the buffer ready for reuse.
+      * @param buffer Buffer to write.
+      * @param channel Channel to receive the buffer contents.
+      * @throws IOException If problem writing to the channel.
       */
-    protected static boolean writeDoubleLittleEndian(double value, OutputStream os) 
-    { 
-        try
-        {
-            long doubleBits = Double.doubleToLongBits(value);
-                
-            byte[] doubleBytes = new byte[8];
-        	doubleBytes[0] = (byte) (doubleBits       & 0xff);
-        	doubleBytes[1] = (byte)((doubleBits >> 8) & 0xff);
-        	doubleBytes[2] = (byte)((doubleBits >> 16)& 0xff);
-        	doubleBytes[3] = (byte)((doubleBits >> 24)& 0xff);
-        	doubleBytes[4] = (byte)((doubleBits >> 32)& 0xff); 
-        	doubleBytes[5] = (byte)((doubleBits >> 40)& 0xff); 
-        	doubleBytes[6] = (byte)((doubleBits >> 48)& 0xff); 
-        	doubleBytes[7] = (byte)((doubleBits >> 56)& 0xff);         	
-        	
-            //filePointer += 8;
-            os.write(doubleBytes);          
-        }
-        catch (IOException e)
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
         {
-            System.err.println("Cannot write binary stream: "+e);
-            return false;
+            channel.write(buffer);
         }
-        return true;
+        buffer.clear();
     }
 }
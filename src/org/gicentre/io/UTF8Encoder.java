@@ -0,0 +1,121 @@
+package org.gicentre.io;
+
+import java.nio.ByteBuffer;
+
+//  ********************************************************************************************
+/** Encodes text as UTF-8 directly into byte buffers. This avoids creating a byte array for each
+ *  string, as <code>String.getBytes()</code> would, when writing the labels of large trees. The
+ *  length of the encoded text can be found beforehand so that space can be reserved for it.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+final class UTF8Encoder
+{
+    // ----------------------------- Constructor --------------------------------
+
+    /** Prevents this class of static methods being instantiated.
+      */
+    private UTF8Encoder()
+    {
+        // Not instantiated.
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Adds the given text to the given buffer in UTF-8 encoding. Unpaired surrogate characters are replaced
+      * with '?' as they are by Java's own encoder.
+      * @param buffer Buffer to which the text is added.
+      * @param text Text to add.
+      */
+    static void encode(ByteBuffer buffer, String text)
+    {
+        for (int i=0; i<text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c < 0x80)
+            {
+                buffer.put((byte)c);
+            }
+            else if (c < 0x800)
+            {
+                buffer.put((byte)(0xC0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                if (Character.isHighSurrogate(c) && (i+1 < text.length()) && Character.isLowSurrogate(text.charAt(i+1)))
+                {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put((byte)(0xF0 | (codePoint >> 18)));
+                    buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+                }
+                else
+                {
+                    buffer.put((byte)'?');
+                }
+            }
+            else
+            {
+                buffer.put((byte)(0xE0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /** Reports the number of bytes needed to store the given text in UTF-8 encoding.
+      * @param text Text to measure.
+      * @return Length of the encoded text in bytes.
+      */
+    static int encodedLength(String text)
+    {
+        int length = 0;
+        for (int i=0; i<text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                if (Character.isHighSurrogate(c) && (i+1 < text.length()) && Character.isLowSurrogate(text.charAt(i+1)))
+                {
+                    length += 4;
+                    i++;
+                }
+                else
+                {
+                    length++;
+                }
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
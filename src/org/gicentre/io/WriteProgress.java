@@ -0,0 +1,122 @@
+package org.gicentre.io;
+
+import java.io.IOException;
+
+import org.gicentre.treemappa.BuildPhase;
+import org.gicentre.treemappa.CancellationToken;
+import org.gicentre.treemappa.ProgressListener;
+
+//  ********************************************************************************************
+/** Reports the progress of a file writer in batches of nodes and checks whether writing has been
+ *  cancelled. Writers call <code>update()</code> for each node, but the listener is only informed,
+ *  and the cancellation token only checked, once a batch of nodes has been written and when the
+ *  last node is reached. Cancellation is signalled by throwing a <code>CancelledException</code>,
+ *  so it is handled by the same code that removes output left incomplete by any other failure.
+  * @author Jo Wood, giCentre.
+  * @version 3.3.0, 18th April, 2016.
+  */
+//  ***********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class WriteProgress
+{
+    // --------------------------- Class variables -----------------------------
+
+    /** Number of nodes written between progress reports. */
+    static final int BATCH_SIZE = 1024;
+
+    // --------------------------- Object variables ----------------------------
+
+    private ProgressListener listener;                  // Informed of progress, or null if not reported.
+    private CancellationToken token;                    // Checked for cancellation, or null if writing cannot be cancelled.
+    private long lastReported;                          // Number of nodes written when progress was last reported.
+
+    // ----------------------------- Constructor --------------------------------
+
+    /** Creates an object to report the progress of writing a file.
+      * @param listener Listener to inform of progress, or null if progress is not to be reported.
+      * @param token Token to check for cancellation, or null if writing cannot be cancelled.
+      */
+    WriteProgress(ProgressListener listener, CancellationToken token)
+    {
+        this.listener = listener;
+        this.token = token;
+        this.lastReported = 0;
+    }
+
+    // ------------------------------- Methods ----------------------------------
+
+    /** Records the writing of a node. Once a batch of nodes has been written since the last report, or the
+      * last node has been written, progress is reported and the cancellation token checked.
+      * @param done Number of nodes written so far.
+      * @param total Total number of nodes to write, or -1 if not known.
+      * @throws CancelledException if writing has been cancelled.
+      */
+    void update(long done, long total) throws CancelledException
+    {
+        if ((done-lastReported < BATCH_SIZE) && (done != total))
+        {
+            return;
+        }
+        lastReported = done;
+        if (listener != null)
+        {
+            listener.progressMade(BuildPhase.WRITE, done, total);
+        }
+        if ((token != null) && token.isCancelled())
+        {
+            throw new CancelledException();
+        }
+    }
+
+    /** Reports that all nodes have been written, for writers that did not know in advance how many there would be.
+      * @param total Number of nodes written.
+      */
+    void finish(long total)
+    {
+        if ((listener != null) && (lastReported != total))
+        {
+            lastReported = total;
+            listener.progressMade(BuildPhase.WRITE, total, total);
+        }
+    }
+
+    /** Provides an object that checks the same cancellation token as this one but does not report progress.
+      * This allows a file to be written in a separate thread without the listener being called on that thread.
+      * @return Progress object that only checks for cancellation.
+      */
+    WriteProgress withoutListener()
+    {
+        return new WriteProgress(null, token);
+    }
+
+    // ------------------------------ Nested classes ---------------------------------
+
+    /** Signals that writing has been cancelled. It is an <code>IOException</code> so that writers remove
+      * their incomplete output in the same way as when any other problem stops them writing.
+      */
+    static class CancelledException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Creates an exception signalling cancellation.
+          */
+        CancelledException()
+        {
+            super("Writing cancelled.");
+        }
+    }
+}
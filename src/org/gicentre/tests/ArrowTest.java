@@ -0,0 +1,695 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gicentre.io.ArrowWriter;
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests Apache Arrow IPC output by reading it back. The schema, record batch headers and
+ *  footer are read with the same checks a FlatBuffers verifier makes, and every buffer of
+ *  every record batch is checked to lie within its message body on an 8 byte boundary,
+ *  before the rows are compared with the nodes of the tree they describe.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ArrowTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final byte[] MAGIC = {'A', 'R', 'R', 'O', 'W', '1'};
+	private static final String[] COLUMN_NAMES = {"id", "parentId", "level", "label", "size", "colour",
+												  "x", "y", "w", "h", "dx", "dy"};
+	private static final int INT = 2, FLOATING_POINT = 3, UTF8 = 5;		// Column types.
+	private static final int[] COLUMN_TYPES = {INT, INT, INT, UTF8, FLOATING_POINT, FLOATING_POINT,
+											   FLOATING_POINT, FLOATING_POINT, FLOATING_POINT, FLOATING_POINT,
+											   FLOATING_POINT, FLOATING_POINT};
+	private static final boolean[] IS_NULLABLE = {false, true, false, false, false, true,
+												  true, true, true, true, true, true};
+	private static final int SCHEMA = 1, RECORD_BATCH = 3;			// Message header types.
+	private static final int METADATA_VERSION = 4;					// Arrow format version 5.
+	private static final int NUM_LARGE_LEAVES = 70000;				// Enough rows to need more than one record batch.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		ArrowTest test = new ArrowTest();
+		try
+		{
+			test.checkRoundTrip("laid out tree", buildTree(true));
+			test.checkRoundTrip("tree without layout", buildTree(false));
+			test.checkRoundTrip("single node", new TreeMapNode("Only \u00e9"));
+			test.checkRoundTrip("large tree", buildLargeTree());
+		}
+		catch (IOException e)
+		{
+			test.fail("problem reading Arrow file: "+e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			test.fail("invalid Arrow file: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" Arrow test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All Arrow tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Writes the given tree as an Arrow file and checks the file describes the same nodes.
+	 *  @param name Description of the tree being written.
+	 *  @param root Root of the tree to write.
+	 *  @throws IOException If the file cannot be written or read.
+	 */
+	private void checkRoundTrip(String name, TreeMapNode root) throws IOException
+	{
+		File file = File.createTempFile("treemappa", ".arrow");
+		file.deleteOnExit();
+		if (ArrowWriter.writeNodes(root, file.getAbsolutePath()) == false)
+		{
+			fail(name+": Arrow file could not be written.");
+			return;
+		}
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		file.delete();
+
+		int length = data.limit();
+		for (int i=0; i<MAGIC.length; i++)
+		{
+			check(data.get(i) == MAGIC[i], name+": magic number at start of file");
+			check(data.get(length-MAGIC.length+i) == MAGIC[i], name+": magic number at end of file");
+		}
+
+		// The schema message follows the magic number and is repeated in the footer.
+		int pos = 8;
+		check(data.getInt(pos) == 0xFFFFFFFF, name+": schema message continuation marker");
+		int metaLength = data.getInt(pos+4);
+		check(metaLength % 8 == 0, name+": schema message padded to 8 bytes");
+		FlatBuffer schemaMessage = new FlatBuffer(data, pos+8, pos+8+metaLength);
+		int message = schemaMessage.root();
+		check(schemaMessage.getShort(message, 0) == METADATA_VERSION, name+": schema message version");
+		check(schemaMessage.getUByte(message, 1) == SCHEMA, name+": schema message type");
+		check(schemaMessage.getLong(message, 3) == 0, name+": schema message has no body");
+		checkSchema(name+" schema message", schemaMessage, schemaMessage.getTable(message, 2));
+
+		int footerLength = data.getInt(length-MAGIC.length-4);
+		int footerStart = length-MAGIC.length-4-footerLength;
+		check(footerStart % 8 == 0, name+": footer aligned to 8 bytes");
+		FlatBuffer footer = new FlatBuffer(data, footerStart, footerStart+footerLength);
+		int footerTable = footer.root();
+		check(footer.getShort(footerTable, 0) == METADATA_VERSION, name+": footer version");
+		checkSchema(name+" footer", footer, footer.getTable(footerTable, 1));
+
+		// Each record batch is located by a block in the footer holding its position and lengths.
+		List<TreeMapNode> nodes = breadthFirst(root);
+		int blocks = footer.getVector(footerTable, 3, 24);
+		int numBlocks = data.getInt(blocks);
+		int row = 0;
+		for (int b=0; b<numBlocks; b++)
+		{
+			long blockOffset = data.getLong(blocks+4+24*b);
+			int blockMetaLength = data.getInt(blocks+4+24*b+8);
+			long blockBodyLength = data.getLong(blocks+4+24*b+16);
+			String batchName = name+" batch "+b;
+			if ((blockOffset % 8 != 0) || (blockOffset+blockMetaLength+blockBodyLength > footerStart))
+			{
+				fail(batchName+": block lies outside the record batches or is not aligned.");
+				return;
+			}
+
+			pos = (int)blockOffset;
+			check(data.getInt(pos) == 0xFFFFFFFF, batchName+": continuation marker");
+			check(data.getInt(pos+4)+8 == blockMetaLength, batchName+": metadata length matches block");
+			FlatBuffer batchMessage = new FlatBuffer(data, pos+8, pos+blockMetaLength);
+			message = batchMessage.root();
+			check(batchMessage.getUByte(message, 1) == RECORD_BATCH, batchName+": message type");
+			check(batchMessage.getLong(message, 3) == blockBodyLength, batchName+": body length matches block");
+			int numRows = checkBatch(batchName, batchMessage, batchMessage.getTable(message, 2),
+									 pos+blockMetaLength, (int)blockBodyLength, nodes, row);
+			if (numRows < 0)
+			{
+				return;
+			}
+			row += numRows;
+		}
+		check(row == nodes.size(), name+": number of rows ("+row+") matches number of nodes ("+nodes.size()+")");
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Checks the schema describes the name, type and nullability of each column.
+	 *  @param name Description of the schema being checked.
+	 *  @param buffer FlatBuffer holding the schema.
+	 *  @param schema Position of the schema table.
+	 */
+	private void checkSchema(String name, FlatBuffer buffer, int schema)
+	{
+		int[] fields = buffer.getTables(schema, 1);
+		if (fields.length != COLUMN_NAMES.length)
+		{
+			fail(name+": schema has "+fields.length+" columns rather than "+COLUMN_NAMES.length+".");
+			return;
+		}
+		for (int c=0; c<fields.length; c++)
+		{
+			check(COLUMN_NAMES[c].equals(buffer.getString(fields[c], 0)), name+": name of column "+c);
+			check((buffer.getUByte(fields[c], 1) == 1) == IS_NULLABLE[c], name+": nullability of column "+c);
+			check(buffer.getUByte(fields[c], 2) == COLUMN_TYPES[c], name+": type of column "+c);
+			int type = buffer.getTable(fields[c], 3);
+			if (COLUMN_TYPES[c] == INT)
+			{
+				check((buffer.getInt(type, 0) == 32) && (buffer.getUByte(type, 1) == 1), name+": column "+c+" is a signed 32 bit integer");
+			}
+			else if (COLUMN_TYPES[c] == FLOATING_POINT)
+			{
+				check(buffer.getShort(type, 0) == 2, name+": column "+c+" is double precision");
+			}
+		}
+	}
+
+	/** Checks the buffers of a record batch and compares its rows with the nodes they describe.
+	 *  @param name Description of the batch being checked.
+	 *  @param buffer FlatBuffer holding the record batch header.
+	 *  @param batch Position of the record batch table.
+	 *  @param bodyStart Position of the message body in the file.
+	 *  @param bodyLength Length of the message body in bytes.
+	 *  @param nodes All nodes in breadth-first order, starting with the root.
+	 *  @param firstRow Index of the node described by the first row of the batch.
+	 *  @return Number of rows in the batch, or -1 if the batch is invalid.
+	 */
+	private int checkBatch(String name, FlatBuffer buffer, int batch, int bodyStart, int bodyLength,
+						   List<TreeMapNode> nodes, int firstRow)
+	{
+		ByteBuffer data = buffer.data;
+		int numRows = (int)buffer.getLong(batch, 0);
+		if ((numRows <= 0) || (firstRow+numRows > nodes.size()))
+		{
+			fail(name+": invalid number of rows ("+numRows+").");
+			return -1;
+		}
+
+		int fieldNodes = buffer.getVector(batch, 1, 16);
+		int buffers = buffer.getVector(batch, 2, 16);
+		if ((data.getInt(fieldNodes) != COLUMN_NAMES.length) || (data.getInt(buffers) != 2*COLUMN_NAMES.length+1))
+		{
+			fail(name+": wrong number of field nodes or buffers.");
+			return -1;
+		}
+
+		// Position of each column's validity bitmap (or -1 if all values are present), offsets and values.
+		int[] validity = new int[COLUMN_NAMES.length];
+		int[] offsets = new int[COLUMN_NAMES.length];
+		int[] values = new int[COLUMN_NAMES.length];
+		int b = 0;
+		for (int c=0; c<COLUMN_NAMES.length; c++)
+		{
+			check(data.getLong(fieldNodes+4+16*c) == numRows, name+": length of column "+c);
+			int[] positions = new int[(COLUMN_TYPES[c] == UTF8) ? 3 : 2];
+			for (int i=0; i<positions.length; i++, b++)
+			{
+				long offset = data.getLong(buffers+4+16*b);
+				long length = data.getLong(buffers+4+16*b+8);
+				if ((offset % 8 != 0) || (offset < 0) || (length < 0) || (offset+length > bodyLength))
+				{
+					fail(name+": buffer "+b+" lies outside the body or is not aligned.");
+					return -1;
+				}
+				positions[i] = (length == 0) ? -1 : bodyStart+(int)offset;
+			}
+			validity[c] = positions[0];
+			offsets[c] = (positions.length == 3) ? positions[1] : -1;
+			values[c] = positions[positions.length-1];
+
+			// The null count must match the number of rows missing from the validity bitmap.
+			int numNulls = 0;
+			for (int r=0; (validity[c] >= 0) && (r<numRows); r++)
+			{
+				numNulls += isValid(data, validity[c], r) ? 0 : 1;
+			}
+			check(data.getLong(fieldNodes+4+16*c+8) == numNulls, name+": null count of column "+c);
+			check((validity[c] < 0) || IS_NULLABLE[c], name+": column "+c+" has nulls but is not nullable");
+		}
+
+		int numFailuresBefore = numFailures;
+		for (int r=0; (r<numRows) && (numFailures == numFailuresBefore); r++)
+		{
+			int id = firstRow+r;
+			TreeMapNode node = nodes.get(id);
+			String rowName = name+" row "+r+" ('"+node.getLabel()+"')";
+			TreeMapNode parent = node.getParent();
+
+			check(data.getInt(values[0]+4*r) == id, rowName+": id");
+			if (parent == null)
+			{
+				check(isValid(data, validity[1], r) == false, rowName+": root has no parent");
+			}
+			else
+			{
+				check(isValid(data, validity[1], r) && (nodes.get(data.getInt(values[1]+4*r)) == parent), rowName+": parent id");
+			}
+			check(data.getInt(values[2]+4*r) == node.getLevel(), rowName+": level");
+
+			int start = data.getInt(offsets[3]+4*r);
+			int end = data.getInt(offsets[3]+4*r+4);
+			byte[] label = new byte[Math.max(0, end-start)];
+			for (int i=0; i<label.length; i++)
+			{
+				label[i] = data.get(values[3]+start+i);
+			}
+			check(new String(label, StandardCharsets.UTF_8).equals(node.getLabel()), rowName+": label");
+			check(data.getDouble(values[4]+8*r) == node.getAccumSize(), rowName+": size");
+
+			Float colour = node.getColourValue();
+			checkDouble(data, validity[5], values[5], r, (colour == null) ? null : Double.valueOf(colour.doubleValue()), rowName+": colour");
+
+			Rectangle2D rect = node.getRectangle();
+			checkDouble(data, validity[6], values[6], r, (rect == null) ? null : Double.valueOf(rect.getX()), rowName+": x");
+			checkDouble(data, validity[7], values[7], r, (rect == null) ? null : Double.valueOf(rect.getY()), rowName+": y");
+			checkDouble(data, validity[8], values[8], r, (rect == null) ? null : Double.valueOf(rect.getWidth()), rowName+": w");
+			checkDouble(data, validity[9], values[9], r, (rect == null) ? null : Double.valueOf(rect.getHeight()), rowName+": h");
+
+			Point2D geoCentre = findGeoCentre(node);
+			checkDouble(data, validity[10], values[10], r, (geoCentre == null) ? null : Double.valueOf(geoCentre.getX()-rect.getCenterX()), rowName+": dx");
+			checkDouble(data, validity[11], values[11], r, (geoCentre == null) ? null : Double.valueOf(geoCentre.getY()-rect.getCenterY()), rowName+": dy");
+		}
+		return (numFailures == numFailuresBefore) ? numRows : -1;
+	}
+
+	/** Checks that the given row of a floating point column holds the expected value.
+	 *  @param data Contents of the file.
+	 *  @param validity Position of the column's validity bitmap, or -1 if all values are present.
+	 *  @param values Position of the column's values.
+	 *  @param row Row within the record batch.
+	 *  @param expected Expected value, or null if the value should be missing.
+	 *  @param description Description of the value.
+	 */
+	private void checkDouble(ByteBuffer data, int validity, int values, int row, Double expected, String description)
+	{
+		boolean isValid = isValid(data, validity, row);
+		if (expected == null)
+		{
+			check(isValid == false, description+" is null");
+		}
+		else
+		{
+			check(isValid && (Math.abs(data.getDouble(values+8*row)-expected.doubleValue()) <= 1e-9), description);
+		}
+	}
+
+	/** Reports whether the given row is marked as present in a validity bitmap.
+	 *  @param data Contents of the file.
+	 *  @param validity Position of the validity bitmap, or -1 if all values are present.
+	 *  @param row Row within the record batch.
+	 *  @return True if the value in the row is present.
+	 */
+	private static boolean isValid(ByteBuffer data, int validity, int row)
+	{
+		return (validity < 0) || ((data.get(validity+(row >> 3)) & (1 << (row & 7))) != 0);
+	}
+
+	/** Finds the location of the given node transformed into the rectangle of its parent, scaled by the extent of the
+	 *  locations of the parent's children, which is the end of the displacement vector drawn from its rectangle.
+	 *  @param node Node whose transformed location is to be found.
+	 *  @return Transformed location, or null if the node has no rectangle, location or displacement.
+	 */
+	private static Point2D findGeoCentre(TreeMapNode node)
+	{
+		TreeMapNode parent = node.getParent();
+		if ((parent == null) || (parent.getLocation() == null) || (parent.getRectangle() == null) ||
+			(node.getLocation() == null) || (node.getRectangle() == null))
+		{
+			return null;
+		}
+		Rectangle2D.Double extent = null;
+		for (TreeMapNode sibling : parent.getChildren())
+		{
+			Point2D location = sibling.getLocation();
+			if (location == null)
+			{
+				continue;
+			}
+			if (extent == null)
+			{
+				extent = new Rectangle2D.Double(location.getX(), location.getY(), 0, 0);
+			}
+			extent.add(location);
+		}
+		if ((extent.getWidth() <= 0) || (extent.getHeight() <= 0))
+		{
+			return null;
+		}
+		Rectangle2D bounds = parent.getRectangle();
+		Point2D location = node.getLocation();
+		return new Point2D.Double(bounds.getX() + bounds.getWidth()*(location.getX()-extent.getX())/extent.getWidth(),
+								  bounds.getMaxY() - bounds.getHeight()*(location.getY()-extent.getY())/extent.getHeight());
+	}
+
+	/** Builds a small spatial tree with labels that need more than one byte per character in UTF-8 and some
+	 *  nodes without a colour or location.
+	 *  @param isLaidOut True if the tree should be laid out, giving each node a rectangle.
+	 *  @return Root of the tree.
+	 */
+	private static TreeMapNode buildTree(boolean isLaidOut)
+	{
+		TreeMapNode root = new TreeMapNode("Tr\u00e9e \u2603", 0, null, null, new Point2D.Double(0,0));
+		int id = 0;
+		for (int i=0; i<6; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("Branch "+i, i, null, null, (i == 5) ? null : new Point2D.Double(i%3, i/3));
+			root.add(branch);
+			for (int j=0; j<40; j++)
+			{
+				Float colour = (j%3 == 0) ? null : Float.valueOf(j*0.25f);
+				String label = (j%5 == 0) ? "\u00c5rea \"" + id + "\" \ud83c\udf33" : "Leaf "+id;
+				Point2D location = (j%7 == 6) ? null : new Point2D.Double(i%3 + (j%8)/10.0, i/3 + (j/8)/10.0);
+				branch.add(new TreeMapNode(label, j, Float.valueOf(1+(id*7)%13), colour, location));
+				id++;
+			}
+		}
+
+		if (isLaidOut)
+		{
+			TreeMapProperties props = new TreeMapProperties();
+			props.setParameter("width", "400");
+			props.setParameter("height", "300");
+			TreeMappa treeMappa = new TreeMappa(props);
+			treeMappa.setRoot(root);
+			treeMappa.buildTreeMap();
+		}
+		return root;
+	}
+
+	/** Builds a tree with more nodes than fit in a single record batch.
+	 *  @return Root of the tree.
+	 */
+	private static TreeMapNode buildLargeTree()
+	{
+		TreeMapNode root = new TreeMapNode("root");
+		TreeMapNode branch = null;
+		for (int i=0; i<NUM_LARGE_LEAVES; i++)
+		{
+			if (i % 1000 == 0)
+			{
+				branch = new TreeMapNode("Branch "+(i/1000));
+				root.add(branch);
+			}
+			branch.add(new TreeMapNode("Leaf \u00b5"+i, i, Float.valueOf(1+i%17), (i%2 == 0) ? null : Float.valueOf(i), null));
+		}
+		return root;
+	}
+
+	/** Lists the given node and its descendants in breadth-first order, which is the order in which they are numbered.
+	 *  @param root Node to list along with its descendants.
+	 *  @return The node followed by its descendants.
+	 */
+	private static List<TreeMapNode> breadthFirst(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		nodes.add(root);
+		for (int i=0; i<nodes.size(); i++)
+		{
+			nodes.addAll(nodes.get(i).getChildren());
+		}
+		return nodes;
+	}
+
+	/** Records a test failure if the given condition is not met.
+	 *  @param condition Condition that should be true.
+	 *  @param description Description of the condition.
+	 */
+	private void check(boolean condition, String description)
+	{
+		if (condition == false)
+		{
+			fail(description);
+		}
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+
+	// ------------------------------- Nested classes ------------------------------
+
+	/** Reads the FlatBuffer holding the metadata of an Arrow message or footer, checking that every offset lies
+	 *  within the buffer and that every value is aligned to its size relative to the start of the buffer, as a
+	 *  FlatBuffers verifier does.
+	 */
+	private static class FlatBuffer
+	{
+		private ByteBuffer data;
+		private int start;			// Position of the root table offset.
+		private int end;			// Position after the last byte of the buffer.
+
+		/** Creates a reader for the FlatBuffer occupying the given part of the data.
+		 *  @param data Data containing the buffer.
+		 *  @param start Position of the start of the buffer.
+		 *  @param end Position after the last byte of the buffer.
+		 */
+		FlatBuffer(ByteBuffer data, int start, int end)
+		{
+			this.data = data;
+			this.start = start;
+			this.end = end;
+			if ((start < 0) || (end > data.limit()) || (end < start+8))
+			{
+				throw new IllegalStateException("Buffer at "+start+" has invalid size.");
+			}
+		}
+
+		/** Finds the root table of the buffer.
+		 *  @return Position of the root table.
+		 */
+		int root()
+		{
+			return offset(start);
+		}
+
+		/** Finds the position of the given field of the given table.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @param size Size of the field's value in bytes.
+		 *  @return Position of the field, or -1 if the field is not present.
+		 */
+		int field(int table, int field, int size)
+		{
+			checkPosition(table, 4);
+			int vtable = table - data.getInt(table);
+			checkPosition(vtable, 2);
+			int vtableSize = data.getShort(vtable);
+			int tableSize = data.getShort(vtable+2);
+			checkPosition(vtable+vtableSize-2, 2);
+			checkPosition(table+tableSize-1, 1);
+			if (4+2*field >= vtableSize)
+			{
+				return -1;
+			}
+			int fieldOffset = data.getShort(vtable+4+2*field);
+			if (fieldOffset == 0)
+			{
+				return -1;
+			}
+			if (fieldOffset+size > tableSize)
+			{
+				throw new IllegalStateException("Field "+field+" of table at "+table+" lies outside the table.");
+			}
+			checkPosition(table+fieldOffset, size);
+			return table+fieldOffset;
+		}
+
+		/** Reports the value of the given unsigned byte field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field, or 0 if not present.
+		 */
+		int getUByte(int table, int field)
+		{
+			int pos = field(table, field, 1);
+			return (pos < 0) ? 0 : data.get(pos) & 0xff;
+		}
+
+		/** Reports the value of the given short field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field, or 0 if not present.
+		 */
+		int getShort(int table, int field)
+		{
+			int pos = field(table, field, 2);
+			return (pos < 0) ? 0 : data.getShort(pos);
+		}
+
+		/** Reports the value of the given int field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field, or 0 if not present.
+		 */
+		int getInt(int table, int field)
+		{
+			int pos = field(table, field, 4);
+			return (pos < 0) ? 0 : data.getInt(pos);
+		}
+
+		/** Reports the value of the given long field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field, or 0 if not present.
+		 */
+		long getLong(int table, int field)
+		{
+			int pos = field(table, field, 8);
+			return (pos < 0) ? 0 : data.getLong(pos);
+		}
+
+		/** Finds the table referred to by the given field.
+		 *  @param table Position of the table holding the field.
+		 *  @param field Index of the field.
+		 *  @return Position of the referenced table.
+		 */
+		int getTable(int table, int field)
+		{
+			return offset(required(table, field));
+		}
+
+		/** Reports the value of the given string field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field.
+		 */
+		String getString(int table, int field)
+		{
+			int vector = getVector(table, field, 1);
+			int length = data.getInt(vector);
+			checkPosition(vector+4+length, 1);
+			if (data.get(vector+4+length) != 0)
+			{
+				throw new IllegalStateException("String at "+vector+" is not terminated.");
+			}
+			byte[] text = new byte[length];
+			for (int i=0; i<length; i++)
+			{
+				text[i] = data.get(vector+4+i);
+			}
+			return new String(text, StandardCharsets.UTF_8);
+		}
+
+		/** Finds the tables referred to by the given vector field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Positions of the tables in the vector.
+		 */
+		int[] getTables(int table, int field)
+		{
+			int vector = getVector(table, field, 4);
+			int[] tables = new int[data.getInt(vector)];
+			for (int i=0; i<tables.length; i++)
+			{
+				tables[i] = offset(vector+4+4*i);
+			}
+			return tables;
+		}
+
+		/** Finds the given vector field, checking its elements lie within the buffer and are aligned to their size.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @param elementSize Size of each element of the vector in bytes, which is also their alignment.
+		 *  @return Position of the vector's length, which is followed by its elements.
+		 */
+		int getVector(int table, int field, int elementSize)
+		{
+			int vector = offset(required(table, field));
+			int length = data.getInt(vector);
+			checkPosition(vector+4, Math.min(elementSize, 8));
+			if (length > 0)
+			{
+				checkPosition(vector+4+(length*elementSize)-1, 1);
+			}
+			return vector;
+		}
+
+		/** Finds the position of the given field, which must be present.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Position of the field.
+		 */
+		private int required(int table, int field)
+		{
+			int pos = field(table, field, 4);
+			if (pos < 0)
+			{
+				throw new IllegalStateException("Field "+field+" of table at "+table+" is missing.");
+			}
+			return pos;
+		}
+
+		/** Follows the offset stored at the given position.
+		 *  @param pos Position of the offset.
+		 *  @return Position referred to by the offset.
+		 */
+		private int offset(int pos)
+		{
+			checkPosition(pos, 4);
+			int target = pos + data.getInt(pos);
+			checkPosition(target, 4);
+			return target;
+		}
+
+		/** Checks that the given position lies within the buffer and is aligned relative to its start.
+		 *  @param pos Position to check.
+		 *  @param alignment Required alignment in bytes.
+		 */
+		private void checkPosition(int pos, int alignment)
+		{
+			if ((pos < start) || (pos >= end))
+			{
+				throw new IllegalStateException("Position "+pos+" lies outside buffer at "+start+".");
+			}
+			if ((pos-start) % alignment != 0)
+			{
+				throw new IllegalStateException("Value at "+pos+" is not aligned to "+alignment+" bytes relative to buffer at "+start+".");
+			}
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gicentre.io.FlatGeobufWriter;
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests FlatGeobuf output by reading it back. The FlatBuffers in the file are read with the same
+ *  checks a FlatBuffers verifier makes, including the alignment of every value relative to the
+ *  start of its size-prefixed buffer, before the features are compared with the tree they describe.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class FlatGeobufTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+	private static final String[] COLUMN_NAMES = {"TreemapID", "Label", "Size", "Colour", "Depth", "Leaf"};
+	private static final int NODE_BYTES = 40;		// Size of each spatial index node.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		FlatGeobufTest test = new FlatGeobufTest();
+		try
+		{
+			test.testRoundTrip();
+		}
+		catch (IOException e)
+		{
+			test.fail("problem reading FlatGeobuf file: "+e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			test.fail("invalid FlatGeobuf file: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" FlatGeobuf test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All FlatGeobuf tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Writes a treemap as FlatGeobuf and checks the file describes the same nodes.
+	 *  @throws IOException If the file cannot be written or read.
+	 */
+	private void testRoundTrip() throws IOException
+	{
+		TreeMapNode root = buildTree();
+		File file = File.createTempFile("treemappa", ".fgb");
+		file.deleteOnExit();
+		if (FlatGeobufWriter.writeNodes(root, file.getAbsolutePath()) == false)
+		{
+			fail("FlatGeobuf file could not be written.");
+			return;
+		}
+
+		List<TreeMapNode> nodes = breadthFirst(root);
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i=0; i<MAGIC.length; i++)
+		{
+			check(data.get(i) == MAGIC[i], "magic number");
+		}
+
+		// Header.
+		FlatBuffer header = new FlatBuffer(data, MAGIC.length);
+		int headerTable = header.root();
+		check(header.getUByte(headerTable, 2, 0) == 3, "geometry type is polygon");
+		check(header.getULong(headerTable, 8) == nodes.size(), "features count");
+		int indexNodeSize = header.getUShort(headerTable, 9, 16);
+		double[] envelope = header.getDoubles(headerTable, 1);
+		check(envelope.length == 4, "envelope has four values");
+
+		int[] columns = header.getTables(headerTable, 7);
+		check(columns.length == COLUMN_NAMES.length, "number of columns");
+		for (int i=0; i<Math.min(columns.length, COLUMN_NAMES.length); i++)
+		{
+			check(COLUMN_NAMES[i].equals(header.getString(columns[i], 0)), "name of column "+i);
+		}
+
+		// Spatial index, whose leaves hold the bounds and positions of the features in the order they are stored.
+		int numIndexNodes = numIndexNodes(nodes.size(), indexNodeSize);
+		int indexStart = header.end();
+		int featuresStart = indexStart + numIndexNodes*NODE_BYTES;
+		int firstLeaf = numIndexNodes-nodes.size();
+		check((data.getDouble(indexStart) >= envelope[0]) && (data.getDouble(indexStart+8) >= envelope[1]) &&
+			  (data.getDouble(indexStart+16) <= envelope[2]) && (data.getDouble(indexStart+24) <= envelope[3]),
+			  "index root bounds lie within envelope");
+
+		// Features.
+		boolean[] found = new boolean[nodes.size()];
+		int pos = featuresStart;
+		for (int f=0; f<nodes.size(); f++)
+		{
+			int leaf = indexStart + (firstLeaf+f)*NODE_BYTES;
+			check(data.getLong(leaf+32) == pos-featuresStart, "index offset of feature "+f);
+
+			FlatBuffer feature = new FlatBuffer(data, pos);
+			int featureTable = feature.root();
+			int geometry = feature.getTable(featureTable, 0);
+			double[] xy = feature.getDoubles(geometry, 1);
+			check(xy.length == 10, "feature "+f+" is a single closed rectangle");
+			if (xy.length == 10)
+			{
+				check((xy[0] == xy[8]) && (xy[1] == xy[9]), "feature "+f+" ring is closed");
+				check((xy[0] == data.getDouble(leaf)) && (xy[1] == data.getDouble(leaf+8)) &&
+					  (xy[4] == data.getDouble(leaf+16)) && (xy[5] == data.getDouble(leaf+24)), "index bounds of feature "+f);
+				check((xy[0] >= envelope[0]) && (xy[1] >= envelope[1]) && (xy[4] <= envelope[2]) && (xy[5] <= envelope[3]),
+					  "feature "+f+" lies within envelope");
+			}
+
+			ByteBuffer props = ByteBuffer.wrap(feature.getBytes(featureTable, 1)).order(ByteOrder.LITTLE_ENDIAN);
+			int id = -1;
+			String label = null;
+			double size = Double.NaN;
+			Double colour = null;
+			int depth = -1;
+			int isLeaf = -1;
+			while (props.hasRemaining())
+			{
+				int column = props.getShort() & 0xffff;
+				switch (column)
+				{
+					case 0: id = props.getInt(); break;
+					case 1: byte[] text = new byte[props.getInt()]; props.get(text); label = new String(text, StandardCharsets.UTF_8); break;
+					case 2: size = props.getDouble(); break;
+					case 3: colour = Double.valueOf(props.getDouble()); break;
+					case 4: depth = props.getInt(); break;
+					case 5: isLeaf = props.get(); break;
+					default: throw new IllegalStateException("Unknown column "+column);
+				}
+			}
+
+			if ((id < 1) || (id > nodes.size()) || found[id-1])
+			{
+				fail("feature "+f+" has unexpected TreemapID "+id);
+			}
+			else
+			{
+				found[id-1] = true;
+				TreeMapNode node = nodes.get(id-1);
+				check(node.getLabel().equals(label), "label of node "+id);
+				check(size == node.getAccumSize(), "size of node "+id);
+				check(depth == node.getLevel(), "depth of node "+id);
+				check(isLeaf == (node.isLeaf() ? 1 : 0), "leaf flag of node "+id);
+				check((colour == null) == (node.getColourValue() == null), "presence of colour of node "+id);
+				if (colour != null)
+				{
+					check(colour.floatValue() == node.getColourValue().floatValue(), "colour of node "+id);
+				}
+			}
+			pos = feature.end();
+		}
+		check(pos == data.limit(), "file ends after last feature");
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Builds a small spatial treemap with labels that need more than one byte per character in UTF-8.
+	 *  @return Root of the laid out tree.
+	 */
+	private static TreeMapNode buildTree()
+	{
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "400");
+		props.setParameter("height", "300");
+		TreeMappa treeMappa = new TreeMappa(props);
+
+		TreeMapNode root = new TreeMapNode("Tr\u00e9e \u2603", 0, null, null, new Point2D.Double(0,0));
+		int id = 0;
+		for (int i=0; i<6; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("Branch "+i, i, null, null, new Point2D.Double(i%3, i/3));
+			root.add(branch);
+			for (int j=0; j<40; j++)
+			{
+				Float colour = (j%3 == 0) ? null : Float.valueOf(j*0.25f);
+				String label = (j%5 == 0) ? "\u00c5rea \"" + id + "\" \ud83c\udf33" : "Leaf "+id;
+				branch.add(new TreeMapNode(label, j, Float.valueOf(1+(id*7)%13), colour,
+										   new Point2D.Double(i%3 + (j%8)/10.0, i/3 + (j/8)/10.0)));
+				id++;
+			}
+		}
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+		return root;
+	}
+
+	/** Lists the descendants of the given node in breadth-first order, which is the order in which they are numbered.
+	 *  @param root Node whose descendants are to be listed.
+	 *  @return Descendants of the node.
+	 */
+	private static List<TreeMapNode> breadthFirst(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>(root.getChildren());
+		for (int i=0; i<nodes.size(); i++)
+		{
+			nodes.addAll(nodes.get(i).getChildren());
+		}
+		return nodes;
+	}
+
+	/** Reports the number of nodes in a packed Hilbert R-tree holding the given number of items.
+	 *  @param numItems Number of items in the tree.
+	 *  @param nodeSize Number of children of each node.
+	 *  @return Total number of nodes in the tree.
+	 */
+	private static int numIndexNodes(int numItems, int nodeSize)
+	{
+		int n = numItems;
+		int numNodes = n;
+		do
+		{
+			n = (n + nodeSize - 1)/nodeSize;
+			numNodes += n;
+		}
+		while (n != 1);
+		return numNodes;
+	}
+
+	/** Records a test failure if the given condition is not met.
+	 *  @param condition Condition that should be true.
+	 *  @param description Description of the condition.
+	 */
+	private void check(boolean condition, String description)
+	{
+		if (condition == false)
+		{
+			fail(description);
+		}
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+
+	// ------------------------------- Nested classes ------------------------------
+
+	/** Reads a size-prefixed FlatBuffer, checking that every offset lies within the buffer and that every value
+	 *  is aligned to its size relative to the start of the size prefix, as a FlatBuffers verifier does.
+	 */
+	private static class FlatBuffer
+	{
+		private ByteBuffer data;
+		private int start;			// Position of the size prefix.
+		private int end;			// Position after the last byte of the buffer.
+
+		/** Creates a reader for the size-prefixed FlatBuffer at the given position.
+		 *  @param data Data containing the buffer.
+		 *  @param start Position of the buffer's size prefix.
+		 */
+		FlatBuffer(ByteBuffer data, int start)
+		{
+			this.data = data;
+			this.start = start;
+			this.end = start+4+data.getInt(start);
+			if ((end > data.limit()) || (end < start+8))
+			{
+				throw new IllegalStateException("Buffer at "+start+" has invalid size.");
+			}
+		}
+
+		/** Reports the position following the buffer.
+		 *  @return Position after the last byte of the buffer.
+		 */
+		int end()
+		{
+			return end;
+		}
+
+		/** Finds the root table of the buffer.
+		 *  @return Position of the root table.
+		 */
+		int root()
+		{
+			return offset(start+4);
+		}
+
+		/** Finds the position of the given field of the given table.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @param size Size of the field's value in bytes.
+		 *  @return Position of the field, or -1 if the field is not present.
+		 */
+		int field(int table, int field, int size)
+		{
+			checkPosition(table, 4);
+			int vtable = table - data.getInt(table);
+			checkPosition(vtable, 2);
+			int vtableSize = data.getShort(vtable);
+			int tableSize = data.getShort(vtable+2);
+			checkPosition(vtable+vtableSize-2, 2);
+			checkPosition(table+tableSize-1, 1);
+			if (4+2*field >= vtableSize)
+			{
+				return -1;
+			}
+			int fieldOffset = data.getShort(vtable+4+2*field);
+			if (fieldOffset == 0)
+			{
+				return -1;
+			}
+			if (fieldOffset+size > tableSize)
+			{
+				throw new IllegalStateException("Field "+field+" of table at "+table+" lies outside the table.");
+			}
+			checkPosition(table+fieldOffset, size);
+			return table+fieldOffset;
+		}
+
+		/** Reports the value of the given unsigned byte field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @param defaultValue Value of the field if not present.
+		 *  @return Value of the field.
+		 */
+		int getUByte(int table, int field, int defaultValue)
+		{
+			int pos = field(table, field, 1);
+			return (pos < 0) ? defaultValue : data.get(pos) & 0xff;
+		}
+
+		/** Reports the value of the given unsigned short field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @param defaultValue Value of the field if not present.
+		 *  @return Value of the field.
+		 */
+		int getUShort(int table, int field, int defaultValue)
+		{
+			int pos = field(table, field, 2);
+			return (pos < 0) ? defaultValue : data.getShort(pos) & 0xffff;
+		}
+
+		/** Reports the value of the given unsigned long field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field, or 0 if not present.
+		 */
+		long getULong(int table, int field)
+		{
+			int pos = field(table, field, 8);
+			return (pos < 0) ? 0 : data.getLong(pos);
+		}
+
+		/** Finds the table referred to by the given field.
+		 *  @param table Position of the table holding the field.
+		 *  @param field Index of the field.
+		 *  @return Position of the referenced table.
+		 */
+		int getTable(int table, int field)
+		{
+			return offset(required(table, field));
+		}
+
+		/** Reports the value of the given string field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Value of the field.
+		 */
+		String getString(int table, int field)
+		{
+			int vector = vector(required(table, field), 1);
+			int length = data.getInt(vector);
+			checkPosition(vector+4+length, 1);
+			if (data.get(vector+4+length) != 0)
+			{
+				throw new IllegalStateException("String at "+vector+" is not terminated.");
+			}
+			byte[] text = new byte[length];
+			for (int i=0; i<length; i++)
+			{
+				text[i] = data.get(vector+4+i);
+			}
+			return new String(text, StandardCharsets.UTF_8);
+		}
+
+		/** Reports the values of the given byte vector field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Values of the vector.
+		 */
+		byte[] getBytes(int table, int field)
+		{
+			int vector = vector(required(table, field), 1);
+			byte[] values = new byte[data.getInt(vector)];
+			for (int i=0; i<values.length; i++)
+			{
+				values[i] = data.get(vector+4+i);
+			}
+			return values;
+		}
+
+		/** Reports the values of the given double vector field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Values of the vector.
+		 */
+		double[] getDoubles(int table, int field)
+		{
+			int vector = vector(required(table, field), 8);
+			double[] values = new double[data.getInt(vector)];
+			for (int i=0; i<values.length; i++)
+			{
+				values[i] = data.getDouble(vector+4+8*i);
+			}
+			return values;
+		}
+
+		/** Finds the tables referred to by the given vector field.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Positions of the tables in the vector.
+		 */
+		int[] getTables(int table, int field)
+		{
+			int vector = vector(required(table, field), 4);
+			int[] tables = new int[data.getInt(vector)];
+			for (int i=0; i<tables.length; i++)
+			{
+				tables[i] = offset(vector+4+4*i);
+			}
+			return tables;
+		}
+
+		/** Finds the position of the given field, which must be present.
+		 *  @param table Position of the table.
+		 *  @param field Index of the field.
+		 *  @return Position of the field.
+		 */
+		private int required(int table, int field)
+		{
+			int pos = field(table, field, 4);
+			if (pos < 0)
+			{
+				throw new IllegalStateException("Field "+field+" of table at "+table+" is missing.");
+			}
+			return pos;
+		}
+
+		/** Follows the offset stored at the given position.
+		 *  @param pos Position of the offset.
+		 *  @return Position referred to by the offset.
+		 */
+		private int offset(int pos)
+		{
+			checkPosition(pos, 4);
+			int target = pos + data.getInt(pos);
+			checkPosition(target, 4);
+			return target;
+		}
+
+		/** Follows the offset to a vector stored at the given position, checking the alignment of its elements.
+		 *  @param pos Position of the offset.
+		 *  @param elementSize Size of each element of the vector in bytes.
+		 *  @return Position of the vector's length.
+		 */
+		private int vector(int pos, int elementSize)
+		{
+			int vector = offset(pos);
+			int length = data.getInt(vector);
+			checkPosition(vector+4, elementSize);
+			if (length > 0)
+			{
+				checkPosition(vector+4+(length*elementSize)-1, 1);
+			}
+			return vector;
+		}
+
+		/** Checks that the given position lies within the buffer and is aligned relative to its size prefix.
+		 *  @param pos Position to check.
+		 *  @param alignment Required alignment in bytes.
+		 */
+		private void checkPosition(int pos, int alignment)
+		{
+			if ((pos < start+4) || (pos >= end))
+			{
+				throw new IllegalStateException("Position "+pos+" lies outside buffer at "+start+".");
+			}
+			if ((pos-start) % alignment != 0)
+			{
+				throw new IllegalStateException("Value at "+pos+" is not aligned to "+alignment+" bytes relative to buffer at "+start+".");
+			}
+		}
+	}
+}
@@ -0,0 +1,608 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.gicentre.io.GeoJSONWriter;
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests GeoJSON output by reading it back. The file is decoded as strict UTF-8 and parsed
+ *  with a parser that accepts only the JSON grammar of RFC 8259, before each feature is
+ *  compared with the node it describes.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class GeoJSONTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final double MAX_ERROR = 1e-9;		// Largest coordinate error relative to the size of the treemap.
+	private static final int LARGE_TREE_LEAVES = 5000;	// Enough features for the text to be written in several parts.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		GeoJSONTest test = new GeoJSONTest();
+		try
+		{
+			test.testRoundTrip("small tree", buildTree(new Random(1), 6, 40, false));
+			test.testRoundTrip("spatial tree", buildTree(new Random(2), 6, 40, true));
+			test.testRoundTrip("large tree", buildTree(new Random(3), 10, LARGE_TREE_LEAVES/10, true));
+			test.testChildlessRoot();
+		}
+		catch (IOException e)
+		{
+			test.fail("problem reading GeoJSON file: "+e);
+		}
+		catch (RuntimeException e)
+		{
+			test.fail("invalid GeoJSON file: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" GeoJSON test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All GeoJSON tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Writes the given tree as GeoJSON and checks that each feature read back matches its node.
+	 *  @param name Description of the tree being tested.
+	 *  @param root Root of the laid out tree to write.
+	 *  @throws IOException If the file cannot be written or read.
+	 */
+	private void testRoundTrip(String name, TreeMapNode root) throws IOException
+	{
+		File file = File.createTempFile("treemappa", ".geojson");
+		file.deleteOnExit();
+		if (GeoJSONWriter.writeNodes(root, file.getAbsolutePath()) == false)
+		{
+			fail(name+": GeoJSON file could not be written.");
+			return;
+		}
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		file.delete();
+
+		String text;
+		try
+		{
+			text = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+		}
+		catch (CharacterCodingException e)
+		{
+			fail(name+": file is not valid UTF-8.");
+			return;
+		}
+
+		Map<?,?> collection = asObject(new JSONParser(text).parse(), name+": feature collection");
+		check("FeatureCollection".equals(collection.get("type")), name+": type of feature collection");
+
+		Rectangle2D bounds = root.getRectangle();
+		Rectangle2D geoBounds = root.calcGeoBounds();
+		double tolerance = MAX_ERROR*Math.max(geoBounds.getWidth(), geoBounds.getHeight());
+		List<?> bbox = asArray(collection.get("bbox"), name+": bbox");
+		check((bbox.size() == 4) && (Math.abs(asNumber(bbox.get(0), "bbox")-geoBounds.getMinX()) <= tolerance) &&
+			  (Math.abs(asNumber(bbox.get(1), "bbox")-geoBounds.getMinY()) <= tolerance) &&
+			  (Math.abs(asNumber(bbox.get(2), "bbox")-geoBounds.getMaxX()) <= tolerance) &&
+			  (Math.abs(asNumber(bbox.get(3), "bbox")-geoBounds.getMaxY()) <= tolerance), name+": bbox "+bbox+" matches "+geoBounds);
+
+		List<TreeMapNode> nodes = breadthFirst(root);
+		List<?> features = asArray(collection.get("features"), name+": features");
+		if (features.size() != nodes.size())
+		{
+			fail(name+": read "+features.size()+" features rather than "+nodes.size()+".");
+			return;
+		}
+
+		int numFailuresBefore = numFailures;
+		for (int i=0; (i<nodes.size()) && (numFailures == numFailuresBefore); i++)
+		{
+			TreeMapNode node = nodes.get(i);
+			String description = name+": feature "+i+" ('"+node.getLabel()+"')";
+			Map<?,?> feature = asObject(features.get(i), description);
+			check("Feature".equals(feature.get("type")), description+" type");
+
+			Map<?,?> properties = asObject(feature.get("properties"), description+" properties");
+			check(asNumber(properties.get("TreemapID"), description+" ID") == i+1, description+" ID");
+			check(node.getLabel().equals(properties.get("Label")), description+" label "+properties.get("Label"));
+			check(asNumber(properties.get("Size"), description+" size") == node.getAccumSize(), description+" size");
+			if (node.getColourValue() == null)
+			{
+				check(properties.containsKey("Colour") && (properties.get("Colour") == null), description+" colour is null");
+			}
+			else
+			{
+				check((float)asNumber(properties.get("Colour"), description+" colour") == node.getColourValue().floatValue(), description+" colour");
+			}
+			check(asNumber(properties.get("Depth"), description+" depth") == node.getLevel(), description+" depth");
+			check(Boolean.valueOf(node.isLeaf()).equals(properties.get("Leaf")), description+" leaf flag");
+
+			// Rectangles are scaled to the geographic bounds and flipped so that y increases northwards.
+			Rectangle2D rect = node.getRectangle();
+			double minX = geoBounds.getX() + geoBounds.getWidth()*(rect.getMinX()-bounds.getX())/bounds.getWidth();
+			double maxX = geoBounds.getX() + geoBounds.getWidth()*(rect.getMaxX()-bounds.getX())/bounds.getWidth();
+			double minY = geoBounds.getMaxY() - geoBounds.getHeight()*(rect.getMaxY()-bounds.getY())/bounds.getHeight();
+			double maxY = geoBounds.getMaxY() - geoBounds.getHeight()*(rect.getMinY()-bounds.getY())/bounds.getHeight();
+			checkPolygon(description, asObject(feature.get("geometry"), description+" geometry"), minX, minY, maxX, maxY, tolerance);
+		}
+	}
+
+	/** Checks that a tree whose root has no children is not written.
+	 *  @throws IOException If the temporary file cannot be created.
+	 */
+	private void testChildlessRoot() throws IOException
+	{
+		File file = File.createTempFile("treemappa", ".geojson");
+		file.deleteOnExit();
+		TreeMapNode root = new TreeMapNode("root");
+		if (GeoJSONWriter.writeNodes(root, file.getAbsolutePath()))
+		{
+			fail("childless root: GeoJSON written for a tree with no nodes below the root.");
+		}
+		file.delete();
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Checks that the given geometry is a rectangular polygon with a single closed anticlockwise ring.
+	 *  @param description Description of the feature holding the geometry.
+	 *  @param geometry Geometry to check.
+	 *  @param minX Expected minimum x coordinate.
+	 *  @param minY Expected minimum y coordinate.
+	 *  @param maxX Expected maximum x coordinate.
+	 *  @param maxY Expected maximum y coordinate.
+	 *  @param tolerance Largest allowed error in each coordinate.
+	 */
+	private void checkPolygon(String description, Map<?,?> geometry, double minX, double minY, double maxX, double maxY, double tolerance)
+	{
+		check("Polygon".equals(geometry.get("type")), description+" geometry type");
+		List<?> rings = asArray(geometry.get("coordinates"), description+" coordinates");
+		if (rings.size() != 1)
+		{
+			fail(description+" has "+rings.size()+" rings rather than 1.");
+			return;
+		}
+		List<?> ring = asArray(rings.get(0), description+" ring");
+		if (ring.size() != 5)
+		{
+			fail(description+" ring has "+ring.size()+" positions rather than 5.");
+			return;
+		}
+
+		double[] x = new double[5];
+		double[] y = new double[5];
+		double area = 0;
+		for (int i=0; i<5; i++)
+		{
+			List<?> position = asArray(ring.get(i), description+" position");
+			check(position.size() == 2, description+" position has two coordinates");
+			x[i] = asNumber(position.get(0), description+" x");
+			y[i] = asNumber(position.get(1), description+" y");
+			check((Math.abs(x[i]-minX) <= tolerance) || (Math.abs(x[i]-maxX) <= tolerance), description+" x coordinate "+x[i]+" is "+minX+" or "+maxX);
+			check((Math.abs(y[i]-minY) <= tolerance) || (Math.abs(y[i]-maxY) <= tolerance), description+" y coordinate "+y[i]+" is "+minY+" or "+maxY);
+			if (i > 0)
+			{
+				area += x[i-1]*y[i] - x[i]*y[i-1];
+			}
+		}
+		check((x[0] == x[4]) && (y[0] == y[4]), description+" ring is closed");
+		check(area > 0, description+" ring is anticlockwise");
+	}
+
+	/** Builds and lays out a two-level tree with random sizes and colours, some of which are missing, and labels
+	 *  that include characters that must be escaped in JSON or need more than one byte in UTF-8.
+	 *  @param rand Random number generator used to create the leaves.
+	 *  @param numBranches Number of branches below the root.
+	 *  @param numLeaves Number of leaves in each branch.
+	 *  @param isSpatial Leaves are given random locations if true.
+	 *  @return Root of the laid out tree.
+	 */
+	private static TreeMapNode buildTree(Random rand, int numBranches, int numLeaves, boolean isSpatial)
+	{
+		String[] labelParts = {"leaf", "\"quoted\"", "back\\slash", "new\nline", "tab\t", "bell\u0007",
+							   "\u00c5rea", "\u2603", "\ud83c\udf33", "/"};
+		TreeMapNode root = new TreeMapNode("root");
+		for (int i=0; i<numBranches; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("branch "+i);
+			root.add(branch);
+			for (int j=0; j<numLeaves; j++)
+			{
+				String label = labelParts[rand.nextInt(labelParts.length)]+" "+i+"."+j;
+				Float colour = (rand.nextInt(5) == 0) ? null : Float.valueOf(rand.nextInt(10000)/7f);
+				Point2D location = isSpatial ? new Point2D.Double(rand.nextDouble()*360-180, rand.nextDouble()*180-90) : null;
+				branch.add(new TreeMapNode(label, j, Float.valueOf(1+rand.nextInt(100)/3f), colour, location));
+			}
+		}
+
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "400");
+		props.setParameter("height", "300");
+		TreeMappa treeMappa = new TreeMappa(props);
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+		return root;
+	}
+
+	/** Provides the nodes below the given root in breadth-first order.
+	 *  @param root Root of the tree.
+	 *  @return Descendants of the root in breadth-first order.
+	 */
+	private static List<TreeMapNode> breadthFirst(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>(root.getChildren());
+		for (int i=0; i<nodes.size(); i++)
+		{
+			nodes.addAll(nodes.get(i).getChildren());
+		}
+		return nodes;
+	}
+
+	/** Provides the given JSON value as an object.
+	 *  @param value Value that should be an object.
+	 *  @param description Description of the value.
+	 *  @return Members of the object.
+	 */
+	private static Map<?,?> asObject(Object value, String description)
+	{
+		if ((value instanceof Map) == false)
+		{
+			throw new IllegalStateException(description+" is not an object.");
+		}
+		return (Map<?,?>)value;
+	}
+
+	/** Provides the given JSON value as an array.
+	 *  @param value Value that should be an array.
+	 *  @param description Description of the value.
+	 *  @return Elements of the array.
+	 */
+	private static List<?> asArray(Object value, String description)
+	{
+		if ((value instanceof List) == false)
+		{
+			throw new IllegalStateException(description+" is not an array.");
+		}
+		return (List<?>)value;
+	}
+
+	/** Provides the given JSON value as a number.
+	 *  @param value Value that should be a number.
+	 *  @param description Description of the value.
+	 *  @return Value of the number.
+	 */
+	private static double asNumber(Object value, String description)
+	{
+		if ((value instanceof Double) == false)
+		{
+			throw new IllegalStateException(description+" is not a number.");
+		}
+		return ((Double)value).doubleValue();
+	}
+
+	/** Records a test failure if the given condition is not met.
+	 *  @param condition Condition that should be true.
+	 *  @param description Description of the condition.
+	 */
+	private void check(boolean condition, String description)
+	{
+		if (condition == false)
+		{
+			fail(description);
+		}
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+
+	// ------------------------------- Nested classes ------------------------------
+
+	/** Parses JSON text, accepting only the grammar of RFC 8259. Objects are read as maps, arrays as lists,
+	 *  numbers as doubles, <code>true</code> and <code>false</code> as booleans and <code>null</code> as null.
+	 */
+	private static class JSONParser
+	{
+		private String text;
+		private int pos;
+
+		/** Creates a parser for the given text.
+		 *  @param text JSON text to parse.
+		 */
+		JSONParser(String text)
+		{
+			this.text = text;
+			this.pos = 0;
+		}
+
+		/** Parses the text, which must hold a single value surrounded only by whitespace.
+		 *  @return Value held in the text.
+		 */
+		Object parse()
+		{
+			Object value = parseValue();
+			skipWhitespace();
+			if (pos != text.length())
+			{
+				throw error("unexpected text after value");
+			}
+			return value;
+		}
+
+		/** Parses the value starting at the current position.
+		 *  @return Value parsed.
+		 */
+		private Object parseValue()
+		{
+			skipWhitespace();
+			if (pos >= text.length())
+			{
+				throw error("missing value");
+			}
+			char c = text.charAt(pos);
+			if (c == '{')
+			{
+				return parseObject();
+			}
+			if (c == '[')
+			{
+				return parseArray();
+			}
+			if (c == '"')
+			{
+				return parseString();
+			}
+			if (text.startsWith("true", pos))
+			{
+				pos += 4;
+				return Boolean.TRUE;
+			}
+			if (text.startsWith("false", pos))
+			{
+				pos += 5;
+				return Boolean.FALSE;
+			}
+			if (text.startsWith("null", pos))
+			{
+				pos += 4;
+				return null;
+			}
+			return parseNumber();
+		}
+
+		/** Parses the object starting at the current position, whose member names must be unique.
+		 *  @return Members of the object in the order they appear.
+		 */
+		private Map<String,Object> parseObject()
+		{
+			Map<String,Object> members = new LinkedHashMap<String,Object>();
+			pos++;
+			skipWhitespace();
+			if (next() == '}')
+			{
+				pos++;
+				return members;
+			}
+			while (true)
+			{
+				skipWhitespace();
+				if (next() != '"')
+				{
+					throw error("expected member name");
+				}
+				String name = parseString();
+				skipWhitespace();
+				expect(':');
+				if (members.containsKey(name))
+				{
+					throw error("duplicate member '"+name+"'");
+				}
+				members.put(name, parseValue());
+				skipWhitespace();
+				if (next() == '}')
+				{
+					pos++;
+					return members;
+				}
+				expect(',');
+			}
+		}
+
+		/** Parses the array starting at the current position.
+		 *  @return Elements of the array.
+		 */
+		private List<Object> parseArray()
+		{
+			List<Object> elements = new ArrayList<Object>();
+			pos++;
+			skipWhitespace();
+			if (next() == ']')
+			{
+				pos++;
+				return elements;
+			}
+			while (true)
+			{
+				elements.add(parseValue());
+				skipWhitespace();
+				if (next() == ']')
+				{
+					pos++;
+					return elements;
+				}
+				expect(',');
+			}
+		}
+
+		/** Parses the string starting at the current position, rejecting unescaped control characters.
+		 *  @return Text of the string.
+		 */
+		private String parseString()
+		{
+			StringBuilder value = new StringBuilder();
+			pos++;
+			while (true)
+			{
+				char c = next();
+				pos++;
+				if (c == '"')
+				{
+					return value.toString();
+				}
+				if (c < ' ')
+				{
+					throw error("unescaped control character in string");
+				}
+				if (c != '\\')
+				{
+					value.append(c);
+					continue;
+				}
+
+				char escape = next();
+				pos++;
+				switch (escape)
+				{
+					case '"':
+					case '\\':
+					case '/':
+						value.append(escape);
+						break;
+					case 'b':
+						value.append('\b');
+						break;
+					case 'f':
+						value.append('\f');
+						break;
+					case 'n':
+						value.append('\n');
+						break;
+					case 'r':
+						value.append('\r');
+						break;
+					case 't':
+						value.append('\t');
+						break;
+					case 'u':
+						if ((pos+4 > text.length()) || (text.substring(pos, pos+4).matches("[0-9a-fA-F]{4}") == false))
+						{
+							throw error("invalid unicode escape");
+						}
+						value.append((char)Integer.parseInt(text.substring(pos, pos+4), 16));
+						pos += 4;
+						break;
+					default:
+						throw error("invalid escape '\\"+escape+"'");
+				}
+			}
+		}
+
+		/** Parses the number starting at the current position.
+		 *  @return Value of the number.
+		 */
+		private Double parseNumber()
+		{
+			int start = pos;
+			while ((pos < text.length()) && ("+-0123456789.eE".indexOf(text.charAt(pos)) >= 0))
+			{
+				pos++;
+			}
+			String number = text.substring(start, pos);
+			if (number.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?") == false)
+			{
+				pos = start;
+				throw error("invalid value");
+			}
+			return Double.valueOf(number);
+		}
+
+		/** Moves past the given character, which must be the next in the text.
+		 *  @param c Character expected.
+		 */
+		private void expect(char c)
+		{
+			if (next() != c)
+			{
+				throw error("expected '"+c+"'");
+			}
+			pos++;
+		}
+
+		/** Reports the character at the current position.
+		 *  @return Next character in the text.
+		 */
+		private char next()
+		{
+			if (pos >= text.length())
+			{
+				throw error("unexpected end of text");
+			}
+			return text.charAt(pos);
+		}
+
+		/** Moves past any whitespace at the current position.
+		 */
+		private void skipWhitespace()
+		{
+			while ((pos < text.length()) && (" \t\n\r".indexOf(text.charAt(pos)) >= 0))
+			{
+				pos++;
+			}
+		}
+
+		/** Creates an exception describing a problem at the current position.
+		 *  @param problem Description of the problem.
+		 *  @return Exception to throw.
+		 */
+		private IllegalStateException error(String problem)
+		{
+			return new IllegalStateException("JSON "+problem+" at character "+pos+".");
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests the updating of accumulated sizes and mean centres as the sizes and locations of leaves
+ *  are changed. Values updated incrementally should remain close to those found from the leaves
+ *  however many changes are made, and locations already reported should never be changed.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class IncrementalAccumulationTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final int NUM_CHANGES = 200000;		// Number of random changes made to leaves.
+	private static final int CHECK_INTERVAL = 5000;		// Number of changes between comparisons with the leaves.
+	private static final double MAX_ERROR = 1e-9;		// Largest error relative to the range of values.
+	private static final int DEEP_TREE_DEPTH = 50000;	// Depth of tree too deep to be traversed recursively.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		IncrementalAccumulationTest test = new IncrementalAccumulationTest();
+		test.testNewTree();
+		test.testReportedLocationsUnchanged();
+		test.testDrift();
+		test.testDeepTree();
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" accumulation test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All accumulation tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that the accumulated sizes and mean centres of a newly built tree, and of one whose structure has
+	 *  since been changed, are those found from its leaves.
+	 */
+	private void testNewTree()
+	{
+		List<TreeMapNode> leaves = new ArrayList<TreeMapNode>();
+		TreeMapNode root = buildTree(new Random(3), leaves);
+		checkTree("new tree", root);
+
+		// Moving a leaf to another branch leaves the tree waiting to be rebuilt.
+		TreeMapNode leaf = leaves.get(0);
+		TreeMapNode branch = leaves.get(leaves.size()-1).getParent();
+		leaf.getParent().remove(leaf);
+		branch.insert(leaf, 0);
+		layOut(root);
+		checkTree("rebuilt tree", root);
+	}
+
+	/** Checks that moving a leaf moves its ancestors' mean centres without changing the locations
+	 *  previously reported for them.
+	 */
+	private void testReportedLocationsUnchanged()
+	{
+		List<TreeMapNode> leaves = new ArrayList<TreeMapNode>();
+		TreeMapNode root = buildTree(new Random(1), leaves);
+		TreeMapNode leaf = leaves.get(0);
+		TreeMapNode parent = leaf.getParent();
+
+		Point2D rootCentre = root.getLocation();
+		Point2D parentCentre = parent.getLocation();
+		double rootX = rootCentre.getX();
+		double parentX = parentCentre.getX();
+
+		leaf.setLocation(new Point2D.Double(leaf.getLocation().getX()+1000, leaf.getLocation().getY()));
+
+		if ((rootCentre.getX() != rootX) || (parentCentre.getX() != parentX))
+		{
+			fail("moving a leaf changed a previously reported mean centre.");
+		}
+		if ((parent.getLocation().getX() <= parentX) || (root.getLocation().getX() <= rootX))
+		{
+			fail("moving a leaf did not move its ancestors' mean centres.");
+		}
+		checkTree("after one move", root);
+	}
+
+	/** Checks that accumulated sizes and mean centres stay close to those found from the leaves after
+	 *  many random changes to leaf sizes and locations.
+	 */
+	private void testDrift()
+	{
+		Random rand = new Random(2);
+		List<TreeMapNode> leaves = new ArrayList<TreeMapNode>();
+		TreeMapNode root = buildTree(rand, leaves);
+
+		for (int i=1; i<=NUM_CHANGES; i++)
+		{
+			TreeMapNode leaf = leaves.get(rand.nextInt(leaves.size()));
+			if (rand.nextBoolean())
+			{
+				leaf.setSizeValue(Float.valueOf(randomSize(rand)));
+			}
+			else
+			{
+				leaf.setLocation(randomLocation(rand));
+			}
+
+			if (i % CHECK_INTERVAL == 0)
+			{
+				if (checkTree("after "+i+" changes", root) == false)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/** Checks that a change to the deepest leaf of a tree too deep to be traversed recursively reaches the root.
+	 */
+	private void testDeepTree()
+	{
+		// The tree is built upwards from its deepest leaf.
+		TreeMapNode leaf = new TreeMapNode("leaf", null);
+		TreeMapNode root = leaf;
+		for (int i=0; i<DEEP_TREE_DEPTH; i++)
+		{
+			TreeMapNode parent = new TreeMapNode("node "+i, null);
+			parent.add(root);
+			root = parent;
+		}
+
+		try
+		{
+			double size = root.getAccumSize();
+			leaf.setSizeValue(Float.valueOf(5));
+			if ((size != 1) || (root.getAccumSize() != 5))
+			{
+				fail("deep tree: root size "+size+" then "+root.getAccumSize()+" rather than 1 then 5.");
+			}
+
+			leaf.setLocation(new Point2D.Double(3, 4));
+			Point2D centre = root.getLocation();
+			if ((centre == null) || (centre.getX() != 3) || (centre.getY() != 4))
+			{
+				fail("deep tree: root location "+centre+" rather than (3,4).");
+			}
+		}
+		catch (StackOverflowError e)
+		{
+			fail("deep tree: stack overflow when updating a tree of depth "+DEEP_TREE_DEPTH+".");
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Builds a spatial tree with three levels of branches whose leaves have random sizes and locations,
+	 *  and lays it out so that its accumulated values are found.
+	 *  @param rand Random number generator used to create the leaves.
+	 *  @param leaves List to which the leaves of the tree are added.
+	 *  @return Root of the new tree.
+	 */
+	private static TreeMapNode buildTree(Random rand, List<TreeMapNode> leaves)
+	{
+		TreeMapNode root = new TreeMapNode("root", null);
+		for (int i=0; i<5; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("branch "+i, null);
+			root.add(branch);
+			for (int j=0; j<8; j++)
+			{
+				TreeMapNode subBranch = new TreeMapNode("branch "+i+"."+j, null);
+				branch.add(subBranch);
+				for (int k=0; k<25; k++)
+				{
+					TreeMapNode leaf = new TreeMapNode("leaf "+i+"."+j+"."+k, 1, Float.valueOf(randomSize(rand)), null, randomLocation(rand));
+					subBranch.add(leaf);
+					leaves.add(leaf);
+				}
+			}
+		}
+
+		layOut(root);
+		return root;
+	}
+
+	/** Lays out the given tree as a treemap so that its accumulated values are found.
+	 *  @param root Root of the tree to lay out.
+	 */
+	private static void layOut(TreeMapNode root)
+	{
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "400");
+		props.setParameter("height", "300");
+		TreeMappa treeMappa = new TreeMappa(props);
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+	}
+
+	/** Compares the accumulated size and location of every branch with those found from its leaves.
+	 *  @param name Description of the state of the tree being checked.
+	 *  @param root Root of the tree to check.
+	 *  @return True if all values are within the permitted error.
+	 */
+	private boolean checkTree(String name, TreeMapNode root)
+	{
+		int numFailuresBefore = numFailures;
+		checkNode(name, root);
+		return numFailures == numFailuresBefore;
+	}
+
+	/** Compares the accumulated size and location of the given node and its descendants with those found
+	 *  from its leaves.
+	 *  @param name Description of the state of the tree being checked.
+	 *  @param node Node to check.
+	 *  @return Sum of the sizes and locations of the node's children, in the order size, x, y.
+	 */
+	private double[] checkNode(String name, TreeMapNode node)
+	{
+		if (node.isLeaf())
+		{
+			return new double[] {node.getAccumSize(), node.getLocation().getX(), node.getLocation().getY()};
+		}
+
+		double size = 0, sumX = 0, sumY = 0;
+		for (TreeMapNode child : node.getChildren())
+		{
+			double[] values = checkNode(name, child);
+			size += values[0];
+			sumX += values[1];
+			sumY += values[2];
+		}
+		double x = sumX/node.getChildCount();
+		double y = sumY/node.getChildCount();
+
+		if (Math.abs(node.getAccumSize()-size) > MAX_ERROR*size)
+		{
+			fail(name+": size of "+node.getLabel()+" is "+node.getAccumSize()+" rather than "+size+".");
+		}
+		Point2D centre = node.getLocation();
+		if ((centre == null) || (Math.abs(centre.getX()-x) > MAX_ERROR*1000) || (Math.abs(centre.getY()-y) > MAX_ERROR*1000))
+		{
+			fail(name+": centre of "+node.getLabel()+" is "+centre+" rather than ("+x+","+y+").");
+		}
+		return new double[] {node.getAccumSize(), x, y};
+	}
+
+	/** Provides a random leaf size with a wide range of magnitudes.
+	 *  @param rand Random number generator.
+	 *  @return Random size value.
+	 */
+	private static float randomSize(Random rand)
+	{
+		return (float)Math.pow(10, rand.nextDouble()*4-1);
+	}
+
+	/** Provides a random location within a 1000 unit square.
+	 *  @param rand Random number generator.
+	 *  @return Random location.
+	 */
+	private static Point2D randomLocation(Random rand)
+	{
+		return new Point2D.Double(rand.nextDouble()*1000, rand.nextDouble()*1000);
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
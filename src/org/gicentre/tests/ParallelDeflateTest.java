@@ -0,0 +1,382 @@
+package org.gicentre.tests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.gicentre.io.PNGWriter;
+import org.gicentre.io.ParallelDeflaterOutputStream;
+
+//  ****************************************************************************************
+/** Tests compression on several processor cores by reading the output back with the standard
+ *  Java decompressors. PNG images written with any number of threads should decode to the
+ *  pixels that were written, and gzip and zlib streams should decompress to the original data
+ *  whatever the number of threads, compression level and size of each write.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ParallelDeflateTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final int[] NUM_THREADS = {1, 2, 4, 0};		// 0 uses all available processors.
+	private static final int[] LEVELS = {-1, 0, 1, 9};
+	private static final int BLOCK_SIZE = 128*1024;				// Size of each independently compressed block.
+	private static final int MAX_IDAT_SIZE = 65536;				// Largest compressed data chunk written.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		ParallelDeflateTest test = new ParallelDeflateTest();
+		try
+		{
+			test.testStreams();
+			test.testPNG("single pixel", 1, 1, false, new Random(1));
+			test.testPNG("opaque noise", 500, 400, false, new Random(2));
+			test.testPNG("transparent noise", 400, 300, true, new Random(3));
+			test.testPNG("transparent gradient", 1200, 900, true, null);
+			test.testIncompletePNG();
+		}
+		catch (IOException e)
+		{
+			test.fail("unexpected exception: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" parallel compression test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All parallel compression tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that gzip and zlib streams decompress to the data written, and that output compressed in parallel
+	 *  does not depend on the number of threads used.
+	 *  @throws IOException if a stream cannot be written or read.
+	 */
+	private void testStreams() throws IOException
+	{
+		Random rand = new Random(4);
+		int[] lengths = {0, 1, BLOCK_SIZE-1, BLOCK_SIZE, BLOCK_SIZE+1, 5*BLOCK_SIZE+17};
+		for (int length : lengths)
+		{
+			byte[] data = createData(rand, length);
+			for (boolean isGzip : new boolean[] {true, false})
+			{
+				for (int level : LEVELS)
+				{
+					byte[] parallelOutput = null;
+					for (int numThreads : NUM_THREADS)
+					{
+						String name = (isGzip ? "gzip" : "zlib")+" stream of "+length+" bytes at level "+level+" with "+numThreads+" threads";
+						byte[] compressed = compress(data, level, numThreads, isGzip, rand);
+						InputStream in = isGzip ? new GZIPInputStream(new ByteArrayInputStream(compressed))
+												: new InflaterInputStream(new ByteArrayInputStream(compressed));
+						byte[] decompressed = readAll(in);
+						if (Arrays.equals(decompressed, data) == false)
+						{
+							fail(name+": decompressed to "+decompressed.length+" bytes that differ from the original.");
+						}
+
+						// Blocks are always the same size and primed with the same history, so the output is the same
+						// whatever the number of threads.
+						if (parallelOutput == null)
+						{
+							parallelOutput = compressed;
+						}
+						else if (Arrays.equals(parallelOutput, compressed) == false)
+						{
+							fail(name+": output differs from that of a single thread.");
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Writes an image as PNG with each combination of thread count and compression level and checks that it
+	 *  decodes to the same pixels.
+	 *  @param name Description of the image.
+	 *  @param width Width of the image in pixels.
+	 *  @param height Height of the image in pixels.
+	 *  @param hasAlpha True if the image has an alpha channel.
+	 *  @param rand Random number generator used to create random pixels, or null for a smooth gradient.
+	 *  @throws IOException if the image cannot be written or read.
+	 */
+	private void testPNG(String name, int width, int height, boolean hasAlpha, Random rand) throws IOException
+	{
+		int[] argb = new int[width*height];
+		for (int i=0; i<argb.length; i++)
+		{
+			if (rand == null)
+			{
+				int x = i % width;
+				int y = i / width;
+				argb[i] = ((x*255/width) << 24) | ((y*255/height) << 16) | (((x+y)%256) << 8) | ((x*y)%256);
+			}
+			else
+			{
+				argb[i] = rand.nextInt();
+			}
+			if (hasAlpha == false)
+			{
+				argb[i] |= 0xff000000;
+			}
+		}
+
+		Random bandSizes = new Random(5);
+		for (int numThreads : NUM_THREADS)
+		{
+			for (int level : LEVELS)
+			{
+				String description = name+" at level "+level+" with "+numThreads+" threads";
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				PNGWriter writer = new PNGWriter(out, width, height, hasAlpha, level, numThreads);
+
+				// Supply the rows in bands of varying size as banded image export does.
+				int row = 0;
+				while (row < height)
+				{
+					int numRows = Math.min(height-row, 1+bandSizes.nextInt(64));
+					writer.writeRows(argb, row*width, width, numRows);
+					row += numRows;
+				}
+				writer.close();
+
+				byte[] png = out.toByteArray();
+				if (checkChunks(description, png) == false)
+				{
+					continue;
+				}
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+				if ((image == null) || (image.getWidth() != width) || (image.getHeight() != height))
+				{
+					fail(description+": image could not be decoded or has the wrong size.");
+					continue;
+				}
+				for (int i=0; i<argb.length; i++)
+				{
+					int pixel = image.getRGB(i % width, i / width);
+					if (pixel != argb[i])
+					{
+						fail(description+": pixel ("+(i % width)+","+(i / width)+") is "+Integer.toHexString(pixel)+
+							 " rather than "+Integer.toHexString(argb[i])+".");
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/** Checks that a PNG file closed before all its rows have been written is reported as a failure and deleted.
+	 *  @throws IOException if the temporary file cannot be created.
+	 */
+	private void testIncompletePNG() throws IOException
+	{
+		for (int numThreads : new int[] {1, 2})
+		{
+			File file = File.createTempFile("treemappa", ".png");
+			file.deleteOnExit();
+			PNGWriter writer = new PNGWriter(file, 300, 200, true, -1, numThreads);
+			writer.writeRows(new int[300*100], 0, 300, 100);
+			try
+			{
+				writer.close();
+				fail("incomplete PNG with "+numThreads+" threads: closed without error.");
+			}
+			catch (IOException e)
+			{
+				// Expected.
+			}
+			if (file.exists())
+			{
+				fail("incomplete PNG with "+numThreads+" threads: partial file not deleted.");
+				file.delete();
+			}
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Checks that a PNG file consists of a signature followed by chunks with valid checksums, starting with the
+	 *  header and ending with the end of image marker, and that no compressed data chunk is larger than expected.
+	 *  @param description Description of the image.
+	 *  @param png Contents of the PNG file.
+	 *  @return True if the chunks are valid.
+	 */
+	private boolean checkChunks(String description, byte[] png)
+	{
+		byte[] signature = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+		if ((png.length < signature.length) || (Arrays.equals(Arrays.copyOf(png, signature.length), signature) == false))
+		{
+			fail(description+": missing PNG signature.");
+			return false;
+		}
+
+		ByteBuffer data = ByteBuffer.wrap(png);
+		int pos = signature.length;
+		String type = null;
+		int numChunks = 0;
+		while (pos < png.length)
+		{
+			if (pos+12 > png.length)
+			{
+				fail(description+": truncated chunk at byte "+pos+".");
+				return false;
+			}
+			int length = data.getInt(pos);
+			type = new String(png, pos+4, 4);
+			if ((length < 0) || (pos+12+(long)length > png.length))
+			{
+				fail(description+": "+type+" chunk at byte "+pos+" extends beyond the end of the file.");
+				return false;
+			}
+			if ((numChunks == 0) != type.equals("IHDR"))
+			{
+				fail(description+": "+type+" chunk found where the header should "+((numChunks == 0) ? "" : "not ")+"be.");
+				return false;
+			}
+			if (type.equals("IDAT") && (length > MAX_IDAT_SIZE))
+			{
+				fail(description+": compressed data chunk of "+length+" bytes.");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(png, pos+4, 4+length);
+			if ((int)crc.getValue() != data.getInt(pos+8+length))
+			{
+				fail(description+": "+type+" chunk at byte "+pos+" has the wrong checksum.");
+				return false;
+			}
+			pos += 12+length;
+			numChunks++;
+		}
+		if ("IEND".equals(type) == false)
+		{
+			fail(description+": last chunk is "+type+" rather than IEND.");
+			return false;
+		}
+		return true;
+	}
+
+	/** Creates data with a mixture of repetitive text that compresses well and random bytes that do not.
+	 *  @param rand Random number generator used to create the data.
+	 *  @param length Number of bytes to create.
+	 *  @return New data.
+	 */
+	private static byte[] createData(Random rand, int length)
+	{
+		byte[] data = new byte[length];
+		byte[] text = "<rect x=\"10\" y=\"20\" width=\"30\" height=\"40\" />\n".getBytes();
+		int pos = 0;
+		while (pos < length)
+		{
+			int runLength = Math.min(length-pos, 1+rand.nextInt(20000));
+			boolean isRandom = rand.nextBoolean();
+			for (int i=0; i<runLength; i++)
+			{
+				data[pos+i] = isRandom ? (byte)rand.nextInt() : text[(pos+i) % text.length];
+			}
+			pos += runLength;
+		}
+		return data;
+	}
+
+	/** Compresses the given data, supplying it in writes of random size including single bytes.
+	 *  @param data Data to compress.
+	 *  @param level Compression level.
+	 *  @param numThreads Number of threads used for compression.
+	 *  @param isGzip True for gzip format, false for zlib format.
+	 *  @param rand Random number generator used to choose the size of each write.
+	 *  @return Compressed data.
+	 *  @throws IOException if the data cannot be compressed.
+	 */
+	private static byte[] compress(byte[] data, int level, int numThreads, boolean isGzip, Random rand) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelDeflaterOutputStream compressor = new ParallelDeflaterOutputStream(out, level, numThreads, isGzip);
+		int pos = 0;
+		while (pos < data.length)
+		{
+			if (rand.nextInt(10) == 0)
+			{
+				compressor.write(data[pos++]);
+			}
+			else
+			{
+				int length = Math.min(data.length-pos, rand.nextInt(3*BLOCK_SIZE/2));
+				compressor.write(data, pos, length);
+				pos += length;
+			}
+		}
+		compressor.close();
+		return out.toByteArray();
+	}
+
+	/** Reads all the data from the given stream and closes it.
+	 *  @param in Stream to read.
+	 *  @return Data read from the stream.
+	 *  @throws IOException if the stream cannot be read.
+	 */
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try
+		{
+			int numBytes;
+			while ((numBytes = in.read(buffer)) >= 0)
+			{
+				data.write(buffer, 0, numBytes);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return data.toByteArray();
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
@@ -0,0 +1,409 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.gicentre.io.QuadtreeIndexWriter;
+import org.gicentre.io.ShapefileReader;
+import org.gicentre.io.ShapefileWriter;
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests the quadtree spatial index written alongside shapefiles by reading it back. Each
+ *  shape should be stored exactly once in a node whose bounds contain it, the size given for
+ *  each subtree should allow it to be skipped, and searches that skip nodes outside a query
+ *  region should find every shape that intersects it.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class QuadtreeIndexTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final int HEADER_BYTES = 16;			// Signature, byte order, version, number of shapes and depth.
+	private static final int NODE_BYTES = 44;			// Size of a node record excluding its shape IDs.
+	private static final int NUM_QUERIES = 200;			// Number of random regions searched in each index.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		QuadtreeIndexTest test = new QuadtreeIndexTest();
+		try
+		{
+			test.testRandomRectangles("few rectangles", 5, new Random(1));
+			test.testRandomRectangles("many rectangles", 20000, new Random(2));
+			test.testIdenticalRectangles();
+			test.testShapefileIndex();
+		}
+		catch (IOException e)
+		{
+			test.fail("unexpected exception: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" quadtree index test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All quadtree index tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks the index of randomly placed rectangles of widely varying sizes.
+	 *  @param name Description of the rectangles being indexed.
+	 *  @param numShapes Number of rectangles to index.
+	 *  @param rand Random number generator used to create the rectangles and queries.
+	 *  @throws IOException if the index cannot be written or read.
+	 */
+	private void testRandomRectangles(String name, int numShapes, Random rand) throws IOException
+	{
+		double[][] rects = new double[4][numShapes];
+		for (int i=0; i<numShapes; i++)
+		{
+			double size = Math.pow(10, rand.nextDouble()*3-1);
+			rects[0][i] = rand.nextDouble()*1000-500;
+			rects[1][i] = rand.nextDouble()*1000-500;
+			rects[2][i] = rects[0][i]+size*rand.nextDouble();
+			rects[3][i] = rects[1][i]+size*rand.nextDouble();
+		}
+		checkIndex(name, rects, numShapes, rand);
+	}
+
+	/** Checks the index of many rectangles that share the same bounds, none of which can be placed below the root.
+	 *  @throws IOException if the index cannot be written or read.
+	 */
+	private void testIdenticalRectangles() throws IOException
+	{
+		int numShapes = 100;
+		double[][] rects = new double[4][numShapes];
+		for (int i=0; i<numShapes; i++)
+		{
+			rects[0][i] = 10;
+			rects[1][i] = 20;
+			rects[2][i] = 30;
+			rects[3][i] = 40;
+		}
+		checkIndex("identical rectangles", rects, numShapes, new Random(3));
+	}
+
+	/** Checks that the index written with a shapefile holds every record, and that searching for the centroid
+	 *  of each record finds it.
+	 *  @throws IOException if the shapefile cannot be written or read.
+	 */
+	private void testShapefileIndex() throws IOException
+	{
+		Random rand = new Random(4);
+		TreeMapNode root = new TreeMapNode("root");
+		for (int i=0; i<10; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("branch "+i);
+			root.add(branch);
+			for (int j=0; j<100; j++)
+			{
+				Point2D location = new Point2D.Double(rand.nextDouble()*360-180, rand.nextDouble()*180-90);
+				branch.add(new TreeMapNode("leaf "+i+"."+j, j, Float.valueOf(1+rand.nextInt(100)), null, location));
+			}
+		}
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "400");
+		props.setParameter("height", "300");
+		TreeMappa treeMappa = new TreeMappa(props);
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+
+		File shpFile = File.createTempFile("treemappa", ".shp");
+		String baseName = shpFile.getPath().substring(0, shpFile.getPath().length()-4);
+		try
+		{
+			ShapefileWriter writer = new ShapefileWriter();
+			writer.setWriteIndex(true);
+			if (writer.write(root, shpFile.getPath()) == false)
+			{
+				fail("shapefile index: shapefile could not be written.");
+				return;
+			}
+
+			List<double[]> centroids = new ArrayList<double[]>();
+			ShapefileReader reader = new ShapefileReader(shpFile.getPath());
+			while (reader.next())
+			{
+				centroids.add(new double[] {reader.getCentroidX(), reader.getCentroidY()});
+			}
+			reader.close();
+
+			ByteBuffer index = readIndex(baseName+".qix");
+			if (checkStructure("shapefile index", index, null, centroids.size()) == false)
+			{
+				return;
+			}
+			for (int i=0; i<centroids.size(); i++)
+			{
+				double[] c = centroids.get(i);
+				BitSet found = search(index, c[0], c[1], c[0], c[1]);
+				if (found.get(i) == false)
+				{
+					fail("shapefile index: record "+i+" not found by searching for its centroid.");
+					return;
+				}
+			}
+		}
+		finally
+		{
+			for (String extension : new String[] {".shp", ".shx", ".dbf", ".qix"})
+			{
+				new File(baseName+extension).delete();
+			}
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Writes an index of the given rectangles, checks its structure and compares searches of random regions with
+	 *  the rectangles found by testing every rectangle.
+	 *  @param name Description of the rectangles being indexed.
+	 *  @param rects Minimum x, minimum y, maximum x and maximum y of each rectangle.
+	 *  @param numShapes Number of rectangles to index.
+	 *  @param rand Random number generator used to create the queries.
+	 *  @throws IOException if the index cannot be written or read.
+	 */
+	private void checkIndex(String name, double[][] rects, int numShapes, Random rand) throws IOException
+	{
+		File qixFile = File.createTempFile("treemappa", ".qix");
+		try
+		{
+			if (new QuadtreeIndexWriter(rects[0], rects[1], rects[2], rects[3], numShapes).write(qixFile.getPath()) == false)
+			{
+				fail(name+": index could not be written.");
+				return;
+			}
+			ByteBuffer index = readIndex(qixFile.getPath());
+			if (checkStructure(name, index, rects, numShapes) == false)
+			{
+				return;
+			}
+
+			for (int q=0; q<NUM_QUERIES; q++)
+			{
+				double size = Math.pow(10, rand.nextDouble()*4-1);
+				double minX = rand.nextDouble()*1100-550;
+				double minY = rand.nextDouble()*1100-550;
+				double maxX = minX+size;
+				double maxY = minY+size;
+				BitSet found = search(index, minX, minY, maxX, maxY);
+				for (int i=0; i<numShapes; i++)
+				{
+					boolean intersects = (rects[0][i] <= maxX) && (rects[2][i] >= minX) && (rects[1][i] <= maxY) && (rects[3][i] >= minY);
+					if (intersects && (found.get(i) == false))
+					{
+						fail(name+": shape "+i+" intersects query "+q+" but was not found.");
+						return;
+					}
+				}
+			}
+		}
+		finally
+		{
+			qixFile.delete();
+		}
+	}
+
+	/** Reads the given index file.
+	 *  @param fileName Name of the index file.
+	 *  @return Little-endian contents of the file.
+	 *  @throws IOException if the file cannot be read.
+	 */
+	private static ByteBuffer readIndex(String fileName) throws IOException
+	{
+		ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(new File(fileName).toPath()));
+		index.order(ByteOrder.LITTLE_ENDIAN);
+		return index;
+	}
+
+	/** Checks the header of the index and that every node holds shapes within its bounds, that each subtree
+	 *  is the size given for it and that every shape is held exactly once.
+	 *  @param name Description of the index being checked.
+	 *  @param index Contents of the index file.
+	 *  @param rects Bounds of each shape, or null if not known.
+	 *  @param numShapes Number of shapes that should be indexed.
+	 *  @return True if the structure is valid.
+	 */
+	private boolean checkStructure(String name, ByteBuffer index, double[][] rects, int numShapes)
+	{
+		int numFailuresBefore = numFailures;
+		if ((index.get(0) != 'S') || (index.get(1) != 'Q') || (index.get(2) != 'T') || (index.get(3) != 1) || (index.get(4) != 1))
+		{
+			fail(name+": index does not start with a little-endian version 1 signature.");
+			return false;
+		}
+		if (index.getInt(8) != numShapes)
+		{
+			fail(name+": index header gives "+index.getInt(8)+" shapes rather than "+numShapes+".");
+		}
+
+		BitSet seen = new BitSet(numShapes);
+		int end = checkNode(name, index, HEADER_BYTES, 1, index.getInt(12), rects, seen);
+		if ((end >= 0) && (end != index.capacity()))
+		{
+			fail(name+": index nodes end at byte "+end+" of "+index.capacity()+".");
+		}
+		if ((end >= 0) && (seen.cardinality() != numShapes))
+		{
+			fail(name+": index holds "+seen.cardinality()+" distinct shapes rather than "+numShapes+".");
+		}
+		return numFailures == numFailuresBefore;
+	}
+
+	/** Checks the node at the given position and all of its descendants.
+	 *  @param name Description of the index being checked.
+	 *  @param index Contents of the index file.
+	 *  @param pos Position of the node in the file.
+	 *  @param depth Depth of the node, where the root has a depth of 1.
+	 *  @param maxDepth Maximum depth given in the index header.
+	 *  @param rects Bounds of each shape, or null if not known.
+	 *  @param seen Shapes found so far, to which those of this subtree are added.
+	 *  @return Position after the end of the subtree, or -1 if the subtree is invalid.
+	 */
+	private int checkNode(String name, ByteBuffer index, int pos, int depth, int maxDepth, double[][] rects, BitSet seen)
+	{
+		if ((pos+NODE_BYTES > index.capacity()) || (depth > Math.max(1, maxDepth)))
+		{
+			fail(name+": node at byte "+pos+" at depth "+depth+" lies beyond the end of the file or the maximum depth.");
+			return -1;
+		}
+		int descendantBytes = index.getInt(pos);
+		double minX = index.getDouble(pos+4);
+		double minY = index.getDouble(pos+12);
+		double maxX = index.getDouble(pos+20);
+		double maxY = index.getDouble(pos+28);
+		int numShapes = index.getInt(pos+36);
+		if ((numShapes < 0) || (pos+NODE_BYTES+4L*numShapes > index.capacity()))
+		{
+			fail(name+": node at byte "+pos+" holds an invalid number of shapes ("+numShapes+").");
+			return -1;
+		}
+		for (int i=0; i<numShapes; i++)
+		{
+			int shape = index.getInt(pos+40+4*i);
+			if ((shape < 0) || seen.get(shape))
+			{
+				fail(name+": shape "+shape+" in node at byte "+pos+" is invalid or held more than once.");
+				return -1;
+			}
+			seen.set(shape);
+			if ((rects != null) && ((rects[0][shape] < minX) || (rects[1][shape] < minY) || (rects[2][shape] > maxX) || (rects[3][shape] > maxY)))
+			{
+				fail(name+": shape "+shape+" lies outside the bounds of its node at byte "+pos+".");
+				return -1;
+			}
+		}
+
+		int childPos = pos+NODE_BYTES+4*numShapes;
+		int numChildren = index.getInt(childPos-4);
+		for (int i=0; i<numChildren; i++)
+		{
+			childPos = checkNode(name, index, childPos, depth+1, maxDepth, rects, seen);
+			if (childPos < 0)
+			{
+				return -1;
+			}
+		}
+		int nodeEnd = pos+NODE_BYTES+4*numShapes;
+		if (childPos-nodeEnd != descendantBytes)
+		{
+			fail(name+": node at byte "+pos+" gives its descendants a size of "+descendantBytes+" bytes rather than "+(childPos-nodeEnd)+".");
+			return -1;
+		}
+		return childPos;
+	}
+
+	/** Searches the index for shapes that may intersect the given region, skipping the descendants of any node
+	 *  that does not intersect it using the subtree size stored with each node.
+	 *  @param index Contents of a valid index file.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 *  @return Shapes held in nodes that intersect the region.
+	 */
+	private static BitSet search(ByteBuffer index, double minX, double minY, double maxX, double maxY)
+	{
+		BitSet found = new BitSet();
+		searchNode(index, HEADER_BYTES, minX, minY, maxX, maxY, found);
+		return found;
+	}
+
+	/** Searches the node at the given position and those of its descendants that intersect the given region.
+	 *  @param index Contents of a valid index file.
+	 *  @param pos Position of the node in the file.
+	 *  @param minX Minimum x coordinate of the region.
+	 *  @param minY Minimum y coordinate of the region.
+	 *  @param maxX Maximum x coordinate of the region.
+	 *  @param maxY Maximum y coordinate of the region.
+	 *  @param found Shapes found so far, to which those of this subtree are added.
+	 *  @return Position after the end of the subtree.
+	 */
+	private static int searchNode(ByteBuffer index, int pos, double minX, double minY, double maxX, double maxY, BitSet found)
+	{
+		int numShapes = index.getInt(pos+36);
+		int nodeEnd = pos+NODE_BYTES+4*numShapes;
+		if ((index.getDouble(pos+4) > maxX) || (index.getDouble(pos+20) < minX) ||
+			(index.getDouble(pos+12) > maxY) || (index.getDouble(pos+28) < minY))
+		{
+			return nodeEnd+index.getInt(pos);
+		}
+
+		for (int i=0; i<numShapes; i++)
+		{
+			found.set(index.getInt(pos+40+4*i));
+		}
+		int childPos = nodeEnd;
+		int numChildren = index.getInt(nodeEnd-4);
+		for (int i=0; i<numChildren; i++)
+		{
+			childPos = searchNode(index, childPos, minX, minY, maxX, maxY, found);
+		}
+		return childPos;
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
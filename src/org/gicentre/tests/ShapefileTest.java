@@ -0,0 +1,399 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.gicentre.io.DbaseFileReader;
+import org.gicentre.io.ShapefileReader;
+import org.gicentre.io.ShapefileWriter;
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+
+//  ****************************************************************************************
+/** Tests the writing of treemaps as shapefiles by reading them back. Every node below the root
+ *  should be found in breadth-first order, with its rectangle centred on the record's centroid
+ *  and its attributes in the DBF table, whether the file is written in one thread or several.
+ *  Damaged shapefiles should be reported as read errors.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ShapefileTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final double MAX_ERROR = 1e-9;		// Largest coordinate error relative to the size of the treemap.
+	private static final double MAX_VALUE_ERROR = 1e-6;	// Largest error in values stored with 6 decimal places.
+	private static final int LARGE_TREE_LEAVES = 12000;	// Enough nodes for attributes and geometry to be written concurrently.
+	private static final String[] EXTENSIONS = {".shp", ".shx", ".dbf"};
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		ShapefileTest test = new ShapefileTest();
+		try
+		{
+			test.testRoundTrip("small tree", buildTree(new Random(1), 6, 40, false));
+			test.testRoundTrip("spatial tree", buildTree(new Random(2), 6, 40, true));
+			test.testRoundTrip("large tree", buildTree(new Random(3), 20, LARGE_TREE_LEAVES/20, true));
+			test.testDamagedFiles();
+		}
+		catch (IOException e)
+		{
+			test.fail("unexpected exception: "+e);
+		}
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" shapefile test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All shapefile tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Writes the given tree as a shapefile and checks that each record read back matches its node.
+	 *  @param name Description of the tree being tested.
+	 *  @param root Root of the laid out tree to write.
+	 *  @throws IOException if the temporary files cannot be created.
+	 */
+	private void testRoundTrip(String name, TreeMapNode root) throws IOException
+	{
+		File shpFile = File.createTempFile("treemappa", ".shp");
+		try
+		{
+			if (new ShapefileWriter().write(root, shpFile.getPath()) == false)
+			{
+				fail(name+": shapefile could not be written.");
+				return;
+			}
+			List<TreeMapNode> nodes = breadthFirst(root);
+			checkGeometry(name, shpFile.getPath(), root, nodes);
+			checkAttributes(name, baseName(shpFile)+".dbf", nodes);
+		}
+		finally
+		{
+			deleteShapefile(shpFile);
+		}
+	}
+
+	/** Checks that truncated records and record lengths too large to be stored are reported as read errors.
+	 *  @throws IOException if the temporary files cannot be created or changed.
+	 */
+	private void testDamagedFiles() throws IOException
+	{
+		TreeMapNode root = buildTree(new Random(4), 3, 10, false);
+		File shpFile = File.createTempFile("treemappa", ".shp");
+		try
+		{
+			if (new ShapefileWriter().write(root, shpFile.getPath()) == false)
+			{
+				fail("damaged files: shapefile could not be written.");
+				return;
+			}
+
+			// Remove the end of the last record.
+			RandomAccessFile file = new RandomAccessFile(shpFile, "rw");
+			long length = file.length();
+			file.setLength(length-20);
+			file.close();
+			checkReadError("truncated record", shpFile.getPath());
+
+			// Give the first record a content length that would overflow when converted from 16-bit words to bytes.
+			file = new RandomAccessFile(shpFile, "rw");
+			file.seek(104);
+			file.writeInt(Integer.MAX_VALUE);
+			file.close();
+			checkReadError("overflowing record length", shpFile.getPath());
+		}
+		finally
+		{
+			deleteShapefile(shpFile);
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Checks that the geometry of the given shapefile holds one rectangle for each of the given nodes, in order.
+	 *  @param name Description of the tree being tested.
+	 *  @param fileName Name of the <code>.shp</code> file to read.
+	 *  @param root Root of the tree that was written.
+	 *  @param nodes Nodes below the root in the order they should have been written.
+	 *  @throws IOException if the shapefile cannot be read.
+	 */
+	private void checkGeometry(String name, String fileName, TreeMapNode root, List<TreeMapNode> nodes) throws IOException
+	{
+		Rectangle2D bounds = root.getRectangle();
+		Rectangle2D geoBounds = root.calcGeoBounds();
+		double tolerance = MAX_ERROR*Math.max(geoBounds.getWidth(), geoBounds.getHeight());
+
+		ShapefileReader reader = new ShapefileReader(fileName);
+		try
+		{
+			if (reader.getShapeType() != ShapefileReader.POLYGON)
+			{
+				fail(name+": shape type "+reader.getShapeType()+" rather than polygon.");
+			}
+			Rectangle2D fileBounds = reader.getBounds();
+			if ((Math.abs(fileBounds.getMinX()-geoBounds.getMinX()) > tolerance) || (Math.abs(fileBounds.getMaxX()-geoBounds.getMaxX()) > tolerance) ||
+				(Math.abs(fileBounds.getMinY()-geoBounds.getMinY()) > tolerance) || (Math.abs(fileBounds.getMaxY()-geoBounds.getMaxY()) > tolerance))
+			{
+				fail(name+": file bounds "+fileBounds+" rather than "+geoBounds+".");
+			}
+
+			int numRecords = 0;
+			while (reader.next())
+			{
+				if (numRecords >= nodes.size())
+				{
+					numRecords++;
+					continue;
+				}
+				TreeMapNode node = nodes.get(numRecords);
+				Rectangle2D rect = node.getRectangle();
+
+				// Rectangles are scaled to the geographic bounds and flipped so that y increases northwards.
+				double x = geoBounds.getX() + geoBounds.getWidth()*(rect.getCenterX()-bounds.getX())/bounds.getWidth();
+				double y = geoBounds.getMaxY() - geoBounds.getHeight()*(rect.getCenterY()-bounds.getY())/bounds.getHeight();
+
+				if ((reader.getRecordIndex() != numRecords) || (reader.getRecordShapeType() != ShapefileReader.POLYGON) || (reader.hasCentroid() == false))
+				{
+					fail(name+": record "+numRecords+" has index "+reader.getRecordIndex()+" and shape type "+reader.getRecordShapeType()+".");
+				}
+				else if ((Math.abs(reader.getCentroidX()-x) > tolerance) || (Math.abs(reader.getCentroidY()-y) > tolerance))
+				{
+					fail(name+": record "+numRecords+" ('"+node.getLabel()+"') centred at ("+reader.getCentroidX()+","+
+						 reader.getCentroidY()+") rather than ("+x+","+y+").");
+				}
+				numRecords++;
+			}
+			if (numRecords != nodes.size())
+			{
+				fail(name+": read "+numRecords+" shapes rather than "+nodes.size()+".");
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/** Checks that the attribute table holds the attributes of each of the given nodes, in order.
+	 *  @param name Description of the tree being tested.
+	 *  @param fileName Name of the <code>.dbf</code> file to read.
+	 *  @param nodes Nodes below the root in the order they should have been written.
+	 *  @throws IOException if the attribute table cannot be read.
+	 */
+	private void checkAttributes(String name, String fileName, List<TreeMapNode> nodes) throws IOException
+	{
+		DbaseFileReader reader = new DbaseFileReader(fileName);
+		try
+		{
+			if (reader.getNumRecords() != nodes.size())
+			{
+				fail(name+": attribute table has "+reader.getNumRecords()+" records rather than "+nodes.size()+".");
+				return;
+			}
+			int idField = reader.findField("TreemapID");
+			int labelField = reader.findField("Label");
+			int sizeField = reader.findField("Size");
+			int colourField = reader.findField("Colour");
+			int depthField = reader.findField("Depth");
+			int leafField = reader.findField("Leaf");
+			if ((idField < 0) || (labelField < 0) || (sizeField < 0) || (colourField < 0) || (depthField < 0) || (leafField < 0))
+			{
+				fail(name+": attribute table is missing one or more fields.");
+				return;
+			}
+
+			for (int i=0; i<nodes.size(); i++)
+			{
+				TreeMapNode node = nodes.get(i);
+				String description = name+": record "+i+" ('"+node.getLabel()+"')";
+				if (reader.isDeleted(i))
+				{
+					fail(description+" is marked as deleted.");
+				}
+				if (reader.readDouble(i, idField) != i+1)
+				{
+					fail(description+" has ID "+reader.readDouble(i, idField)+" rather than "+(i+1)+".");
+				}
+				if (reader.readString(i, labelField).equals(node.getLabel()) == false)
+				{
+					fail(description+" has label '"+reader.readString(i, labelField)+"'.");
+				}
+				if (Math.abs(reader.readDouble(i, sizeField)-node.getAccumSize()) > MAX_VALUE_ERROR*Math.max(1, node.getAccumSize()))
+				{
+					fail(description+" has size "+reader.readDouble(i, sizeField)+" rather than "+node.getAccumSize()+".");
+				}
+				// Missing colour values are written as 0, as numeric fields cannot be left empty.
+				double colour = reader.readDouble(i, colourField);
+				Float expectedColour = (node.getColourValue() == null) ? Float.valueOf(0) : node.getColourValue();
+				if (Math.abs(colour-expectedColour.floatValue()) > MAX_VALUE_ERROR)
+				{
+					fail(description+" has colour "+colour+" rather than "+expectedColour+".");
+				}
+				if (reader.readDouble(i, depthField) != node.getLevel())
+				{
+					fail(description+" has depth "+reader.readDouble(i, depthField)+" rather than "+node.getLevel()+".");
+				}
+				if (reader.readString(i, leafField).equals(node.isLeaf() ? "Y" : "N") == false)
+				{
+					fail(description+" has leaf flag '"+reader.readString(i, leafField)+"'.");
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/** Checks that reading all the records of the given shapefile reports a read error.
+	 *  @param name Description of the damage to the file.
+	 *  @param fileName Name of the <code>.shp</code> file to read.
+	 */
+	private void checkReadError(String name, String fileName)
+	{
+		ShapefileReader reader = null;
+		try
+		{
+			reader = new ShapefileReader(fileName);
+			while (reader.next())
+			{
+				// Read every record until the damage is found.
+			}
+			fail(name+": damaged shapefile read without error.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		catch (RuntimeException e)
+		{
+			fail(name+": damaged shapefile threw "+e+" rather than a read error.");
+		}
+		finally
+		{
+			try
+			{
+				if (reader != null)
+				{
+					reader.close();
+				}
+			}
+			catch (IOException e)
+			{
+				fail(name+": problem closing shapefile.");
+			}
+		}
+	}
+
+	/** Builds and lays out a two-level tree with random sizes and colours, some of which are missing.
+	 *  @param rand Random number generator used to create the leaves.
+	 *  @param numBranches Number of branches below the root.
+	 *  @param numLeaves Number of leaves in each branch.
+	 *  @param isSpatial Leaves are given random locations if true.
+	 *  @return Root of the laid out tree.
+	 */
+	private static TreeMapNode buildTree(Random rand, int numBranches, int numLeaves, boolean isSpatial)
+	{
+		TreeMapNode root = new TreeMapNode("root");
+		for (int i=0; i<numBranches; i++)
+		{
+			TreeMapNode branch = new TreeMapNode("branch "+i);
+			root.add(branch);
+			for (int j=0; j<numLeaves; j++)
+			{
+				Float colour = (rand.nextInt(5) == 0) ? null : Float.valueOf(rand.nextInt(1000)/10f);
+				Point2D location = isSpatial ? new Point2D.Double(rand.nextDouble()*360-180, rand.nextDouble()*180-90) : null;
+				branch.add(new TreeMapNode("leaf "+i+"."+j, j, Float.valueOf(1+rand.nextInt(100)), colour, location));
+			}
+		}
+
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "400");
+		props.setParameter("height", "300");
+		TreeMappa treeMappa = new TreeMappa(props);
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+		return root;
+	}
+
+	/** Provides the nodes below the given root in breadth-first order.
+	 *  @param root Root of the tree.
+	 *  @return Descendants of the root in breadth-first order.
+	 */
+	private static List<TreeMapNode> breadthFirst(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>(root.getChildren());
+		while (queue.isEmpty() == false)
+		{
+			TreeMapNode node = queue.removeFirst();
+			nodes.add(node);
+			queue.addAll(node.getChildren());
+		}
+		return nodes;
+	}
+
+	/** Provides the name of the given shapefile without its extension.
+	 *  @param shpFile Shapefile.
+	 *  @return Path of the file without the <code>.shp</code> extension.
+	 */
+	private static String baseName(File shpFile)
+	{
+		String path = shpFile.getPath();
+		return path.substring(0, path.length()-4);
+	}
+
+	/** Removes the files making up the given shapefile.
+	 *  @param shpFile Shapefile to remove.
+	 */
+	private static void deleteShapefile(File shpFile)
+	{
+		for (String extension : EXTENSIONS)
+		{
+			new File(baseName(shpFile)+extension).delete();
+		}
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
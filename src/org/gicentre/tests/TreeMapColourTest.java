@@ -0,0 +1,178 @@
+package org.gicentre.tests;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import org.gicentre.treemappa.TreeMapNode;
+import org.gicentre.treemappa.TreeMapPanel;
+import org.gicentre.treemappa.TreeMapProperties;
+import org.gicentre.treemappa.TreeMappa;
+import org.gicentre.utils.colour.ColourTable;
+
+//  ****************************************************************************************
+/** Tests the colouring of treemap leaves from a continuous colour table. Each leaf should be
+ *  drawn in the colour the colour table gives for its colour value, including values at the
+ *  very top of the range of values in the tree.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class TreeMapColourTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final float MIN_VALUE = 0.3f;	// Range of colour values given to leaves.
+	private static final float MAX_VALUE = 10.3f;
+	private static final int MAX_CHANNEL_ERROR = 1;	// Largest difference allowed in any colour channel.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		TreeMapColourTest test = new TreeMapColourTest();
+		test.testContinuousRange();
+		test.testTopOfRange();
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" colour test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All colour tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that leaves with values spread evenly over the range are drawn in their colour table colours.
+	 */
+	private void testContinuousRange()
+	{
+		int numLeaves = 2000;
+		float[] values = new float[numLeaves];
+		for (int i=0; i<numLeaves; i++)
+		{
+			values[i] = MIN_VALUE + (MAX_VALUE-MIN_VALUE)*i/(numLeaves-1);
+		}
+		checkColours("continuous range", values);
+	}
+
+	/** Checks that leaves with values at and just below the largest value in the tree are coloured correctly.
+	 */
+	private void testTopOfRange()
+	{
+		float[] values = new float[] {MIN_VALUE, MAX_VALUE, Math.nextDown(MAX_VALUE), MAX_VALUE-0.0001f, MAX_VALUE-0.001f,
+									  MAX_VALUE-0.002f, MAX_VALUE-0.01f};
+		checkColours("top of range", values);
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Draws a treemap with one leaf for each of the given colour values and checks the colour at the centre of each leaf.
+	 *  @param name Name of the test.
+	 *  @param values Colour values of the leaves.
+	 */
+	private void checkColours(String name, float[] values)
+	{
+		ColourTable cTable = new ColourTable();
+		cTable.addContinuousColourRule(MIN_VALUE, 0, 40, 255);
+		cTable.addContinuousColourRule(MAX_VALUE, 255, 220, 0);
+
+		TreeMapProperties props = new TreeMapProperties();
+		props.setParameter("width", "800");
+		props.setParameter("height", "500");
+		props.setParameter("labelLeaves", "false");
+		props.setParameter("showLeafBorder", "false");
+		TreeMappa treeMappa = new TreeMappa(props);
+
+		TreeMapNode root = new TreeMapNode("root");
+		for (int i=0; i<values.length; i++)
+		{
+			root.add(new TreeMapNode("leaf "+i, i, Float.valueOf(1), Float.valueOf(values[i])));
+		}
+		treeMappa.setRoot(root);
+		treeMappa.buildTreeMap();
+
+		BufferedImage img;
+		try
+		{
+			TreeMapPanel panel = treeMappa.createPanel();
+			panel.setColourTable(cTable);
+			panel.updateLayout();
+			img = panel.getImage();
+		}
+		catch (RuntimeException e)
+		{
+			fail(name+": drawing treemap threw "+e);
+			return;
+		}
+
+		int numChecked = 0;
+		for (TreeMapNode leaf : root.getChildren())
+		{
+			Rectangle2D bounds = leaf.getRectangle();
+			if ((bounds == null) || (bounds.getWidth() < 3) || (bounds.getHeight() < 3))
+			{
+				continue;
+			}
+			int x = (int)bounds.getCenterX();
+			int y = (int)bounds.getCenterY();
+			int expected = cTable.findColour(leaf.getColourValue().floatValue());
+			int actual = img.getRGB(x, y);
+			if (channelError(expected, actual) > MAX_CHANNEL_ERROR)
+			{
+				fail(name+": leaf with value "+leaf.getColourValue()+" drawn as #"+Integer.toHexString(actual)+
+					 " rather than #"+Integer.toHexString(expected));
+			}
+			numChecked++;
+		}
+
+		if (numChecked == 0)
+		{
+			fail(name+": no leaves large enough to check.");
+		}
+	}
+
+	/** Reports the largest difference between the red, green and blue channels of two colours.
+	 *  @param argb1 First colour in ARGB format.
+	 *  @param argb2 Second colour in ARGB format.
+	 *  @return Largest difference in any of the three colour channels.
+	 */
+	private static int channelError(int argb1, int argb2)
+	{
+		int error = 0;
+		for (int shift=0; shift<24; shift+=8)
+		{
+			error = Math.max(error, Math.abs(((argb1 >> shift) & 0xff) - ((argb2 >> shift) & 0xff)));
+		}
+		return error;
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
@@ -0,0 +1,337 @@
+package org.gicentre.tests;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ****************************************************************************************
+/** Tests the finding of tree map nodes by label and by path using a label index. Indexed
+ *  searches should always find the same node as a breadth-first search of the hierarchy,
+ *  including when labels are shared and after the hierarchy or labels have been changed.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class TreeMapNodeIndexTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final String[] LABELS = {"a", "b", "c", "d", "e", "f"};	// Few labels so that many are shared.
+	private static final int NUM_CHANGES = 2000;		// Number of random changes made to the hierarchy.
+	private static final int DEEP_TREE_DEPTH = 50000;	// Depth of tree built by adding each node below the last.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		TreeMapNodeIndexTest test = new TreeMapNodeIndexTest();
+		test.testSharedLabels();
+		test.testChanges();
+		test.testMoveBetweenTrees();
+		test.testDeepTree();
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" index test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All index tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that indexed searches of a tree with many shared labels find the nodes found by searching the hierarchy.
+	 */
+	private void testSharedLabels()
+	{
+		Random rand = new Random(1);
+		TreeMapNode root = buildTree(rand, 4, 5);
+		root.setIndexed(true);
+		checkSearches("shared labels", root, rand);
+
+		// A second index within the tree should give the same results.
+		root.getChildren().get(1).setIndexed(true);
+		checkSearches("nested index", root, rand);
+	}
+
+	/** Checks that indexed searches still match searches of the hierarchy after random changes to the tree.
+	 */
+	private void testChanges()
+	{
+		Random rand = new Random(2);
+		TreeMapNode root = buildTree(rand, 4, 4);
+		root.setIndexed(true);
+
+		for (int i=1; i<=NUM_CHANGES; i++)
+		{
+			List<TreeMapNode> nodes = collectNodes(root);
+			if (nodes.size() == 1)
+			{
+				// All branches have been removed, so start again.
+				root.add(buildTree(rand, 3, 4));
+				continue;
+			}
+			TreeMapNode node = nodes.get(1+rand.nextInt(nodes.size()-1));
+			switch (rand.nextInt(5))
+			{
+				case 0:
+					node.setLabel(LABELS[rand.nextInt(LABELS.length)]);
+					break;
+				case 1:
+					node.removeFromParent();
+					break;
+				case 2:
+					node.add(buildTree(rand, 2, 3));
+					break;
+				case 3:
+					node.insert(buildTree(rand, 1, 3), rand.nextInt(node.getChildCount()+1));
+					break;
+				default:
+					node.setIndexed(node.isIndexed() == false);
+					break;
+			}
+
+			if (i % 100 == 0)
+			{
+				if (checkSearches("after "+i+" changes", root, rand) == false)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/** Checks that a node added to a second tree while still attached to a first is no longer found by the first tree's index.
+	 */
+	private void testMoveBetweenTrees()
+	{
+		TreeMapNode root1 = new TreeMapNode("root1");
+		TreeMapNode root2 = new TreeMapNode("root2");
+		TreeMapNode branch = new TreeMapNode("branch");
+		TreeMapNode leaf = new TreeMapNode("leaf");
+		root1.add(branch);
+		branch.add(leaf);
+		root1.setIndexed(true);
+		root2.setIndexed(true);
+
+		root2.add(branch);
+		if ((root1.findNode("leaf") != null) || (root1.findNodeByPath("branch") != null))
+		{
+			fail("move between trees: node still found in the index of the tree it was moved from.");
+		}
+		if ((root2.findNode("leaf") != leaf) || (root2.findNodeByPath("branch", "leaf") != leaf))
+		{
+			fail("move between trees: node not found in the index of the tree it was moved to.");
+		}
+	}
+
+	/** Checks that a deep tree built from the root downwards can be indexed and searched.
+	 */
+	private void testDeepTree()
+	{
+		TreeMapNode root = new TreeMapNode("root");
+		TreeMapNode node = root;
+		for (int i=0; i<DEEP_TREE_DEPTH; i++)
+		{
+			TreeMapNode child = new TreeMapNode("node "+i);
+			node.add(child);
+			node = child;
+		}
+
+		try
+		{
+			root.setIndexed(true);
+			if (root.findNode("node "+(DEEP_TREE_DEPTH-1)) != node)
+			{
+				fail("deep tree: deepest node not found.");
+			}
+			if (root.getChildren().get(0).findNode("node 0") != null)
+			{
+				fail("deep tree: node found below itself.");
+			}
+		}
+		catch (StackOverflowError e)
+		{
+			fail("deep tree: stack overflow when indexing a tree of depth "+DEEP_TREE_DEPTH+".");
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Builds a tree with randomly chosen labels.
+	 *  @param rand Random number generator used to choose the labels and number of children.
+	 *  @param depth Number of levels below the root of the tree.
+	 *  @param maxChildren Maximum number of children of each branch.
+	 *  @return Root of the new tree.
+	 */
+	private static TreeMapNode buildTree(Random rand, int depth, int maxChildren)
+	{
+		TreeMapNode node = new TreeMapNode(LABELS[rand.nextInt(LABELS.length)]);
+		if (depth > 0)
+		{
+			int numChildren = 1+rand.nextInt(maxChildren);
+			for (int i=0; i<numChildren; i++)
+			{
+				node.add(buildTree(rand, depth-1, maxChildren));
+			}
+		}
+		return node;
+	}
+
+	/** Compares indexed searches from every node of the given tree with searches of the hierarchy.
+	 *  @param name Description of the state of the tree being checked.
+	 *  @param root Root of the tree to search.
+	 *  @param rand Random number generator used to choose paths to search for.
+	 *  @return True if all searches found the expected node.
+	 */
+	private boolean checkSearches(String name, TreeMapNode root, Random rand)
+	{
+		int numFailuresBefore = numFailures;
+		List<TreeMapNode> nodes = collectNodes(root);
+		for (TreeMapNode start : nodes)
+		{
+			for (String label : LABELS)
+			{
+				TreeMapNode expected = searchHierarchy(start, label);
+				TreeMapNode found = start.findNode(label);
+				if (found != expected)
+				{
+					fail(name+": findNode(\""+label+"\") from "+describe(start)+" found "+describe(found)+" rather than "+describe(expected)+".");
+				}
+			}
+
+			// Search for the path to a random descendant.
+			List<String> path = new ArrayList<String>();
+			TreeMapNode node = start;
+			while ((node.getChildCount() > 0) && (rand.nextInt(4) > 0))
+			{
+				node = node.getChildren().get(rand.nextInt(node.getChildCount()));
+				path.add(node.getLabel());
+			}
+			String[] pathLabels = path.toArray(new String[path.size()]);
+			TreeMapNode expected = followPath(start, pathLabels);
+			TreeMapNode found = start.findNodeByPath(pathLabels);
+			if (found != expected)
+			{
+				fail(name+": findNodeByPath("+path+") from "+describe(start)+" found "+describe(found)+" rather than "+describe(expected)+".");
+			}
+		}
+		return numFailures == numFailuresBefore;
+	}
+
+	/** Finds the first descendant with the given label in a breadth-first search of the hierarchy.
+	 *  @param start Node whose descendants are searched.
+	 *  @param label Label to search for.
+	 *  @return Matching node or null if none found.
+	 */
+	private static TreeMapNode searchHierarchy(TreeMapNode start, String label)
+	{
+		LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>(start.getChildren());
+		while (queue.isEmpty() == false)
+		{
+			TreeMapNode node = queue.removeFirst();
+			if (node.getLabel().equals(label))
+			{
+				return node;
+			}
+			queue.addAll(node.getChildren());
+		}
+		return null;
+	}
+
+	/** Follows the given labels down the hierarchy, taking the first child with each label.
+	 *  @param start Node from which to follow the path.
+	 *  @param pathLabels Labels of the nodes on the path.
+	 *  @return Node at the end of the path or null if there is no such path.
+	 */
+	private static TreeMapNode followPath(TreeMapNode start, String[] pathLabels)
+	{
+		TreeMapNode node = start;
+		for (String label : pathLabels)
+		{
+			TreeMapNode next = null;
+			for (TreeMapNode child : node.getChildren())
+			{
+				if (child.getLabel().equals(label))
+				{
+					next = child;
+					break;
+				}
+			}
+			if (next == null)
+			{
+				return null;
+			}
+			node = next;
+		}
+		return node;
+	}
+
+	/** Provides all the nodes of the given tree in depth-first order.
+	 *  @param root Root of the tree.
+	 *  @return List of the nodes of the tree, starting with the root.
+	 */
+	private static List<TreeMapNode> collectNodes(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		LinkedList<TreeMapNode> stack = new LinkedList<TreeMapNode>();
+		stack.add(root);
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode node = stack.removeLast();
+			nodes.add(node);
+			stack.addAll(node.getChildren());
+		}
+		return nodes;
+	}
+
+	/** Describes the given node by its label and level.
+	 *  @param node Node to describe, which may be null.
+	 *  @return Description of the node.
+	 */
+	private static String describe(TreeMapNode node)
+	{
+		if (node == null)
+		{
+			return "nothing";
+		}
+		int level = 0;
+		for (TreeMapNode ancestor = node.getParent(); ancestor != null; ancestor = ancestor.getParent())
+		{
+			level++;
+		}
+		return "'"+node.getLabel()+"' at level "+level+" (id "+System.identityHashCode(node)+")";
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
@@ -0,0 +1,360 @@
+package org.gicentre.tests;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.gicentre.treemappa.TraversalOrder;
+import org.gicentre.treemappa.TreeMapNode;
+
+//  ****************************************************************************************
+/** Tests the traversal of tree map hierarchies with spliterators and streams. Every traversal
+ *  should provide each descendant of its start node exactly once, ordered traversals should
+ *  match the order of a sequential search of the hierarchy whether or not they are split, and
+ *  trees too deep to be traversed recursively should be traversed without error.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//  ****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class TreeMapStreamTest
+{
+	// ----------------------------- Object variables ------------------------------
+
+	private static final int NUM_TREES = 20;			// Number of random trees traversed.
+	private static final int DEEP_TREE_DEPTH = 50000;	// Depth of tree too deep to be traversed recursively.
+
+	private int numFailures;
+
+	// ------------------------------ Starter method -------------------------------
+
+	/** Runs the tests, exiting with a non-zero status if any fail.
+	 *  @param args Command line arguments (ignored).
+	 */
+	public static void main(String[] args)
+	{
+		TreeMapStreamTest test = new TreeMapStreamTest();
+		test.testSequentialOrder();
+		test.testSplitting();
+		test.testParallelStreams();
+		test.testDeepTree();
+
+		if (test.numFailures > 0)
+		{
+			System.err.println(test.numFailures+" stream test(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All stream tests passed.");
+	}
+
+	// ------------------------------- Test methods --------------------------------
+
+	/** Checks that sequential traversals provide the nodes in the order of a search of the hierarchy.
+	 */
+	private void testSequentialOrder()
+	{
+		Random rand = new Random(1);
+		for (int t=0; t<NUM_TREES; t++)
+		{
+			TreeMapNode root = buildTree(rand, 1+rand.nextInt(5), 1+rand.nextInt(6));
+
+			List<TreeMapNode> iterated = new ArrayList<TreeMapNode>();
+			for (Iterator<TreeMapNode> i=root.iterator(); i.hasNext(); )
+			{
+				iterated.add(i.next());
+			}
+			checkSameOrder("level order stream of tree "+t, levelOrder(root), root.stream().collect(Collectors.<TreeMapNode>toList()));
+			checkSameOrder("iterator of tree "+t, levelOrder(root), iterated);
+			checkSameOrder("depth-first stream of tree "+t, depthFirst(root),
+			               root.stream(TraversalOrder.DEPTH_FIRST).collect(Collectors.<TreeMapNode>toList()));
+			checkSameNodes("breadth-first stream of tree "+t, levelOrder(root),
+			               root.stream(TraversalOrder.BREADTH_FIRST).collect(Collectors.<TreeMapNode>toList()));
+		}
+	}
+
+	/** Checks that spliterators split repeatedly still provide every node once, that ordered spliterators keep their
+	 *  order when the parts are traversed in turn, and that sized spliterators report their exact sizes.
+	 */
+	private void testSplitting()
+	{
+		Random rand = new Random(2);
+		for (int t=0; t<NUM_TREES; t++)
+		{
+			TreeMapNode root = buildTree(rand, 1+rand.nextInt(5), 1+rand.nextInt(6));
+			for (TraversalOrder order : TraversalOrder.values())
+			{
+				List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+				collectSplit(order+" spliterator of tree "+t, root.spliterator(order), rand, nodes);
+				if (order == TraversalOrder.BREADTH_FIRST)
+				{
+					checkSameNodes(order+" split traversal of tree "+t, levelOrder(root), nodes);
+				}
+				else
+				{
+					checkSameOrder(order+" split traversal of tree "+t, (order == TraversalOrder.DEPTH_FIRST) ? depthFirst(root) : levelOrder(root), nodes);
+				}
+			}
+		}
+	}
+
+	/** Checks that parallel streams provide every node once and keep the encounter order of ordered traversals.
+	 */
+	private void testParallelStreams()
+	{
+		TreeMapNode root = buildTree(new Random(3), 5, 8);
+		List<TreeMapNode> expected = levelOrder(root);
+		checkSameOrder("parallel level order stream", expected, root.parallelStream().collect(Collectors.<TreeMapNode>toList()));
+		checkSameOrder("parallel depth-first stream", depthFirst(root),
+		               root.parallelStream(TraversalOrder.DEPTH_FIRST).collect(Collectors.<TreeMapNode>toList()));
+		checkSameNodes("parallel breadth-first stream", expected,
+		               root.parallelStream(TraversalOrder.BREADTH_FIRST).collect(Collectors.<TreeMapNode>toList()));
+
+		for (TraversalOrder order : TraversalOrder.values())
+		{
+			long count = root.parallelStream(order).count();
+			if (count != expected.size())
+			{
+				fail("parallel "+order+" stream counted "+count+" nodes rather than "+expected.size()+".");
+			}
+		}
+	}
+
+	/** Checks that a tree too deep to be traversed recursively can be streamed in every order.
+	 */
+	private void testDeepTree()
+	{
+		TreeMapNode root = new TreeMapNode("root");
+		TreeMapNode node = root;
+		for (int i=0; i<DEEP_TREE_DEPTH; i++)
+		{
+			TreeMapNode child = new TreeMapNode("node "+i);
+			node.add(child);
+			node = child;
+		}
+
+		for (TraversalOrder order : TraversalOrder.values())
+		{
+			try
+			{
+				long count = root.stream(order).count();
+				long parallelCount = root.parallelStream(order).count();
+				if ((count != DEEP_TREE_DEPTH) || (parallelCount != DEEP_TREE_DEPTH))
+				{
+					fail("deep tree: "+order+" streams counted "+count+" and "+parallelCount+" nodes rather than "+DEEP_TREE_DEPTH+".");
+				}
+			}
+			catch (StackOverflowError e)
+			{
+				fail("deep tree: stack overflow when streaming a tree of depth "+DEEP_TREE_DEPTH+" in "+order+".");
+			}
+		}
+	}
+
+	// ------------------------------ Private methods ------------------------------
+
+	/** Traverses the given spliterator after randomly splitting it, adding the nodes of the part split off before
+	 *  those of the remainder so that the encounter order is kept.
+	 *  @param name Description of the spliterator being traversed.
+	 *  @param spliterator Spliterator to traverse.
+	 *  @param rand Random number generator used to decide whether to split.
+	 *  @param nodes List to which the nodes provided are added.
+	 */
+	private void collectSplit(String name, Spliterator<TreeMapNode> spliterator, Random rand, final List<TreeMapNode> nodes)
+	{
+		int sizeBefore = nodes.size();
+		long exactSize = spliterator.getExactSizeIfKnown();
+
+		// Take a few nodes before splitting so that partly traversed spliterators are split too.
+		int numToTake = rand.nextInt(3);
+		for (int i=0; i<numToTake; i++)
+		{
+			spliterator.tryAdvance(new Consumer<TreeMapNode>()
+			{
+				public void accept(TreeMapNode node)
+				{
+					nodes.add(node);
+				}
+			});
+		}
+
+		Spliterator<TreeMapNode> prefix = (rand.nextInt(4) > 0) ? spliterator.trySplit() : null;
+		if (prefix != null)
+		{
+			collectSplit(name, prefix, rand, nodes);
+			collectSplit(name, spliterator, rand, nodes);
+		}
+		else
+		{
+			spliterator.forEachRemaining(new Consumer<TreeMapNode>()
+			{
+				public void accept(TreeMapNode node)
+				{
+					nodes.add(node);
+				}
+			});
+		}
+
+		if ((exactSize >= 0) && (nodes.size()-sizeBefore != exactSize))
+		{
+			fail(name+": reported size of "+exactSize+" but provided "+(nodes.size()-sizeBefore)+" nodes.");
+		}
+	}
+
+	/** Builds a tree with a random number of children at each branch.
+	 *  @param rand Random number generator used to choose the number of children.
+	 *  @param depth Number of levels below the root of the tree.
+	 *  @param maxChildren Maximum number of children of each branch.
+	 *  @return Root of the new tree.
+	 */
+	private static TreeMapNode buildTree(Random rand, int depth, int maxChildren)
+	{
+		TreeMapNode root = new TreeMapNode("root");
+		List<TreeMapNode> branches = new ArrayList<TreeMapNode>();
+		branches.add(root);
+		for (int level=1; level<=depth; level++)
+		{
+			List<TreeMapNode> nextBranches = new ArrayList<TreeMapNode>();
+			for (TreeMapNode branch : branches)
+			{
+				// Some branches at each level have no children so that leaves are found at several depths.
+				int numChildren = (level > 1) && (rand.nextInt(4) == 0) ? 0 : 1+rand.nextInt(maxChildren);
+				for (int i=0; i<numChildren; i++)
+				{
+					TreeMapNode child = new TreeMapNode("node "+level+"."+nextBranches.size());
+					branch.add(child);
+					nextBranches.add(child);
+				}
+			}
+			branches = nextBranches;
+		}
+		return root;
+	}
+
+	/** Provides the descendants of the given node level by level, each level in sibling order.
+	 *  @param root Node whose descendants are found.
+	 *  @return Descendants of the node in level order.
+	 */
+	private static List<TreeMapNode> levelOrder(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>(root.getChildren());
+		while (queue.isEmpty() == false)
+		{
+			TreeMapNode node = queue.removeFirst();
+			nodes.add(node);
+			queue.addAll(node.getChildren());
+		}
+		return nodes;
+	}
+
+	/** Provides the descendants of the given node in pre-order depth-first order.
+	 *  @param root Node whose descendants are found.
+	 *  @return Descendants of the node, each followed by its own descendants.
+	 */
+	private static List<TreeMapNode> depthFirst(TreeMapNode root)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		LinkedList<TreeMapNode> stack = new LinkedList<TreeMapNode>();
+		List<TreeMapNode> children = root.getChildren();
+		for (int i=children.size()-1; i>=0; i--)
+		{
+			stack.addLast(children.get(i));
+		}
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode node = stack.removeLast();
+			nodes.add(node);
+			children = node.getChildren();
+			for (int i=children.size()-1; i>=0; i--)
+			{
+				stack.addLast(children.get(i));
+			}
+		}
+		return nodes;
+	}
+
+	/** Checks that two lists contain the same nodes in the same order.
+	 *  @param name Description of the traversal being checked.
+	 *  @param expected Nodes in their expected order.
+	 *  @param actual Nodes provided by the traversal.
+	 */
+	private void checkSameOrder(String name, List<TreeMapNode> expected, List<TreeMapNode> actual)
+	{
+		if (expected.size() != actual.size())
+		{
+			fail(name+": provided "+actual.size()+" nodes rather than "+expected.size()+".");
+			return;
+		}
+		for (int i=0; i<expected.size(); i++)
+		{
+			if (expected.get(i) != actual.get(i))
+			{
+				fail(name+": node "+i+" was '"+actual.get(i).getLabel()+"' rather than '"+expected.get(i).getLabel()+"'.");
+				return;
+			}
+		}
+	}
+
+	/** Checks that two lists contain the same nodes, each exactly once, in any order.
+	 *  @param name Description of the traversal being checked.
+	 *  @param expected Nodes that should be provided.
+	 *  @param actual Nodes provided by the traversal.
+	 */
+	private void checkSameNodes(String name, List<TreeMapNode> expected, List<TreeMapNode> actual)
+	{
+		Map<TreeMapNode,Integer> counts = new IdentityHashMap<TreeMapNode,Integer>();
+		for (TreeMapNode node : expected)
+		{
+			counts.put(node, Integer.valueOf(0));
+		}
+		for (TreeMapNode node : actual)
+		{
+			Integer count = counts.get(node);
+			if (count == null)
+			{
+				fail(name+": provided '"+node.getLabel()+"' which is not a descendant of the start node.");
+				return;
+			}
+			if (count.intValue() > 0)
+			{
+				fail(name+": provided '"+node.getLabel()+"' more than once.");
+				return;
+			}
+			counts.put(node, Integer.valueOf(1));
+		}
+		if (actual.size() != expected.size())
+		{
+			fail(name+": provided "+actual.size()+" nodes rather than "+expected.size()+".");
+		}
+	}
+
+	/** Records a test failure.
+	 *  @param message Description of the failure.
+	 */
+	private void fail(String message)
+	{
+		System.err.println("FAILED "+message);
+		numFailures++;
+	}
+}
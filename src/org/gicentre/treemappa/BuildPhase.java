@@ -0,0 +1,59 @@
+package org.gicentre.treemappa;
+
+//  ***********************************************************************
+/** Represents the stages of reading, building, drawing and writing a treemap.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public enum BuildPhase 
+{ 
+	/** Indicates reading of the tree data. */					READ,
+	/** Indicates sorting of the nodes at each level. */		SORT,
+	/** Indicates calculation of node areas. */					AREA,
+	/** Indicates layout of the nodes. */						LAYOUT,
+	/** Indicates identification of adjacent nodes. */			ADJACENCY,
+	/** Indicates creation of the panels that display nodes. */	PANELS,
+	/** Indicates drawing of the treemap image. */				RENDER,
+	/** Indicates writing of the treemap output. */				WRITE;
+
+	public String toString()
+	{
+		switch (this)
+		{
+			case READ:
+				return "Reading data";
+			case SORT:
+				return "Sorting nodes";
+			case AREA:
+				return "Computing areas";
+			case LAYOUT:
+				return "Laying out nodes";
+			case ADJACENCY:
+				return "Building adjacencies";
+			case PANELS:
+				return "Creating node panels";
+			case RENDER:
+				return "Drawing treemap";
+			case WRITE:
+				return "Generating output";
+			default:
+				return super.toString();		// We shouldn't ever get to this line.		
+		}	
+	}
+}
@@ -0,0 +1,64 @@
+package org.gicentre.treemappa;
+
+//********************************************************************************************
+/** Allows a request to cancel the reading, building or writing of a treemap to be made from
+ *  another thread. Cancellation is cooperative: the treemap checks the token at regular
+ *  intervals and abandons the current operation, reporting failure, once it has been cancelled.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class CancellationToken 
+{
+	// ----------------- Object variables -------------------
+
+	private volatile boolean isCancelled;
+
+	// ------------------ Constructor ----------------------
+
+	/** Creates a token that has not been cancelled.
+	 */
+	public CancellationToken()
+	{
+		isCancelled = false;
+	}
+
+	// --------------------- Methods -------------------------
+
+	/** Requests cancellation of any operation using this token. Can be called from any thread.
+	 */
+	public void cancel()
+	{
+		isCancelled = true;
+	}
+
+	/** Clears any cancellation request so that the token can be reused.
+	 */
+	public void reset()
+	{
+		isCancelled = false;
+	}
+
+	/** Reports whether cancellation has been requested.
+	 *  @return True if cancellation has been requested.
+	 */
+	public boolean isCancelled()
+	{
+		return isCancelled;
+	}
+}
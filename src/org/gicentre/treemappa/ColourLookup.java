@@ -0,0 +1,209 @@
+package org.gicentre.treemappa;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gicentre.utils.colour.ColourTable;
+
+//***************************************************************************************************
+/** Resolves treemap colour values into colours using a dense lookup table built from a colour table.
+ *  The table is sampled once over the range of colour values found in a tree, so colouring each node
+ *  requires only an array lookup. All colours are interned, so nodes sharing a colour share the same
+ *  <code>Color</code> object and no colour objects are created per node. If all colour values are whole
+ *  numbers within a moderate range, each value is given its own entry so colours are exact. Otherwise the
+ *  range is sampled at regular intervals, with values between samples interpolated from the samples either
+ *  side so that smooth colour ramps are not broken into bands. Any interval containing a sharp change in
+ *  colour (such as a boundary between discrete colour rules) is resolved directly from the colour table.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ***************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class ColourLookup
+{
+	// --------------------------------- Class and object variables ----------------------------------
+
+	private static final int NUM_SAMPLES = 4096;		// Number of intervals when sampling a continuous range.
+	private static final int MAX_INTEGER_RANGE = 65536;	// Largest range of whole number values given exact entries.
+	private static final int MAX_CHANNEL_STEP = 2;		// Largest change in a colour channel between samples before direct lookup.
+
+	private ColourTable cTable;
+	private Map<Integer,Color> interned;		// Unique colour objects keyed by their ARGB value.
+	private Color[] samples;					// Interned colours at each sample point.
+	private boolean[] isEdge;					// Indicates intervals that must be resolved directly.
+	private float minValue,step;
+	private boolean isExact;					// True if there is one sample per whole number value.
+
+	// ------------------------------------------ Constructor ------------------------------------------
+
+	/** Creates a lookup table for the given colour table covering the colour values of the given tree.
+	 *  @param cTable Colour table from which to build the lookup table.
+	 *  @param root Root of the tree whose colour values are to be resolved.
+	 */
+	ColourLookup(ColourTable cTable, TreeMapNode root)
+	{
+		this.cTable = cTable;
+		this.interned = new HashMap<Integer,Color>();
+
+		// Find the range of colour values in the tree.
+		float minVal = Float.MAX_VALUE;
+		float maxVal = -Float.MAX_VALUE;
+		boolean allIntegers = true;
+		for (TreeMapNode node : root)
+		{
+			Float colourValue = node.getColourValue();
+			if (colourValue != null)
+			{
+				float value = colourValue.floatValue();
+				minVal = Math.min(minVal, value);
+				maxVal = Math.max(maxVal, value);
+				if (value != Math.rint(value))
+				{
+					allIntegers = false;
+				}
+			}
+		}
+
+		if (minVal > maxVal)
+		{
+			// No colour values so everything is resolved directly.
+			samples = new Color[0];
+			return;
+		}
+
+		minValue = minVal;
+		if (allIntegers && (maxVal-minVal <= MAX_INTEGER_RANGE))
+		{
+			isExact = true;
+			step = 1;
+			samples = new Color[(int)(maxVal-minVal)+1];
+			for (int i=0; i<samples.length; i++)
+			{
+				samples[i] = intern(cTable.findColour(minVal+i));
+			}
+			return;
+		}
+
+		step = (maxVal-minVal)/NUM_SAMPLES;
+		samples = new Color[NUM_SAMPLES+1];
+		isEdge = new boolean[NUM_SAMPLES];
+		for (int i=0; i<samples.length; i++)
+		{
+			samples[i] = intern(cTable.findColour(minVal+i*step));
+			if ((i > 0) && (isSmooth(samples[i-1].getRGB(), samples[i].getRGB()) == false))
+			{
+				isEdge[i-1] = true;
+			}
+		}
+	}
+
+	// -------------------------------------------- Methods --------------------------------------------
+
+	/** Provides the colour associated with the given colour value. This will be a shared colour object,
+	 *  so should not be assumed to be unique to any one node.
+	 *  @param colourValue Value to be mapped to a colour.
+	 *  @return Colour associated with the given value.
+	 */
+	Color getColour(float colourValue)
+	{
+		float offset = (colourValue-minValue)/step;
+		if ((offset >= 0) && (offset <= samples.length-1))
+		{
+			if (isExact)
+			{
+				if (offset == (int)offset)
+				{
+					return samples[(int)offset];
+				}
+			}
+			else
+			{
+				int interval = Math.min((int)offset, isEdge.length-1);
+				if (isEdge[interval] == false)
+				{
+					// Interpolate between the samples either side in a smoothly varying interval.
+					return interpolate(samples[interval], samples[interval+1], offset-interval);
+				}
+			}
+		}
+
+		// Value not covered by the lookup table or lies close to a sharp change in colour.
+		return intern(cTable.findColour(colourValue));
+	}
+
+	/** Provides the colour object representing the given ARGB value, creating it only if it has not been
+	 *  requested before.
+	 *  @param argb Colour value in ARGB format.
+	 *  @return Shared colour object representing the given value.
+	 */
+	synchronized Color intern(int argb)
+	{
+		Color colour = interned.get(Integer.valueOf(argb));
+		if (colour == null)
+		{
+			colour = new Color(argb,true);
+			interned.put(Integer.valueOf(argb), colour);
+		}
+		return colour;
+	}
+
+	/** Provides the colour lying the given proportion of the way between two sample colours. As the samples
+	 *  in a smooth interval differ by no more than a few steps in each channel, only a handful of distinct
+	 *  colours are ever interned for each interval.
+	 *  @param colour1 Colour at the start of the interval.
+	 *  @param colour2 Colour at the end of the interval.
+	 *  @param t Proportion of the way along the interval, between 0 and 1.
+	 *  @return Shared colour object representing the interpolated colour.
+	 */
+	private Color interpolate(Color colour1, Color colour2, float t)
+	{
+		int argb1 = colour1.getRGB();
+		int argb2 = colour2.getRGB();
+		if (argb1 == argb2)
+		{
+			return colour1;
+		}
+
+		int argb = 0;
+		for (int shift=0; shift<32; shift+=8)
+		{
+			int channel1 = (argb1 >> shift) & 0xff;
+			int channel2 = (argb2 >> shift) & 0xff;
+			argb |= Math.round(channel1 + (channel2-channel1)*t) << shift;
+		}
+		return intern(argb);
+	}
+
+	/** Reports whether two neighbouring samples differ by little enough to be treated as a smooth change.
+	 *  @param argb1 First colour in ARGB format.
+	 *  @param argb2 Second colour in ARGB format.
+	 *  @return True if no channel changes by more than the permitted step.
+	 */
+	private static boolean isSmooth(int argb1, int argb2)
+	{
+		for (int shift=0; shift<32; shift+=8)
+		{
+			int diff = ((argb1 >> shift) & 0xff) - ((argb2 >> shift) & 0xff);
+			if (Math.abs(diff) > MAX_CHANNEL_STEP)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,180 @@
+package org.gicentre.treemappa;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+
+//***************************************************************************************************
+/** Accumulates the displacement vectors of a set of treemap nodes into a single path so that they can
+ *  be drawn with one call rather than one call per node. Arrows can optionally be culled if they are
+ *  shorter than a given length or lie outside the region being drawn.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ***************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class DisplacementBatch
+{
+	// --------------------------------- Object variables ----------------------------------
+
+	private Path2D.Float path;			// All arrows added to the batch.
+	private float lineWidth;
+	private boolean showHead;
+	private double minLength;			// Arrows shorter than this are not added.
+	private int numArrows;
+
+	// ----------------------------------- Constructor -------------------------------------
+
+	/** Creates an empty batch of displacement arrows.
+	 *  @param lineWidth Width of the arrow lines, used to determine the arrow head size.
+	 *  @param showHead Arrow heads drawn if true.
+	 *  @param minLength Arrows shorter than this length in pixels are culled. If 0, no arrows are culled by length.
+	 */
+	DisplacementBatch(float lineWidth, boolean showHead, double minLength)
+	{
+		this.path = new Path2D.Float(Path2D.WIND_NON_ZERO, 256);
+		this.lineWidth = lineWidth;
+		this.showHead = showHead;
+		this.minLength = minLength;
+		this.numArrows = 0;
+	}
+
+	// ------------------------------------- Methods ---------------------------------------
+
+	/** Adds an arrow from (p1x,p1y) to (p2x,p2y) to the batch unless it is too short or lies outside the given region.
+	 *  @param p1x x coordinate of the start point of the arrow.
+	 *  @param p1y y coordinate of the start point of the arrow.
+	 *  @param p2x x coordinate of the end point of the arrow.
+	 *  @param p2y y coordinate of the end point of the arrow.
+	 *  @param region Region being drawn, or null if the arrow should not be culled by location.
+	 *  @return True if the arrow was added, false if it was culled.
+	 */
+	boolean add(float p1x, float p1y, float p2x, float p2y, Rectangle2D region)
+	{
+		if (isTooShort(p1x, p1y, p2x, p2y, minLength))
+		{
+			return false;
+		}
+
+		if (region != null)
+		{
+			// Curve lies within the triangle formed by its end and control points, and the head lies close to its end.
+			float x = (p2x-p1x)/4f;
+			float y = (p2y-p1y)/4f;
+			double cx = p1x + x*Math.cos(TreeMapPanel.CURVE_ANGLE) - y*Math.sin(TreeMapPanel.CURVE_ANGLE);
+			double cy = p1y + y*Math.cos(TreeMapPanel.CURVE_ANGLE) + x*Math.sin(TreeMapPanel.CURVE_ANGLE);
+			double pad = lineWidth*4;
+			double minX = Math.min(p1x, Math.min(p2x, cx)) - pad;
+			double minY = Math.min(p1y, Math.min(p2y, cy)) - pad;
+			double maxX = Math.max(p1x, Math.max(p2x, cx)) + pad;
+			double maxY = Math.max(p1y, Math.max(p2y, cy)) + pad;
+			if (region.intersects(minX, minY, maxX-minX, maxY-minY) == false)
+			{
+				return false;
+			}
+		}
+
+		appendArrow(path, p1x, p1y, p2x, p2y, lineWidth, showHead);
+		numArrows++;
+		return true;
+	}
+
+	/** Draws all arrows in the batch with the given stroke and colour.
+	 *  @param g Graphics context in which to draw.
+	 *  @param stroke Stroke used to draw the arrows.
+	 *  @param colour Colour of the arrows.
+	 */
+	void draw(Graphics2D g, Stroke stroke, Color colour)
+	{
+		if (numArrows > 0)
+		{
+			g.setColor(colour);
+			g.setStroke(stroke);
+			g.draw(path);
+		}
+	}
+
+	/** Reports the number of arrows in the batch.
+	 *  @return Number of arrows added.
+	 */
+	int getNumArrows()
+	{
+		return numArrows;
+	}
+
+	/** Reports whether an arrow between the two given points is shorter than the given minimum length.
+	 *  @param p1x x coordinate of the start point of the arrow.
+	 *  @param p1y y coordinate of the start point of the arrow.
+	 *  @param p2x x coordinate of the end point of the arrow.
+	 *  @param p2y y coordinate of the end point of the arrow.
+	 *  @param minLength Minimum length of arrow, or 0 if no arrows are too short.
+	 *  @return True if the arrow is shorter than the minimum length.
+	 */
+	static boolean isTooShort(double p1x, double p1y, double p2x, double p2y, double minLength)
+	{
+		if (minLength <= 0)
+		{
+			return false;
+		}
+		double dx = p2x-p1x;
+		double dy = p2y-p1y;
+		return dx*dx + dy*dy < minLength*minLength;
+	}
+
+	/** Adds a curved arrow between the two given points to the given path. Greater angular change is at the
+	 *  source of the arrow (p1), in order to provide a visual indication of direction. See Fekete, J.D, Wang, D.,
+	 *  Dang, N., Aris, A. and Plaisant, C. 'Overlaying Graph Links on TreeMaps', Information Visualisation
+	 *  Poster Compendium, pp.82-83. This is the only place arrow geometry is calculated, so SVG output traces
+	 *  the path built here rather than calculating its own.
+	 *  @param path Path to which the arrow is added.
+	 *  @param p1x x coordinate of the start point of the arrow.
+	 *  @param p1y y coordinate of the start point of the arrow.
+	 *  @param p2x x coordinate of the end point of the arrow.
+	 *  @param p2y y coordinate of the end point of the arrow.
+	 *  @param lineWidth Width of the arrow line, used to determine the arrow head size.
+	 *  @param showHead Arrow head drawn if true.
+	 */
+	static void appendArrow(Path2D path, double p1x, double p1y, double p2x, double p2y, double lineWidth, boolean showHead)
+	{
+		// Set the control point to 60 to the right of the vector, along a quarter its length
+		double x = (p2x-p1x)/4.0;
+		double y = (p2y-p1y)/4.0;
+		double cx = p1x + x*Math.cos(TreeMapPanel.CURVE_ANGLE) - y*Math.sin(TreeMapPanel.CURVE_ANGLE);
+		double cy = p1y + y*Math.cos(TreeMapPanel.CURVE_ANGLE) + x*Math.sin(TreeMapPanel.CURVE_ANGLE);
+
+		double arrowSize = lineWidth*2;          // Size of the arrow segments
+
+		double ex = p2x - cx;
+		double ey = p2y - cy;
+		double absE = Math.sqrt(ex*ex + ey*ey);
+		ex /= absE;
+		ey /= absE;
+
+		// Creating curved arrow.
+		path.moveTo(p1x, p1y);
+		path.quadTo(cx, cy, p2x, p2y);
+
+		if (showHead)
+		{
+			path.lineTo(p2x + (ey-ex)*arrowSize, p2y - (ex + ey)*arrowSize);
+			path.moveTo(p2x, p2y);
+			path.lineTo(p2x - (ey + ex)*arrowSize, p2y + (ex - ey)*arrowSize);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package org.gicentre.treemappa;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//********************************************************************************************
+/** Metrics registry that stores counts in memory. Counts can be queried individually or 
+ *  provided together as a JSON object. The registry is safe to use from more than one thread.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class InMemoryMetricsRegistry implements MetricsRegistry
+{
+	// ----------------- Object variables -------------------
+
+	private ConcurrentMap<String,AtomicLong> counters;
+
+	// ------------------ Constructor ----------------------
+
+	/** Creates an empty registry.
+	 */
+	public InMemoryMetricsRegistry()
+	{
+		counters = new ConcurrentHashMap<String,AtomicLong>();
+	}
+
+	// --------------------- Methods -------------------------
+
+	/** Reports that counts are being collected.
+	 *  @return Always true.
+	 */
+	public boolean isEnabled()
+	{
+		return true;
+	}
+
+	/** Adds the given amount to the counter with the given name, creating the counter if necessary.
+	 *  @param counter Name of the counter to update.
+	 *  @param amount Amount to add to the counter.
+	 */
+	public void add(String counter, long amount)
+	{
+		AtomicLong count = counters.get(counter);
+		if (count == null)
+		{
+			AtomicLong newCount = new AtomicLong();
+			count = counters.putIfAbsent(counter, newCount);
+			if (count == null)
+			{
+				count = newCount;
+			}
+		}
+		count.addAndGet(amount);
+	}
+
+	/** Reports the current value of the counter with the given name.
+	 *  @param counter Name of the counter to query.
+	 *  @return Value of the counter, or 0 if it has not been updated.
+	 */
+	public long getCount(String counter)
+	{
+		AtomicLong count = counters.get(counter);
+		return count == null ? 0 : count.get();
+	}
+
+	/** Reports the current value of all counters that have been updated.
+	 *  @return Snapshot of counter values sorted by counter name.
+	 */
+	public Map<String,Long> getCounts()
+	{
+		Map<String,Long> counts = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> entry : counters.entrySet())
+		{
+			counts.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return counts;
+	}
+
+	/** Removes all counters from the registry.
+	 */
+	public void reset()
+	{
+		counters.clear();
+	}
+
+	/** Provides the current value of all counters as a JSON object with one member per counter.
+	 *  @return JSON representation of the counters.
+	 */
+	public String toJSON()
+	{
+		StringBuilder json = new StringBuilder("{");
+		boolean isFirst = true;
+		for (Map.Entry<String,Long> entry : getCounts().entrySet())
+		{
+			if (!isFirst)
+			{
+				json.append(',');
+			}
+			json.append("\n  \"");
+			appendEscaped(json, entry.getKey());
+			json.append("\": ").append(entry.getValue());
+			isFirst = false;
+		}
+		json.append(isFirst ? "}" : "\n}");
+		return json.toString();
+	}
+
+	/** Writes the current value of all counters as a JSON file.
+	 *  @param fileName Name of the JSON file to write.
+	 *  @return True if the file was written successfully.
+	 */
+	public boolean writeJSON(String fileName)
+	{
+		try
+		{
+			BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+			out.write(toJSON());
+			out.newLine();
+			out.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing metrics to '"+fileName+"': "+e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/** Provides the current value of all counters as a JSON object.
+	 *  @return JSON representation of the counters.
+	 */
+	@Override
+	public String toString()
+	{
+		return toJSON();
+	}
+
+	// ------------------- Private Methods ----------------------
+
+	/** Adds the given text to the JSON output, escaping any quotes, backslashes and control characters.
+	 *  @param json JSON output to which the text is added.
+	 *  @param text Text to add.
+	 */
+	private static void appendEscaped(StringBuilder json, String text)
+	{
+		for (int i=0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if ((c == '"') || (c == '\\'))
+			{
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				json.append(String.format("\\u%04x", Integer.valueOf(c)));
+			}
+			else
+			{
+				json.append(c);
+			}
+		}
+	}
+}
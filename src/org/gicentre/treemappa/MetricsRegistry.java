@@ -0,0 +1,61 @@
+package org.gicentre.treemappa;
+
+//********************************************************************************************
+/** Interface for objects that collect counts of the work done while reading, building and 
+ *  writing a treemap. A registry can be supplied to a treemap with 
+ *  <code>TreeMappa.setMetricsRegistry()</code>. Counters are identified by name, and the names
+ *  of the counters updated by the treemap are provided as constants in this interface.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface MetricsRegistry 
+{
+	/** Counts the number of data rows successfully parsed from CSV input. */
+	public static final String ROWS_PARSED = "rowsParsed";
+
+	/** Counts the number of data rows rejected from CSV input. */
+	public static final String ROWS_REJECTED = "rowsRejected";
+
+	/** Counts the number of tree nodes created while reading data. */
+	public static final String NODES_CREATED = "nodesCreated";
+
+	/** Counts the number of nodes given a rectangle in the treemap layout. */
+	public static final String NODES_LAID_OUT = "nodesLaidOut";
+
+	/** Counts the number of nodes not laid out because they are too small to display. */
+	public static final String NODES_SKIPPED = "nodesSkipped";
+
+	/** Counts the number of times the aspect ratio of a candidate row of nodes is evaluated during layout. */
+	public static final String ASPECT_RATIO_EVALUATIONS = "aspectRatioEvaluations";
+
+	/** Prefix of the counters of bytes written. The output format (e.g. <code>bytesWritten.svg</code>) follows the prefix. */
+	public static final String BYTES_WRITTEN = "bytesWritten.";
+
+	/** Should report whether counts are being collected. Counts that are expensive to calculate are only
+	 *  calculated if this is true.
+	 *  @return True if counts are being collected.
+	 */
+	public abstract boolean isEnabled();
+
+	/** Should add the given amount to the counter with the given name. This may be called from more than one thread.
+	 *  @param counter Name of the counter to update.
+	 *  @param amount Amount to add to the counter.
+	 */
+	public abstract void add(String counter, long amount);
+}
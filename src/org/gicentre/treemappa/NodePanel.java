@@ -29,65 +29,65 @@ class NodePanel
 {
 	// --------------------------------- Object variables ----------------------------------
 
-	private Rectangle2D footprint;
-	private Point2D geoCentre;
+	private final NodePanelLayout layout;	// Layout holding the geometry and colour of this panel.
+	private int index;						// Position of this panel's geometry and colour in the layout.
+	private Color colour;					// Object representing the panel's colour, created when first needed.
 	private String label;
-	private Color colour;
 	private boolean isLeaf,isDummy;
 	private int level;
 
 	// ----------------------------------- Constructors ------------------------------------
 
-	/** Creates the visual representation of the tree map node with the
-	 *  given label and footprint. A colour based on the given hue is assigned to this node.
-	 *  @param label Textual label of the node.
-	 *  @param footprint Spatial bounds of the node. 
-	 *  @param geoCentre Geographic coordinates of node centroid. 
-	 *  @param isLeaf True if node represents a leaf.
-	 *  @param isDummy True if node is a blank dummy node.
-	 *  @param hue Hue value of the colour of this node.
-	 *  @param level Level of node (0 is root, 1 is child, 2 is grandchild etc.).
+	/** Creates an empty visual representation of a tree map node in the given layout. Its contents should
+	 *  be set with <code>update()</code> before it is used. Panels are reused when a layout is rebuilt, so
+	 *  a panel need only be created when a node is displayed for the first time.
+	 *  @param layout Layout in which the panel's geometry and colour are stored.
 	 */
-	NodePanel(TreeMapPanel tmPanel, String label, Rectangle2D footprint, Point2D geoCentre, boolean isLeaf, boolean isDummy, float hue, int level)
+	NodePanel(NodePanelLayout layout)
 	{
-		this(tmPanel,label,footprint,geoCentre,isLeaf,isDummy,hue, null,null,level);
+		this.layout = layout;
 	}
 
-	/** Creates the visual representation of the tree map node with the
-	 *  given label and footprint. If <code>colour</code> and <code>parentColour</code> are null,
-	 *  a random colour is assigned to this node. Otherwise, if <code>colour</code> is null but a
-	 *  parent colour is provided, a random perturbation of that parent colour is assigned.
+	// ------------------------------------- Methods ---------------------------------------
+
+	/** Updates the visual representation of the tree map node with the given label and footprint. If
+	 *  <code>colour</code> is null and no parent colour is inherited, a colour based on the given hue is assigned
+	 *  to this node. Otherwise, if <code>colour</code> is null but the parent colour is inherited, a random
+	 *  perturbation of that parent colour is assigned.
+	 *  @param tmPanel Treemap panel in which this node is displayed.
 	 *  @param label Textual label of the node.
-	 *  @param footprint Spatial bounds of the node. 
-	 *  @param geoCentre Geographic coordinates of node centroid.
+	 *  @param footprint Spatial bounds of the node. These are copied into the layout so the node's rectangle may be changed afterwards.
 	 *  @param isLeaf True if node represents a leaf.
 	 *  @param isDummy True if node is a blank dummy node.
 	 *  @param hue Hue value of the colour of this node if not explicitly identified by the <code>colour</code> parameter and no parent colour to inherit.
-	 *  @param colour Colour for this node, or null if to be generated by the constructor.
-	 *  @param parentColour Colour of parent node, or null if not assigned. 
+	 *  @param colour Colour for this node, or null if to be generated from the hue or parent colour.
+	 *  @param parentColour Colour of parent node in ARGB format.
+	 *  @param inheritColour True if the parent colour is to be perturbed to give this node's colour.
 	 *  @param level Level of node (0 is root, 1 is child, 2 is grandchild etc.).
 	 */
-	NodePanel(TreeMapPanel tmPanel, String label, Rectangle2D footprint, Point2D geoCentre, boolean isLeaf, boolean isDummy, float hue, Color colour, Color parentColour, int level)
+	void update(TreeMapPanel tmPanel, String label, Rectangle2D footprint, boolean isLeaf, boolean isDummy, float hue, Color colour, int parentColour, boolean inheritColour, int level)
 	{
 		this.label = label;
-		this.footprint = footprint;
-		this.geoCentre = geoCentre;
 		this.isLeaf = isLeaf;
 		this.isDummy = isDummy;
 		this.level = level;
+		layout.setGeometry(index, 0, footprint.getX());
+		layout.setGeometry(index, 1, footprint.getY());
+		layout.setGeometry(index, 2, footprint.getWidth());
+		layout.setGeometry(index, 3, footprint.getHeight());
 
 		float colourVar = tmPanel.getMutation()*127;		// Scale between 0-255
 
 		tmPanel.setBounds(footprint.getBounds());
 		if (colour == null)
 		{
-			if (parentColour == null)
+			if (inheritColour == false)
 			{
-				this.colour = Color.getHSBColor(hue, 0.4f, 0.8f);
+				layout.setColour(index, Color.HSBtoRGB(hue, 0.4f, 0.8f));
 			}
 			else
 			{
-				int newRed = (int)(parentColour.getRed() + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
+				int newRed = (int)(((parentColour >> 16) & 0xff) + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
 				if (newRed < 0)
 				{
 					newRed = 0;
@@ -97,7 +97,7 @@ class NodePanel
 					newRed = 255;
 				}
 
-				int newGreen= (int)(parentColour.getGreen() + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
+				int newGreen= (int)(((parentColour >> 8) & 0xff) + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
 				if (newGreen < 0)
 				{
 					newGreen = 0;
@@ -107,7 +107,7 @@ class NodePanel
 					newGreen = 255;
 				}
 
-				int newBlue = (int)(parentColour.getBlue() + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
+				int newBlue = (int)((parentColour & 0xff) + (tmPanel.getRand().nextFloat()-0.5)*colourVar);
 				if (newBlue < 0)
 				{
 					newBlue = 0;
@@ -117,29 +117,63 @@ class NodePanel
 					newBlue = 255;
 				}
 
-				this.colour = new Color(newRed,newGreen,newBlue);
+				layout.setColour(index, 0xff000000 | (newRed << 16) | (newGreen << 8) | newBlue);
 			}
 		}
 		else
 		{
+			// Colours from the colour table are shared objects so can be used directly.
+			layout.setColour(index, colour.getRGB());
 			this.colour = colour;
 		}
 	}
 
+	/** Sets the position of this panel's values in the layout's geometry and colour arrays.
+	 *  @param index Index of the panel in the layout.
+	 */
+	void setIndex(int index)
+	{
+		this.index = index;
+	}
+
+	/** Sets the geographic location of the node's centroid.
+	 *  @param x Horizontal position of the centroid in pixel coordinates.
+	 *  @param y Vertical position of the centroid in pixel coordinates.
+	 */
+	void setGeoCentre(double x, double y)
+	{
+		layout.setGeometry(index, 4, x);
+		layout.setGeometry(index, 5, y);
+	}
+
+	/** Indicates that this node has no geographic location.
+	 */
+	void removeGeoCentre()
+	{
+		layout.setGeometry(index, 4, Double.NaN);
+		layout.setGeometry(index, 5, Double.NaN);
+	}
+
 	/** Reports the spatial bounds of the node.
 	 *  @return Spatial bounds of the node (in pixel coordinates).
 	 */
 	Rectangle2D getBounds()
 	{
-		return footprint;
+		return new Rectangle2D.Double(layout.getGeometry(index,0), layout.getGeometry(index,1),
+									  layout.getGeometry(index,2), layout.getGeometry(index,3));
 	}
 
 	/** Reports the affine transformed geospatial location of the node. 
-	 *  @return Geospatial centre of the node (in pixel coordinates).
+	 *  @return Geospatial centre of the node (in pixel coordinates), or null if the node has no location.
 	 */
 	Point2D getGeoBounds()
 	{
-		return geoCentre;
+		double x = layout.getGeometry(index,4);
+		if (Double.isNaN(x))
+		{
+			return null;
+		}
+		return new Point2D.Double(x, layout.getGeometry(index,5));
 	}
 
 	/** Reports the textual label of the node.
@@ -150,24 +184,36 @@ class NodePanel
 		return label;
 	}
 
-	/** Reports the colour of the node. Non-leaf nodes have no colour.
-	 *  @return Colour of leaf node, or null if not a leaf.
+	/** Reports the colour of the node. The colour object is only created if the node's colour differs from
+	 *  the one it had when last requested.
+	 *  @return Colour of the node.
 	 */
 	Color getColour()
 	{
-		return colour;
+		int argb = layout.getColour(index);
+		Color nodeColour = colour;
+		if ((nodeColour == null) || (nodeColour.getRGB() != argb))
+		{
+			nodeColour = new Color(argb,true);
+			colour = nodeColour;
+		}
+		return nodeColour;
 	}
 
-	/** Reports the colour of the node as an HTML Hex string in the form '#rrggbb'. Non-leaf nodes have no colour.
-	 *  @return Colour of leaf node, or null if not a leaf.
+	/** Reports the colour of the node without creating a colour object.
+	 *  @return Colour of the node in ARGB format.
+	 */
+	int getRGB()
+	{
+		return layout.getColour(index);
+	}
+
+	/** Reports the colour of the node as an HTML Hex string in the form '#rrggbb'.
+	 *  @return Colour of the node.
 	 */
 	String getHexColour()
 	{
-		if (colour == null)
-		{
-			return null;
-		}
-		return new String("#"+Integer.toHexString((colour.getRGB() & 0xffffff) | 0x1000000).substring(1));
+		return new String("#"+Integer.toHexString((layout.getColour(index) & 0xffffff) | 0x1000000).substring(1));
 	}
 
 	/** Reports the depth of this node. 0 is the root node, 1 is a child of the root, 2 is a grandchild etc.
@@ -193,4 +239,4 @@ class NodePanel
 	{
 		return isDummy;
 	}
-}
\ No newline at end of file
+}
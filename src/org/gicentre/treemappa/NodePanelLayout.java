@@ -0,0 +1,249 @@
+package org.gicentre.treemappa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+//***************************************************************************************************
+/** The node panels making up one complete layout of a treemap panel, together with the values derived
+ *  from the tree when the layout was created. The geometry and colour of every panel are held in primitive
+ *  arrays owned by the layout. A layout is never changed once it has been built, so a new layout can be
+ *  built away from the threads displaying the current one and then replaced in a single step. Code drawing
+ *  or writing the treemap should acquire one layout, use it throughout and then release it. Once a layout
+ *  has been replaced and is no longer in use, it may be rebuilt for a later layout of the tree, reusing
+ *  its panels and arrays.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ***************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class NodePanelLayout
+{
+	// --------------------------------- Object variables ----------------------------------
+
+	private static final int GEOMETRY_SIZE = 6;		// Values stored for each panel: x, y, width, height, geoX, geoY.
+	private static final int INITIAL_CAPACITY = 64;	// Number of panels for which space is allocated in a new layout.
+
+	private final List<NodePanel> leaves,branches;
+	private final List<NodePanel> leafView,branchView;	// Read-only views of the leaf and branch lists.
+	private Map<TreeMapNode,NodePanel> panels;			// Panels of this layout keyed by the node they represent.
+	private Map<TreeMapNode,NodePanel> oldPanels;		// Panels of the previous use of this layout while it is rebuilt.
+	private double[] geometry;
+	private int[] colours;								// ARGB colour of each panel.
+	private int numPanels;
+	private double rootArea;							// Area of the root rectangle in the treemap.
+	private int maxDepth;								// Maximum depth of the tree.
+	private int numUsers;								// Number of current users of a built layout.
+	private boolean isBuilding, isRetired;
+
+	// ----------------------------------- Constructor -------------------------------------
+
+	/** Creates an empty layout ready for panels to be added with <code>addPanel()</code>. The layout
+	 *  may not be acquired until it has been completed with <code>finish()</code>.
+	 */
+	NodePanelLayout()
+	{
+		leaves = new ArrayList<NodePanel>();
+		branches = new ArrayList<NodePanel>();
+		leafView = Collections.unmodifiableList(leaves);
+		branchView = Collections.unmodifiableList(branches);
+		panels = new IdentityHashMap<TreeMapNode,NodePanel>();
+		oldPanels = new IdentityHashMap<TreeMapNode,NodePanel>();
+		geometry = new double[INITIAL_CAPACITY*GEOMETRY_SIZE];
+		colours = new int[INITIAL_CAPACITY];
+		isBuilding = true;
+	}
+
+	// ------------------------------------- Methods ---------------------------------------
+
+	/** Marks this layout as being in use so that it cannot be rebuilt until it is released.
+	 *  @return True if the layout was acquired, false if it is being rebuilt and so cannot be used.
+	 */
+	synchronized boolean acquire()
+	{
+		if (isBuilding)
+		{
+			return false;
+		}
+		numUsers++;
+		return true;
+	}
+
+	/** Indicates that a user of this layout acquired with <code>acquire()</code> has finished with it.
+	 */
+	synchronized void release()
+	{
+		numUsers--;
+	}
+
+	/** Indicates that this layout has been replaced, so it may be rebuilt once it is no longer in use.
+	 */
+	synchronized void retire()
+	{
+		isRetired = true;
+	}
+
+	/** Starts rebuilding this layout for a new layout of the tree, provided it has been retired and is no
+	 *  longer in use. Panels of the previous layout may then be reused by <code>addPanel()</code> before the
+	 *  layout is completed with <code>finish()</code>.
+	 *  @return True if the layout can be rebuilt, false if it is still in use and so cannot be changed.
+	 */
+	synchronized boolean rebuild()
+	{
+		if ((isRetired == false) || isBuilding || (numUsers > 0))
+		{
+			return false;
+		}
+		isBuilding = true;
+		isRetired = false;
+
+		Map<TreeMapNode,NodePanel> swap = oldPanels;
+		oldPanels = panels;
+		panels = swap;
+		leaves.clear();
+		branches.clear();
+		numPanels = 0;
+		return true;
+	}
+
+	/** Adds a panel representing the given node to the layout being built. The panel used to represent
+	 *  the node in the previous use of this layout is reused if there is one.
+	 *  @param node Tree node to be represented by the panel.
+	 *  @param isLeaf True if the panel represents a leaf.
+	 *  @return Panel to be updated with the node's appearance.
+	 */
+	NodePanel addPanel(TreeMapNode node, boolean isLeaf)
+	{
+		if (numPanels == colours.length)
+		{
+			geometry = Arrays.copyOf(geometry, 2*geometry.length);
+			colours = Arrays.copyOf(colours, 2*colours.length);
+		}
+
+		NodePanel panel = oldPanels.remove(node);
+		if (panel == null)
+		{
+			panel = new NodePanel(this);
+		}
+		panel.setIndex(numPanels++);
+		panels.put(node,panel);
+
+		if (isLeaf)
+		{
+			leaves.add(panel);
+		}
+		else
+		{
+			branches.add(panel);
+		}
+		return panel;
+	}
+
+	/** Completes the building of this layout, after which it may be acquired by code drawing or writing the
+	 *  treemap. Panels of the previous use of the layout that have not been reused are discarded.
+	 *  @param rootArea Area of the root rectangle in the treemap.
+	 *  @param maxDepth Maximum depth of the tree.
+	 */
+	synchronized void finish(double rootArea, int maxDepth)
+	{
+		this.rootArea = rootArea;
+		this.maxDepth = maxDepth;
+		oldPanels.clear();
+		isBuilding = false;
+	}
+
+	/** Reports the list of leaves in the layout.
+	 *  @return List of leaf panels.
+	 */
+	List<NodePanel> getLeaves()
+	{
+		return leafView;
+	}
+
+	/** Reports the list of branches in the layout.
+	 *  @return List of branch panels.
+	 */
+	List<NodePanel> getBranches()
+	{
+		return branchView;
+	}
+
+	/** Reports the total number of leaf and branch panels in the layout.
+	 *  @return Number of panels.
+	 */
+	int getNumPanels()
+	{
+		return numPanels;
+	}
+
+	/** Reports the area occupied by the root node of the tree when the layout was created.
+	 *  @return Root area.
+	 */
+	double getRootArea()
+	{
+		return rootArea;
+	}
+
+	/** Reports the maximum depth of the hierarchy when the layout was created.
+	 *  @return Maximum depth of the hierarchy.
+	 */
+	int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/** Reports one of the geometry values of a panel.
+	 *  @param index Index of the panel in the layout.
+	 *  @param field Geometry value to report: 0-3 for x, y, width and height; 4 and 5 for the geographic centre.
+	 *  @return Geometry value.
+	 */
+	double getGeometry(int index, int field)
+	{
+		return geometry[index*GEOMETRY_SIZE+field];
+	}
+
+	/** Sets one of the geometry values of a panel in the layout being built.
+	 *  @param index Index of the panel in the layout.
+	 *  @param field Geometry value to set: 0-3 for x, y, width and height; 4 and 5 for the geographic centre.
+	 *  @param value New geometry value.
+	 */
+	void setGeometry(int index, int field, double value)
+	{
+		geometry[index*GEOMETRY_SIZE+field] = value;
+	}
+
+	/** Reports the colour of a panel.
+	 *  @param index Index of the panel in the layout.
+	 *  @return Colour in ARGB format.
+	 */
+	int getColour(int index)
+	{
+		return colours[index];
+	}
+
+	/** Sets the colour of a panel in the layout being built.
+	 *  @param index Index of the panel in the layout.
+	 *  @param argb New colour in ARGB format.
+	 */
+	void setColour(int index, int argb)
+	{
+		colours[index] = argb;
+	}
+}
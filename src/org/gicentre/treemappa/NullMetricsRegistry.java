@@ -0,0 +1,54 @@
+package org.gicentre.treemappa;
+
+//********************************************************************************************
+/** Metrics registry that ignores all counts. This is the registry used by a treemap unless 
+ *  another is supplied, so that no counting overhead is added when metrics are not required.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class NullMetricsRegistry implements MetricsRegistry
+{
+	// ------------------ Constructor ----------------------
+
+	/** Creates a registry that ignores all counts.
+	 */
+	public NullMetricsRegistry()
+	{
+		super();
+	}
+
+	// --------------------- Methods -------------------------
+
+	/** Reports that counts are not being collected.
+	 *  @return Always false.
+	 */
+	public boolean isEnabled()
+	{
+		return false;
+	}
+
+	/** Ignores the given count.
+	 *  @param counter Name of the counter (ignored).
+	 *  @param amount Amount to add to the counter (ignored).
+	 */
+	public void add(String counter, long amount)
+	{
+		// Do nothing.
+	}
+}
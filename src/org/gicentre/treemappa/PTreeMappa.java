@@ -4,6 +4,8 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.gicentre.treemappa.gui.Drawable;
 import org.gicentre.treemappa.version.AbstractXML;
@@ -15,6 +17,7 @@ import org.w3c.dom.Node;
 
 import processing.core.PApplet;
 import processing.core.PConstants;
+import processing.core.PGraphics;
 import processing.core.PImage;
 
 //  ********************************************************************************
@@ -48,6 +51,19 @@ public class PTreeMappa
 	private Drawable renderer;		    	// Alternative renderer for sketchy graphics and other styles.
 	private VersionHandler versionHandler;	// To deal with difference between Processing 1.5.x and Processing 2.x.
 	
+	private boolean isRetained;				// Determines whether drawing uses a cached scene.
+	private float retainedResolution;		// Size of the cached scene image relative to the treemap.
+	private PGraphics sceneImage;			// Cached image of treemap nodes, borders and vectors.
+	private List<LabelPlacement> sceneLabels;	// Cached label placements or null if the scene needs rebuilding.
+	private TreeMapPanel scenePanel;		// Panel from which the cached scene was built.
+	private int sceneVersion;				// Image version of the panel when the cached scene was built.
+	private NodePanelLayout sceneLayout;	// Layout from which the cached scene was built, kept in use until it is rebuilt.
+	
+	private List<LabelPlacement> frameLabels;	// Label placements reused between frames in immediate mode, or null if they need placing.
+	private int[] frameLabelStarts;			// Index of the first placement of each leaf then each branch, followed by the number of placements.
+	private NodePanelLayout frameLayout;	// Layout for which the immediate mode labels were placed.
+	private int frameVersion;				// Image version of the panel when the immediate mode labels were placed.
+	
 	// -------------------------------------- Constructors --------------------------------------
 	
 	/** Creates an object capable of building and representing a treemap.
@@ -101,6 +117,8 @@ public class PTreeMappa
 		}
 		
 		this.parent = parent;
+		this.isRetained = false;
+		this.retainedResolution = 1;
 		
 		TreeMapProperties props = new TreeMapProperties();
 		treeMappa = new TreeMappa(props);
@@ -235,411 +253,81 @@ public class PTreeMappa
 	
 	/** Draws the treemap directly in the parent sketch. This is an alternative to calling <code>createImage()</code> 
 	 *  and will use the currently selected font and stroke from the parent sketch. Treemap nodes are filled
-	 *  according to the colour rules set for the treemap.
+	 *  according to the colour rules set for the treemap. If retained mode has been set with <code>setRetained()</code>
+	 *  the treemap is drawn from a cached scene that is only rebuilt when the treemap changes.
 	 */
 	public void draw()
 	{
-		parent.pushStyle();
-		parent.textSize(40);
-		float textPadding = parent.textWidth("i");
-				
-		for (NodePanel leaf : tmPanel.getLeaves())
+		if (isRetained)
 		{
-			if (leaf.isDummy())
-			{	
-				// Do not display dummy nodes.
-				continue;
-			}
-
-			// Fill leaf background.
-			Rectangle2D bounds = leaf.getBounds();
-			
-			if ((bounds.getWidth() <=1) || (bounds.getHeight() <=1))
-			{	
-				// Do not display sub-pixel nodes.
-				continue;
-			}
-			
-			parent.fill(leaf.getColour().getRGB());
-				
-			if (tmPanel.getShowLeafBorders())
-			{
-				parent.stroke(tmPanel.getLeafBorderColour().getRGB());	
-				
-				float borderWeight = tmPanel.getLeafBorderWeight();
-				if (borderWeight < 0)
-				{
-					// Negative weights are given a thin line.
-					borderWeight = 0.1f;
-				}
-				
-				if (borderWeight > 0)
-				{
-					parent.strokeWeight(borderWeight);
-				}
-			}
-			else
-			{
-				// For backward compatibility, non-border rendering is with a thin, pale border.
-				parent.strokeWeight(0.1f);
-				parent.stroke(tmPanel.getBorderColour().getRGB(),25);
-			}
-			
-			// Reduce curve radius for small rectangles.
-			float curve = (float)Math.min(tmPanel.getCurvature(), Math.min(bounds.getWidth()/3,bounds.getHeight()/3));
-			
-			if (renderer == null)
-			{
-				versionHandler.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve);
-			}
-			else
-			{
-				renderer.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve,curve);
-			}
-
-			// Draw leaf label.
-			if (tmPanel.getShowLeafLabels() && bounds.getWidth() > 1)
-			{
-				String[] lines = leaf.getLabel().split("\\\\n");				
-				parent.fill(tmPanel.getLeafTextColour().getRGB());
-								
-				float maxWidth=0;
-				for (String line : lines)
-				{
-					maxWidth = Math.max(maxWidth, parent.textWidth(line));
-				}
-
-				float lineHeight = parent.textAscent() + parent.textDescent();
-				float totalHeight = lines.length*lineHeight;
-
-				// Work out the scalings required to fit text both vertically and horizontally.        
-				double horizXScale = bounds.getWidth() / maxWidth;
-				double horizYScale = bounds.getHeight() / totalHeight;
-				double horizScale = horizXScale;
-				double vertXScale = bounds.getWidth() / totalHeight;
-				double vertYScale = bounds.getHeight() / maxWidth;
-				double vertScale = vertXScale;
-
-				horizScale = Math.min(horizXScale, horizYScale);
-				vertScale  = Math.min(vertXScale, vertYScale);
-
-				horizScale = (float)(horizScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / tmPanel.getRootArea());
-				vertScale = (float)(vertScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / tmPanel.getRootArea());
-
-				if (tmPanel.getMaxLeafText() > 0)
-				{
-					if (horizScale > tmPanel.getMaxLeafText()/40)
-					{
-						// No need to try vertical if text is already large enough.
-						horizScale = tmPanel.getMaxLeafText()/40;
-						vertScale = 0;
-					}
-					else if (vertScale > tmPanel.getMaxLeafText()/40)
-					{
-						vertScale = tmPanel.getMaxLeafText()/40;
-					}
-				}
-
-				for (int i=0; i<lines.length; i++)
-				{
-					parent.pushMatrix();
-					double x=0,y=0;
-
-					// Only use vertical text if it increases text size by at least 20% and is allowed.
-					if ((tmPanel.getAllowVerticalLabels()) && (vertScale > horizScale*1.2))
-					{
-						double cx,cy;						
-						int xAlign = tmPanel.getLeafAlignX();
-						int yAlign = tmPanel.getLeafAlignY();
-						
-						if (tmPanel.getLeafAlignX() == PConstants.LEFT)
-						{
-							cx = bounds.getX()+ vertScale*((lines.length-i-1)*lineHeight) + textPadding;
-							yAlign = PConstants.BOTTOM;
-						}
-						else if (tmPanel.getLeafAlignX() == PConstants.RIGHT)
-						{
-							cx = bounds.getX()+bounds.getWidth() - vertScale*i*lineHeight - textPadding;
-							yAlign = PConstants.TOP;
-						}
-						else
-						{
-							cx = bounds.getX() + (bounds.getWidth()/2) - vertScale*((i+1)*lineHeight -totalHeight/2 -parent.textDescent());
-							yAlign = PConstants.BOTTOM;
-						}
-												
-						if (tmPanel.getLeafAlignY() == PConstants.TOP)
-						{
-							cy = bounds.getY()+textPadding;
-							xAlign = PConstants.LEFT;
-						}
-						else if (tmPanel.getLeafAlignY() == PConstants.BOTTOM)
-						{
-							cy = bounds.getY()+bounds.getHeight()-textPadding;
-							xAlign = PConstants.RIGHT;
-						}
-						else
-						{
-							cy = bounds.getY() + (bounds.getHeight()-parent.textWidth(lines[i])*vertScale)/2;
-							xAlign = PConstants.LEFT;
-						}
-						
-						parent.textAlign(xAlign,yAlign);				
-						parent.translate((float)cx,(float)cy);
-						parent.rotate(PConstants.HALF_PI);
-						parent.scale((float)vertScale,(float)vertScale);
-					}
-					else
-					{
-						// Use horizontal text.						
-						if (tmPanel.getLeafAlignX() == PConstants.LEFT)
-						{
-							x = bounds.getX() + textPadding;
-						}
-						else if (tmPanel.getLeafAlignX() == PConstants.RIGHT)
-						{
-							x = bounds.getX() + bounds.getWidth() - textPadding;
-						}
-						else
-						{
-							x = bounds.getX() + bounds.getWidth()/2;
-						}
-						
-						if (tmPanel.getLeafAlignY() == PConstants.TOP)
-						{
-							y = bounds.getY() + horizScale*i*lineHeight+ textPadding;
-						}
-						else if (tmPanel.getLeafAlignY() == PConstants.BOTTOM)
-						{
-							y = bounds.getY() + (bounds.getHeight() - horizScale*(lines.length-i-1)*lineHeight - textPadding);
-						} 
-						else
-						{
-							y = bounds.getY() + (bounds.getHeight()/2) + horizScale*((i+1)*lineHeight -totalHeight/2 -parent.textDescent());
-						}
-						
-						parent.textAlign(tmPanel.getLeafAlignX(),tmPanel.getLeafAlignY());
-						parent.translate((float)x,(float)y);
-						parent.scale((float)horizScale,(float)horizScale);
-					}
-
-					parent.text(lines[i],0,0);
-					parent.popMatrix();
-				}				
-			}
+			drawRetained();
 		}
-
-		for (NodePanel branch : tmPanel.getBranches())
+		else
 		{
-			if (branch.isDummy())
-			{	
-				// Do not display dummy nodes.
-				continue;
-			}
-
-			Rectangle2D bounds = branch.getBounds();
-			int level = branch.getLevel();
-			
-			// Draw branch label.
-			if ((tmPanel.getShowBranchLabels()) && bounds.getWidth() > 1)
+			NodePanelLayout layout = tmPanel.acquirePanelLayout();
+			try
 			{
-				String[] lines = branch.getLabel().split("\\\\n");
-				
-				// Draw text in original fill colour.
-				parent.fill(tmPanel.getBranchTextColours()[level-1].getRGB());
-				
-				float maxWidth=0;
-				for (String line:lines)
-				{
-					maxWidth = Math.max(maxWidth, parent.textWidth(line));
-				}				
-				
-				float lineHeight = parent.textAscent()+parent.textDescent();
-				float totalHeight = lines.length*lineHeight;
-
-				// Work out the scalings required to fit text both vertically and horizontally.        
-				double horizXScale = bounds.getWidth() / maxWidth;
-				double horizYScale = bounds.getHeight() / totalHeight;
-				double horizScale = horizXScale;
-				double vertXScale = bounds.getWidth() / totalHeight;
-				double vertYScale = bounds.getHeight() / maxWidth;
-				double vertScale = vertXScale;
-
-				horizScale = Math.min(horizXScale, horizYScale);
-				vertScale  = Math.min(vertXScale, vertYScale);
-
-				horizScale = (float)(horizScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / tmPanel.getRootArea());
-				vertScale = (float)(vertScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / tmPanel.getRootArea());
-
-				if (tmPanel.getMaxBranchTexts()[level-1] > 0)
-				{
-					if (horizScale > tmPanel.getMaxBranchTexts()[level-1]/40)
-					{
-						// No need to try vertical if text is already large enough.
-						horizScale = tmPanel.getMaxBranchTexts()[level-1]/40;
-						vertScale = 0;
-					}
-					else if (vertScale > tmPanel.getMaxBranchTexts()[level-1]/40)
-					{
-						vertScale = tmPanel.getMaxBranchTexts()[level-1]/40;
-					}
-				}
-
-				for (int i=0; i<lines.length; i++)
-				{     	
-					double x=0,y=0;
-					parent.pushMatrix();
-					
-					// Only use vertical text if it increases text size by at least 20% and is allowed.
-					if ((tmPanel.getAllowVerticalLabels()) && (vertScale > horizScale*1.2))
-					{
-						double cx,cy;						
-						int xAlign = tmPanel.getBranchAlignX();
-						int yAlign = tmPanel.getBranchAlignY();
-						
-						if (tmPanel.getBranchAlignX() == PConstants.LEFT)
-						{
-							cx = bounds.getX()+ vertScale*((lines.length-i-1)*lineHeight) + textPadding;
-							yAlign = PConstants.BOTTOM;
-						}
-						else if (tmPanel.getBranchAlignX() == PConstants.RIGHT)
-						{
-							cx = bounds.getX()+bounds.getWidth() - vertScale*i*lineHeight - textPadding;
-							yAlign = PConstants.TOP;
-						}
-						else
-						{
-							cx = bounds.getX() + (bounds.getWidth()/2) - vertScale*((i+1)*lineHeight -totalHeight/2 -parent.textDescent());
-							yAlign = PConstants.BOTTOM;
-						}
-												
-						if (tmPanel.getBranchAlignY() == PConstants.TOP)
-						{
-							cy = bounds.getY()+textPadding;
-							xAlign = PConstants.LEFT;
-						}
-						else if (tmPanel.getBranchAlignY() == PConstants.BOTTOM)
-						{
-							cy = bounds.getY()+bounds.getHeight()-textPadding;
-							xAlign = PConstants.RIGHT;
-						}
-						else
-						{
-							cy = bounds.getY() + bounds.getHeight()/2;
-							xAlign = PConstants.LEFT;
-						}
-						
-						parent.textAlign(xAlign,yAlign);				
-						parent.translate((float)cx,(float)cy);
-						parent.rotate(PConstants.HALF_PI);
-						parent.scale((float)vertScale,(float)vertScale);
-					}
-					else
-					{
-						// Use horizontal text.						
-						if (tmPanel.getBranchAlignX() == PConstants.LEFT)
-						{
-							x = bounds.getX() + textPadding;
-						}
-						else if (tmPanel.getBranchAlignX() == PConstants.RIGHT)
-						{
-							x = bounds.getX() + bounds.getWidth() - textPadding;
-						}
-						else
-						{
-							x = bounds.getX() + bounds.getWidth()/2;
-						}
-						
-						if (tmPanel.getBranchAlignY() == PConstants.TOP)
-						{
-							y = bounds.getY() + horizScale*i*lineHeight+ textPadding;
-						}
-						else if (tmPanel.getBranchAlignY() == PConstants.BOTTOM)
-						{
-							y = bounds.getY() + (bounds.getHeight() - horizScale*(lines.length-i-1)*lineHeight - textPadding);
-						} 
-						else
-						{
-							y = bounds.getY() + bounds.getHeight()/2;
-						}
-						
-						parent.textAlign(tmPanel.getBranchAlignX(),tmPanel.getBranchAlignY());
-						parent.translate((float)x,(float)y);
-						parent.scale((float)horizScale,(float)horizScale);
-						
-					}
-					parent.text(lines[i],0,0);
-					parent.popMatrix();
-				}
+				drawNodes(layout, true);
 			}
-			float opacity = 255*Math.max(0.1f,(tmPanel.getMaxDepth()-level)/(float)tmPanel.getMaxDepth());
-			parent.stroke(tmPanel.getBorderColour().getRGB(),opacity);
-			parent.noFill();
-			
-			float borderWeight = tmPanel.getBorderWeights()[level];
-			if (borderWeight < 0)
-			{
-				borderWeight = 1;
-			}
-			
-			if (borderWeight > 0)
+			finally
 			{
-				parent.strokeWeight(borderWeight);	
-
-				// Reduce curve radius for small rectangles.
-				float curve = (float)Math.min(tmPanel.getCurvature(), Math.min(bounds.getWidth()/3,bounds.getHeight()/3));
-				
-				if (renderer == null)
-				{
-					versionHandler.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve);
-				}
-				else
-				{
-					renderer.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve,curve);
-				}
+				layout.release();
 			}
 		}
-
-		// Draw displacement vectors if requested.
-		parent.noFill();
+	}
 		
-		for (NodePanel branch : tmPanel.getBranches())
+	// ------------------------------------- Mutator methods ------------------------------------
+	
+	
+	/** Determines whether the treemap is drawn in retained mode. In retained mode, the node rectangles, borders
+	 *  and displacement vectors are rendered once into an offscreen image and the position, size and orientation
+	 *  of every label is calculated once. Each call to <code>draw()</code> then simply draws the cached image and
+	 *  labels under the sketch's current transformation (for example, that of a <code>ZoomPan</code> object), so
+	 *  is much faster for large treemaps. The cached scene is rebuilt automatically whenever the treemap panel's
+	 *  <code>updateLayout()</code> or <code>updateImage()</code> is called. Call <code>invalidate()</code> after
+	 *  making other changes that affect its appearance, such as changing the sketch's font. Labels are drawn on
+	 *  top of all node borders in retained mode.
+	 *  @param retained Treemap is drawn from a cached scene if true or redrawn from scratch if false.
+	 */
+	public void setRetained(boolean retained)
+	{
+		setRetained(retained,1);
+	}
+	
+	/** Determines whether the treemap is drawn in retained mode with the given resolution for the cached
+	 *  image of treemap nodes. A resolution greater than 1 keeps node borders sharp when the treemap is
+	 *  drawn enlarged, such as when zooming, at the cost of more memory. See <code>setRetained(boolean)</code>
+	 *  for details of retained mode.
+	 *  @param retained Treemap is drawn from a cached scene if true or redrawn from scratch if false.
+	 *  @param resolution Size of the cached image relative to the treemap's size in pixel units.
+	 */
+	public void setRetained(boolean retained, float resolution)
+	{
+		if (resolution <= 0)
 		{
-			int level = branch.getLevel();
-			if (tmPanel.getShowBranchDisplacements()[level-1])
-			{
-				Rectangle2D bounds = branch.getBounds();
-				parent.stroke(tmPanel.getBranchTextColours()[level].getRGB());
-
-				// Draw displacement vector
-				if ((branch.getGeoBounds() != null) && (bounds.getWidth()>0) && (bounds.getHeight()>0))
-				{
-					drawCurve(bounds.getX()+bounds.getWidth()/2.0, bounds.getY()+bounds.getHeight()/2.0,
-							  branch.getGeoBounds().getX(),branch.getGeoBounds().getY());
-				}
-			}
+			System.err.println("Retained mode resolution must be greater than 0, but "+resolution+" was given.");
+			return;
 		}
-		if (tmPanel.getShowLeafDisplacement())
+		this.isRetained = retained;
+		this.retainedResolution = resolution;
+		invalidate();
+	}
+	
+	/** Ensures that the cached scene used in retained mode, or the label placements reused between frames when
+	 *  not in retained mode, are rebuilt the next time the treemap is drawn. This need only be called after
+	 *  changes that do not update the treemap panel's image, such as changing the font used by the sketch.
+	 */
+	public void invalidate()
+	{
+		sceneLabels = null;
+		frameLabels = null;
+		frameLayout = null;
+		if (isRetained == false)
 		{
-			for (NodePanel leaf : tmPanel.getLeaves())
-			{
-				Rectangle2D bounds = leaf.getBounds();
-				
-				// Draw displacement vector
-				if ((leaf.getGeoBounds() != null) && (bounds.getWidth()>0) && (bounds.getHeight()>0))
-				{
-					parent.stroke(tmPanel.getLeafTextColour().getRGB());
-					drawCurve(bounds.getX()+bounds.getWidth()/2.0, bounds.getY()+bounds.getHeight()/2.0,
-							  leaf.getGeoBounds().getX(),leaf.getGeoBounds().getY());
-				}
-			}
+			// Release the memory held by the cached image.
+			sceneImage = null;
 		}
-		
-		parent.popStyle();
 	}
-		
-	// ------------------------------------- Mutator methods ------------------------------------
-	
 	
 	/** Sets a new colour table from a colour table file. Assumes the colour table file is stored 
 	 *  in the data directory of the sketch.
@@ -648,6 +336,7 @@ public class PTreeMappa
 	public void setColourTable(String cTableFileName)
 	{
 		tmPanel.setColourTable(ColourTable.readFile(parent.dataPath(cTableFileName)));
+		invalidate();
 	}
 	
 	/** Sets the renderer to be used for drawing treemaps. This need only be set if some non-default
@@ -657,6 +346,7 @@ public class PTreeMappa
 	public void setRenderer(Drawable renderer)
 	{
 		this.renderer = renderer;
+		invalidate();
 	}
 		
 	/** Sets the text alignment for leaf labels. Used for positioning the text of a leaf label relative
@@ -681,6 +371,7 @@ public class PTreeMappa
 		}
 		
 		tmPanel.setLeafTextAlignment(safeAlignX, safeAlignY);
+		invalidate();
 	}
 	
 	/** Sets the text alignment for branch labels. Used for positioning the text of a branch label 
@@ -705,6 +396,7 @@ public class PTreeMappa
 		}
 		
 		tmPanel.setBranchTextAlignment(safeAlignX, safeAlignY);
+		invalidate();
 	}
 
 	// ------------------------------------ Accessor methods ------------------------------------
@@ -778,18 +470,565 @@ public class PTreeMappa
 		}
 	}
 		
+	/** Draws the treemap nodes directly in the parent sketch, optionally with their labels. Label placements
+	 *  are only calculated when the layout has changed since they were last placed and are otherwise reused.
+	 *  @param layout Layout of the node panels to draw.
+	 *  @param drawLabels Labels are drawn if true, otherwise only nodes, borders and displacement vectors are drawn.
+	 */
+	private void drawNodes(NodePanelLayout layout, boolean drawLabels)
+	{
+		parent.pushStyle();
+		parent.textSize(40);
+		if (drawLabels && ((frameLabels == null) || (frameLayout != layout) || (frameVersion != tmPanel.getImageVersion())))
+		{
+			placeFrameLabels(layout);
+		}
+		
+		int nodeIndex = 0;
+		for (NodePanel leaf : layout.getLeaves())
+		{
+			if (isDrawn(leaf))
+			{
+				drawLeaf(parent.g, leaf);
+				if (drawLabels)
+				{
+					drawFrameLabels(nodeIndex);
+				}
+			}
+			nodeIndex++;
+		}
+
+		for (NodePanel branch : layout.getBranches())
+		{
+			if (branch.isDummy() == false)
+			{
+				if (drawLabels)
+				{
+					drawFrameLabels(nodeIndex);
+				}
+				drawBranchBorder(parent.g, branch, layout.getMaxDepth());
+			}
+			nodeIndex++;
+		}
+
+		drawDisplacements(parent.g, layout);
+		parent.popStyle();
+	}
+	
+	/** Places the labels of all the nodes in the given layout so they can be reused each time the layout is drawn
+	 *  in immediate mode. The sketch's text size should be 40, the size at which labels are measured.
+	 *  @param layout Layout of the node panels whose labels are to be placed.
+	 */
+	private void placeFrameLabels(NodePanelLayout layout)
+	{
+		frameLayout = layout;
+		frameVersion = tmPanel.getImageVersion();
+		frameLabels = new ArrayList<LabelPlacement>();
+		frameLabelStarts = new int[layout.getLeaves().size()+layout.getBranches().size()+1];
+		float textPadding = parent.textWidth("i");
+		
+		int nodeIndex = 0;
+		for (NodePanel leaf : layout.getLeaves())
+		{
+			frameLabelStarts[nodeIndex++] = frameLabels.size();
+			if (tmPanel.getShowLeafLabels() && isDrawn(leaf))
+			{
+				placeLabels(leaf, true, layout.getRootArea(), textPadding, frameLabels);
+			}
+		}
+		
+		for (NodePanel branch : layout.getBranches())
+		{
+			frameLabelStarts[nodeIndex++] = frameLabels.size();
+			if (tmPanel.getShowBranchLabels() && (branch.isDummy() == false) && (branch.getBounds().getWidth() > 1))
+			{
+				placeLabels(branch, false, layout.getRootArea(), textPadding, frameLabels);
+			}
+		}
+		frameLabelStarts[nodeIndex] = frameLabels.size();
+	}
+	
+	/** Draws the labels placed for the node with the given index in immediate mode.
+	 *  @param nodeIndex Index of a leaf in the layout, or of a branch plus the number of leaves.
+	 */
+	private void drawFrameLabels(int nodeIndex)
+	{
+		for (int i=frameLabelStarts[nodeIndex]; i<frameLabelStarts[nodeIndex+1]; i++)
+		{
+			drawLabel(frameLabels.get(i));
+		}
+	}
+	
+	/** Draws the treemap from the cached scene, rebuilding it first if the treemap has changed since it
+	 *  was last built.
+	 */
+	private void drawRetained()
+	{
+		if ((sceneLabels == null) || (scenePanel != tmPanel) || (sceneVersion != tmPanel.getImageVersion()))
+		{
+			buildScene();
+		}
+		
+		if (sceneImage != null)
+		{
+			parent.image(sceneImage, 0, 0, tmPanel.getWidth(), tmPanel.getHeight());
+		}
+		else
+		{
+			// An alternative renderer can only draw to the sketch itself so nodes are drawn each frame.
+			drawNodes(sceneLayout, false);
+		}
+		
+		parent.pushStyle();
+		parent.textSize(40);
+		for (LabelPlacement label : sceneLabels)
+		{
+			drawLabel(label);
+		}
+		parent.popStyle();
+	}
+	
+	/** Builds the cached scene used in retained mode. This consists of an offscreen image of the treemap
+	 *  nodes, borders and displacement vectors along with the placement of each label.
+	 */
+	private void buildScene()
+	{
+		scenePanel = tmPanel;
+		sceneVersion = tmPanel.getImageVersion();
+		if (sceneLayout != null)
+		{
+			sceneLayout.release();
+		}
+		sceneLayout = scenePanel.acquirePanelLayout();
+		sceneLabels = new ArrayList<LabelPlacement>();
+		
+		// Labels are measured with the sketch's font, which is the one used when they are drawn.
+		parent.pushStyle();
+		parent.textSize(40);
+		float textPadding = parent.textWidth("i");
+		
+		if (tmPanel.getShowLeafLabels())
+		{
+			for (NodePanel leaf : sceneLayout.getLeaves())
+			{
+				if (isDrawn(leaf))
+				{
+					placeLabels(leaf, true, sceneLayout.getRootArea(), textPadding, sceneLabels);
+				}
+			}
+		}
+		
+		if (tmPanel.getShowBranchLabels())
+		{
+			for (NodePanel branch : sceneLayout.getBranches())
+			{
+				if ((branch.isDummy() == false) && (branch.getBounds().getWidth() > 1))
+				{
+					placeLabels(branch, false, sceneLayout.getRootArea(), textPadding, sceneLabels);
+				}
+			}
+		}
+		parent.popStyle();
+		
+		if (renderer != null)
+		{
+			sceneImage = null;
+			return;
+		}
+		
+		int width  = Math.max(1, Math.round(tmPanel.getWidth()*retainedResolution));
+		int height = Math.max(1, Math.round(tmPanel.getHeight()*retainedResolution));
+		if ((sceneImage == null) || (sceneImage.width != width) || (sceneImage.height != height))
+		{
+			sceneImage = parent.createGraphics(width, height);
+		}
+		
+		sceneImage.beginDraw();
+		sceneImage.clear();
+		sceneImage.pushMatrix();
+		sceneImage.scale(retainedResolution);
+		drawGeometry(sceneImage, sceneLayout);
+		sceneImage.popMatrix();
+		sceneImage.endDraw();
+	}
+	
+	/** Draws the treemap nodes, borders and displacement vectors, but not labels, to the given offscreen graphics
+	 *  context. This uses the same drawing methods as <code>drawNodes()</code>, which draws to the sketch itself.
+	 *  @param g Graphics context in which to draw.
+	 *  @param layout Layout of the node panels to draw.
+	 */
+	private void drawGeometry(PGraphics g, NodePanelLayout layout)
+	{
+		for (NodePanel leaf : layout.getLeaves())
+		{
+			if (isDrawn(leaf))
+			{
+				drawLeaf(g, leaf);
+			}
+		}
+		
+		for (NodePanel branch : layout.getBranches())
+		{
+			if (branch.isDummy() == false)
+			{
+				drawBranchBorder(g, branch, layout.getMaxDepth());
+			}
+		}
+		drawDisplacements(g, layout);
+	}
+	
+	/** Reports whether the given leaf is to be displayed. Dummy and sub-pixel leaves are not displayed.
+	 *  @param leaf Leaf to test.
+	 *  @return True if the leaf should be drawn.
+	 */
+	private static boolean isDrawn(NodePanel leaf)
+	{
+		Rectangle2D bounds = leaf.getBounds();
+		return (leaf.isDummy() == false) && (bounds.getWidth() > 1) && (bounds.getHeight() > 1);
+	}
+	
+	/** Fills the given leaf node and draws its border.
+	 *  @param g Graphics context in which to draw.
+	 *  @param leaf Leaf to draw.
+	 */
+	private void drawLeaf(PGraphics g, NodePanel leaf)
+	{
+		Rectangle2D bounds = leaf.getBounds();
+		g.fill(leaf.getRGB());
+			
+		if (tmPanel.getShowLeafBorders())
+		{
+			g.stroke(tmPanel.getLeafBorderColour().getRGB());	
+			
+			float borderWeight = tmPanel.getLeafBorderWeight();
+			if (borderWeight < 0)
+			{
+				// Negative weights are given a thin line.
+				borderWeight = 0.1f;
+			}
+			
+			if (borderWeight > 0)
+			{
+				g.strokeWeight(borderWeight);
+			}
+		}
+		else
+		{
+			// For backward compatibility, non-border rendering is with a thin, pale border.
+			g.strokeWeight(0.1f);
+			g.stroke(tmPanel.getBorderColour().getRGB(),25);
+		}
+		
+		// Reduce curve radius for small rectangles.
+		float curve = (float)Math.min(tmPanel.getCurvature(), Math.min(bounds.getWidth()/3,bounds.getHeight()/3));
+		
+		drawRect(g, bounds, curve);
+	}
+	
+	/** Draws the border of the given branch node.
+	 *  @param g Graphics context in which to draw.
+	 *  @param branch Branch whose border is to be drawn.
+	 *  @param maxDepth Maximum depth of the tree in the layout being drawn.
+	 */
+	private void drawBranchBorder(PGraphics g, NodePanel branch, int maxDepth)
+	{
+		Rectangle2D bounds = branch.getBounds();
+		int level = branch.getLevel();
+		
+		float opacity = 255*Math.max(0.1f,(maxDepth-level)/(float)maxDepth);
+		g.stroke(tmPanel.getBorderColour().getRGB(),opacity);
+		g.noFill();
+		
+		float borderWeight = tmPanel.getBorderWeights()[level];
+		if (borderWeight < 0)
+		{
+			borderWeight = 1;
+		}
+		
+		if (borderWeight > 0)
+		{
+			g.strokeWeight(borderWeight);	
+
+			// Reduce curve radius for small rectangles.
+			float curve = (float)Math.min(tmPanel.getCurvature(), Math.min(bounds.getWidth()/3,bounds.getHeight()/3));
+			
+			drawRect(g, bounds, curve);
+		}
+	}
+	
+	/** Draws a rectangle with rounded corners. When drawing to the sketch itself, the alternative renderer is used
+	 *  if one has been set.
+	 *  @param g Graphics context in which to draw. This is either the sketch's own graphics or an offscreen image.
+	 *  @param bounds Rectangle to draw.
+	 *  @param curve Radius of the rectangle's corners.
+	 */
+	private void drawRect(PGraphics g, Rectangle2D bounds, float curve)
+	{
+		if (g != parent.g)
+		{
+			g.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve);
+		}
+		else if (renderer == null)
+		{
+			versionHandler.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve);
+		}
+		else
+		{
+			renderer.rect((float)bounds.getX(), (float)bounds.getY(), (float)bounds.getWidth(), (float)bounds.getHeight(),curve,curve);
+		}
+	}
+	
+	/** Draws the branch and leaf displacement vectors if they have been requested.
+	 *  @param g Graphics context in which to draw.
+	 *  @param layout Layout of the node panels whose displacements are to be drawn.
+	 */
+	private void drawDisplacements(PGraphics g, NodePanelLayout layout)
+	{
+		g.noFill();
+		
+		for (NodePanel branch : layout.getBranches())
+		{
+			int level = branch.getLevel();
+			if (tmPanel.getShowBranchDisplacements()[level-1])
+			{
+				Rectangle2D bounds = branch.getBounds();
+				g.stroke(tmPanel.getBranchTextColours()[level].getRGB());
+
+				// Draw displacement vector
+				if ((branch.getGeoBounds() != null) && (bounds.getWidth()>0) && (bounds.getHeight()>0))
+				{
+					drawCurve(g, bounds.getX()+bounds.getWidth()/2.0, bounds.getY()+bounds.getHeight()/2.0,
+							  branch.getGeoBounds().getX(),branch.getGeoBounds().getY());
+				}
+			}
+		}
+		if (tmPanel.getShowLeafDisplacement())
+		{
+			for (NodePanel leaf : layout.getLeaves())
+			{
+				Rectangle2D bounds = leaf.getBounds();
+				
+				// Draw displacement vector
+				if ((leaf.getGeoBounds() != null) && (bounds.getWidth()>0) && (bounds.getHeight()>0))
+				{
+					g.stroke(tmPanel.getLeafTextColour().getRGB());
+					drawCurve(g, bounds.getX()+bounds.getWidth()/2.0, bounds.getY()+bounds.getHeight()/2.0,
+							  leaf.getGeoBounds().getX(),leaf.getGeoBounds().getY());
+				}
+			}
+		}
+	}
+	
+	/** Calculates the position, size and orientation of each line of the given node's label. Text is measured
+	 *  using the sketch's current font, which should be set to a size of 40 before calling.
+	 *  @param node Leaf or branch whose label is to be placed.
+	 *  @param isLeaf True if the node is a leaf, false if it is a branch.
+	 *  @param rootArea Area of the root node in the layout containing the node.
+	 *  @param textPadding Space in pixels between the label and the edge of the node.
+	 *  @param placements List to which the placement of each line of the label is added.
+	 */
+	private void placeLabels(NodePanel node, boolean isLeaf, double rootArea, float textPadding, List<LabelPlacement> placements)
+	{
+		Rectangle2D bounds = node.getBounds();
+		int level = node.getLevel();
+		String[] lines = node.getLabel().split("\\\\n");
+		int colour = isLeaf ? tmPanel.getLeafTextColour().getRGB() : tmPanel.getBranchTextColours()[level-1].getRGB();
+		int alignX = isLeaf ? tmPanel.getLeafAlignX() : tmPanel.getBranchAlignX();
+		int alignY = isLeaf ? tmPanel.getLeafAlignY() : tmPanel.getBranchAlignY();
+		float maxText = isLeaf ? tmPanel.getMaxLeafText() : tmPanel.getMaxBranchTexts()[level-1];
+						
+		float maxWidth=0;
+		for (String line : lines)
+		{
+			maxWidth = Math.max(maxWidth, parent.textWidth(line));
+		}
+
+		float lineHeight = parent.textAscent() + parent.textDescent();
+		float totalHeight = lines.length*lineHeight;
+
+		// Work out the scalings required to fit text both vertically and horizontally.        
+		double horizXScale = bounds.getWidth() / maxWidth;
+		double horizYScale = bounds.getHeight() / totalHeight;
+		double horizScale = horizXScale;
+		double vertXScale = bounds.getWidth() / totalHeight;
+		double vertYScale = bounds.getHeight() / maxWidth;
+		double vertScale = vertXScale;
+
+		horizScale = Math.min(horizXScale, horizYScale);
+		vertScale  = Math.min(vertXScale, vertYScale);
+
+		horizScale = (float)(horizScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / rootArea);
+		vertScale = (float)(vertScale*0.7 + (0.3*bounds.getWidth()*bounds.getHeight()) / rootArea);
+
+		if (maxText > 0)
+		{
+			if (horizScale > maxText/40)
+			{
+				// No need to try vertical if text is already large enough.
+				horizScale = maxText/40;
+				vertScale = 0;
+			}
+			else if (vertScale > maxText/40)
+			{
+				vertScale = maxText/40;
+			}
+		}
+
+		for (int i=0; i<lines.length; i++)
+		{
+			// Only use vertical text if it increases text size by at least 20% and is allowed.
+			if ((tmPanel.getAllowVerticalLabels()) && (vertScale > horizScale*1.2))
+			{
+				double cx,cy;						
+				int xAlign = alignX;
+				int yAlign = alignY;
+				
+				if (alignX == PConstants.LEFT)
+				{
+					cx = bounds.getX()+ vertScale*((lines.length-i-1)*lineHeight) + textPadding;
+					yAlign = PConstants.BOTTOM;
+				}
+				else if (alignX == PConstants.RIGHT)
+				{
+					cx = bounds.getX()+bounds.getWidth() - vertScale*i*lineHeight - textPadding;
+					yAlign = PConstants.TOP;
+				}
+				else
+				{
+					cx = bounds.getX() + (bounds.getWidth()/2) - vertScale*((i+1)*lineHeight -totalHeight/2 -parent.textDescent());
+					yAlign = PConstants.BOTTOM;
+				}
+										
+				if (alignY == PConstants.TOP)
+				{
+					cy = bounds.getY()+textPadding;
+					xAlign = PConstants.LEFT;
+				}
+				else if (alignY == PConstants.BOTTOM)
+				{
+					cy = bounds.getY()+bounds.getHeight()-textPadding;
+					xAlign = PConstants.RIGHT;
+				}
+				else if (isLeaf)
+				{
+					cy = bounds.getY() + (bounds.getHeight()-parent.textWidth(lines[i])*vertScale)/2;
+					xAlign = PConstants.LEFT;
+				}
+				else
+				{
+					cy = bounds.getY() + bounds.getHeight()/2;
+					xAlign = PConstants.LEFT;
+				}
+				
+				placements.add(new LabelPlacement(lines[i],(float)cx,(float)cy,(float)vertScale,true,xAlign,yAlign,colour));
+			}
+			else
+			{
+				// Use horizontal text.
+				double x,y;
+				if (alignX == PConstants.LEFT)
+				{
+					x = bounds.getX() + textPadding;
+				}
+				else if (alignX == PConstants.RIGHT)
+				{
+					x = bounds.getX() + bounds.getWidth() - textPadding;
+				}
+				else
+				{
+					x = bounds.getX() + bounds.getWidth()/2;
+				}
+				
+				if (alignY == PConstants.TOP)
+				{
+					y = bounds.getY() + horizScale*i*lineHeight+ textPadding;
+				}
+				else if (alignY == PConstants.BOTTOM)
+				{
+					y = bounds.getY() + (bounds.getHeight() - horizScale*(lines.length-i-1)*lineHeight - textPadding);
+				} 
+				else if (isLeaf)
+				{
+					y = bounds.getY() + (bounds.getHeight()/2) + horizScale*((i+1)*lineHeight -totalHeight/2 -parent.textDescent());
+				}
+				else
+				{
+					y = bounds.getY() + bounds.getHeight()/2;
+				}
+				
+				placements.add(new LabelPlacement(lines[i],(float)x,(float)y,(float)horizScale,false,alignX,alignY,colour));
+			}
+		}
+	}
+	
+	/** Draws a single line of label text at its calculated placement in the parent sketch. The sketch's text
+	 *  size should be 40, the size at which the label was measured.
+	 *  @param label Text and placement of the label.
+	 */
+	private void drawLabel(LabelPlacement label)
+	{
+		parent.fill(label.colour);
+		parent.pushMatrix();
+		parent.textAlign(label.alignX,label.alignY);
+		parent.translate(label.x,label.y);
+		if (label.isVertical)
+		{
+			parent.rotate(PConstants.HALF_PI);
+		}
+		parent.scale(label.scale,label.scale);
+		parent.text(label.text,0,0);
+		parent.popMatrix();
+	}
+		
 	/** Draws an asymmetric curve from (x1,y1) to (x2,y2). Greater angular change is at the source 
 	 *  of the arrow (x1,y1), in order to provide a visual indication of direction. See Fekete, J-D,
 	 *  Wang, D., Dang, N., Aris, A. and Plaisant, C. 'Overlaying Graph Links on TreeMaps',
 	 *  Information Visualisation Poster Compendium, pp.82-83
+	 *  @param g Graphics context in which to draw.
 	 */
-	private void drawCurve(double x1,double y1, double x2, double y2)
+	private static void drawCurve(PGraphics g, double x1,double y1, double x2, double y2)
 	{  
 	  double x = (x1-x2)/4;
 	  double y = (y1-y2)/4;
 
 	  double cx = (x2 + x*Math.cos(TreeMapPanel.CURVE_ANGLE) - y*Math.sin(TreeMapPanel.CURVE_ANGLE));
 	  double cy = (y2 + y*Math.cos(TreeMapPanel.CURVE_ANGLE) + x*Math.sin(TreeMapPanel.CURVE_ANGLE));
-	  parent.bezier((float)x1,(float)y1,(float)cx,(float)cy,(float)x2,(float)y2,(float)x2,(float)y2);
+	  g.bezier((float)x1,(float)y1,(float)cx,(float)cy,(float)x2,(float)y2,(float)x2,(float)y2);
+	}
+	
+	// ------------------------------------- Nested classes ------------------------------------
+	
+	/** Position, size and orientation of a single line of label text.
+	 */
+	private static class LabelPlacement
+	{
+		String text;
+		float x,y;					// Anchor point of the text.
+		float scale;				// Scaling of text relative to a font size of 40.
+		boolean isVertical;			// Text is rotated 90 degrees clockwise if true.
+		int alignX,alignY;			// Processing text alignment codes.
+		int colour;					// Text colour in ARGB format.
+		
+		/** Stores the placement of a line of label text.
+		 *  @param text Text to display.
+		 *  @param x Horizontal position of the text anchor.
+		 *  @param y Vertical position of the text anchor.
+		 *  @param scale Scaling of text relative to a font size of 40.
+		 *  @param isVertical True if the text is rotated to read vertically.
+		 *  @param alignX Horizontal text alignment.
+		 *  @param alignY Vertical text alignment.
+		 *  @param colour Text colour in ARGB format.
+		 */
+		LabelPlacement(String text, float x, float y, float scale, boolean isVertical, int alignX, int alignY, int colour)
+		{
+			this.text = text;
+			this.x = x;
+			this.y = y;
+			this.scale = scale;
+			this.isVertical = isVertical;
+			this.alignX = alignX;
+			this.alignY = alignY;
+			this.colour = colour;
+		}
 	}
 }
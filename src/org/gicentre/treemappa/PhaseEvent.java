@@ -0,0 +1,80 @@
+package org.gicentre.treemappa;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+//  ***********************************************************************
+/** JDK Flight Recorder event recording the duration of one phase of reading, building, drawing or 
+ *  writing a treemap. This class is only loaded if the Flight Recorder is available in the running JVM.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+@Name("org.gicentre.treemappa.Phase")
+@Label("Treemap Phase")
+@Category("treeMappa")
+@Description("Duration of one phase of reading, building, drawing or writing a treemap.")
+class PhaseEvent extends Event
+{
+	// ----------------- Object variables -------------------
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Detail")
+	@Description("Additional information such as the output format.")
+	String detail;
+
+	@Label("Node Count")
+	@Description("Number of nodes processed in the phase.")
+	long nodeCount;
+
+	// --------------------- Methods -------------------------
+
+	/** Creates and starts timing a new event.
+	 *  @param phase Phase being timed.
+	 *  @return Event that has started timing.
+	 */
+	static PhaseEvent start(BuildPhase phase)
+	{
+		PhaseEvent event = new PhaseEvent();
+		event.phase = phase.toString();
+		event.begin();
+		return event;
+	}
+
+	/** Stops timing the given event and commits it to the Flight Recorder if it is being recorded.
+	 *  @param event Event created with <code>start()</code>.
+	 *  @param nodeCount Number of nodes processed in the phase.
+	 *  @param detail Additional information about the phase or null if none.
+	 */
+	static void stop(Object event, long nodeCount, String detail)
+	{
+		PhaseEvent phaseEvent = (PhaseEvent)event;
+		phaseEvent.end();
+		if (phaseEvent.shouldCommit())
+		{
+			phaseEvent.nodeCount = nodeCount;
+			phaseEvent.detail = detail;
+			phaseEvent.commit();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.gicentre.treemappa;
+
+//  ***********************************************************************
+/** Times a single phase of reading, building, drawing or writing a treemap. The duration and
+ *  number of nodes processed are added to a set of phase timings and, if the JDK Flight Recorder
+ *  is available, emitted as a Flight Recorder event.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+class PhaseTimer
+{
+	// ------------------ Class and object variables --------------------
+
+	private static final boolean USE_JFR = isFlightRecorderAvailable();
+
+	private BuildPhase phase;
+	private PhaseTimings timings;
+	private long startTime;
+	private Object event;			// Flight Recorder event, or null if the Flight Recorder is not available.
+
+	// ------------------------- Constructor ----------------------------
+
+	/** Starts timing the given phase.
+	 *  @param phase Phase to time.
+	 *  @param timings Timings to which the phase duration will be added when the timer is stopped.
+	 */
+	PhaseTimer(BuildPhase phase, PhaseTimings timings)
+	{
+		this.phase = phase;
+		this.timings = timings;
+		this.event = USE_JFR ? PhaseEvent.start(phase) : null;
+		this.startTime = System.nanoTime();
+	}
+
+	// ---------------------------- Methods -----------------------------
+
+	/** Stops timing the phase, recording its duration.
+	 *  @param nodeCount Number of nodes processed in the phase.
+	 */
+	void stop(long nodeCount)
+	{
+		stop(nodeCount, null);
+	}
+
+	/** Stops timing the phase, recording its duration.
+	 *  @param nodeCount Number of nodes processed in the phase.
+	 *  @param detail Additional information about the phase such as an output format, or null if none.
+	 */
+	void stop(long nodeCount, String detail)
+	{
+		timings.record(phase, System.nanoTime()-startTime, nodeCount);
+		if (event != null)
+		{
+			PhaseEvent.stop(event, nodeCount, detail);
+		}
+	}
+
+	// ------------------------ Private methods -------------------------
+
+	/** Reports whether the JDK Flight Recorder can be used in the running JVM.
+	 *  @return True if Flight Recorder events can be created.
+	 */
+	private static boolean isFlightRecorderAvailable()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.FlightRecorder");
+			return true;
+		}
+		catch (Throwable e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package org.gicentre.treemappa;
+
+import java.text.DecimalFormat;
+
+//  ***********************************************************************
+/** Durations and node counts of each phase of reading, building, drawing and writing a treemap.
+ *  A snapshot of the timings of a treemap can be obtained by calling 
+ *  <code>TreeMappa.getPhaseTimings()</code>.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class PhaseTimings
+{
+	// ------------------ Class and object variables --------------------
+
+	private long[] lastDurations;		// Duration of the most recent run of each phase in nanoseconds.
+	private long[] totalDurations;		// Total duration of all runs of each phase in nanoseconds.
+	private long[] lastCounts;			// Number of nodes processed in the most recent run of each phase.
+	private int[] numRuns;				// Number of times each phase has been run.
+
+	// ------------------------- Constructors ---------------------------
+
+	/** Creates an empty set of timings.
+	 */
+	PhaseTimings()
+	{
+		int numPhases = BuildPhase.values().length;
+		lastDurations  = new long[numPhases];
+		totalDurations = new long[numPhases];
+		lastCounts     = new long[numPhases];
+		numRuns        = new int[numPhases];
+	}
+
+	/** Creates a snapshot of the given timings.
+	 *  @param timings Timings to copy.
+	 */
+	PhaseTimings(PhaseTimings timings)
+	{
+		synchronized (timings)
+		{
+			lastDurations  = timings.lastDurations.clone();
+			totalDurations = timings.totalDurations.clone();
+			lastCounts     = timings.lastCounts.clone();
+			numRuns        = timings.numRuns.clone();
+		}
+	}
+
+	// ---------------------------- Methods -----------------------------
+
+	/** Reports the duration of the most recent run of the given phase.
+	 *  @param phase Phase to query.
+	 *  @return Duration in nanoseconds, or 0 if the phase has not been run.
+	 */
+	public synchronized long getLastDuration(BuildPhase phase)
+	{
+		return lastDurations[phase.ordinal()];
+	}
+
+	/** Reports the total duration of all runs of the given phase.
+	 *  @param phase Phase to query.
+	 *  @return Total duration in nanoseconds, or 0 if the phase has not been run.
+	 */
+	public synchronized long getTotalDuration(BuildPhase phase)
+	{
+		return totalDurations[phase.ordinal()];
+	}
+
+	/** Reports the number of nodes processed in the most recent run of the given phase.
+	 *  @param phase Phase to query.
+	 *  @return Number of nodes processed, or 0 if the phase has not been run.
+	 */
+	public synchronized long getLastCount(BuildPhase phase)
+	{
+		return lastCounts[phase.ordinal()];
+	}
+
+	/** Reports the number of times the given phase has been run.
+	 *  @param phase Phase to query.
+	 *  @return Number of runs of the phase.
+	 */
+	public synchronized int getNumRuns(BuildPhase phase)
+	{
+		return numRuns[phase.ordinal()];
+	}
+
+	/** Provides a summary of the timings of each phase that has been run.
+	 *  @return Text summary of the phase timings with one phase per line.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		DecimalFormat ms = new DecimalFormat("#0.###");
+		StringBuilder summary = new StringBuilder();
+		for (BuildPhase phase : BuildPhase.values())
+		{
+			int i = phase.ordinal();
+			if (numRuns[i] > 0)
+			{
+				summary.append(phase).append(": ").append(ms.format(lastDurations[i]/1e6)).append(" ms, ")
+				       .append(lastCounts[i]).append(" nodes (").append(numRuns[i]).append(numRuns[i]==1 ? " run, " : " runs, ")
+				       .append(ms.format(totalDurations[i]/1e6)).append(" ms in total)\n");
+			}
+		}
+		return summary.toString();
+	}
+
+	/** Records a run of the given phase.
+	 *  @param phase Phase that has been run.
+	 *  @param duration Duration of the phase in nanoseconds.
+	 *  @param nodeCount Number of nodes processed in the phase.
+	 */
+	synchronized void record(BuildPhase phase, long duration, long nodeCount)
+	{
+		int i = phase.ordinal();
+		lastDurations[i] = duration;
+		totalDurations[i] += duration;
+		lastCounts[i] = nodeCount;
+		numRuns[i]++;
+	}
+}
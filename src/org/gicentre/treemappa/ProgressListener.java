@@ -0,0 +1,36 @@
+package org.gicentre.treemappa;
+
+//********************************************************************************************
+/** Interface for objects that need to be informed of the progress of a treemap as it is read,
+ *  built and written. This can be used to display progress or estimate the time remaining for
+ *  long-running builds.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+//********************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface ProgressListener 
+{
+	/** Should respond to progress made in some phase of treemap creation. Progress is reported
+	 *  periodically rather than for every item processed, and always when a phase completes. This
+	 *  will be called on the thread that is building the treemap.
+	 *  @param phase Phase of treemap creation being reported.
+	 *  @param done Amount of work completed so far in this phase.
+	 *  @param total Total amount of work in this phase, or -1 if not known.
+	 */
+	public abstract void progressMade(BuildPhase phase, long done, long total);    
+}
@@ -0,0 +1,711 @@
+package org.gicentre.treemappa;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gicentre.io.ParallelDeflaterOutputStream;
+
+//***************************************************************************************************
+/** Writes a treemap as a compact SVG file. Output is assembled in a single reused buffer with numbers
+ *  formatted directly to a fixed number of decimal places, so no intermediate strings are created for
+ *  each node. Leaves are written as <code>&lt;rect&gt;</code> elements that refer to a shared CSS class for
+ *  each distinct colour rather than carrying their own style, and may optionally be grouped by hierarchy
+ *  level. If the file name ends in <code>.svgz</code> the output is compressed.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ***************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class SVGWriter
+{
+	// --------------------------------- Class and object variables ----------------------------------
+
+	private static final int BUFFER_SIZE = 64*1024;		// Number of characters buffered before writing.
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private TreeMapPanel tmPanel;
+	private NodePanelLayout layout;			// Layout of the node panels to write.
+	private int precision;					// Number of decimal places used for coordinates.
+	private long precisionScale;			// 10 to the power of precision.
+	private boolean groupByLevel;
+	private StringBuilder buf;				// Reused output buffer.
+	private Writer out;
+	private FontRenderContext frc;			// Used for measuring label text.
+	private Path2D.Double arrow;			// Reused path holding the geometry of each displacement arrow.
+	private double[] coords;				// Coordinates of each segment of an arrow's path.
+
+	private Map<Integer,Integer> colourClasses;	// CSS class number of each distinct ARGB leaf colour.
+
+	// ------------------------------------------ Constructor ------------------------------------------
+
+	/** Creates a writer for the given treemap panel.
+	 *  @param tmPanel Panel containing the treemap to write.
+	 *  @param layout Layout of the panel's node panels to write.
+	 *  @param precision Number of decimal places used for coordinates (0-6).
+	 *  @param groupByLevel If true, nodes are grouped in an SVG <code>&lt;g&gt;</code> element for each hierarchy level.
+	 */
+	SVGWriter(TreeMapPanel tmPanel, NodePanelLayout layout, int precision, boolean groupByLevel)
+	{
+		this.tmPanel = tmPanel;
+		this.layout = layout;
+		this.precision = Math.max(0, Math.min(6, precision));
+		this.groupByLevel = groupByLevel;
+		precisionScale = 1;
+		for (int i=0; i<this.precision; i++)
+		{
+			precisionScale *= 10;
+		}
+		buf = new StringBuilder(BUFFER_SIZE+1024);
+		frc = new FontRenderContext(null, true, true);
+		arrow = new Path2D.Double();
+		coords = new double[6];
+	}
+
+	// -------------------------------------------- Methods --------------------------------------------
+
+	/** Writes the treemap to the SVG file with the given name. If the name ends in <code>.svgz</code>, the
+	 *  file will be compressed. If the file cannot be completed, the partially written file is deleted.
+	 *  @param fileName Name of file to create.
+	 *  @return True if written successfully.
+	 */
+	boolean write(String fileName)
+	{
+		File file = new File(fileName);
+		OutputStream outStream = null;
+		boolean isWritten = false;
+		try
+		{
+			if (fileName.toLowerCase().trim().endsWith("svgz"))
+			{
+				TreeMapProperties props = tmPanel.getTreeMappa().getConfig();
+				outStream = new ParallelDeflaterOutputStream(file, props.getCompressionLevel(), props.getCompressionThreads(), true);
+			}
+			else
+			{
+				outStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+			}
+			out = new OutputStreamWriter(outStream, "UTF-8");
+
+			writeHeader();
+			buf.append("<g id=\"spatialObject\">\n");
+			writeNodes();
+			writeLabels();
+			buf.append("</g>\n");
+			writeVectors();
+			buf.append("</svg>\n");
+			flush(true);
+			out.close();
+			out = null;
+			outStream = null;
+			isWritten = true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing SVG file (" + e + ")");
+		}
+		finally
+		{
+			// Only still set if the file could not be completed.
+			try
+			{
+				if (out != null)
+				{
+					out.close();
+				}
+				else if (outStream != null)
+				{
+					outStream.close();
+				}
+			}
+			catch (IOException e)
+			{
+				System.err.println("Problem closing SVG file (" + e + ")");
+			}
+			out = null;
+
+			// Remove the incomplete file so it is not mistaken for a complete treemap.
+			if ((isWritten == false) && file.isFile() && (file.delete() == false))
+			{
+				System.err.println("Could not delete incomplete SVG file ("+fileName+").");
+			}
+		}
+		return isWritten;
+	}
+
+	// ----------------------------------------- Private methods -----------------------------------------
+
+	/** Writes the SVG header, styles and metadata, including a CSS class for each distinct leaf colour.
+	 *  @throws IOException if the header cannot be written.
+	 */
+	private void writeHeader() throws IOException
+	{
+		boolean isTransparent = tmPanel.getIsTransparent();
+		int borderColour = tmPanel.getBorderColour().getRGB();
+
+		buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		buf.append("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 ").append(tmPanel.getWidth()).append(' ').append(tmPanel.getHeight()).append("\">\n");
+		buf.append("<defs>\n<style type=\"text/css\"><![CDATA[\n");
+
+		if (isTransparent)
+		{
+			buf.append("#leafDisp{stroke:black;stroke-width:");
+			appendNumber(tmPanel.getLeafVectorWidth());
+			buf.append(";stroke-opacity:0.6;fill:none}\n#branchDisp{stroke:black;stroke-width:");
+			appendNumber(10*tmPanel.getBranchVectorWidths()[0]);
+			buf.append(";stroke-opacity:0.6;fill:none}\n");
+			buf.append("rect{stroke:black;stroke-width:0.03%;stroke-opacity:0.4;fill-opacity:0.9}\n");
+			buf.append("rect.b{");
+			appendColour("stroke", borderColour, 0.3);
+			buf.append(";stroke-width:0.05%;fill:none}\n");
+		}
+		else
+		{
+			buf.append("#leafDisp{stroke:#cccccc;stroke-width:");
+			appendNumber(tmPanel.getLeafVectorWidth());
+			buf.append(";fill:none}\n#branchDisp{stroke:#cccccc;stroke-width:");
+			appendNumber(10*tmPanel.getBranchVectorWidths()[0]);
+			buf.append(";fill:none}\n");
+			buf.append("rect{stroke:none}\n");
+			buf.append("rect.b{");
+			appendColour("stroke", borderColour, 1);
+			buf.append(";stroke-width:0.05%;fill:none}\n");
+		}
+		buf.append("text{stroke:none;font-family:sans-serif;text-anchor:middle}\n");
+
+		// Label styles for leaves and each branch level.
+		appendTextStyle("lt", tmPanel.getLeafTextColour(), false, isTransparent);
+		Color[] branchTextColours = tmPanel.getBranchTextColours();
+		for (int level=1; level<=layout.getMaxDepth() && level<=branchTextColours.length; level++)
+		{
+			appendTextStyle("bt"+level, branchTextColours[level-1], level==1, isTransparent);
+		}
+
+		// One class for each distinct leaf colour, including its opacity.
+		colourClasses = new HashMap<Integer,Integer>();
+		for (NodePanel leaf : layout.getLeaves())
+		{
+			if (leaf.isDummy())
+			{
+				continue;
+			}
+			int argb = leaf.getRGB();
+			if (findColourClass(argb) < 0)
+			{
+				int colourClass = addColourClass(argb);
+				buf.append(".c").append(colourClass).append('{');
+				appendColour("fill", argb, isTransparent ? 0.9 : 1);
+				buf.append("}\n");
+				flush(false);
+			}
+		}
+
+		buf.append("]]></style>\n</defs>\n");
+		buf.append("<title>Tree map</title>\n");
+		buf.append("<desc>Produced by treeMappa ").append(Version.getText()).append("</desc>\n");
+		flush(false);
+	}
+
+	/** Writes the rectangles representing each leaf and branch.
+	 *  @throws IOException if the nodes cannot be written.
+	 */
+	private void writeNodes() throws IOException
+	{
+		if (groupByLevel)
+		{
+			for (int level=1; level<=layout.getMaxDepth(); level++)
+			{
+				buf.append("<g class=\"level").append(level).append("\">\n");
+				writeRects(layout.getLeaves(), level);
+				writeRects(layout.getBranches(), level);
+				buf.append("</g>\n");
+			}
+		}
+		else
+		{
+			writeRects(layout.getLeaves(), -1);
+			writeRects(layout.getBranches(), -1);
+		}
+	}
+
+	/** Writes a rectangle for each of the given nodes at the given level.
+	 *  @param nodes Nodes to write.
+	 *  @param level Hierarchy level of nodes to write or -1 for nodes at all levels.
+	 *  @throws IOException if the rectangles cannot be written.
+	 */
+	private void writeRects(List<NodePanel> nodes, int level) throws IOException
+	{
+		for (NodePanel node : nodes)
+		{
+			if (node.isDummy() || ((level >= 0) && (node.getLevel() != level)))
+			{
+				continue;
+			}
+			Rectangle2D bounds = node.getBounds();
+			if (node.isLeaf())
+			{
+				buf.append("<rect class=\"c").append(findColourClass(node.getRGB())).append("\" x=\"");
+			}
+			else
+			{
+				buf.append("<rect class=\"b\" x=\"");
+			}
+			appendNumber(bounds.getX());
+			buf.append("\" y=\"");
+			appendNumber(bounds.getY());
+			buf.append("\" width=\"");
+			appendNumber(bounds.getWidth());
+			buf.append("\" height=\"");
+			appendNumber(bounds.getHeight());
+			buf.append("\"/>\n");
+			flush(false);
+		}
+	}
+
+	/** Writes the leaf and branch labels if they are to be shown.
+	 *  @throws IOException if the labels cannot be written.
+	 */
+	private void writeLabels() throws IOException
+	{
+		if (tmPanel.getShowLeafLabels())
+		{
+			for (NodePanel leaf : layout.getLeaves())
+			{
+				if (leaf.isDummy() == false)
+				{
+					writeLabel(leaf, tmPanel.getLeafFont(), tmPanel.getMaxLeafText(), false, "lt", 1);
+				}
+			}
+		}
+
+		if (tmPanel.getShowBranchLabels())
+		{
+			Font[] branchFonts = tmPanel.getBranchFonts();
+			float[] maxBranchTexts = tmPanel.getMaxBranchTexts();
+			for (NodePanel branch : layout.getBranches())
+			{
+				int level = branch.getLevel();
+				if (branch.isDummy() == false)
+				{
+					writeLabel(branch, branchFonts[level-1], maxBranchTexts[level-1], true, "bt"+level, (level==1) ? 1.1f : 1);
+				}
+			}
+		}
+		flush(false);
+	}
+
+	/** Writes the label of the given node scaled to fit within its bounds.
+	 *  @param node Node to label.
+	 *  @param font Font used to measure the label at its unscaled size of 40 points.
+	 *  @param maxText Maximum text size or 0 if no maximum.
+	 *  @param blendByArea If true, text size is partly dependent on node area as well as its dimensions.
+	 *  @param cssClass Style class of the label.
+	 *  @param sizeFactor Additional scaling applied to the final font size.
+	 *  @throws IOException if the label cannot be written.
+	 */
+	private void writeLabel(NodePanel node, Font font, float maxText, boolean blendByArea, String cssClass, float sizeFactor) throws IOException
+	{
+		Rectangle2D bounds = node.getBounds();
+		double width = bounds.getWidth();
+		double height = bounds.getHeight();
+		if (width*height <= 0)
+		{
+			return;
+		}
+
+		String[] lines = node.getLabel().split("\\\\n");
+		float maxWidth = 0;
+		for (String line : lines)
+		{
+			maxWidth = Math.max(maxWidth, (float)font.getStringBounds(line, frc).getWidth());
+		}
+
+		LineMetrics lm = font.getLineMetrics(lines[0], frc);
+		float lineHeight = lm.getAscent() + lm.getDescent();
+		float totalHeight = lines.length*lineHeight;
+
+		// Work out the scalings required to fit text both vertically and horizontally.
+		float horizScale = (float)Math.min(width/maxWidth, height/totalHeight);
+		float vertScale  = (float)Math.min(width/totalHeight, height/maxWidth);
+
+		if (blendByArea)
+		{
+			horizScale = (float)(horizScale*0.7 + (0.3*width*height) / layout.getRootArea());
+			vertScale  = (float)(vertScale*0.7 + (0.3*width*height) / layout.getRootArea());
+		}
+
+		if (maxText > 0)
+		{
+			if (horizScale > maxText/40f)
+			{
+				// No need to try vertical if text is already large enough.
+				horizScale = maxText/40f;
+				vertScale = 0;
+			}
+			else if (vertScale > maxText/40f)
+			{
+				vertScale = maxText/40f;
+			}
+		}
+
+		if (40*horizScale < 1)
+		{
+			return;
+		}
+
+		boolean isVertical = tmPanel.getAllowVerticalLabels() && (vertScale > horizScale);
+		float scale = isVertical ? vertScale : horizScale;
+		double cx = bounds.getX() + width/2.0;
+		double cy = bounds.getY() + height/2.0;
+
+		for (int i=0; i<lines.length; i++)
+		{
+			double y = cy + scale*((i+1)*lineHeight -totalHeight/2 -lm.getDescent());
+
+			buf.append("<text class=\"").append(cssClass).append("\" x=\"");
+			appendNumber(cx);
+			buf.append("\" y=\"");
+			appendNumber(y);
+			buf.append("\" font-size=\"");
+			appendNumber(40*scale*sizeFactor);
+			if (isVertical)
+			{
+				// Rotate text about its centre (since this will produce a larger label)
+				buf.append("\" transform=\"rotate(90 ");
+				appendNumber(cx);
+				buf.append(' ');
+				appendNumber(cy);
+				buf.append(')');
+			}
+			buf.append("\">");
+			appendEscaped(lines[i]);
+			buf.append("</text>\n");
+		}
+		flush(false);
+	}
+
+	/** Writes the branch and leaf displacement vectors if they are to be shown. All the vectors at any one
+	 *  level of the hierarchy are combined into a single path element.
+	 *  @throws IOException if the vectors cannot be written.
+	 */
+	private void writeVectors() throws IOException
+	{
+		boolean showArrowHead = tmPanel.getShowArrowHead();
+		boolean[] showBranchDisplacements = tmPanel.getShowBranchDisplacements();
+		float[] vectorWidths = tmPanel.getBranchVectorWidths();
+
+		buf.append("<g id=\"branchDisp\">\n");
+		for (int level=1; level<=showBranchDisplacements.length; level++)
+		{
+			if (showBranchDisplacements[level-1])
+			{
+				boolean isStarted = false;
+				for (NodePanel branch : layout.getBranches())
+				{
+					if ((branch.getLevel() == level) && isDrawnVector(branch))
+					{
+						if (!isStarted)
+						{
+							buf.append("<path d=\"");
+							isStarted = true;
+						}
+						writeArrow(branch.getBounds(), branch.getGeoBounds(), vectorWidths[level-1], showArrowHead);
+					}
+				}
+				if (isStarted)
+				{
+					buf.append("\"/>\n");
+				}
+			}
+		}
+		buf.append("</g>\n");
+
+		if (tmPanel.getShowLeafDisplacement())
+		{
+			buf.append("<g id=\"leafDisp\">\n");
+			boolean isStarted = false;
+			for (NodePanel leaf : layout.getLeaves())
+			{
+				if (isDrawnVector(leaf))
+				{
+					if (!isStarted)
+					{
+						buf.append("<path d=\"");
+						isStarted = true;
+					}
+					writeArrow(leaf.getBounds(), leaf.getGeoBounds(), tmPanel.getLeafVectorWidth(), showArrowHead);
+				}
+			}
+			if (isStarted)
+			{
+				buf.append("\"/>\n");
+			}
+			buf.append("</g>\n");
+		}
+		flush(false);
+	}
+
+	/** Reports whether the given node has a displacement vector that is long enough to be drawn.
+	 *  @param node Node to test.
+	 *  @return True if the node's displacement vector should be written.
+	 */
+	private boolean isDrawnVector(NodePanel node)
+	{
+		Point2D geoCentre = node.getGeoBounds();
+		if (geoCentre == null)
+		{
+			return false;
+		}
+		Rectangle2D bounds = node.getBounds();
+		return !DisplacementBatch.isTooShort(bounds.getCenterX(), bounds.getCenterY(), geoCentre.getX(), geoCentre.getY(),
+				                             tmPanel.getMinVectorLength());
+	}
+
+	/** Adds the path data for a curved displacement arrow from the centre of the given bounds to the given location.
+	 *  Greater angular change is at the source of the arrow in order to provide a visual indication of direction.
+	 *  The arrow's geometry is found by DisplacementBatch so that it matches the arrows drawn on screen.
+	 *  @param bounds Bounds of the node at the start of the arrow.
+	 *  @param geoCentre Location at the end of the arrow.
+	 *  @param lineWidth Width of the arrow line used to determine the arrow head size.
+	 *  @param showHead Arrow head drawn if true.
+	 *  @throws IOException if the arrow cannot be written.
+	 */
+	private void writeArrow(Rectangle2D bounds, Point2D geoCentre, double lineWidth, boolean showHead) throws IOException
+	{
+		arrow.reset();
+		DisplacementBatch.appendArrow(arrow, bounds.getCenterX(), bounds.getCenterY(), geoCentre.getX(), geoCentre.getY(), lineWidth, showHead);
+
+		for (PathIterator segments = arrow.getPathIterator(null); segments.isDone() == false; segments.next())
+		{
+			switch (segments.currentSegment(coords))
+			{
+				case PathIterator.SEG_MOVETO:
+					buf.append('M');
+					appendPoint(coords[0], coords[1]);
+					break;
+				case PathIterator.SEG_QUADTO:
+					buf.append('Q');
+					appendPoint(coords[0], coords[1]);
+					buf.append(' ');
+					appendPoint(coords[2], coords[3]);
+					break;
+				default:
+					buf.append('L');
+					appendPoint(coords[0], coords[1]);
+					break;
+			}
+		}
+		flush(false);
+	}
+
+	/** Adds a CSS text style to the output buffer.
+	 *  @param cssClass Name of the style class.
+	 *  @param colour Colour of the text.
+	 *  @param isBold True if text is to be bold.
+	 *  @param isTransparent True if the text colour's opacity is to be used.
+	 */
+	private void appendTextStyle(String cssClass, Color colour, boolean isBold, boolean isTransparent)
+	{
+		buf.append('.').append(cssClass).append('{');
+		if (isTransparent)
+		{
+			buf.append("fill:");
+			appendHex(colour.getRGB());
+			buf.append(";opacity:");
+			appendOpacity(colour.getAlpha()/255.0);
+		}
+		else
+		{
+			appendColour("fill", colour.getRGB(), 1);
+		}
+		if (isBold)
+		{
+			buf.append(";font-weight:bold");
+		}
+		buf.append("}\n");
+	}
+
+	/** Adds an opacity value to the output buffer to three decimal places, independently of the coordinate precision.
+	 *  @param opacity Opacity between 0 and 1.
+	 */
+	private void appendOpacity(double opacity)
+	{
+		int thousandths = (int)Math.round(Math.max(0, Math.min(1, opacity))*1000);
+		if ((thousandths == 0) || (thousandths == 1000))
+		{
+			buf.append(thousandths/1000);
+			return;
+		}
+		buf.append("0.");
+		for (int divisor=100; thousandths > 0; divisor/=10)
+		{
+			buf.append((char)('0'+thousandths/divisor));
+			thousandths %= divisor;
+		}
+	}
+
+	/** Adds a coordinate pair separated by a space to the output buffer.
+	 *  @param x x coordinate.
+	 *  @param y y coordinate.
+	 */
+	private void appendPoint(double x, double y)
+	{
+		appendNumber(x);
+		buf.append(' ');
+		appendNumber(y);
+	}
+
+	/** Adds the given number to the output buffer rounded to the writer's precision. Trailing zeros
+	 *  after the decimal point are omitted. This avoids the cost of general purpose number formatting.
+	 *  @param value Number to add.
+	 */
+	private void appendNumber(double value)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			buf.append('0');
+			return;
+		}
+		long scaled = Math.round(Math.abs(value)*precisionScale);
+		if ((value < 0) && (scaled != 0))
+		{
+			buf.append('-');
+		}
+		buf.append(scaled/precisionScale);
+
+		long fraction = scaled%precisionScale;
+		if (fraction != 0)
+		{
+			buf.append('.');
+			long divisor = precisionScale/10;
+			while (fraction > 0)
+			{
+				buf.append((char)('0'+fraction/divisor));
+				fraction %= divisor;
+				divisor /= 10;
+			}
+		}
+	}
+
+	/** Adds the given RGB colour to the output buffer as a hex string in the form <code>#rrggbb</code>.
+	 *  @param rgb Colour to add.
+	 */
+	private void appendHex(int rgb)
+	{
+		buf.append('#');
+		for (int shift=20; shift>=0; shift-=4)
+		{
+			buf.append(HEX[(rgb >> shift) & 0xf]);
+		}
+	}
+
+	/** Adds the given text to the output buffer with XML special characters escaped.
+	 *  @param text Text to add.
+	 */
+	private void appendEscaped(String text)
+	{
+		for (int i=0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+				case '&':
+					buf.append("&amp;");
+					break;
+				case '<':
+					buf.append("&lt;");
+					break;
+				case '>':
+					buf.append("&gt;");
+					break;
+				case '"':
+					buf.append("&quot;");
+					break;
+				default:
+					buf.append(c);
+			}
+		}
+	}
+
+	/** Adds a CSS colour property to the output buffer. The colour's alpha, scaled by the given opacity, is
+	 *  added as a matching opacity property (e.g. <code>fill-opacity</code>) if the result is not fully opaque.
+	 *  @param property Name of the colour property, such as <code>fill</code> or <code>stroke</code>.
+	 *  @param argb Packed ARGB colour value.
+	 *  @param opacity Opacity by which to scale the colour's own alpha (0-1).
+	 */
+	private void appendColour(String property, int argb, double opacity)
+	{
+		buf.append(property).append(':');
+		appendHex(argb);
+
+		double alpha = opacity*(argb >>> 24)/255.0;
+		if (alpha < 1)
+		{
+			buf.append(';').append(property).append("-opacity:");
+			appendOpacity(alpha);
+		}
+	}
+
+	/** Writes the contents of the output buffer if it is full or if requested.
+	 *  @param force If true, the buffer is written regardless of how full it is.
+	 *  @throws IOException if the buffer cannot be written.
+	 */
+	private void flush(boolean force) throws IOException
+	{
+		if (force || (buf.length() >= BUFFER_SIZE))
+		{
+			out.append(buf);
+			buf.setLength(0);
+		}
+	}
+
+	/** Finds the CSS class number associated with the given colour.
+	 *  @param rgb ARGB colour to find.
+	 *  @return Class number or -1 if colour has no class.
+	 */
+	private int findColourClass(int rgb)
+	{
+		Integer colourClass = colourClasses.get(Integer.valueOf(rgb));
+		return colourClass == null ? -1 : colourClass.intValue();
+	}
+
+	/** Creates a new CSS class number for the given colour, which should not already have one.
+	 *  @param rgb Colour to add.
+	 *  @return New class number.
+	 */
+	private int addColourClass(int rgb)
+	{
+		int colourClass = colourClasses.size();
+		colourClasses.put(Integer.valueOf(rgb), Integer.valueOf(colourClass));
+		return colourClass;
+	}
+}
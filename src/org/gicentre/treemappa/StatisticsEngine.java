@@ -0,0 +1,661 @@
+package org.gicentre.treemappa;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//  ***********************************************************************
+/** Calculates layout quality statistics of a treemap. The tree is first flattened into primitive
+ *  arrays in a single iterative traversal so that no objects are created per node. Each branch's
+ *  children are then examined in one pass that accumulates aspect ratios, readability, displacement
+ *  and order-distance measures together. Large trees are divided between several threads.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+class StatisticsEngine
+{
+	// ------------------ Class and object variables --------------------
+
+	private static final int PARALLEL_THRESHOLD = 10000;	// Trees with fewer nodes than this are processed in a single thread.
+	private static final int CHUNK_SIZE = 4096;				// Nodes in each task, so partial sums do not depend on the number of processors.
+	private static final double MIN_ANGLE_CHANGE = 0.1;		// Change in reading direction (radians) that reduces readability.
+
+	private static final int ASPECT = 0;					// Positions of accumulated values in partial sums.
+	private static final int NUM_NODES = 1;
+	private static final int DIRECTION_CHANGES = 2;
+	private static final int NUM_ADJACENT = 3;
+	private static final int ANG_DISPLACEMENT = 4;
+	private static final int DIST_DISPLACEMENT = 5;
+	private static final int NUM_SPATIAL = 6;
+	private static final int NUM_SUMS = 7;
+
+	private static ExecutorService executor;				// Worker threads shared by all calculations (created when first needed).
+
+	private Layout[] layoutTypes;
+	private boolean isSpatial;
+	private int numNodes;
+
+	private double[] x, y, w, h;			// Node rectangles (NaN if node has no rectangle).
+	private double[] locX, locY;			// Node locations (NaN if node has no location).
+	private double[] size, order;
+	private int[] level;
+	private int[] firstChild;				// Index into children of each node's first child.
+	private int[] children;					// Indices of the children of each node, stored in sibling order.
+	private boolean[] isVisible;			// True if node and all its ancestors below the root are large enough to display.
+	private boolean[] isReachable;			// True if node and all its ancestors have a rectangle.
+	private double[] leafDistance;			// Distance of each ordered leaf from the treemap origin (NaN if not measured).
+
+	// ------------------------- Constructor ----------------------------
+
+	/** Flattens the given tree ready for calculation of its statistics.
+	 *  @param root Root of the tree to measure.
+	 *  @param layoutTypes Layout used at each level of the tree.
+	 *  @param isSpatial True if any level of the tree uses a spatial layout.
+	 */
+	private StatisticsEngine(TreeMapNode root, Layout[] layoutTypes, boolean isSpatial)
+	{
+		this.layoutTypes = layoutTypes;
+		this.isSpatial = isSpatial;
+		flatten(root);
+	}
+
+	// ---------------------------- Methods -----------------------------
+
+	/** Calculates the layout quality statistics of the given tree.
+	 *  @param root Root of the tree to measure. Must have been laid out.
+	 *  @param layoutTypes Layout used at each level of the tree.
+	 *  @param isSpatial True if any level of the tree uses a spatial layout.
+	 *  @param rootWidth Width of the treemap.
+	 *  @param rootHeight Height of the treemap.
+	 *  @param treeDepth Number of levels in the tree.
+	 *  @return Calculated statistics or null if the calculation was interrupted.
+	 */
+	static TreeMapStatistics calculate(TreeMapNode root, Layout[] layoutTypes, boolean isSpatial,
+			                           double rootWidth, double rootHeight, int treeDepth)
+	{
+		StatisticsEngine engine = new StatisticsEngine(root, layoutTypes, isSpatial);
+		double[] sums = engine.accumulate();
+		if (sums == null)
+		{
+			return null;
+		}
+
+		int numNodes = (int)sums[NUM_NODES];
+		int numAdjacent = (int)sums[NUM_ADJACENT];
+		double readability = Double.NaN;
+		if (numAdjacent > 0)
+		{
+			readability = 1 - sums[DIRECTION_CHANGES]/numAdjacent;
+		}
+
+		double distDisplacement = Double.NaN;
+		double angDisplacement = Double.NaN;
+		double orderDistanceRSq = Double.NaN;
+		if (isSpatial)
+		{
+			distDisplacement = sums[DIST_DISPLACEMENT]/(sums[NUM_SPATIAL]*Math.sqrt(rootWidth*rootHeight));
+			angDisplacement = (sums[ANG_DISPLACEMENT]*180/Math.PI)/sums[NUM_SPATIAL];
+		}
+		else
+		{
+			orderDistanceRSq = engine.calcOrderDistanceRSq();
+		}
+
+		return new TreeMapStatistics(numNodes, treeDepth, sums[ASPECT]/numNodes, numAdjacent, readability,
+				                     isSpatial, distDisplacement, angDisplacement, orderDistanceRSq);
+	}
+
+	// ------------------------- Private methods ------------------------
+
+	/** Stores the tree with the given root in primitive arrays. Nodes are stored in depth-first pre-order so
+	 *  every node is stored after its parent and siblings are stored in their original order.
+	 *  @param root Root of the tree to flatten.
+	 */
+	private void flatten(TreeMapNode root)
+	{
+		// Count nodes so that arrays can be allocated once.
+		TreeMapNode[] stack = new TreeMapNode[64];
+		int top = 0;
+		stack[top++] = root;
+		numNodes = 0;
+		while (top > 0)
+		{
+			TreeMapNode node = stack[--top];
+			numNodes++;
+			int numChildren = node.getChildCount();
+			if (top+numChildren > stack.length)
+			{
+				stack = Arrays.copyOf(stack, Math.max(stack.length*2, top+numChildren));
+			}
+			for (int i=0; i<numChildren; i++)
+			{
+				stack[top++] = node.getChildAt(i);
+			}
+		}
+
+		x = new double[numNodes];
+		y = new double[numNodes];
+		w = new double[numNodes];
+		h = new double[numNodes];
+		locX = new double[numNodes];
+		locY = new double[numNodes];
+		size = new double[numNodes];
+		order = new double[numNodes];
+		level = new int[numNodes];
+		isVisible = new boolean[numNodes];
+		isReachable = new boolean[numNodes];
+		leafDistance = new double[numNodes];
+		int[] parent = new int[numNodes];
+
+		// Store node attributes in pre-order, pushing children in reverse so they are popped in sibling order.
+		int[] parentStack = new int[stack.length];
+		top = 0;
+		stack[top] = root;
+		parentStack[top++] = -1;
+		int index = 0;
+		while (top > 0)
+		{
+			top--;
+			TreeMapNode node = stack[top];
+			parent[index] = parentStack[top];
+
+			Rectangle2D rect = node.getRectangle();
+			if (rect == null)
+			{
+				x[index] = Double.NaN;
+				y[index] = Double.NaN;
+				w[index] = Double.NaN;
+				h[index] = Double.NaN;
+			}
+			else
+			{
+				x[index] = rect.getX();
+				y[index] = rect.getY();
+				w[index] = rect.getWidth();
+				h[index] = rect.getHeight();
+			}
+			Point2D location = node.getLocation();
+			locX[index] = (location == null) ? Double.NaN : location.getX();
+			locY[index] = (location == null) ? Double.NaN : location.getY();
+			size[index] = node.getSizeValue();
+			order[index] = node.getOrder();
+			level[index] = node.getLevel();
+			leafDistance[index] = Double.NaN;
+
+			int numChildren = node.getChildCount();
+			if (top+numChildren > stack.length)
+			{
+				int newLength = Math.max(stack.length*2, top+numChildren);
+				stack = Arrays.copyOf(stack, newLength);
+				parentStack = Arrays.copyOf(parentStack, newLength);
+			}
+			for (int i=numChildren-1; i>=0; i--)
+			{
+				stack[top] = node.getChildAt(i);
+				parentStack[top++] = index;
+			}
+			index++;
+		}
+
+		// Build compact child lists. Since children are stored in increasing index order, sibling order is kept.
+		firstChild = new int[numNodes+1];
+		for (int i=1; i<numNodes; i++)
+		{
+			firstChild[parent[i]+1]++;
+		}
+		for (int i=0; i<numNodes; i++)
+		{
+			firstChild[i+1] += firstChild[i];
+		}
+		children = new int[Math.max(0, numNodes-1)];
+		int[] nextChild = Arrays.copyOf(firstChild, numNodes);
+		for (int i=1; i<numNodes; i++)
+		{
+			children[nextChild[parent[i]]++] = i;
+		}
+
+		// Parents always precede their children so visibility can be found in a single pass.
+		isReachable[0] = hasRect(0);
+		for (int i=1; i<numNodes; i++)
+		{
+			boolean isLargeEnough = hasRect(i) && (w[i] >= 1) && (h[i] >= 1);
+			isVisible[i] = isLargeEnough && ((parent[i] == 0) || isVisible[parent[i]]);
+			isReachable[i] = hasRect(i) && isReachable[parent[i]];
+		}
+	}
+
+	/** Accumulates the statistics of all nodes, dividing large trees between several threads.
+	 *  @return Accumulated sums or null if the calculation was interrupted or failed.
+	 */
+	private double[] accumulate()
+	{
+		if ((numNodes < PARALLEL_THRESHOLD) || (Runtime.getRuntime().availableProcessors() < 2))
+		{
+			return accumulate(0, numNodes);
+		}
+
+		ExecutorService workers = getExecutor();
+		List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+		for (int start=0; start<numNodes; start+=CHUNK_SIZE)
+		{
+			final int from = start;
+			final int to = Math.min(start+CHUNK_SIZE, numNodes);
+			results.add(workers.submit(new Callable<double[]>()
+			{
+				public double[] call()
+				{
+					return accumulate(from, to);
+				}
+			}));
+		}
+
+		// Combine partial sums in node order so results do not depend on thread scheduling.
+		double[] sums = new double[NUM_SUMS];
+		for (Future<double[]> result : results)
+		{
+			try
+			{
+				double[] partialSums = result.get();
+				for (int i=0; i<NUM_SUMS; i++)
+				{
+					sums[i] += partialSums[i];
+				}
+			}
+			catch (InterruptedException e)
+			{
+				cancel(results);
+				Thread.currentThread().interrupt();
+				System.err.println("Calculation of treemap statistics interrupted.");
+				return null;
+			}
+			catch (ExecutionException e)
+			{
+				cancel(results);
+				System.err.println("Problem calculating treemap statistics: "+e.getCause());
+				return null;
+			}
+		}
+		return sums;
+	}
+
+	/** Stops any of the given tasks that have not yet completed so the shared worker threads are not kept busy.
+	 *  @param results Tasks to cancel.
+	 */
+	private static void cancel(List<Future<double[]>> results)
+	{
+		for (Future<double[]> result : results)
+		{
+			result.cancel(true);
+		}
+	}
+
+	/** Provides the worker threads shared by all statistics calculations, creating them if this is the first
+	 *  calculation large enough to be divided. The threads do not prevent the application from exiting.
+	 *  @return Executor with one worker thread for each available processor.
+	 */
+	private static synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "TreeMappa statistics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/** Accumulates the statistics of the nodes within the given range of indices. Ranges can be processed 
+	 *  concurrently since each only writes leaf distances of the children of nodes within the range.
+	 *  @param from Index of the first node to process.
+	 *  @param to Index one beyond the last node to process.
+	 *  @return Partial sums of the statistics of the nodes in the range.
+	 */
+	private double[] accumulate(int from, int to)
+	{
+		double[] sums = new double[NUM_SUMS];
+		for (int i=from; i<to; i++)
+		{
+			// The root is excluded since it simply reflects the shape of the treemap, and dummy nodes are not counted.
+			if ((i > 0) && isVisible[i] && (size[i] >= 0))
+			{
+				sums[ASPECT] += Math.max(w[i]/h[i], h[i]/w[i]);
+				sums[NUM_NODES]++;
+			}
+
+			if (firstChild[i] == firstChild[i+1])
+			{
+				continue;		// Leaf.
+			}
+
+			if ((i > 0) && isVisible[i])
+			{
+				Layout layout = layoutTypes[level[i]];
+				if ((layout != Layout.SPATIAL) && (layout != Layout.SPATIAL_AV) && (layout != Layout.PIVOT_SPACE))
+				{
+					storeLeafDistances(i);
+				}
+				addReadability(i, sums);
+			}
+
+			if (isSpatial && isReachable[i])
+			{
+				addDisplacement(i, sums);
+			}
+		}
+		return sums;
+	}
+
+	/** Stores the distance from the origin of the treemap of each ordered leaf child of the given node.
+	 *  @param node Index of the node whose children are to be measured.
+	 */
+	private void storeLeafDistances(int node)
+	{
+		for (int c=firstChild[node]; c<firstChild[node+1]; c++)
+		{
+			int child = children[c];
+			if (isLeaf(child) && (size[child] > 0) && hasRect(child))		// Non-dummy children only.
+			{
+				double dx = x[child]-x[0];
+				double dy = y[child]-y[0];
+				leafDistance[child] = Math.sqrt(dx*dx + dy*dy);
+			}
+		}
+	}
+
+	/** Adds the number of changes in reading direction between consecutive leaf children of the given node.
+	 *  @param node Index of the node whose children are to be measured.
+	 *  @param sums Partial sums to which direction changes and the number of leaves considered are added.
+	 */
+	private void addReadability(int node, double[] sums)
+	{
+		int start = firstChild[node];
+		int end = firstChild[node+1];
+
+		// Look for two leaves to establish the initial reading direction.
+		int child1 = -1;
+		int child2 = -1;
+		int nextLeafNum = -1;
+		for (int c=start; c<end-1; c++)
+		{
+			int child = children[c];
+			if (isLeaf(child) && (size[child] > 0))
+			{
+				if (child1 == -1)
+				{
+					child1 = child;
+				}
+				else
+				{
+					child2 = child;
+					nextLeafNum = c+1;
+					break;
+				}
+			}
+		}
+
+		if ((nextLeafNum == -1) || (hasRect(child1) == false) || (hasRect(child2) == false))
+		{
+			return;
+		}
+
+		double oldDirection = Math.atan2(centreY(child2)-centreY(child1), centreX(child2)-centreX(child1));
+		int oldChild = child2;
+		boolean foundNewLeaf = false;
+
+		for (int c=nextLeafNum; c<end; c++)
+		{
+			int child = children[c];
+			if ((isLeaf(child) == false) || (size[child] < 0) || (hasRect(child) == false))
+			{
+				continue;
+			}
+
+			sums[NUM_ADJACENT]++;
+			foundNewLeaf = true;
+
+			double direction = Math.atan2(centreY(child)-centreY(oldChild), centreX(child)-centreX(oldChild));
+			if (Math.abs(direction-oldDirection) > MIN_ANGLE_CHANGE)
+			{
+				sums[DIRECTION_CHANGES]++;
+			}
+			oldDirection = direction;
+			oldChild = child;
+		}
+
+		if (foundNewLeaf)
+		{
+			sums[NUM_ADJACENT] += 2;		// Account for first two nodes used to find initial vector.
+		}
+	}
+
+	/** Adds the distance and angular displacement of each child of the given node from its geographic position.
+	 *  @param node Index of the node whose children are to be measured.
+	 *  @param sums Partial sums to which displacements and the number of nodes measured are added.
+	 */
+	private void addDisplacement(int node, double[] sums)
+	{
+		int start = firstChild[node];
+		int end = firstChild[node+1];
+
+		// Find geographic range of children.
+		double minEasting = Float.MAX_VALUE,minNorthing = Float.MAX_VALUE;
+		double maxEasting = -Float.MAX_VALUE,maxNorthing = -Float.MAX_VALUE;
+		for (int c=start; c<end; c++)
+		{
+			int child = children[c];
+			minEasting = Math.min(minEasting, locX[child]);
+			minNorthing = Math.min(minNorthing, locY[child]);
+			maxEasting = Math.max(maxEasting, locX[child]);
+			maxNorthing = Math.max(maxNorthing, locY[child]);
+		}
+		double eastingRange = maxEasting-minEasting;
+		double northingRange = maxNorthing-minNorthing;
+		if (((eastingRange > 0) == false) || ((northingRange > 0) == false))
+		{
+			return;
+		}
+
+		for (int c=start; c<end; c++)
+		{
+			int child = children[c];
+			if (hasRect(child) == false)
+			{
+				continue;
+			}
+			double geoX = x[node] + w[node]*(locX[child]-minEasting)/eastingRange;
+			double geoY = y[node] + h[node] - (h[node]*(locY[child]-minNorthing)/northingRange);
+
+			// Angular displacement is measured to all other siblings. This is an n^2 search, so could be capped at nearest m neighbours.
+			int numSiblings = 0;
+			double angTotal = 0;
+			for (int s=start; s<end; s++)
+			{
+				int sibling = children[s];
+				if ((sibling == child) || (hasRect(sibling) == false))
+				{
+					continue;
+				}
+
+				// Create two normalised vectors and their dot product to find angular deviation between them.
+				double geoVectX = (x[node] + w[node]*(locX[sibling]-minEasting)/eastingRange) - geoX;
+				double geoVectY = (y[node] + h[node] - (h[node]*(locY[sibling]-minNorthing)/northingRange)) - geoY;
+				double geoLength = Math.sqrt(geoVectX*geoVectX + geoVectY*geoVectY);
+
+				if (geoLength > 0)
+				{
+					geoVectX /= geoLength;
+					geoVectY /= geoLength;
+
+					double tmVectX = centreX(sibling)-centreX(child);
+					double tmVectY = centreY(sibling)-centreY(child);
+					double tmLength = Math.sqrt(tmVectX*tmVectX + tmVectY*tmVectY);
+					tmVectX /= tmLength;
+					tmVectY /= tmLength;
+
+					// Account for rounding errors.
+					double arg = Math.max(-1, Math.min(1, geoVectX*tmVectX + geoVectY*tmVectY));
+					angTotal += Math.acos(arg);
+					numSiblings++;
+				}
+			}
+			sums[ANG_DISPLACEMENT] += angTotal/numSiblings;
+
+			double dx = centreX(child)-geoX;
+			double dy = centreY(child)-geoY;
+			sums[DIST_DISPLACEMENT] += Math.sqrt(dx*dx + dy*dy);
+			sums[NUM_SPATIAL]++;
+		}
+	}
+
+	/** Calculates the R-squared value of the relationship between the rank order of ordered leaves and their
+	 *  distance from the treemap origin.
+	 *  @return R-squared value, or NaN if there are too few ordered leaves to measure.
+	 */
+	private double calcOrderDistanceRSq()
+	{
+		int numLeaves = 0;
+		int[] leaves = new int[numNodes];
+		for (int i=0; i<numNodes; i++)
+		{
+			if (Double.isNaN(leafDistance[i]) == false)
+			{
+				leaves[numLeaves++] = i;
+			}
+		}
+		if (numLeaves <= 2)
+		{
+			return Double.NaN;
+		}
+		sortByOrder(leaves, numLeaves);
+
+		// Pass one to establish mean of rank order and distances.
+		double xBar=0, yBar=0;
+		for (int i=0; i<numLeaves; i++)
+		{
+			xBar += i;		// Rank order for orders.
+			yBar += leafDistance[leaves[i]];
+		}
+		xBar /= numLeaves;
+		yBar /= numLeaves;
+
+		// Pass two to establish correlation coefficients.
+		double sXX=0, sYY=0, sXY=0;
+		for (int i=0; i<numLeaves; i++)
+		{
+			double xt = i-xBar;
+			double yt = leafDistance[leaves[i]]-yBar;
+			sXX += xt*xt;
+			sYY += yt*yt;
+			sXY += xt*yt;
+		}
+
+		double r = sXY/Math.sqrt(sXX*sYY);
+		return r*r;
+	}
+
+	/** Sorts the first <code>n</code> given node indices by their order values. The sort is a stable merge sort
+	 *  so that leaves with the same order value remain in tree order.
+	 *  @param indices Node indices to sort.
+	 *  @param n Number of indices to sort.
+	 */
+	private void sortByOrder(int[] indices, int n)
+	{
+		int[] src = indices;
+		int[] dst = new int[n];
+		for (int width=1; width<n; width*=2)
+		{
+			for (int left=0; left<n; left+=2*width)
+			{
+				int mid = Math.min(left+width, n);
+				int right = Math.min(left+2*width, n);
+				int i = left, j = mid, k = left;
+				while ((i < mid) && (j < right))
+				{
+					// Only take from the right run if strictly smaller, which keeps equal values in their original order.
+					dst[k++] = (order[src[j]] < order[src[i]]) ? src[j++] : src[i++];
+				}
+				while (i < mid)
+				{
+					dst[k++] = src[i++];
+				}
+				while (j < right)
+				{
+					dst[k++] = src[j++];
+				}
+			}
+			int[] temp = src;
+			src = dst;
+			dst = temp;
+		}
+		if (src != indices)
+		{
+			System.arraycopy(src, 0, indices, 0, n);
+		}
+	}
+
+	/** Reports whether the given node is a leaf.
+	 *  @param node Index of the node.
+	 *  @return True if the node has no children.
+	 */
+	private boolean isLeaf(int node)
+	{
+		return firstChild[node] == firstChild[node+1];
+	}
+
+	/** Reports whether the given node has been given a rectangle by the layout.
+	 *  @param node Index of the node.
+	 *  @return True if the node has a rectangle.
+	 */
+	private boolean hasRect(int node)
+	{
+		return Double.isNaN(w[node]) == false;
+	}
+
+	/** Reports the horizontal centre of the given node's rectangle.
+	 *  @param node Index of the node.
+	 *  @return x coordinate of the centre of the node's rectangle.
+	 */
+	private double centreX(int node)
+	{
+		return x[node] + w[node]/2.0;
+	}
+
+	/** Reports the vertical centre of the given node's rectangle.
+	 *  @param node Index of the node.
+	 *  @return y coordinate of the centre of the node's rectangle.
+	 */
+	private double centreY(int node)
+	{
+		return y[node] + h[node]/2.0;
+	}
+}
@@ -0,0 +1,30 @@
+package org.gicentre.treemappa;
+
+//  ***********************************************************************
+/** Represents the orders in which the nodes of a treemap hierarchy can be traversed by a
+ *  <code>Spliterator</code> or stream provided by a <code>TreeMapNode</code>.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public enum TraversalOrder 
+{ 
+	/** Pre-order depth-first traversal, where each node is followed by all of its descendants. */		DEPTH_FIRST,
+	/** Breadth-first traversal of each subtree, with no overall order between separately split subtrees. */	BREADTH_FIRST,
+	/** Level-by-level traversal, where all nodes at one level precede any at the level below. */		LEVEL_ORDER;
+}
@@ -70,6 +70,7 @@ public class TreeFrame extends JWFrame
 
 		JPanel mapPanel = new JPanel(new BorderLayout());                    
 		treemapPanel = new TreeMapPanel(600,400,treeMappa);
+		treemapPanel.setProgressFrame(this);
 		treemapPanel.updateImage();
 
 		mapPanel.add(treemapPanel,BorderLayout.CENTER);
@@ -102,6 +103,17 @@ public class TreeFrame extends JWFrame
 		return treemapPanel.writeImage(imgFileName);
 	}
 
+	/** Writes the tree map display as a z/x/y pyramid of PNG map tiles in the given folder.
+	 * @param dirName Name of the folder in which to store the tiles.
+	 * @param minZoom Lowest zoom level to write.
+	 * @param maxZoom Highest zoom level to write.
+	 * @return True if tiles written successfully.
+	 */
+	public boolean writeTiles(String dirName, int minZoom, int maxZoom)
+	{
+		return treemapPanel.writeTiles(dirName, minZoom, maxZoom);
+	}
+
 	/** Provides the panel in which the treemap is displayed.
 	 *  @return Panel in which the treemap is displayed.
 	 */
@@ -0,0 +1,212 @@
+package org.gicentre.treemappa;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+//****************************************************************************************************
+/** Traverses part of a tree map hierarchy level by level, providing nodes in the same order as a
+ *  <code>TreeMapBreadthFirstIterator</code>. The traversal is split by handing out batches of nodes from
+ *  the current level, so that each part precedes the remainder and ordered parallel streams are possible.
+ *  The parts that are split off cover a run of nodes at one level only, while the remainder goes on to
+ *  find and traverse each lower level in turn.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ****************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class TreeMapLevelSpliterator implements Spliterator<TreeMapNode>
+{
+	// --------------------------- Class variables --------------------------------
+
+	private static final int BATCH_SIZE = 1024;	// Maximum number of nodes split off from the levels still to be traversed.
+
+	// --------------------------- Object variables -------------------------------
+
+	private TreeMapNode[] level;		// All nodes at the current level.
+	private int position;				// Index of the next node to provide from the current level.
+	private int end;					// Index after the last node to provide from the current level.
+	private boolean descend;			// Indicates lower levels are traversed once the current one is complete.
+
+	// ----------------------------- Constructors ---------------------------------
+
+	/** Initialises the spliterator with the tree map node at the start of the traversal. The first
+	 *  item to be provided will be the first child of the given node.
+	 *  @param startNode Parent node from which to traverse the tree.
+	 */
+	TreeMapLevelSpliterator(TreeMapNode startNode)
+	{
+		this(startNode.getChildren().toArray(new TreeMapNode[0]), 0, startNode.getChildCount(), true);
+	}
+
+	/** Creates a spliterator over a run of nodes at one level.
+	 *  @param level All nodes at the level.
+	 *  @param position Index of the first node in the run.
+	 *  @param end Index after the last node in the run.
+	 *  @param descend Indicates lower levels should be traversed once the run is complete.
+	 */
+	private TreeMapLevelSpliterator(TreeMapNode[] level, int position, int end, boolean descend)
+	{
+		this.level = level;
+		this.position = position;
+		this.end = end;
+		this.descend = descend;
+	}
+
+	// ------------------------------- Methods ------------------------------------
+
+	/** Provides the next node in the traversal to the given action if there are any left.
+	 *  @param action Action to perform on the next node.
+	 *  @return True if a node was provided, false if there are no more nodes to traverse.
+	 */
+	public boolean tryAdvance(Consumer<? super TreeMapNode> action)
+	{
+		if (action == null)
+		{
+			throw new NullPointerException("Null 'action' argument.");
+		}
+
+		if ((position == end) && (nextLevel() == false))
+		{
+			return false;
+		}
+		action.accept(level[position++]);
+		return true;
+	}
+
+	/** Provides all remaining nodes in the traversal to the given action.
+	 *  @param action Action to perform on each node.
+	 */
+	public void forEachRemaining(Consumer<? super TreeMapNode> action)
+	{
+		if (action == null)
+		{
+			throw new NullPointerException("Null 'action' argument.");
+		}
+
+		do
+		{
+			while (position < end)
+			{
+				action.accept(level[position++]);
+			}
+		}
+		while (nextLevel());
+	}
+
+	/** Splits off the first of the remaining nodes at the current level so they can be traversed separately. If lower 
+	 *  levels are still to be traversed, a batch of at most <code>BATCH_SIZE</code> nodes is split off, as the size of the 
+	 *  remainder is not known. Otherwise the first half of the remaining nodes is split off.
+	 *  @return Spliterator covering the first part of the remaining traversal, or null if it cannot be split.
+	 */
+	public Spliterator<TreeMapNode> trySplit()
+	{
+		if ((position == end) && (nextLevel() == false))
+		{
+			return null;
+		}
+
+		int remaining = end-position;
+		int splitEnd;
+		if (descend)
+		{
+			splitEnd = position + Math.min(remaining, BATCH_SIZE);
+		}
+		else if (remaining >= 2)
+		{
+			splitEnd = position + remaining/2;
+		}
+		else
+		{
+			return null;
+		}
+
+		Spliterator<TreeMapNode> split = new TreeMapLevelSpliterator(level, position, splitEnd, false);
+		position = splitEnd;
+		return split;
+	}
+
+	/** Reports an estimate of the number of nodes still to be traversed. This is exact for a run of nodes at a
+	 *  single level, but unknown if lower levels are still to be traversed.
+	 *  @return Estimated number of nodes still to be provided.
+	 */
+	public long estimateSize()
+	{
+		if (descend)
+		{
+			return Long.MAX_VALUE;
+		}
+		return end-position;
+	}
+
+	/** Reports the characteristics of this spliterator. Each node is provided only once, is never null and
+	 *  is provided in level order. The size of a run of nodes at a single level is also known.
+	 *  @return Characteristics of this spliterator.
+	 */
+	public int characteristics()
+	{
+		if (descend)
+		{
+			return ORDERED | DISTINCT | NONNULL;
+		}
+		return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+	}
+
+	// ----------------------------- Private methods ------------------------------
+
+	/** Moves on to the level below the current one if lower levels are to be traversed. The new level holds
+	 *  the children of all nodes at the current level, including any that were split off.
+	 *  @return True if there is a lower level to traverse.
+	 */
+	private boolean nextLevel()
+	{
+		if (descend == false)
+		{
+			return false;
+		}
+
+		int numChildren = 0;
+		for (TreeMapNode node : level)
+		{
+			numChildren += node.getChildCount();
+		}
+		if (numChildren == 0)
+		{
+			// Nothing below this level, so nothing more to traverse.
+			descend = false;
+			level = new TreeMapNode[0];
+			position = 0;
+			end = 0;
+			return false;
+		}
+
+		TreeMapNode[] nextLevel = new TreeMapNode[numChildren];
+		int numStored = 0;
+		for (TreeMapNode node : level)
+		{
+			List<TreeMapNode> children = node.getChildren();
+			for (int i=0; i<children.size(); i++)
+			{
+				nextLevel[numStored++] = children.get(i);
+			}
+		}
+		level = nextLevel;
+		position = 0;
+		end = numChildren;
+		return true;
+	}
+}
@@ -4,6 +4,8 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
 import java.util.*;				// For collections.
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.swing.tree.*;
 
@@ -49,15 +51,20 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	private double minGeoX,minGeoY, maxGeoX,maxGeoY;
 	private boolean branchIsSpatial;	// Indicates if branch nodes have their own spatial location.
 	private boolean useAccumSize;		// Indicates that the size of this node should be based on accumulated descendants
+	private boolean accumulationIsCurrent;	// Indicates accumulated values of this node are consistent with its leaves.
+	private int numCentreShifts;		// Number of incremental moves of the mean centre since it was found from all children.
 
 	private static boolean needsUpdate;
 	private TreeMapNode parent;
 	private Vector<TreeMapNode>children;
 
 	private Vector<TreeMapNode>neighbours;
+	private TreeMapNodeIndex index;		// Label index of descendants, or null if not indexed.
+	private boolean isInIndexedTree;	// True if an ancestor of this node holds a label index.
 
 	private double area;
 
+	private static final int MAX_CENTRE_SHIFTS = 64;	// Incremental moves of a mean centre before it is found again from all children.
 	private static final DecimalFormat valueFormatter = new DecimalFormat("#0.######");
 	private static final DecimalFormat coordFormatter = new DecimalFormat("#0.#");
 
@@ -133,7 +140,7 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 		this.label = label;
 		this.order = order;
 		//root = new RootNode();
-		setSizeValue(sizeValue);
+		storeSizeValue(sizeValue);
 		this.colourValue = colourValue;
 		this.accumSize = Math.abs(this.sizeValue);
 		this.avOrder = order;
@@ -159,7 +166,9 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	/** Adds the given child node to this one. Note that once a child has been added, connected
 	 *  <code>TreeMapNode</code>s may not return correct values for <code>getLevel()</code> or
 	 *  <code>getMaxDepth()</code> until either <code>updateTree()</code> or <code>TreeMappa</code>'s
-	 *  <code>buildTreeMap()</code> method has been called. 
+	 *  <code>buildTreeMap()</code> method has been called. If the child already has a parent, it is
+	 *  removed from any label indexes held by that parent and its ancestors, although it remains in
+	 *  that parent's list of children.
 	 *  @param child Child node to add.
 	 */
 	public void add(TreeMapNode child)
@@ -169,9 +178,15 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 			// Transforming a leaf node into a branch node.
 			numLeaves = 0;
 		}
+		if (child.parent != null)
+		{
+			child.parent.unindexSubtree(child);
+		}
 		children.add(child);
 		numLeaves += child.numLeaves;
 		child.setParent(this);
+		indexSubtree(child);
+		invalidateAccumulation();
 
 		// This will update the immediate child's level only.
 		child.level = level+1;
@@ -188,7 +203,10 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	}
 
 	/** Performs a breadth-first search looking for the first node with the given label. Note that this 
-	 *  search does not consider this node itself, but starts with its children. 
+	 *  search does not consider this node itself, but starts with its children. If more than one node has
+	 *  the given label, the one nearest this node is returned, and of those at the same level, the one
+	 *  found first when visiting children in order. If this node or one of its ancestors has been indexed
+	 *  with <code>setIndexed()</code>, the node is found from the index rather than by searching.
 	 *  @param nodeLabel Text to search for.
 	 *  @return Highest level node matching the given label, or null if no match found.
 	 */
@@ -199,6 +217,12 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 			return null;
 		}
 
+		TreeMapNodeIndex nodeIndex = findIndex();
+		if (nodeIndex != null)
+		{
+			return nodeIndex.findNode(this, nodeLabel);
+		}
+
 		LinkedList<TreeMapNode> queue = new LinkedList<TreeMapNode>();
 
 		for (TreeMapNode child : children)
@@ -222,6 +246,81 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 		return null;
 	}
 
+	/** Finds the node reached by following the given labels down the hierarchy from this node. Where
+	 *  siblings share a label, the path is followed through the first of them. If this node or one of its
+	 *  ancestors has been indexed with <code>setIndexed()</code>, each step of the path is found from the
+	 *  index rather than by searching the children at that level.
+	 *  @param pathLabels Labels of the nodes on the path, starting with a child of this node.
+	 *  @return Node at the end of the path, this node if no labels are given, or null if there is no such path.
+	 */
+	public TreeMapNode findNodeByPath(String... pathLabels)
+	{
+		TreeMapNodeIndex nodeIndex = findIndex();
+		TreeMapNode node = this;
+
+		for (String pathLabel : pathLabels)
+		{
+			TreeMapNode next = null;
+			if (nodeIndex != null)
+			{
+				next = nodeIndex.findChild(node, pathLabel);
+			}
+			else
+			{
+				for (TreeMapNode child : node.children)
+				{
+					if (child.label.equals(pathLabel))
+					{
+						next = child;
+						break;
+					}
+				}
+			}
+
+			if (next == null)
+			{
+				return null;
+			}
+			node = next;
+		}
+		return node;
+	}
+
+	/** Determines whether or not the descendants of this node are indexed by label. Once indexed, 
+	 *  <code>findNodeByPath()</code> called on this node or any of its descendants needs one hash lookup for
+	 *  each step of the path. <code>findNode()</code> needs a single hash lookup when labels are unique. Where
+	 *  labels are shared, it considers only those nodes with the label that are no deeper than the match,
+	 *  stepping up from each towards the search node to check it lies below it. Indexing costs some memory
+	 *  for each node. The index is updated by <code>add()</code>, <code>insert()</code>, <code>remove()</code>,
+	 *  <code>removeFromParent()</code> and <code>setLabel()</code>, but not by changes made directly to the
+	 *  list returned by <code>getChildren()</code>.
+	 *  @param indexed True if the descendants of this node should be indexed, false to discard any index.
+	 */
+	public void setIndexed(boolean indexed)
+	{
+		if (indexed)
+		{
+			if (index == null)
+			{
+				index = new TreeMapNodeIndex(this);
+				setInIndexedTree(this, isInIndexedTree);
+			}
+		}
+		else if (index != null)
+		{
+			index = null;
+			setInIndexedTree(this, isInIndexedTree);
+		}
+	}
+
+	/** Reports whether or not the descendants of this node are indexed by label.
+	 *  @return True if this node holds an index of its descendants.
+	 */
+	public boolean isIndexed()
+	{
+		return index != null;
+	}
+
 	/** Sorts the immediate child nodes into descending order.
 	 */
 	public void sortChildren()
@@ -515,12 +614,26 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	 */
 	public void setLabel(String label)
 	{
+		String oldLabel = this.label;
 		this.label = label;
+
+		if (isInIndexedTree == false)
+		{
+			return;
+		}
+		for (TreeMapNode ancestor = parent; ancestor != null; ancestor = ancestor.parent)
+		{
+			if (ancestor.index != null)
+			{
+				ancestor.index.relabel(this, oldLabel);
+			}
+		}
 	}
 
 	/** Sets a new size value for this node. Note that changing a node's size value will not effect the topology
 	 *  of the tree, but will affect the future geomoetry associated with each node. To recalculate the geometry
-	 *  a call to <code>TreeMappa</code>'s <code>buildTreeMap()</code> method will be necessary.
+	 *  a call to <code>TreeMappa</code>'s <code>buildTreeMap()</code> method will be necessary. The accumulated
+	 *  sizes of this node's ancestors are updated immediately, so only the path to the root is visited.
 	 *  @param newSizeValue Numeric value to be associated with the size of the node or null if it is to be found
 	 *                      from the accumulated values of its descendants. If this is a leaf node (ie it has no
 	 *                      descendants) and <code>sizeValue</code> is null, its size is assumed to be 1. If this
@@ -528,33 +641,88 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	 */
 	public void setSizeValue(Float newSizeValue)
 	{
-		if (newSizeValue == null)
+		storeSizeValue(newSizeValue);
+
+		double newAccumSize = Math.abs(sizeValue);
+		if ((isLeaf() == false) && useAccumSize)
 		{
-			this.sizeValue = 1;
-			useAccumSize = true;
+			newAccumSize = 0;
+			for (TreeMapNode child : children)
+			{
+				newAccumSize += child.accumSize;
+			}
 		}
-		else
+
+		// Propagate the change up the tree until reaching an ancestor whose size does not depend on its descendants.
+		double delta = newAccumSize - accumSize;
+		accumSize = newAccumSize;
+		TreeMapNode ancestor = parent;
+		while ((ancestor != null) && (delta != 0) && ancestor.useAccumSize)
 		{
-			this.sizeValue = newSizeValue.floatValue();
-			useAccumSize = false;
+			ancestor.accumSize += delta;
+			ancestor = ancestor.parent;
 		}
 	}
 
 	/** Sets a new geographic location of this node. Note that changing a node's location will not effect the topology
 	 *  of the tree, but will affect the future geomoetry associated with each node. To recalculate the geometry
-	 *  a call to <code>TreeMappa</code>'s <code>buildTreeMap()</code> method will be necessary.
+	 *  a call to <code>TreeMappa</code>'s <code>buildTreeMap()</code> method will be necessary. The mean centres
+	 *  of this node's ancestors are updated immediately, so only the path to the root is visited.
 	 *  @param newLocation New location to be associated with the node or null if it is to be found from the mean centre
 	 *                     of its descendants. If this is a leaf node (ie it has no descendants) and <code>location</code> 
 	 *                     is null, it is assumed this node has no location.
 	 */
 	public void setLocation(Point2D newLocation)
 	{
+		boolean hadLocation = (location != null);
+		double oldX = hadLocation ? location.getX() : 0;
+		double oldY = hadLocation ? location.getY() : 0;
+
 		this.location = newLocation;
 
 		if (location != null)
 		{
 			branchIsSpatial = true;
 		}
+
+		// Propagate the change up the tree until reaching an ancestor with its own location.
+		TreeMapNode child = this;
+		TreeMapNode ancestor = parent;
+		while ((ancestor != null) && (ancestor.branchIsSpatial == false))
+		{
+			Point2D centre = ancestor.location;
+			boolean ancestorHadLocation = (centre != null);
+			double ancestorOldX = ancestorHadLocation ? centre.getX() : 0;
+			double ancestorOldY = ancestorHadLocation ? centre.getY() : 0;
+
+			if (hadLocation && (child.location != null) && (centre != null) && (ancestor.numCentreShifts < MAX_CENTRE_SHIFTS))
+			{
+				// Shift the mean centre by the child's share of the movement. A new point is created as the
+				// old one may have been provided to callers of getLocation().
+				int numChildren = ancestor.getChildCount();
+				ancestor.location = new Point2D.Double(centre.getX() + (child.location.getX()-oldX)/numChildren,
+						                               centre.getY() + (child.location.getY()-oldY)/numChildren);
+				ancestor.numCentreShifts++;
+			}
+			else
+			{
+				// A location has appeared or disappeared, or rounding errors from repeated shifts could have
+				// built up, so the mean centre must be found from all children.
+				ancestor.calcMeanCentre();
+			}
+
+			if ((ancestor.location == null) ? (ancestorHadLocation == false) :
+				(ancestorHadLocation && (ancestor.location.getX() == ancestorOldX) && (ancestor.location.getY() == ancestorOldY)))
+			{
+				break;		// No further change to propagate.
+			}
+
+			hadLocation = ancestorHadLocation;
+			oldX = ancestorOldX;
+			oldY = ancestorOldY;
+			child = ancestor;
+			ancestor = ancestor.parent;
+		}
 	}
 
 	/** Reports the rectangle representing the tree-map coordinates of this node. Note that this geometry may
@@ -616,6 +784,19 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 		resetAccumulation(this);
 	}
 
+	/** Resets the accumulation values for this and all its descendants only if the structure of the tree 
+	 *  has changed since they were last reset. Changes to size values and locations are propagated as
+	 *  they are made so do not require a reset. This is used only by <code>TreeMappa</code> when building
+	 *  a treemap and should only be called on the root of a tree.
+	 */
+	void updateAccumulation()
+	{
+		if (accumulationIsCurrent == false)
+		{
+			resetAccumulation(this);
+		}
+	}
+
 	/** Adds the given value to the accumulated size values stored in this node. This is used only by
 	 *  TreeMappa when building a treemap and should not be called on a node-by-node basis.
 	 *  @param value Value to add to the accumulation. 
@@ -754,9 +935,17 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 			throw new IllegalArgumentException("Cannot insert ancestor node.");
 		}
 
+		TreeMapNode oldParent = ((TreeMapNode)child).parent;
+		if (oldParent != null)
+		{
+			oldParent.unindexSubtree((TreeMapNode)child);
+		}
 		children.add(index, (TreeMapNode)child);
+		child.setParent(this);
+		indexSubtree((TreeMapNode)child);
 		//System.err.println("insert(child,index) forcing rebuild: ");
 		needsUpdate = true;
+		invalidateAccumulation();
 	}
 
 	/** Removes the child node at the given index.
@@ -764,9 +953,11 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	 */
 	public void remove(int index) 
 	{
+		unindexSubtree(children.get(index));
 		TreeMapNode child = children.remove(index);
 		child.setParent(null);
 		needsUpdate = true;
+		invalidateAccumulation();
 		//System.err.println("remove(index) forcing rebuild: ");
 	}
 
@@ -784,9 +975,11 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 			throw new IllegalArgumentException("The given 'node' is not a child of this node.");
 		}
 
+		unindexSubtree((TreeMapNode)child);
 		children.remove(child);
 		child.setParent(null);
 		needsUpdate = true;
+		invalidateAccumulation();
 		//System.err.println("remove(child) forcing rebuild: ");
 	}
 
@@ -817,6 +1010,7 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 			// We appear to be making this node a root node.
 			this.level = 0;
 			this.parent = null;
+			accumulationIsCurrent = false;
 		}
 		else
 		{
@@ -910,6 +1104,78 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 		return new TreeMapBreadthFirstIterator(this);
 	}
 
+	/** Provides a spliterator that will traverse the hierarchy below this node level by level, in the same order as 
+	 *  <code>iterator()</code>, but which can also be split so the traversal can be shared between several threads.
+	 *  @return Spliterator capable of a level-order traversal of the hierarchy.
+	 */
+	public Spliterator<TreeMapNode> spliterator()
+	{
+		return spliterator(TraversalOrder.LEVEL_ORDER);
+	}
+
+	/** Provides a spliterator that will traverse the hierarchy below this node in the given order. Depth-first
+	 *  traversals are split between subtrees and so share work between threads most evenly, while level-order 
+	 *  traversals have to find the nodes at each level before they can be shared. Before the spliterator is created,
+	 *  any outstanding update of node levels and depths is made so that they may be queried safely from several
+	 *  threads. The hierarchy should not be changed while it is being traversed.
+	 *  @param order Order in which the nodes are to be traversed.
+	 *  @return Spliterator capable of traversing the hierarchy.
+	 */
+	public Spliterator<TreeMapNode> spliterator(TraversalOrder order)
+	{
+		// Ensure tree is in a consistent state.
+		if (needsUpdate)
+		{
+			rebuild();
+		}
+
+		switch (order)
+		{
+			case DEPTH_FIRST:
+				return new TreeMapSubtreeSpliterator(this, true);
+			case BREADTH_FIRST:
+				return new TreeMapSubtreeSpliterator(this, false);
+			default:
+				return new TreeMapLevelSpliterator(this);
+		}
+	}
+
+	/** Provides a sequential stream of the nodes in the hierarchy below this node, in the same order as <code>iterator()</code>.
+	 *  @return Stream of the descendants of this node.
+	 */
+	public Stream<TreeMapNode> stream()
+	{
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/** Provides a sequential stream of the nodes in the hierarchy below this node in the given order.
+	 *  @param order Order in which the nodes are to be streamed.
+	 *  @return Stream of the descendants of this node.
+	 */
+	public Stream<TreeMapNode> stream(TraversalOrder order)
+	{
+		return StreamSupport.stream(spliterator(order), false);
+	}
+
+	/** Provides a parallel stream of the nodes in the hierarchy below this node, in the same encounter order as
+	 *  <code>iterator()</code>. For large trees where the order of nodes does not matter, a depth-first parallel 
+	 *  stream will usually make better use of several processors.
+	 *  @return Parallel stream of the descendants of this node.
+	 */
+	public Stream<TreeMapNode> parallelStream()
+	{
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/** Provides a parallel stream of the nodes in the hierarchy below this node in the given order.
+	 *  @param order Order in which the nodes are to be streamed.
+	 *  @return Parallel stream of the descendants of this node.
+	 */
+	public Stream<TreeMapNode> parallelStream(TraversalOrder order)
+	{
+		return StreamSupport.stream(spliterator(order), true);
+	}
+
 	/** Provides a spatial comparator that can be used for ordering nodes in an west-east direction.
 	 * @return East-west comparator.
 	 */
@@ -1012,6 +1278,96 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 
 	// -------------------------------- Private Methods ---------------------------------
 
+	/** Reports the index used to search the descendants of this node.
+	 *  @return Index held by this node or its nearest indexed ancestor, or null if none are indexed.
+	 */
+	private TreeMapNodeIndex findIndex()
+	{
+		if ((index == null) && (isInIndexedTree == false))
+		{
+			return null;
+		}
+		for (TreeMapNode node = this; node != null; node = node.parent)
+		{
+			if (node.index != null)
+			{
+				return node.index;
+			}
+		}
+		return null;
+	}
+
+	/** Adds the given newly attached child and its descendants to the indexes held by this node and its ancestors.
+	 *  Nodes outside indexed trees are recorded as such, so attaching children to them does not visit their ancestors.
+	 *  @param child Child that has just been attached to this node.
+	 */
+	private void indexSubtree(TreeMapNode child)
+	{
+		boolean isIndexed = (index != null) || isInIndexedTree;
+		if (child.isInIndexedTree != isIndexed)
+		{
+			setInIndexedTree(child, isIndexed);
+		}
+		if (isIndexed == false)
+		{
+			return;
+		}
+
+		for (TreeMapNode node = this; node != null; node = node.parent)
+		{
+			if (node.index != null)
+			{
+				node.index.addSubtree(child);
+			}
+		}
+	}
+
+	/** Removes the given child that is about to be detached, and its descendants, from the indexes held by this
+	 *  node and its ancestors.
+	 *  @param child Child that is about to be detached from this node.
+	 */
+	private void unindexSubtree(TreeMapNode child)
+	{
+		if ((child.parent != this) || ((index == null) && (isInIndexedTree == false)))
+		{
+			// Child is indexed with another parent, or this node is not in an indexed tree.
+			return;
+		}
+
+		for (TreeMapNode node = this; node != null; node = node.parent)
+		{
+			if (node.index != null)
+			{
+				node.index.removeSubtree(child);
+			}
+		}
+		setInIndexedTree(child, false);
+	}
+
+	/** Records whether the given node has an indexed ancestor, updating its descendants to match.
+	 *  @param node Node to update.
+	 *  @param isInIndexedTree True if an ancestor of the node holds a label index.
+	 */
+	private static void setInIndexedTree(TreeMapNode node, boolean isInIndexedTree)
+	{
+		node.isInIndexedTree = isInIndexedTree;
+		ArrayList<TreeMapNode> stack = new ArrayList<TreeMapNode>();
+		stack.add(node);
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode next = stack.remove(stack.size()-1);
+			boolean isChildInIndexedTree = next.isInIndexedTree || (next.index != null);
+			for (TreeMapNode child : next.children)
+			{
+				// Descendants of a child that is already up to date are also up to date.
+				if ((child.parent == next) && (child.isInIndexedTree != isChildInIndexedTree))
+				{
+					child.isInIndexedTree = isChildInIndexedTree;
+					stack.add(child);
+				}
+			}
+		}
+	}
 
 	/** Rebuilds the tree by recalculating tree levels, accumulated values and maximum depth.
 	 */
@@ -1033,22 +1389,35 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 		needsUpdate = false;
 	}
 
-	/** Recursive version of the rebuild which finds tree levels on the way
-	 *  down and the maximum depth levels on the way back up.
+	/** Version of the rebuild which finds tree levels on the way down and the maximum depth levels
+	 *  on the way back up. Uses an explicit stack rather than recursion so that very deep trees can be rebuilt.
 	 */
 	private void rebuild(TreeMapNode node)
 	{
-		node.maxDepth = 0;
-		for (TreeMapNode child: node.children)
+		List<TreeMapNode> nodes = getPreOrder(node);
+
+		// Parents precede their children, so levels can be set in a forward pass.
+		for (TreeMapNode branch : nodes)
 		{
-			child.level = node.level+1;
-			rebuild(child);
+			for (TreeMapNode child : branch.children)
+			{
+				child.level = branch.level+1;
+			}
+		}
 
-			if (child.isLeaf())
+		// Children are found before their parents when working backwards.
+		for (int i=nodes.size()-1; i>=0; i--)
+		{
+			TreeMapNode branch = nodes.get(i);
+			branch.maxDepth = 0;
+			for (TreeMapNode child: branch.children)
 			{
-				child.maxDepth = child.level;
+				if (child.isLeaf())
+				{
+					child.maxDepth = child.level;
+				}
+				branch.maxDepth = Math.max(branch.maxDepth, child.maxDepth);
 			}
-			node.maxDepth = Math.max(node.maxDepth, child.maxDepth);
 		}
 	}
 
@@ -1091,60 +1460,135 @@ public class TreeMapNode implements MutableTreeNode, Comparable<TreeMapNode>,Ite
 	*/
 
 	/** Resets the accumulation values for the given node and all its descendants based on 
-	 *  the values of any leaves found below the given node. This version recursively calls
-	 *  itself in order to complete the depth-first search.
+	 *  the values of any leaves found below the given node. Uses an explicit stack rather than
+	 *  recursion so that very deep trees can be reset.
+	 *  @param node Node whose accumulated values are to be reset along with those of its descendants.
 	 */
 	private void resetAccumulation(TreeMapNode node)
 	{
-		if (node.isLeaf())
-		{
-			node.accumSize = Math.abs(node.sizeValue);
-			node.avOrder = node.order;
-			return;
-		}
-
-		// Reset this node's accumulated size and average order and mean centre values.
-		node.accumSize = 0;
-		node.avOrder = 0;
+		List<TreeMapNode> nodes = getPreOrder(node);
 
-		if (node.branchIsSpatial == false)
-		{
-			node.location = new Point2D.Double(0,0);
-		}
-		for (TreeMapNode child : node.getChildren())
+		// Children are found before their parents when working backwards.
+		for (int i=nodes.size()-1; i>=0; i--)
 		{
-			resetAccumulation(child);
-			if (node.useAccumSize)
+			TreeMapNode branch = nodes.get(i);
+			branch.accumulationIsCurrent = true;
+			if (branch.isLeaf())
 			{
-				node.accumulateSize(child.getAccumSize());
+				branch.accumSize = Math.abs(branch.sizeValue);
+				branch.avOrder = branch.order;
+				continue;
 			}
-			else
-			{
-				node.accumSize = Math.abs(node.sizeValue);
-			}
-			node.avOrder += child.avOrder;
-			if (node.branchIsSpatial == false)
+
+			// Reset this node's accumulated size and average order and mean centre values.
+			branch.accumSize = 0;
+			branch.avOrder = 0;
+			for (TreeMapNode child : branch.children)
 			{
-				if ((node.location != null) && (child.getLocation() != null))
+				if (branch.useAccumSize)
 				{
-					node.location.setLocation(node.location.getX()+child.getLocation().getX(),
-							node.location.getY()+child.getLocation().getY());
+					branch.accumSize += child.accumSize;
 				}
 				else
 				{
-					node.location = null;
+					branch.accumSize = Math.abs(branch.sizeValue);
 				}
+				branch.avOrder += child.avOrder;
+			}
+			branch.avOrder /= branch.getChildCount();
+			//branch.order = branch.accumOrder;
+
+			if (branch.branchIsSpatial == false)
+			{
+				branch.calcMeanCentre();
 			}
 		}
-		node.avOrder /= node.getChildCount();
-		//node.order = node.accumOrder;
+	}
+
+	/** Sets the location of this node to be the mean centre of its children's locations. The location is 
+	 *  set to null if any child has no location. The existing location object is kept if the centre has not
+	 *  moved, otherwise a new one is created so that locations already provided by <code>getLocation()</code>
+	 *  are never changed.
+	 */
+	private void calcMeanCentre()
+	{
+		double sumX = 0;
+		double sumY = 0;
+		for (TreeMapNode child : children)
+		{
+			if (child.location == null)
+			{
+				location = null;
+				return;
+			}
+			sumX += child.location.getX();
+			sumY += child.location.getY();
+		}
+
+		double centreX = sumX/getChildCount();
+		double centreY = sumY/getChildCount();
+		if ((location == null) || (location.getX() != centreX) || (location.getY() != centreY))
+		{
+			location = new Point2D.Double(centreX, centreY);
+		}
+		numCentreShifts = 0;
+	}
+
+	/** Marks the accumulated values of this node and its ancestors as no longer consistent with the
+	 *  tree's leaves. This should be called whenever the structure of the tree changes. Since the ancestors
+	 *  of an inconsistent node are always inconsistent, the search stops at the first one already marked.
+	 */
+	private void invalidateAccumulation()
+	{
+		TreeMapNode node = this;
+		while ((node != null) && node.accumulationIsCurrent)
+		{
+			node.accumulationIsCurrent = false;
+			node = node.parent;
+		}
+	}
 
-		if ((node.branchIsSpatial==false) && (node.location != null))
+	/** Stores the given size value without updating the accumulated sizes of the tree.
+	 *  @param newSizeValue Numeric value to be associated with the size of the node or null if it is to be found
+	 *                      from the accumulated values of its descendants.
+	 */
+	private void storeSizeValue(Float newSizeValue)
+	{
+		if (newSizeValue == null)
 		{
-			// Set the location of a parent node to be the mean centre of its children.
-			node.location.setLocation(node.location.getX()/node.getChildCount(),
-					node.location.getY()/node.getChildCount());
+			this.sizeValue = 1;
+			useAccumSize = true;
+		}
+		else
+		{
+			this.sizeValue = newSizeValue.floatValue();
+			useAccumSize = false;
+		}
+	}
+
+	/** Provides the given node and all its descendants in depth-first pre-order, so that every node
+	 *  appears before its children. Uses an explicit stack rather than recursion so that very deep trees
+	 *  can be traversed.
+	 *  @param node Node at the top of the tree to traverse.
+	 *  @return List of the node and its descendants.
+	 */
+	private static List<TreeMapNode> getPreOrder(TreeMapNode node)
+	{
+		List<TreeMapNode> nodes = new ArrayList<TreeMapNode>();
+		ArrayDeque<TreeMapNode> stack = new ArrayDeque<TreeMapNode>();
+		stack.push(node);
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode next = stack.pop();
+			nodes.add(next);
+
+			// Push in reverse so that children are visited in sibling order.
+			for (int i=next.children.size()-1; i>=0; i--)
+			{
+				stack.push(next.children.get(i));
+			}
 		}
+		return nodes;
 	}
 
 	/** Reports whether the given node is an ancestor of this one.  An ancestor node is 
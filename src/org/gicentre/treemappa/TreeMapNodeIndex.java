@@ -0,0 +1,396 @@
+package org.gicentre.treemappa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+//****************************************************************************************************
+/** Hashed index of the descendants of a tree map node, allowing nodes to be found by label, or by
+ *  the labels along their path from the indexed node, without searching the hierarchy. The index is
+ *  kept up to date by the <code>TreeMapNode</code> methods that change the hierarchy or a node's label.
+ *  <br>
+ *  Where more than one node matches a search, the node returned is the one a breadth-first search
+ *  would have found first, so indexed and unindexed searches always give the same result. Nodes that
+ *  share a label are held in order of depth, so a search only considers those no deeper than the match.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ****************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class TreeMapNodeIndex
+{
+	// --------------------------- Object variables -------------------------------
+
+	private TreeMapNode owner;						// Node whose descendants are indexed.
+
+	// Map values are either a single node or, for duplicates, an ArrayList of nodes.
+	private HashMap<String,Object> labels;			// Descendants keyed by label, duplicates in order of depth.
+	private HashMap<ChildKey,Object> children;		// Descendants keyed by parent and label.
+	private IdentityHashMap<TreeMapNode,Integer> depths;	// Number of levels each descendant is below the owner.
+
+	// ----------------------------- Constructor ----------------------------------
+
+	/** Creates an index of all the current descendants of the given node.
+	 *  @param owner Node whose descendants are to be indexed.
+	 */
+	TreeMapNodeIndex(TreeMapNode owner)
+	{
+		this.owner = owner;
+		labels = new HashMap<String,Object>();
+		children = new HashMap<ChildKey,Object>();
+		depths = new IdentityHashMap<TreeMapNode,Integer>();
+
+		for (TreeMapNode child : owner.getChildren())
+		{
+			if (child.getParent() == owner)
+			{
+				addSubtree(child);
+			}
+		}
+	}
+
+	// ------------------------------- Methods ------------------------------------
+
+	/** Adds the given node and all of its descendants to the index. Children that are still listed by a
+	 *  node but have since been given another parent are not included, as they are indexed with that parent.
+	 *  @param node Node to add. Its parent should already have been set.
+	 */
+	void addSubtree(TreeMapNode node)
+	{
+		TreeMapNode parent = node.getParent();
+		depths.put(node, Integer.valueOf((parent == owner) ? 1 : depths.get(parent).intValue()+1));
+
+		ArrayList<TreeMapNode> stack = new ArrayList<TreeMapNode>();
+		stack.add(node);
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode next = stack.remove(stack.size()-1);
+			int depth = depths.get(next).intValue();
+			putByDepth(next.getLabel(), next, depth);
+			put(children, new ChildKey(next.getParent(), next.getLabel()), next);
+
+			for (TreeMapNode child : next.getChildren())
+			{
+				if (child.getParent() == next)
+				{
+					depths.put(child, Integer.valueOf(depth+1));
+					stack.add(child);
+				}
+			}
+		}
+	}
+
+	/** Removes the given node and all of its descendants from the index. Children that are still listed by
+	 *  a node but have since been given another parent are not removed, as they are indexed with that parent.
+	 *  @param node Node to remove. Its parent should not yet have been unset.
+	 */
+	void removeSubtree(TreeMapNode node)
+	{
+		ArrayList<TreeMapNode> stack = new ArrayList<TreeMapNode>();
+		stack.add(node);
+		while (stack.isEmpty() == false)
+		{
+			TreeMapNode next = stack.remove(stack.size()-1);
+			remove(labels, next.getLabel(), next);
+			remove(children, new ChildKey(next.getParent(), next.getLabel()), next);
+			depths.remove(next);
+
+			for (TreeMapNode child : next.getChildren())
+			{
+				if (child.getParent() == next)
+				{
+					stack.add(child);
+				}
+			}
+		}
+	}
+
+	/** Updates the index to reflect a change in the label of the given node. The node's descendants
+	 *  are unaffected as they are indexed by the identity of their parents rather than their parents' labels.
+	 *  @param node Node whose label has changed.
+	 *  @param oldLabel Label of the node before it was changed.
+	 */
+	void relabel(TreeMapNode node, String oldLabel)
+	{
+		remove(labels, oldLabel, node);
+		remove(children, new ChildKey(node.getParent(), oldLabel), node);
+		putByDepth(node.getLabel(), node, depths.get(node).intValue());
+		put(children, new ChildKey(node.getParent(), node.getLabel()), node);
+	}
+
+	/** Finds the descendant of the given node with the given label. If there is more than one, the
+	 *  one closest to the given node is returned, and of those at the same depth, the one found first
+	 *  when searching breadth-first. Nodes with the label that are deeper than the match are not
+	 *  considered, and whether a candidate lies below the given node is found by stepping up only as
+	 *  many levels as separate the two, so a search costs one hash lookup when labels are unique.
+	 *  @param start Node whose descendants are to be searched. This must be the indexed node or one of its descendants.
+	 *  @param label Label to search for.
+	 *  @return Matching node or null if none found.
+	 */
+	TreeMapNode findNode(TreeMapNode start, String label)
+	{
+		Object entry = labels.get(label);
+		if (entry == null)
+		{
+			return null;
+		}
+
+		int startDepth = 0;
+		if (start != owner)
+		{
+			Integer depth = depths.get(start);
+			if (depth == null)
+			{
+				return null;
+			}
+			startDepth = depth.intValue();
+		}
+
+		if (entry instanceof TreeMapNode)
+		{
+			TreeMapNode node = (TreeMapNode)entry;
+			return isBelow(node, start, depths.get(node).intValue()-startDepth) ? node : null;
+		}
+
+		// Candidates are in order of depth, so the search can stop once a match is found at one depth.
+		TreeMapNode found = null;
+		int foundDepth = Integer.MAX_VALUE;
+		for (TreeMapNode node : asList(entry))
+		{
+			int depth = depths.get(node).intValue()-startDepth;
+			if (depth > foundDepth)
+			{
+				break;
+			}
+			if (isBelow(node, start, depth) && precedes(node, found))
+			{
+				found = node;
+				foundDepth = depth;
+			}
+		}
+		return found;
+	}
+
+	/** Finds the child of the given node with the given label. If there is more than one, the first
+	 *  in the parent's list of children is returned.
+	 *  @param parent Node whose children are to be searched. This must be the indexed node or one of its descendants.
+	 *  @param label Label to search for.
+	 *  @return Matching child or null if none found.
+	 */
+	TreeMapNode findChild(TreeMapNode parent, String label)
+	{
+		Object entry = children.get(new ChildKey(parent, label));
+		if ((entry == null) || (entry instanceof TreeMapNode))
+		{
+			return (TreeMapNode)entry;
+		}
+
+		TreeMapNode found = null;
+		for (TreeMapNode node : asList(entry))
+		{
+			if ((found == null) || precedes(node, found))
+			{
+				found = node;
+			}
+		}
+		return found;
+	}
+
+	// ----------------------------- Private methods ------------------------------
+
+	/** Reports whether the given node is a descendant of the given ancestor.
+	 *  @param node Node to test.
+	 *  @param ancestor Possible ancestor, which must be the indexed node or one of its indexed descendants.
+	 *  @param depth Number of levels the node would be below the ancestor if it were a descendant.
+	 *  @return True if the node is below the ancestor.
+	 */
+	private boolean isBelow(TreeMapNode node, TreeMapNode ancestor, int depth)
+	{
+		if (depth <= 0)
+		{
+			return false;
+		}
+		if (ancestor == owner)
+		{
+			// Every indexed node is below the owner.
+			return true;
+		}
+		for (int i=0; i<depth; i++)
+		{
+			node = node.getParent();
+		}
+		return node == ancestor;
+	}
+
+	/** Reports whether the first of two nodes at the same depth would be found before the second in a
+	 *  breadth-first search from their common ancestor.
+	 *  @param node1 First node to compare.
+	 *  @param node2 Second node to compare. If null, the first node is always considered to come first.
+	 *  @return True if the first node precedes the second.
+	 */
+	private static boolean precedes(TreeMapNode node1, TreeMapNode node2)
+	{
+		if (node2 == null)
+		{
+			return true;
+		}
+		while (node1.getParent() != node2.getParent())
+		{
+			node1 = node1.getParent();
+			node2 = node2.getParent();
+		}
+		TreeMapNode parent = node1.getParent();
+		return parent.getIndex(node1) < parent.getIndex(node2);
+	}
+
+	/** Adds the given node to the entry in the given map with the given key.
+	 *  @param map Map in which to store the node.
+	 *  @param key Key with which to store the node.
+	 *  @param node Node to store.
+	 */
+	private static <K> void put(HashMap<K,Object> map, K key, TreeMapNode node)
+	{
+		Object entry = map.put(key, node);
+		if (entry != null)
+		{
+			// Key is shared with at least one other node.
+			ArrayList<TreeMapNode> nodes;
+			if (entry instanceof TreeMapNode)
+			{
+				nodes = new ArrayList<TreeMapNode>(2);
+				nodes.add((TreeMapNode)entry);
+			}
+			else
+			{
+				nodes = asList(entry);
+			}
+			nodes.add(node);
+			map.put(key, nodes);
+		}
+	}
+
+	/** Adds the given node to the label map, keeping nodes that share a label in order of depth.
+	 *  @param label Label of the node.
+	 *  @param node Node to store.
+	 *  @param depth Number of levels the node is below the indexed node.
+	 */
+	private void putByDepth(String label, TreeMapNode node, int depth)
+	{
+		Object entry = labels.get(label);
+		if (entry == null)
+		{
+			labels.put(label, node);
+			return;
+		}
+
+		ArrayList<TreeMapNode> nodes;
+		if (entry instanceof TreeMapNode)
+		{
+			nodes = new ArrayList<TreeMapNode>(2);
+			nodes.add((TreeMapNode)entry);
+			labels.put(label, nodes);
+		}
+		else
+		{
+			nodes = asList(entry);
+		}
+
+		// Insert after any nodes at the same depth or shallower.
+		int low = 0;
+		int high = nodes.size();
+		while (low < high)
+		{
+			int mid = (low+high) >>> 1;
+			if (depths.get(nodes.get(mid)).intValue() <= depth)
+			{
+				low = mid+1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		nodes.add(low, node);
+	}
+
+	/** Removes the given node from the entry in the given map with the given key.
+	 *  @param map Map from which to remove the node.
+	 *  @param key Key with which the node was stored.
+	 *  @param node Node to remove.
+	 */
+	private static <K> void remove(HashMap<K,Object> map, K key, TreeMapNode node)
+	{
+		Object entry = map.get(key);
+		if (entry == node)
+		{
+			map.remove(key);
+		}
+		else if ((entry != null) && ((entry instanceof TreeMapNode) == false))
+		{
+			ArrayList<TreeMapNode> nodes = asList(entry);
+			nodes.remove(node);
+			if (nodes.size() == 1)
+			{
+				map.put(key, nodes.get(0));
+			}
+		}
+	}
+
+	/** Provides the list of nodes stored in a map entry that is shared by more than one node.
+	 *  @param entry Map entry.
+	 *  @return List of nodes stored in the entry.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ArrayList<TreeMapNode> asList(Object entry)
+	{
+		return (ArrayList<TreeMapNode>)entry;
+	}
+
+	// ------------------------------- Nested classes -------------------------------
+
+	/** Key identifying a node by its parent and its label. Parents are compared by identity so
+	 *  that relabelling a node does not affect the keys of its children.
+	 */
+	private static class ChildKey
+	{
+		private TreeMapNode parent;
+		private String label;
+
+		ChildKey(TreeMapNode parent, String label)
+		{
+			this.parent = parent;
+			this.label = label;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31*System.identityHashCode(parent) + ((label == null) ? 0 : label.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ((obj instanceof ChildKey) == false)
+			{
+				return false;
+			}
+			ChildKey other = (ChildKey)obj;
+			return (parent == other.parent) && ((label == null) ? (other.label == null) : label.equals(other.label));
+		}
+	}
+}
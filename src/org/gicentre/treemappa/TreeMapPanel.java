@@ -1,5 +1,6 @@
 package org.gicentre.treemappa;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -21,26 +22,41 @@ import java.awt.font.FontRenderContext;
 import java.awt.font.LineMetrics;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
+import org.gicentre.io.PNGWriter;
+import org.gicentre.io.ParallelDeflaterOutputStream;
+import org.gicentre.treemappa.gui.JWFrame;
+import org.gicentre.treemappa.gui.JWInterruptionListener;
 import org.gicentre.utils.colour.ColourTable;
 
 import processing.core.PConstants;
@@ -75,8 +91,11 @@ public class TreeMapPanel extends JPanel
 	/** Angle of curvature for displacement arrows. */
 	static final double CURVE_ANGLE = -60*Math.PI/180;
 	private static final double PI_OVER_TWO = Math.PI/2.0;
+	private static final int TILE_SIZE = 256;		// Width and height of map tiles in pixels.
+	private static final int MAX_TILE_ZOOM = 24;	// Deepest map tile zoom level that may be exported.
+	private static final int MAX_BAND_PIXELS = 4*1024*1024;	// Largest number of pixels rendered at once in banded output.
 
-	private BufferedImage screenImg; 
+	private volatile BufferedImage screenImg; 
 	Point clickPosition;         	// Mouse position since last dragged position.
 
 	Point oldPosition;
@@ -106,10 +125,19 @@ public class TreeMapPanel extends JPanel
 	private Random rand;					// For random colour mutation.
 	private Vector<Float>[] hues;			// For base colours in evolutionary colour scheme.
 	private float hue;
-	private Vector<NodePanel> leaves,branches;
-	private ColourTable cTable;				// For file-based colour table.
-	private double rootArea;				// Area of the root rectangle in the treemap.
-	private int maxDepth;					// Maximum depth of the tree.
+	private volatile NodePanelLayout panelLayout;	// Panels of the displayed layout, replaced as a whole when the layout changes.
+	private NodePanelLayout builtLayout;	// Most recently built layout, which may not yet be displayed (only used while holding updateLock).
+	private AtomicReference<NodePanelLayout> retiredLayout;	// Most recently replaced layout, which may be rebuilt once no longer in use.
+	private volatile ColourTable cTable;	// For file-based colour table.
+	private ColourLookup colourLookup;		// Colours for the layout being built (only used while holding updateLock).
+	private volatile int imageVersion;		// Incremented each time the treemap image is updated.
+	private final Object updateLock;		// Ensures the tree is only laid out on one thread at a time.
+	private final Object displayLock;		// Ensures the displayed layout and image are replaced together.
+	private AtomicInteger updateRequest;	// Incremented with each background update so stale updates can be abandoned.
+	private volatile CancellationToken updateToken;	// Cancels the build of the latest background update (or null).
+	private int pendingUpdate;				// Least work needed to complete abandoned background updates (only used while holding updateLock).
+	private ExecutorService updateExecutor;	// Single worker thread for background updates (created when first needed).
+	private JWFrame progressFrame;			// Frame whose status bar reports background update progress (or null).
 
 	//private boolean isZooming;
 
@@ -129,6 +157,7 @@ public class TreeMapPanel extends JPanel
 	private Pattern cleanAmp,cleanLT,cleanGT,cleanQuote;
 
 	private float leafVectorWidth;
+	private float minVectorLength;
 	private float[] vectorWidths;
 
 	private static final int PAN = 1;
@@ -151,6 +180,10 @@ public class TreeMapPanel extends JPanel
 	{
 		super();
 		this.treeMappa = treeMappa;
+		this.updateLock = new Object();
+		this.displayLock = new Object();
+		this.updateRequest = new AtomicInteger();
+		this.retiredLayout = new AtomicReference<NodePanelLayout>();
 		TreeMapProperties props = treeMappa.getConfig();
 
 		maxBranchTexts = props.getBranchMaxTextSizes();
@@ -159,7 +192,8 @@ public class TreeMapPanel extends JPanel
 		leafFont = new Font(props.getLeafTextFont(),Font.BOLD,40);
 		buildBranchFonts(props.getBranchTextFonts());
 
-		leafVectorWidth = props.getLeafVectorWidth();	
+		leafVectorWidth = props.getLeafVectorWidth();
+		minVectorLength = props.getMinVectorLength();	
 		branchAlignX = alignTextToCode(props.getBranchAlignX());
 		branchAlignY = alignTextToCode(props.getBranchAlignY());
 		isTransparent= props.getIsTransparent();
@@ -226,8 +260,6 @@ public class TreeMapPanel extends JPanel
 		setPreferredSize(new Dimension(600,400));
 
 		Rectangle2D rootBounds = treeMappa.getRoot().getRectangle();
-		rootArea = rootBounds.getWidth()*rootBounds.getHeight();
-		maxDepth = treeMappa.getRoot().getMaxDepth();
 		screenImg = new BufferedImage((int)rootBounds.getWidth(), (int)rootBounds.getHeight(), BufferedImage.TYPE_INT_ARGB);
 
 		addMouseListener(new MouseClickMonitor());
@@ -242,9 +274,9 @@ public class TreeMapPanel extends JPanel
 		localZoomFactor = 1;
 		calcTransformation();
 
-		leaves = new Vector<NodePanel>();
-		branches = new Vector<NodePanel>();
-		addRectangles(treeMappa.getRoot(),Color.getHSBColor(rand.nextFloat(), 0.6f, 0.6f));
+		pendingUpdate = BackgroundUpdate.IMAGE;
+		builtLayout = refreshPanels();
+		panelLayout = builtLayout;
 	}
 
 	// ------------------------ Methods ------------------------
@@ -288,15 +320,17 @@ public class TreeMapPanel extends JPanel
 	{
 		super.paintComponent(g);
 
+		// Take a single reference in case the image is replaced while it is being drawn.
+		BufferedImage img = screenImg;
 		Point2D min = getGeoToPixel(new Point2D.Float(0,0));
-		Point2D max = getGeoToPixel(new Point2D.Float(screenImg.getWidth(),screenImg.getHeight()));
+		Point2D max = getGeoToPixel(new Point2D.Float(img.getWidth(),img.getHeight()));
 
 		int x = (int)(min.getX());
 		int y = (int)(max.getY());
 		int width  = (int)(max.getX()-min.getX());
 		int height = (int)(min.getY()-max.getY());
 
-		g.drawImage(screenImg,x,y,width,height,this);        
+		g.drawImage(img,x,y,width,height,this);        
 	}
 
 	/** Reports the treemap image assuming it can store alpha (transparency) values. This is exactly equivalent to
@@ -357,7 +391,18 @@ public class TreeMapPanel extends JPanel
 		// Check for SVG output request
 		if ((extension.equals("svg")) || (extension.equals("svgz")))
 		{
-			writeSVG(imgFileName,isTransparent);
+			PhaseTimer timer = new PhaseTimer(BuildPhase.WRITE, treeMappa.getTimings());
+			NodePanelLayout layout = acquirePanelLayout();
+			try
+			{
+				writeSVG(layout,imgFileName,isTransparent);
+				timer.stop(layout.getNumPanels(), extension);
+			}
+			finally
+			{
+				layout.release();
+			}
+			treeMappa.countBytesWritten(extension, new File(imgFileName));
 			return true;
 		}
 
@@ -386,6 +431,7 @@ public class TreeMapPanel extends JPanel
 
 		try 
 		{
+			PhaseTimer timer = new PhaseTimer(BuildPhase.WRITE, treeMappa.getTimings());
 			File outputfile = new File(imgFileName);
 			boolean hasAlpha = false;
 			if (extension.equalsIgnoreCase("png"))
@@ -393,6 +439,8 @@ public class TreeMapPanel extends JPanel
 				hasAlpha = true;
 			}
 			ImageIO.write(getImage(hasAlpha), extension, outputfile);
+			timer.stop(panelLayout.getNumPanels(), extension);
+			treeMappa.countBytesWritten(extension, outputfile);
 		}
 		catch (IOException e)
 		{
@@ -403,13 +451,232 @@ public class TreeMapPanel extends JPanel
 		return true;
 	}
 
-	/** Updates the tree map display to be shown in this panel.
+	/** Writes the tree map display as a compact SVG file. Leaves are represented as rectangles sharing a CSS class
+	 *  for each distinct colour, and coordinates are written to the given number of decimal places in the
+	 *  treemap's natural pixel units. This is considerably faster and produces smaller files than the SVG output
+	 *  of <code>writeImage()</code>, especially for treemaps with many leaves. If the file name ends in
+	 *  <code>.svgz</code>, the output will be compressed.
+	 *  @param svgFileName Name of the SVG file to write.
+	 *  @param precision Number of decimal places used for coordinates (0-6).
+	 *  @param groupByLevel If true, nodes are grouped in a separate SVG group for each level of the hierarchy.
+	 *  @return True if file written successfully.
+	 */
+	public boolean writeCompactSVG(String svgFileName, int precision, boolean groupByLevel)
+	{
+		PhaseTimer timer = new PhaseTimer(BuildPhase.WRITE, treeMappa.getTimings());
+		NodePanelLayout layout = acquirePanelLayout();
+		boolean success;
+		int numPanels = layout.getNumPanels();
+		try
+		{
+			success = new SVGWriter(this, layout, precision, groupByLevel).write(svgFileName);
+		}
+		finally
+		{
+			layout.release();
+		}
+		if (success)
+		{
+			timer.stop(numPanels, "compact svg");
+			treeMappa.countBytesWritten(svgFileName.toLowerCase().endsWith(".svgz") ? "svgz" : "svg", new File(svgFileName));
+		}
+		return success;
+	}
+
+	/** Writes the tree map display as a PNG image of the given size. Unlike <code>writeImage()</code>, the image is
+	 *  rendered directly from the treemap geometry in horizontal bands, each of which is compressed and written
+	 *  before the next is drawn. Memory use is therefore bounded by the size of a band rather than the size of
+	 *  the image, allowing poster-sized images much larger than the available heap to be created.
+	 *  @param pngFileName Name of the PNG file to write.
+	 *  @param width Width of the image in pixels. The treemap is scaled horizontally to fit this width.
+	 *  @param height Height of the image in pixels. The treemap is scaled vertically to fit this height.
+	 *  @return True if file written successfully.
+	 */
+	public boolean writeBandedPNG(String pngFileName, int width, int height)
+	{
+		if ((width <= 0) || (height <= 0))
+		{
+			System.err.println("PNG image dimensions must be positive ("+width+"x"+height+" requested).");
+			return false;
+		}
+
+		double scaleX = width/(double)screenImg.getWidth();
+		double scaleY = height/(double)screenImg.getHeight();
+		int bandHeight = Math.max(1, Math.min(height, MAX_BAND_PIXELS/width));
+		NodePanelLayout layout = acquirePanelLayout();
+
+		PNGWriter pngWriter = null;
+		boolean isComplete = false;
+		try
+		{
+			TreeMapProperties props = treeMappa.getConfig();
+			pngWriter = new PNGWriter(new File(pngFileName), width, height, true,
+			                          props.getCompressionLevel(), props.getCompressionThreads());
+			BufferedImage bandImg = new BufferedImage(width, bandHeight, BufferedImage.TYPE_INT_ARGB);
+			int[] pixels = ((DataBufferInt)bandImg.getRaster().getDataBuffer()).getData();
+
+			for (int bandY=0; bandY<height; bandY+=bandHeight)
+			{
+				int numRows = Math.min(bandHeight, height-bandY);
+
+				// Find the part of the treemap covered by this band in natural pixel coordinates.
+				Rectangle2D region = new Rectangle2D.Double(0, bandY/scaleY, screenImg.getWidth(), bandHeight/scaleY);
+
+				Graphics2D g = bandImg.createGraphics();
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, width, bandHeight);
+				g.scale(scaleX, scaleY);
+				g.translate(0, -region.getY());
+				drawTreeMap(layout,g,region);
+				g.dispose();
+
+				pngWriter.writeRows(pixels, 0, width, numRows);
+			}
+			pngWriter.close();
+			isComplete = true;
+			treeMappa.countBytesWritten("png", new File(pngFileName));
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem writing image file '"+pngFileName+"': "+e.getMessage());
+			return false;
+		}
+		catch (OutOfMemoryError e)
+		{
+			System.err.println("Warning: Not enough memory to render image band of "+width+"x"+bandHeight+" pixels.");
+			return false;
+		}
+		finally
+		{
+			layout.release();
+			if ((isComplete == false) && (pngWriter != null))
+			{
+				// Closing an incomplete image releases and deletes the partially written file.
+				try
+				{
+					pngWriter.close();
+				}
+				catch (IOException e)
+				{
+					// Expected as the image is incomplete.
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/** Writes the tree map display as a pyramid of 256x256 pixel PNG map tiles suitable for use in web map viewers.
+	 *  Tiles are stored using the <code>z/x/y.png</code> naming convention within the given folder. At zoom level
+	 *  <i>z</i> the longest side of the treemap spans 2<sup>z</sup> tiles. Tiles are rendered in parallel directly
+	 *  from the treemap geometry, so the full resolution image is never held in memory. Tiles that contain no part
+	 *  of the treemap are not written and tiles that already exist are not overwritten, so an interrupted export
+	 *  can be resumed by calling this method again with the same parameters.
+	 *  @param dirName Name of the folder in which to store the tile pyramid. Will be created if it does not exist.
+	 *  @param minZoom Lowest zoom level to write (0 or more).
+	 *  @param maxZoom Highest zoom level to write (at least <code>minZoom</code>).
+	 *  @return True if all tiles written successfully.
+	 */
+	public boolean writeTiles(String dirName, int minZoom, int maxZoom)
+	{
+		if ((minZoom < 0) || (maxZoom < minZoom) || (maxZoom > MAX_TILE_ZOOM))
+		{
+			System.err.println("Tile zoom levels must be in the range 0-"+MAX_TILE_ZOOM+" with the minimum no larger than the maximum.");
+			return false;
+		}
+
+		File tileDir = new File(dirName);
+		if ((tileDir.exists() == false) && (tileDir.mkdirs() == false))
+		{
+			System.err.println("Cannot create tile folder '"+dirName+"'");
+			return false;
+		}
+
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+		double extent = Math.max(screenImg.getWidth(), screenImg.getHeight());
+		NodePanelLayout layout = acquirePanelLayout();
+
+		for (int z=minZoom; z<=maxZoom; z++)
+		{
+			int numTiles = 1 << z;
+			double scale = (TILE_SIZE*numTiles)/extent;
+			int numCols = (int)Math.ceil(screenImg.getWidth()*scale/TILE_SIZE);
+
+			// Each column of tiles is a separate task so that its tile image can be reused.
+			for (int x=0; x<numCols; x++)
+			{
+				results.add(executor.submit(new TileColumnWriter(layout,tileDir,z,x,scale)));
+			}
+		}
+		executor.shutdown();
+
+		int numWritten = 0;
+		int numSkipped = 0;
+		boolean success = true;
+		for (Future<int[]> result : results)
+		{
+			try
+			{
+				int[] counts = result.get();
+				if (counts == null)
+				{
+					success = false;
+				}
+				else
+				{
+					numWritten += counts[0];
+					numSkipped += counts[1];
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Tiles may still be being drawn, so the layout is left in use rather than risk it being rebuilt.
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				System.err.println("Tile export to '"+dirName+"' interrupted. Call again to resume.");
+				return false;
+			}
+			catch (ExecutionException e)
+			{
+				System.err.println("Problem writing tiles: "+e.getCause());
+				success = false;
+			}
+		}
+		layout.release();
+
+		if (treeMappa.getConfig().getIsVerbose())
+		{
+			System.out.println("Wrote "+numWritten+" tiles to '"+dirName+"' ("+numSkipped+" already present).");
+		}
+		return success;
+	}
+
+	/** Updates the tree map display to be shown in this panel. Any background update that has not yet completed
+	 *  is abandoned, and its work completed by this update.
 	 */
 	public void updateImage()
 	{
-		Graphics2D g = (Graphics2D)screenImg.getGraphics();
-		g.setColor(Color.WHITE);
-		g.fillRect(0, 0, screenImg.getWidth(), screenImg.getHeight());
+		update(BackgroundUpdate.IMAGE);
+	}
+
+	/** Draws the treemap nodes, labels and displacement vectors into the given graphics context. The
+	 *  context's current transformation is applied to the treemap's natural pixel coordinates, so this can
+	 *  be used to render the whole treemap or any scaled portion of it.
+	 *  @param layout Layout of the node panels to draw.
+	 *  @param g Graphics context in which to draw.
+	 *  @param region Region of the treemap in natural pixel coordinates to draw. Nodes and vectors falling
+	 *                entirely outside this region are not drawn. If null, the whole treemap is drawn.
+	 *  @return Number of nodes and vectors drawn.
+	 */
+	private int drawTreeMap(NodePanelLayout layout, Graphics2D g, Rectangle2D region)
+	{
+		List<NodePanel> leaves = layout.getLeaves();
+		List<NodePanel> branches = layout.getBranches();
+		int maxDepth = layout.getMaxDepth();
+		double rootArea = layout.getRootArea();
+		int numDrawn = 0;
 		BasicStroke leafStroke = new BasicStroke(leafVectorWidth);
 		BasicStroke leafBorderStroke = new BasicStroke(0.1f);
 				
@@ -438,6 +705,16 @@ public class TreeMapPanel extends JPanel
 			branchBorderStrokes[i] = new BasicStroke(Math.max(1,borderWeights[i])); 
 		}
 
+		// Border colours are shared by all nodes so only need creating once.
+		Color leafBorder = new Color(leafBorderColour.getRed()/255f,leafBorderColour.getGreen()/255f,leafBorderColour.getBlue()/255f);
+		Color leafBorderFaint = new Color(leafBorderColour.getRed()/255f,leafBorderColour.getGreen()/255f,leafBorderColour.getBlue()/255f,0.1f);
+		Color[] branchBorders = new Color[borderWeights.length];
+		for (int level=1; (level<branchBorders.length) && (level<=maxDepth); level++)
+		{
+			float opacity = Math.max(0.1f,(maxDepth-level)/(float)maxDepth);
+			branchBorders[level] = new Color(borderColour.getRed()/255f,borderColour.getGreen()/255f,borderColour.getBlue()/255f,opacity);
+		}
+
 		g.setFont(leafFont);
 		for (NodePanel leaf : leaves)
 		{
@@ -448,7 +725,12 @@ public class TreeMapPanel extends JPanel
 			}
 
 			// Fill leaf background.
-			Rectangle bounds = leaf.getBounds().getBounds();		
+			Rectangle bounds = leaf.getBounds().getBounds();
+			if ((region != null) && (region.intersects(bounds.x, bounds.y, bounds.width+1, bounds.height+1) == false))
+			{
+				continue;
+			}
+			numDrawn++;
 			g.setColor(leaf.getColour());
 			g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
 
@@ -549,11 +831,11 @@ public class TreeMapPanel extends JPanel
 			if (leafBorderStroke != null)
 			{
 				g.setStroke(leafBorderStroke);
-				g.setColor(new Color(leafBorderColour.getRed()/255f,leafBorderColour.getGreen()/255f,leafBorderColour.getBlue()/255f));	
+				g.setColor(leafBorder);	
 			}
 			else
 			{
-				g.setColor(new Color(leafBorderColour.getRed()/255f,leafBorderColour.getGreen()/255f,leafBorderColour.getBlue()/255f,0.1f));
+				g.setColor(leafBorderFaint);
 			}
 			g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
 		}
@@ -566,7 +848,12 @@ public class TreeMapPanel extends JPanel
 				continue;
 			}
 			
-			Rectangle bounds = branch.getBounds().getBounds();		
+			Rectangle bounds = branch.getBounds().getBounds();
+			if ((region != null) && (region.intersects(bounds.x, bounds.y, bounds.width+1, bounds.height+1) == false))
+			{
+				continue;
+			}
+			numDrawn++;
 			int level = branch.getLevel();
 			g.setFont(branchFonts[level-1]);
 			
@@ -662,17 +949,16 @@ public class TreeMapPanel extends JPanel
 					 */
 				}
 			}
-			float opacity = Math.max(0.1f,(maxDepth-level)/(float)maxDepth);
-
 			if (borderWeights[level] != 0)
 			{
 				g.setStroke(branchBorderStrokes[level]);
-				g.setColor(new Color(borderColour.getRed()/255f,borderColour.getGreen()/255f,borderColour.getBlue()/255f,opacity));
+				g.setColor(branchBorders[level]);
 				g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
 			}
 		}
 
-		// Draw displacement vectors if requested.
+		// Draw displacement vectors if requested, batching the arrows at each level into a single path.
+		DisplacementBatch[] branchArrows = new DisplacementBatch[showBranchDisplacements.length];
 		for (NodePanel branch : branches)
 		{
 			int level = branch.getLevel();
@@ -680,34 +966,53 @@ public class TreeMapPanel extends JPanel
 			{
 				Rectangle bounds = branch.getBounds().getBounds();
 
-				// Draw displacement vector
+				// Add displacement vector
 				if ((branch.getGeoBounds() != null) && (bounds.width>0) && (bounds.height>0))
 				{
-					g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
-
-					g.setColor(branchTextColours[level]);
-					g.setStroke(branchStrokes[level-1]); 
-					g.draw(getArrow(bounds.x+bounds.width/2f, bounds.y+bounds.height/2f,(float)branch.getGeoBounds().getX(),(float)branch.getGeoBounds().getY(),branchStrokes[level-1].getLineWidth(),showArrowHead));
+					if (branchArrows[level-1] == null)
+					{
+						branchArrows[level-1] = new DisplacementBatch(branchStrokes[level-1].getLineWidth(),showArrowHead,minVectorLength);
+					}
+					if (branchArrows[level-1].add(bounds.x+bounds.width/2f, bounds.y+bounds.height/2f,(float)branch.getGeoBounds().getX(),(float)branch.getGeoBounds().getY(),region))
+					{
+						numDrawn++;
+					}
 				}
 			}
 		}
+
+		DisplacementBatch leafArrows = null;
 		if (showLeafDisplacement)
 		{
+			leafArrows = new DisplacementBatch(leafStroke.getLineWidth(),showArrowHead,minVectorLength);
 			for (NodePanel leaf : leaves)
 			{
 				Rectangle bounds = leaf.getBounds().getBounds();		
 		
-				// Draw displacement vector
+				// Add displacement vector
 				if ((leaf.getGeoBounds() != null) && (bounds.width>0) && (bounds.height>0))
 				{
-					g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
-
-					g.setColor(leafTextColour);
-					g.setStroke(leafStroke); 
-					g.draw(getArrow(bounds.x+bounds.width/2f, bounds.y+bounds.height/2f,(float)leaf.getGeoBounds().getX(),(float)leaf.getGeoBounds().getY(),leafStroke.getLineWidth(),showArrowHead));
+					if (leafArrows.add(bounds.x+bounds.width/2f, bounds.y+bounds.height/2f,(float)leaf.getGeoBounds().getX(),(float)leaf.getGeoBounds().getY(),region))
+					{
+						numDrawn++;
+					}
 				}
 			}
 		}
+
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
+		for (int i=0; i<branchArrows.length; i++)
+		{
+			if (branchArrows[i] != null)
+			{
+				branchArrows[i].draw(g,branchStrokes[i],branchTextColours[i+1]);
+			}
+		}
+		if (leafArrows != null)
+		{
+			leafArrows.draw(g,leafStroke,leafTextColour);
+		}
+		return numDrawn;
 	}
 
 	/** Updates the entire treemap layout. Should be called when some properties of the treemap that
@@ -718,12 +1023,7 @@ public class TreeMapPanel extends JPanel
 	 */
 	public void updateLayout()
 	{        
-		treeMappa.buildTreeMap();
-
-		leaves = new Vector<NodePanel>();
-		branches = new Vector<NodePanel>();
-		addRectangles(treeMappa.getRoot(),Color.getHSBColor(rand.nextFloat(), 0.6f, 0.6f));
-		updateImage();
+		update(BackgroundUpdate.LAYOUT);
 	}
 
 	/** Updates the entire treemap using new tree data. This method should only be called if the underlying
@@ -732,12 +1032,69 @@ public class TreeMapPanel extends JPanel
 	 */
 	public void updateData()
 	{
-		TreeMapNode root = treeMappa.getRoot();
-		//treeMappa.setRoot(root);		// Needed to ensure root and tree are always consistent???
-		Rectangle2D rootBounds = root.getRectangle();
-		rootArea = rootBounds.getWidth()*rootBounds.getHeight();
-		maxDepth = root.getMaxDepth();
-		updateLayout();
+		// The root area and depth of the tree are found afresh whenever the layout is updated.
+		update(BackgroundUpdate.DATA);
+	}
+
+	/** Updates the tree map display in a background thread, leaving the calling thread free to respond to
+	 *  the user. The current image continues to be shown until the new one is complete, at which point it
+	 *  replaces the old image in a single step. Any background update that has not yet completed is abandoned.
+	 *  This is equivalent to <code>updateImage()</code> but suitable for calling from the Swing event thread.
+	 */
+	public void updateImageInBackground()
+	{
+		startBackgroundUpdate(BackgroundUpdate.IMAGE);
+	}
+
+	/** Updates the entire treemap layout in a background thread, leaving the calling thread free to respond
+	 *  to the user. The current image continues to be shown until the new one is complete, at which point it
+	 *  replaces the old image in a single step. Any background update that has not yet completed is abandoned.
+	 *  This is equivalent to <code>updateLayout()</code> but suitable for calling from the Swing event thread.
+	 *  Note that the tree's node geometry is updated as soon as the layout is calculated, so the tree should
+	 *  not be queried from other threads until the update has finished.
+	 */
+	public void updateLayoutInBackground()
+	{
+		startBackgroundUpdate(BackgroundUpdate.LAYOUT);
+	}
+
+	/** Updates the entire treemap using new tree data in a background thread, leaving the calling thread free
+	 *  to respond to the user. Any background update that has not yet completed is abandoned. This is equivalent
+	 *  to <code>updateData()</code> but suitable for calling from the Swing event thread.
+	 */
+	public void updateDataInBackground()
+	{
+		startBackgroundUpdate(BackgroundUpdate.DATA);
+	}
+
+	/** Abandons any background update that has not yet completed, stopping any layout it is building at the next
+	 *  opportunity. The image displayed by the panel is not changed. If the update had already started to lay out the
+	 *  tree, the tree's node geometry may not match the image until a further update is made. That update will also
+	 *  complete the work of any it replaced, so a later image update will lay out the tree again if needed.
+	 */
+	public void cancelBackgroundUpdate()
+	{
+		supersedeUpdates();
+		showProgress("Treemap update cancelled.", Integer.MAX_VALUE);
+	}
+
+	/** Determines the frame whose status bar reports the progress of background updates. Clicking on the progress
+	 *  bar of the frame will cancel the background update.
+	 *  @param frame Frame in which to report progress or null if progress is not to be reported.
+	 */
+	public void setProgressFrame(JWFrame frame)
+	{
+		if (frame != null)
+		{
+			frame.addInterruptionListener(new JWInterruptionListener()
+			{
+				public void interruptionRequested()
+				{
+					cancelBackgroundUpdate();
+				}
+			});
+		}
+		progressFrame = frame;
 	}
 
 	/** Display the summary statistics describing the treemap.
@@ -750,20 +1107,40 @@ public class TreeMapPanel extends JPanel
 
 	// ------------------ Package-wide accessors for use by other treemap classes.
 
-	/** Reports the list of leaves in the treemap.
-	 *  @return list of leaves in the treemap.
+	/** Reports the treeMappa object responsible for this panel's treemap.
+	 *  @return TreeMappa object capable of creating the treemap.
 	 */
-	List<NodePanel>getLeaves()
+	TreeMappa getTreeMappa()
 	{
-		return leaves;
+		return treeMappa;
 	}
 
-	/** Reports the list of branches in the treemap.
-	 *  @return list of branches in the treemap.
+	/** Reports the number of times the treemap image has been updated. This allows cached representations
+	 *  of the treemap to detect when they need to be rebuilt.
+	 *  @return Count that changes whenever the layout or appearance of the treemap is updated.
 	 */
-	List<NodePanel>getBranches()
+	int getImageVersion()
 	{
-		return branches;
+		return imageVersion;
+	}
+
+	/** Provides the layout of leaf and branch panels currently displayed, marking it as in use. The layout is
+	 *  replaced rather than changed when the treemap is updated, so code drawing or writing the treemap should
+	 *  use the same layout throughout rather than calling this method repeatedly. The layout must be released
+	 *  with <code>NodePanelLayout.release()</code> once it is no longer needed so that it can be reused.
+	 *  @return Current layout of the treemap's node panels.
+	 */
+	NodePanelLayout acquirePanelLayout()
+	{
+		while (true)
+		{
+			// A layout replaced since it was read may be being rebuilt, in which case the new one is used.
+			NodePanelLayout layout = panelLayout;
+			if (layout.acquire())
+			{
+				return layout;
+			}
+		}
 	}
 
 	/** Reports the mutation factor used for evolutionary colour schemes.
@@ -803,7 +1180,7 @@ public class TreeMapPanel extends JPanel
 	 */
 	double getRootArea()
 	{
-		return rootArea;
+		return panelLayout.getRootArea();
 	}
 
 	/** Reports the maximum text size for leaf labels.
@@ -875,7 +1252,7 @@ public class TreeMapPanel extends JPanel
 	 */
 	int getMaxDepth()
 	{
-		return maxDepth;
+		return panelLayout.getMaxDepth();
 	}
 
 	/** Reports whether or not vertical labels are permitted.
@@ -918,6 +1295,62 @@ public class TreeMapPanel extends JPanel
 		return branchTextColours;
 	}
 
+	/** Reports the font used for leaf labels.
+	 *  @return Leaf label font at its unscaled size.
+	 */
+	Font getLeafFont()
+	{
+		return leafFont;
+	}
+
+	/** Reports the fonts used for branch labels at each level of the hierarchy.
+	 *  @return Branch label fonts at their unscaled size.
+	 */
+	Font[] getBranchFonts()
+	{
+		return branchFonts;
+	}
+
+	/** Reports the width of leaf displacement vectors.
+	 *  @return Leaf displacement vector width in pixels.
+	 */
+	float getLeafVectorWidth()
+	{
+		return leafVectorWidth;
+	}
+
+	/** Reports the length below which displacement vectors are not drawn.
+	 *  @return Minimum displacement vector length in pixels, or 0 if all vectors are drawn.
+	 */
+	float getMinVectorLength()
+	{
+		return minVectorLength;
+	}
+
+	/** Reports the width of branch displacement vectors at each level of the hierarchy.
+	 *  @return Branch displacement vector widths.
+	 */
+	float[] getBranchVectorWidths()
+	{
+		return vectorWidths;
+	}
+
+	/** Reports whether or not displacement vectors are drawn with arrow heads.
+	 *  @return True if arrow heads are drawn.
+	 */
+	boolean getShowArrowHead()
+	{
+		return showArrowHead;
+	}
+
+	/** Reports whether or not transparency is used when rendering the treemap.
+	 *  @return True if transparency is used.
+	 */
+	boolean getIsTransparent()
+	{
+		return isTransparent;
+	}
+
 	/** Reports whether or not branch displacements are shown at each level in the hierarchy
 	 *  @return displacement visibility at each level of the hierarchy.
 	 */
@@ -1150,6 +1583,24 @@ public class TreeMapPanel extends JPanel
 		return true;
 	}
 
+	/** Sets the length below which displacement vectors are not drawn. Culling vectors shorter than a pixel
+	 *  can speed up the drawing of large treemaps without visibly changing them. Note that the treemap will
+	 *  not use this new setting until a call to <code>updateImage()</code> is made.
+	 *  @param length Minimum displacement vector length in pixel units, or 0 if all vectors are to be drawn.
+	 *  @return True if change has been made successfully.
+	 */
+	public boolean setMinVectorLength(float length)
+	{
+		if (length < 0)
+		{
+			System.err.println("Minimum vector length must be at least 0, but "+length+" was given.");
+			return false;
+		}
+		minVectorLength = length;
+		treeMappa.getConfig().setParameter(TreeMapProperties.MIN_VECTOR_LENGTH, Float.toString(length));
+		return true;
+	}
+
 	/** Sets the maximum text size of the branch labels at the given branch level. Note that the 
 	 *  treemap will not use this new setting until a call to <code>updateImage()</code> is made.
 	 *  @param level Hierarchy level at which to make the change.
@@ -1347,6 +1798,25 @@ public class TreeMapPanel extends JPanel
 		return true;
 	}
 	
+	/** Sets the compression used when writing PNG images with <code>writeBandedPNG()</code> and compressed SVG
+	 *  (<code>.svgz</code>) files. Compression is split into independent blocks spread over the given number of
+	 *  threads, producing standard files that can be read by any PNG viewer or gzip decompressor.
+	 *  @param level Compression level between 0 (none) and 9 (maximum), or -1 for the default level.
+	 *  @param numThreads Number of compression threads, or 0 to use all available processors.
+	 *  @return True if change has been made successfully.
+	 */
+	public boolean setCompression(int level, int numThreads)
+	{
+		if ((level < -1) || (level > 9) || (numThreads < 0))
+		{
+			System.err.println("Cannot set compression level "+level+" with "+numThreads+" threads. Level must be between -1 and 9 and threads at least 0.");
+			return false;
+		}
+		treeMappa.getConfig().setParameter(TreeMapProperties.COMPRESSION_LEVEL, Integer.toString(level));
+		treeMappa.getConfig().setParameter(TreeMapProperties.COMPRESSION_THREADS, Integer.toString(numThreads));
+		return true;
+	}
+
 	/** Sets the curvature radius of rounded rectangles. If 0, normal rectangles with sharp corners are
 	 *  drawn in the treemap. Values greater than 0 increase the curviness of the rectangles.
 	 *  @param curveRadius Radius of curvature of treemap rectangle corners in pixel units.
@@ -1667,6 +2137,145 @@ public class TreeMapPanel extends JPanel
 	}
 
 	// ----------------------------- Private Methods -------------------------------
+
+	/** Updates the treemap on the calling thread, abandoning any background update that has not yet completed.
+	 *  The tree is only locked while it is laid out, so an abandoned background layout stops at its next check
+	 *  for cancellation rather than holding up this update.
+	 *  @param type Type of update to perform.
+	 */
+	private void update(int type)
+	{
+		int request = supersedeUpdates();
+		NodePanelLayout layout;
+		synchronized (updateLock)
+		{
+			// Include any work left incomplete by updates that were abandoned.
+			pendingUpdate = Math.min(pendingUpdate, type);
+			if (pendingUpdate <= BackgroundUpdate.LAYOUT)
+			{
+				treeMappa.buildTreeMap();
+				builtLayout = refreshPanels();
+				pendingUpdate = BackgroundUpdate.IMAGE;
+			}
+			layout = builtLayout;
+			layout.acquire();
+		}
+
+		BufferedImage img;
+		try
+		{
+			img = renderImage(layout);
+		}
+		finally
+		{
+			layout.release();
+		}
+		displayUpdate(request, layout, img);
+	}
+
+	/** Queues a background update of the given type, abandoning any update that has not yet completed.
+	 *  @param type Type of update to perform.
+	 */
+	private void startBackgroundUpdate(int type)
+	{
+		CancellationToken token = new CancellationToken();
+		int request = supersedeUpdates();
+		updateToken = token;
+		if (updateExecutor == null)
+		{
+			updateExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "TreeMappa update");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		updateExecutor.execute(new BackgroundUpdate(type, request, token));
+	}
+
+	/** Abandons any update that has not yet completed. Any layout being built in the background is stopped at the
+	 *  next opportunity and any layout and image waiting to be displayed are discarded.
+	 *  @return Request number identifying the update that supersedes those abandoned.
+	 */
+	private int supersedeUpdates()
+	{
+		int request = updateRequest.incrementAndGet();
+		CancellationToken token = updateToken;
+		if (token != null)
+		{
+			token.cancel();
+		}
+		return request;
+	}
+
+	/** Renders the given layout into a new image of the same size as the displayed one.
+	 *  @param layout Layout of the node panels to draw.
+	 *  @return New image holding the rendered treemap.
+	 */
+	private BufferedImage renderImage(NodePanelLayout layout)
+	{
+		PhaseTimer timer = new PhaseTimer(BuildPhase.RENDER, treeMappa.getTimings());
+		BufferedImage img = new BufferedImage(screenImg.getWidth(), screenImg.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, img.getWidth(), img.getHeight());
+		int numDrawn = drawTreeMap(layout,g,null);
+		g.dispose();
+		timer.stop(numDrawn);
+		return img;
+	}
+
+	/** Replaces the displayed layout and image with the given ones unless the update that created them has been
+	 *  superseded. This ensures an older update can never replace the results of a newer one.
+	 *  @param request Request number of the update that created the layout and image.
+	 *  @param layout New layout to display.
+	 *  @param img New image to display.
+	 *  @return True if the layout and image were displayed, false if the update had been superseded.
+	 */
+	private boolean displayUpdate(int request, NodePanelLayout layout, BufferedImage img)
+	{
+		synchronized (displayLock)
+		{
+			if (request != updateRequest.get())
+			{
+				return false;
+			}
+			NodePanelLayout oldLayout = panelLayout;
+			panelLayout = layout;
+			screenImg = img;
+			imageVersion++;
+			if (oldLayout != layout)
+			{
+				retireLayout(oldLayout);
+			}
+			return true;
+		}
+	}
+
+	/** Reports background update progress in the status bar of the progress frame if one has been set. 
+	 *  Can be called from any thread.
+	 *  @param message Message to display.
+	 *  @param progress Percentage progress or Integer.MAX_VALUE to clear the progress bar.
+	 */
+	private void showProgress(final String message, final int progress)
+	{
+		final JWFrame frame = progressFrame;
+		if (frame == null)
+		{
+			return;
+		}
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				frame.setMessage(message);
+				frame.setProgress(progress);
+			}
+		});
+	}
 	
 	/** Converts an alignment text value into its Processing numeric alignment ID.
 	 *  @param alignText Text representing alignment constant. Should be one of LEFT, CENTER, RIGHT, TOP, BOTTOM.
@@ -1685,11 +2294,61 @@ public class TreeMapPanel extends JPanel
 		return PConstants.CENTER;
 	}
 
+	/** Creates a new layout of leaf and branch panels from the current tree layout. Should only be called
+	 *  while holding the update lock. The most recently replaced layout is rebuilt if nothing is still using
+	 *  it, so its panels are reused for nodes that it displayed. A layout that is displayed or in use is never
+	 *  changed, so the previous layout can continue to be displayed by other threads until it is replaced.
+	 *  @return New layout of node panels.
+	 */
+	private NodePanelLayout refreshPanels()
+	{
+		PhaseTimer timer = new PhaseTimer(BuildPhase.PANELS, treeMappa.getTimings());
+		NodePanelLayout layout = retiredLayout.get();
+		if ((layout != null) && layout.rebuild())
+		{
+			retiredLayout.compareAndSet(layout, null);
+		}
+		else
+		{
+			layout = new NodePanelLayout();
+		}
+
+		colourLookup = null;
+		TreeMapNode root = treeMappa.getRoot();
+		addRectangles(root,Color.HSBtoRGB(rand.nextFloat(), 0.6f, 0.6f),layout);
+		colourLookup = null;
+		Rectangle2D rootBounds = root.getRectangle();
+		layout.finish(rootBounds.getWidth()*rootBounds.getHeight(), root.getMaxDepth());
+
+		// A previously built layout that was never displayed can no longer be, so may be reused.
+		synchronized (displayLock)
+		{
+			if ((builtLayout != null) && (builtLayout != panelLayout))
+			{
+				retireLayout(builtLayout);
+			}
+		}
+		timer.stop(layout.getNumPanels());
+		return layout;
+	}
+
+	/** Marks the given layout as having been replaced, so that it may be rebuilt for a later layout of the tree
+	 *  once nothing is using it.
+	 *  @param layout Layout that has been replaced.
+	 */
+	private void retireLayout(NodePanelLayout layout)
+	{
+		layout.retire();
+		retiredLayout.set(layout);
+	}
+
 	/** Adds the graphical representations of the given node and all its descendants
-	 *  to the main graphics panel representing the tree map.
+	 *  to the layout of panels representing the tree map.
 	 *  @param node Node to add to the panel. 
+	 *  @param parentColour Colour of the node's panel in ARGB format.
+	 *  @param layout Layout being built to which the panels are added.
 	 */
-	private void addRectangles(TreeMapNode node, Color parentColour)
+	private void addRectangles(TreeMapNode node, int parentColour, NodePanelLayout layout)
 	{
 		if (node.isLeaf())
 		{
@@ -1702,7 +2361,7 @@ public class TreeMapPanel extends JPanel
 		double minY = Float.MAX_VALUE;
 		double maxY = -Float.MAX_VALUE;
 		double xRange = 0, yRange = 0;
-		Color rectParentColour = parentColour;
+		boolean inheritColour = true;
 
 		// Only process spatial nodes.
 		if (node.getLocation() != null)
@@ -1743,7 +2402,7 @@ public class TreeMapPanel extends JPanel
 			if (level < randColourLevel)
 			{
 				// Ensure colour remains random up to the randcolourLevel
-				rectParentColour = null;
+				inheritColour = false;
 			}
 
 
@@ -1752,7 +2411,7 @@ public class TreeMapPanel extends JPanel
 			{
 				childColour = getColour(child.getColourValue().floatValue());
 			}
-			else if (rectParentColour == null)
+			else if (inheritColour == false)
 			{
 				if ((hues[level] == null) || (hues[level].size() == 0))
 				{
@@ -1768,35 +2427,40 @@ public class TreeMapPanel extends JPanel
 				hue = hues[level].remove(rand.nextInt(hues[level].size())).floatValue();
 			}
 
-			Point2D geoCentre = null;
+			NodePanel nPanel = layout.addPanel(child,child.isLeaf());
+			nPanel.update(this,child.getLabel(),child.getRectangle(),child.isLeaf(),child.getSizeValue()<0,hue, childColour,parentColour,inheritColour,child.getLevel());
+
 			if ((xRange > 0) && (yRange > 0))
 			{
 				double easting = child.getLocation().getX();
 				double northing = child.getLocation().getY();
-				geoCentre = new Point2D.Double(node.getRectangle().getX() + node.getRectangle().getWidth()*(easting-minX)/xRange,
+				nPanel.setGeoCentre(node.getRectangle().getX() + node.getRectangle().getWidth()*(easting-minX)/xRange,
 						node.getRectangle().getY()+node.getRectangle().getHeight() - (node.getRectangle().getHeight()*(northing-minY)/yRange));
 			}
-
-			NodePanel nPanel = new NodePanel(this,child.getLabel(),child.getRectangle(),geoCentre,child.isLeaf(),child.getSizeValue()<0,hue, childColour,rectParentColour,child.getLevel());
-			if (child.isLeaf())
+			else
 			{
-				leaves.add(nPanel);
+				nPanel.removeGeoCentre();
 			}
-			else
+
+			if (child.isLeaf() == false)
 			{
-				branches.add(nPanel);
-				addRectangles(child,nPanel.getColour());
+				addRectangles(child,nPanel.getRGB(),layout);
 			}
 		}
 	}
 
-	/** Finds the colour to be associated with the given colour value. 
+	/** Finds the colour to be associated with the given colour value. The colour lookup table for the layout
+	 *  being built is created when first needed.
 	 *  @param colourValue attribute to be mapped with a colour.
 	 *  @return Colour associated with the given attribute.
 	 */
 	private Color getColour(float colourValue)
 	{
-		return new Color(cTable.findColour(colourValue),true);
+		if (colourLookup == null)
+		{
+			colourLookup = new ColourLookup(cTable,treeMappa.getRoot());
+		}
+		return colourLookup.getColour(colourValue);
 	}
 	
 	/** Converts a given colour into its HTML-like hex string in the form <code>#rrggbb</code> or
@@ -1834,95 +2498,58 @@ public class TreeMapPanel extends JPanel
         return new String("#"+paddedHex(red) + paddedHex(green) + paddedHex(blue));            
     }
 
-	/** Creates a curved arrow between the two given points. Greater angular change is at the source 
-	 * of the arrow (p1), in order to provide a visual indication of direction. See 
-	 * Fekete, J.D, Wang, D., Dang, N., Aris, A. and Plaisant, C. 'Overlaying Graph Links on TreeMaps',
-	 * Information Visualisation Poster Compendium, pp.82-83
-	 * @param p1x x coordinate of the start point of the arrow.
-	 * @param p1y y coordinate of the start point of the arrow.
-	 * @param p2x x coordinate of the end point of the arrow.
-	 * @param p2y y coordinate of the end point of the arrow.
-	 * @param showHead Arrow head drawn if true.
-	 * @return Path representing the arrow.
-	 */
-	private static GeneralPath getArrow(float p1x, float p1y, float p2x, float p2y, float lineWidth, boolean showHead)
-	{
-		GeneralPath path = new GeneralPath();
-
-		// Set the control point to 60 to the right of the vector, along a quarter its length
-		float x = (p2x-p1x)/4f;
-		float y = (p2y-p1y)/4f;
-		float cx = (float)(p1x + x*Math.cos(CURVE_ANGLE) - y*Math.sin(CURVE_ANGLE));
-		float cy = (float)(p1y + y*Math.cos(CURVE_ANGLE) + x*Math.sin(CURVE_ANGLE));
-
-		float arrowSize = lineWidth*2;          // Size of the arrow segments
-
-		float ex = p2x - cx;
-		float ey = p2y - cy;
-		float abs_e = (float)Math.sqrt(ex*ex + ey*ey);
-		ex /= abs_e;
-		ey /= abs_e;
-
-		// Creating curved arrow.
-		path.moveTo(p1x, p1y);
-		path.quadTo(cx, cy, p2x, p2y);
-
-		if (showHead)
-		{
-			path.lineTo(p2x + (ey-ex)*arrowSize, p2y - (ex + ey)*arrowSize);
-			path.moveTo(p2x, p2y);
-			path.lineTo(p2x - (ey + ex)*arrowSize, p2y + (ex - ey)*arrowSize);
-		}
-		return path;
-	}
-
-	/** Creates an SVG statement to construct a curved arrow between the two given points. Greater angular change
-	 * is at the source of the arrow (p1), in order to provide a visual indication of direction. See 
+	/** Adds the SVG path data for a curved arrow between the two given points to the given path description. Greater
+	 * angular change is at the source of the arrow (p1), in order to provide a visual indication of direction. See 
 	 * Fekete, J.D, Wang, D., Dang, N., Aris, A. and Plaisant, C. 'Overlaying Graph Links on TreeMaps',
-	 * Information Visualisation Poster Compendium, pp.82-83
+	 * Information Visualisation Poster Compendium, pp.82-83. The arrow's geometry is found by DisplacementBatch.
+	 * @param pathData SVG path data to which the arrow is added.
 	 * @param p1x x coordinate of the start point of the arrow.
 	 * @param p1y y coordinate of the start point of the arrow.
 	 * @param p2x x coordinate of the end point of the arrow.
 	 * @param p2y y coordinate of the end point of the arrow.
+	 * @param lineWidth Width of the arrow line, used to determine the arrow head size.
 	 * @param showHead Arrow head drawn if true.
-	 * @return SVG text representing the arrow.
 	 */
-	private static String getSVGArrow(double p1x, double p1y, double p2x, double p2y, double lineWidth, boolean showHead)
+	private static void appendSVGArrow(StringBuilder pathData, double p1x, double p1y, double p2x, double p2y, double lineWidth, boolean showHead)
 	{
-		// Set the control point to 60 to the right of the vector, along a quarter its length
-		double x = (p2x-p1x)/4.0;
-		double y = (p2y-p1y)/4.0;
-		double cx = (p1x + x*Math.cos(CURVE_ANGLE) - y*Math.sin(CURVE_ANGLE));
-		double cy = (p1y + y*Math.cos(CURVE_ANGLE) + x*Math.sin(CURVE_ANGLE));
-
-		double arrowSize = lineWidth*2;          // Size of the arrow segments
+		Path2D.Double arrow = new Path2D.Double();
+		DisplacementBatch.appendArrow(arrow, p1x, p1y, p2x, p2y, lineWidth, showHead);
 
-		double ex = p2x - cx;
-		double ey = p2y - cy;
-		float abs_e = (float)Math.sqrt(ex*ex + ey*ey);
-		ex /= abs_e;
-		ey /= abs_e;
-
-		if (showHead)
+		double[] coords = new double[6];
+		for (PathIterator segments = arrow.getPathIterator(null); segments.isDone() == false; segments.next())
 		{
-			return new String("<path d=\"M "+p1x+" "+p1y+" Q "+cx+" "+cy+" "+p2x+" "+p2y+
-					" L "+(p2x + (ey-ex)*arrowSize)+" "+(p2y - (ex+ey)*arrowSize)+
-					" M "+p2x+" "+p2y+
-					" L "+(p2x - (ey+ex)*arrowSize)+" "+(p2y + (ex-ey)*arrowSize)+"\" />");
+			if (pathData.length() > 0)
+			{
+				pathData.append(' ');
+			}
+			switch (segments.currentSegment(coords))
+			{
+				case PathIterator.SEG_MOVETO:
+					pathData.append("M ").append(coords[0]).append(' ').append(coords[1]);
+					break;
+				case PathIterator.SEG_QUADTO:
+					pathData.append("Q ").append(coords[0]).append(' ').append(coords[1])
+					        .append(' ').append(coords[2]).append(' ').append(coords[3]);
+					break;
+				default:
+					pathData.append("L ").append(coords[0]).append(' ').append(coords[1]);
+					break;
+			}
 		}
-		// Path without arrow head.
-		return new String("<path d=\"M "+p1x+" "+p1y+" Q "+cx+" "+cy+" "+p2x+" "+p2y+"\" />");
-
 	}
 
 	/** Writes out the treemap as an SVG file. If the file name extension
 	 * is <code>.svgz</code>, then the SVG file will be compressed using GZIP compression.
+	 * @param layout Layout of the node panels to write.
 	 * @param fileName Name of file to create.
 	 * @param svgIsTransparent SVG output uses transparency if true. No transparency (false) is useful for PDF conversion.
 	 * @return True if written successfully.
 	 */
-	private boolean writeSVG(String fileName, boolean svgIsTransparent)
+	private boolean writeSVG(NodePanelLayout layout, String fileName, boolean svgIsTransparent)
 	{
+		List<NodePanel> leaves = layout.getLeaves();
+		List<NodePanel> branches = layout.getBranches();
+		double rootArea = layout.getRootArea();
 		try
 		{    
 			BufferedWriter outFile;
@@ -1932,7 +2559,9 @@ public class TreeMapPanel extends JPanel
 			// Decide whether to compress based on file extension.
 			if (fileName.toLowerCase().trim().endsWith("svgz"))
 			{
-				outFile = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fileName))));
+				TreeMapProperties props = treeMappa.getConfig();
+				outFile = new BufferedWriter(new OutputStreamWriter(new ParallelDeflaterOutputStream(new File(fileName),
+				                                                    props.getCompressionLevel(),props.getCompressionThreads(),true)));
 			}
 			else
 			{
@@ -2213,39 +2842,58 @@ public class TreeMapPanel extends JPanel
 			}
 			writeLine("</g>",outFile);
 
-			// Draw displacement vectors if requested.
+			// Draw displacement vectors if requested, combining the arrows at each level into a single path.
 
 			writeLine("<g id=\"branchDisp\">",outFile);
+			StringBuilder[] branchPaths = new StringBuilder[showBranchDisplacements.length];
 			for (NodePanel branch : branches)
 			{
 				int level = branch.getLevel();
 				if (showBranchDisplacements[level-1])
 				{
 					Rectangle bounds = branch.getBounds().getBounds();
-					// Draw displacement vector
-					if (branch.getGeoBounds() != null)
+					// Add displacement vector
+					if ((branch.getGeoBounds() != null) && 
+						(DisplacementBatch.isTooShort(bounds.x+bounds.width/2.0, bounds.y+bounds.height/2.0, branch.getGeoBounds().getX(), branch.getGeoBounds().getY(), minVectorLength) == false))
 					{
-						writeLine(getSVGArrow((multiplier*(bounds.x+bounds.width/2.0)), multiplier*(bounds.y+bounds.height/2.0), 
-								multiplier*branch.getGeoBounds().getX(), multiplier*branch.getGeoBounds().getY(), vectorWidths[level-1]*multiplier, showArrowHead),outFile);	
+						if (branchPaths[level-1] == null)
+						{
+							branchPaths[level-1] = new StringBuilder();
+						}
+						appendSVGArrow(branchPaths[level-1], (multiplier*(bounds.x+bounds.width/2.0)), multiplier*(bounds.y+bounds.height/2.0), 
+								multiplier*branch.getGeoBounds().getX(), multiplier*branch.getGeoBounds().getY(), vectorWidths[level-1]*multiplier, showArrowHead);	
 					}
 				}
 			}
+			for (StringBuilder branchPath : branchPaths)
+			{
+				if (branchPath != null)
+				{
+					writeLine("<path d=\""+branchPath+"\" />",outFile);
+				}
+			}
 			writeLine("</g>",outFile);
 
 			if (showLeafDisplacement)
 			{
 				writeLine("<g id=\"leafDisp\">",outFile);
+				StringBuilder leafPath = new StringBuilder();
 
 				for (NodePanel leaf : leaves)
 				{
 					Rectangle bounds = leaf.getBounds().getBounds();
-					// Draw displacement vector
-					if (leaf.getGeoBounds() != null)
+					// Add displacement vector
+					if ((leaf.getGeoBounds() != null) &&
+						(DisplacementBatch.isTooShort(bounds.x+bounds.width/2.0, bounds.y+bounds.height/2.0, leaf.getGeoBounds().getX(), leaf.getGeoBounds().getY(), minVectorLength) == false))
 					{
-						writeLine(getSVGArrow((multiplier*(bounds.x+bounds.width/2.0)), multiplier*(bounds.y+bounds.height/2.0), 
-								multiplier*leaf.getGeoBounds().getX(), multiplier*leaf.getGeoBounds().getY(), leafVectorWidth*multiplier, showArrowHead),outFile);
+						appendSVGArrow(leafPath, (multiplier*(bounds.x+bounds.width/2.0)), multiplier*(bounds.y+bounds.height/2.0), 
+								multiplier*leaf.getGeoBounds().getX(), multiplier*leaf.getGeoBounds().getY(), leafVectorWidth*multiplier, showArrowHead);
 					}
 				}
+				if (leafPath.length() > 0)
+				{
+					writeLine("<path d=\""+leafPath+"\" />",outFile);
+				}
 				writeLine("</g>",outFile);
 			}
 
@@ -2612,4 +3260,256 @@ public class TreeMapPanel extends JPanel
 			calcTransformation();
 		}
 	}
+
+	
+	/** Updates the treemap layout and image away from the Swing event thread. The new layout and image are swapped
+	 *  into the panel together on the event thread once complete. The update is abandoned at the next opportunity
+	 *  if it has been superseded by a later request, in which case the later request completes its work.
+	 */
+	private class BackgroundUpdate implements Runnable
+	{
+		static final int DATA   = 0;	// Types of update in order of the amount of work needed.
+		static final int LAYOUT = 1;
+		static final int IMAGE  = 2;
+
+		private int type;				// Type of update to perform.
+		private int request;			// Request number used to detect when this update is stale.
+		private CancellationToken token;// Cancelled when this update is superseded.
+
+		/** Sets up the update.
+		 *  @param type Type of update to perform.
+		 *  @param request Request number identifying this update.
+		 *  @param token Token that is cancelled when this update is superseded.
+		 */
+		public BackgroundUpdate(int type, int request, CancellationToken token)
+		{
+			this.type = type;
+			this.request = request;
+			this.token = token;
+		}
+
+		/** Performs the update, swapping the new layout and image into the panel if the update is still current.
+		 *  The tree is only locked while it is laid out, so other updates are not held up by the rendering.
+		 */
+		public void run()
+		{
+			final NodePanelLayout newLayout;
+			synchronized (updateLock)
+			{
+				// Include any work left incomplete by updates that were abandoned.
+				pendingUpdate = Math.min(pendingUpdate, type);
+				if (isStale())
+				{
+					return;
+				}
+
+				if (pendingUpdate <= LAYOUT)
+				{
+					ProgressListener listener = treeMappa.getProgressListener();
+					CancellationToken buildToken = treeMappa.getCancellationToken();
+					treeMappa.setProgressListener(new UpdateProgress(listener));
+					treeMappa.setCancellationToken(token);
+					try
+					{
+						treeMappa.buildTreeMap();
+					}
+					finally
+					{
+						treeMappa.setProgressListener(listener);
+						treeMappa.setCancellationToken(buildToken);
+					}
+					if (isStale())
+					{
+						// The build may have been cancelled, so the tree will be laid out by the later update.
+						return;
+					}
+
+					// Panels are always refreshed once the tree has been laid out so they remain consistent with it.
+					// The displayed layout is never reused, so it is unchanged until it is replaced.
+					showProgress(BuildPhase.PANELS+".", Integer.MAX_VALUE);
+					builtLayout = refreshPanels();
+					pendingUpdate = IMAGE;
+				}
+				newLayout = builtLayout;
+				newLayout.acquire();
+			}
+			final BufferedImage newImg;
+			try
+			{
+				if (isStale())
+				{
+					return;
+				}
+
+				// The layout is in use so cannot be changed, and can be rendered without holding the lock.
+				showProgress(BuildPhase.RENDER+".", Integer.MAX_VALUE);
+				newImg = renderImage(newLayout);
+			}
+			finally
+			{
+				newLayout.release();
+			}
+
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					if (displayUpdate(request, newLayout, newImg))
+					{
+						showProgress("Treemap updated.", Integer.MAX_VALUE);
+						repaint();
+					}
+				}
+			});
+		}
+
+		/** Reports whether this update has been superseded by a later one or cancelled.
+		 *  @return True if this update is no longer needed.
+		 */
+		private boolean isStale()
+		{
+			return request != updateRequest.get();
+		}
+	}
+
+	/** Reports the progress of a background build in the status bar of the progress frame.
+	 */
+	private class UpdateProgress implements ProgressListener
+	{
+		private ProgressListener listener;	// Listener set by the treemap's owner, also to be informed (or null).
+
+		/** Sets up the progress reporting.
+		 *  @param listener Existing listener also to be informed of progress, or null if none.
+		 */
+		public UpdateProgress(ProgressListener listener)
+		{
+			this.listener = listener;
+		}
+
+		/** Shows the progress made in the given phase of the build.
+		 *  @param phase Phase of treemap creation being reported.
+		 *  @param done Amount of work completed so far in this phase.
+		 *  @param total Total amount of work in this phase, or -1 if not known.
+		 */
+		public void progressMade(BuildPhase phase, long done, long total)
+		{
+			if (total > 0)
+			{
+				showProgress(phase+".", (int)Math.min(100, (100*done)/total));
+			}
+			else
+			{
+				showProgress(phase+".", Integer.MAX_VALUE);
+			}
+
+			if (listener != null)
+			{
+				listener.progressMade(phase, done, total);
+			}
+		}
+	}
+
+	/** Renders and writes a single column of map tiles at a given zoom level.
+	 */
+	private class TileColumnWriter implements Callable<int[]>
+	{
+		private NodePanelLayout layout;	// Layout of the node panels to draw.
+		private File tileDir;		// Root folder of the tile pyramid.
+		private int z,x;			// Zoom level and column of tiles to write.
+		private double scale;		// Scaling from natural treemap pixels to tile pixels.
+		
+		/** Sets up the writer for the given column of tiles.
+		 *  @param layout Layout of the node panels to draw.
+		 *  @param tileDir Root folder of the tile pyramid.
+		 *  @param z Zoom level of the tiles.
+		 *  @param x Column number of the tiles.
+		 *  @param scale Scaling from natural treemap pixels to tile pixels at this zoom level.
+		 */
+		public TileColumnWriter(NodePanelLayout layout, File tileDir, int z, int x, double scale)
+		{
+			this.layout = layout;
+			this.tileDir = tileDir;
+			this.z = z;
+			this.x = x;
+			this.scale = scale;
+		}
+		
+		/** Renders and writes each non-empty tile in the column that has not already been written.
+		 *  @return Number of tiles written and number of tiles already present, or null if a problem occurred.
+		 */
+		public int[] call()
+		{
+			int numWritten = 0;
+			int numSkipped = 0;
+			int numRows = (int)Math.ceil(screenImg.getHeight()*scale/TILE_SIZE);
+			File colDir = new File(tileDir, z+File.separator+x);
+			BufferedImage tileImg = null;
+			
+			for (int y=0; y<numRows; y++)
+			{
+				if (Thread.currentThread().isInterrupted())
+				{
+					return null;
+				}
+				
+				File tileFile = new File(colDir, y+".png");
+				if (tileFile.exists())
+				{
+					// Already written by a previous (possibly interrupted) export.
+					numSkipped++;
+					continue;
+				}
+				
+				// Find the part of the treemap covered by this tile in natural pixel coordinates.
+				Rectangle2D region = new Rectangle2D.Double(x*TILE_SIZE/scale, y*TILE_SIZE/scale, TILE_SIZE/scale, TILE_SIZE/scale);
+				Rectangle2D extent = region.createIntersection(new Rectangle2D.Double(0,0,screenImg.getWidth(),screenImg.getHeight()));
+				
+				if (tileImg == null)
+				{
+					tileImg = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+				}
+				Graphics2D g = tileImg.createGraphics();
+				g.setComposite(AlphaComposite.Clear);
+				g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+				g.setComposite(AlphaComposite.SrcOver);
+				g.scale(scale, scale);
+				g.translate(-region.getX(), -region.getY());
+				g.setColor(Color.WHITE);
+				g.fill(extent);
+				int numDrawn = drawTreeMap(layout,g,region);
+				g.dispose();
+				
+				if (numDrawn == 0)
+				{
+					// Empty tiles are not stored.
+					continue;
+				}
+				
+				if ((colDir.exists() == false) && (colDir.mkdirs() == false) && (colDir.exists() == false))
+				{
+					System.err.println("Cannot create tile folder '"+colDir+"'");
+					return null;
+				}
+				
+				// Write to a temporary file first so an interrupted write is never mistaken for a complete tile.
+				File tmpFile = new File(colDir, y+".png.tmp");
+				try
+				{
+					if ((ImageIO.write(tileImg, "png", tmpFile) == false) || (tmpFile.renameTo(tileFile) == false))
+					{
+						System.err.println("Problem writing tile '"+tileFile+"'");
+						return null;
+					}
+				}
+				catch (IOException e)
+				{
+					System.err.println("Problem writing tile '"+tileFile+"'");
+					return null;
+				}
+				numWritten++;
+				treeMappa.countBytesWritten("tile", tileFile);
+			}
+			return new int[] {numWritten, numSkipped};
+		}
+	}
 }
\ No newline at end of file
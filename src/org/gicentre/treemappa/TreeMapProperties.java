@@ -36,7 +36,13 @@ public class TreeMapProperties
 	static final String BORDER_WEIGHT		= "borderWeight";
 	static final String BRANCH_ALIGN_X      = "branchAlignX";
 	static final String BRANCH_ALIGN_Y      = "branchAlignY";
+	static final String BRANCH_FIELDS		= "branchFields";
+	static final String COLOUR_FIELD		= "colourField";
 	static final String COLOUR_TABLE		= "cTable";
+	static final String COMPRESSION_LEVEL	= "compressionLevel";
+	static final String COMPRESSION_THREADS	= "compressionThreads";
+	static final String COORD_ORDER			= "coordOrder";
+	static final String COORD_PRECISION		= "coordPrecision";
 	static final String CURVE_RADIUS		= "curveRadius";
 	static final String FILE_TYPE			= "type";
 	static final String HEIGHT				= "height";
@@ -45,6 +51,7 @@ public class TreeMapProperties
 	static final String IN_FILE 			= "inFile";
 	static final String LOAD_CONFIG			= "loadConfig";			// Not stored in a properties file.
 	static final String LABEL_BRANCHES		= "labelBranches";
+	static final String LABEL_FIELD			= "labelField";
 	static final String LABEL_LEAVES		= "labelLeaves";
 	static final String LAYOUT	 			= "layout";
 	static final String LEAF_ALIGN_X        = "leafAlignX";
@@ -56,8 +63,11 @@ public class TreeMapProperties
 	static final String LEAF_VECTOR_WIDTH	= "leafVectorWidth";
 	static final String MAX_BRANCH_TEXT		= "maxBranchText";
 	static final String MAX_LEAF_TEXT		= "maxLeafText";
+	static final String MIN_VECTOR_LENGTH	= "minVectorLength";
 	static final String MUTATION 			= "mutation";	
+	static final String ORDER_FIELD			= "orderField";
 	static final String OUT_FILE 			= "outFile";
+	static final String OUT_FORMAT			= "outFormat";
 	static final String RAND_COLOUR_LEVEL	= "randColourLevel";
 	static final String SAVE_CONFIG			= "saveConfig";
 	static final String SEED	 			= "seed";
@@ -67,6 +77,8 @@ public class TreeMapProperties
 	static final String SHOW_LEAF_DISP		= "showLeafDisplacement";
 	static final String SHOW_STATISTICS		= "statistics";
 	static final String SHOW_TREE_VIEW		= "showTreeView";
+	static final String SIZE_FIELD			= "sizeField";
+	static final String SPATIAL_INDEX		= "spatialIndex";
 	static final String TEXT_COLOUR			= "textColour";
 	static final String TEXT_FONT			= "textFont";
 	static final String TEXT_ONLY			= "textOnly";
@@ -120,16 +132,26 @@ public class TreeMapProperties
 		else if (key.equalsIgnoreCase(FILE_TYPE))
 		{
 			if ((value.equalsIgnoreCase("csv")) || (value.equalsIgnoreCase("csvcompact")) || (value.equalsIgnoreCase("csvspatial"))	||
-					(value.equalsIgnoreCase("treeml")))
+					(value.equalsIgnoreCase("treeml")) || (value.equalsIgnoreCase("shapefile")))
 			{
 				properties.setProperty(key.toLowerCase(), value);
 			}
 			else
 			{
-				System.err.println("Invalid option for '"+key+"' ("+value+"). Valid options are 'csv', 'csvCompact' 'csvSpatial' or 'treeML'.");
+				System.err.println("Invalid option for '"+key+"' ("+value+"). Valid options are 'csv', 'csvCompact' 'csvSpatial', 'treeML' or 'shapefile'.");
 				return false;
 			}
 		}
+		else if ((key.equalsIgnoreCase(LABEL_FIELD)) || (key.equalsIgnoreCase(SIZE_FIELD)) || (key.equalsIgnoreCase(COLOUR_FIELD)) || 
+				 (key.equalsIgnoreCase(ORDER_FIELD)) || (key.equalsIgnoreCase(BRANCH_FIELDS)))
+		{
+			if ((value == null) || (value.trim().length()==0))
+			{
+				System.err.println("'"+key+"' must be the name of at least one attribute field");
+				return false;
+			}
+			properties.setProperty(key.toLowerCase(), value.trim());
+		}
 		else if (key.toLowerCase().startsWith(LAYOUT.toLowerCase()))
 		{
 			String levelKey = checkLevel(LAYOUT,key);
@@ -173,6 +195,7 @@ public class TreeMapProperties
 				 (key.equalsIgnoreCase(LABEL_LEAVES)) || (key.equalsIgnoreCase(LABEL_BRANCHES)) ||
 				 (key.equalsIgnoreCase(SHOW_LEAF_DISP)) || (key.equalsIgnoreCase(SHOW_ARROW_HEAD)) ||
 				 (key.equalsIgnoreCase(SHOW_STATISTICS)) || (key.equalsIgnoreCase(SHOW_TREE_VIEW)) ||
+				 (key.equalsIgnoreCase(SPATIAL_INDEX)) ||
 				 (key.equalsIgnoreCase(TEXT_ONLY)) || (key.equalsIgnoreCase(VERBOSE)))
 		{
 			if ((value.equalsIgnoreCase("true")) || (value.equalsIgnoreCase("false")))
@@ -241,6 +264,84 @@ public class TreeMapProperties
 			}
 			properties.setProperty(key.toLowerCase(), value);
 		}
+		else if (key.equalsIgnoreCase(COMPRESSION_LEVEL))
+		{
+			try
+			{
+				int level = Integer.parseInt(value);
+				if ((level < -1) || (level > 9))
+				{
+					System.err.println("'"+key+"' must be between 0 and 9 (or -1 for default), but "+level+" was given.");
+					return false;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Cannot extract numeric value '"+value+"' from  ' "+key+"'.");
+				return false;
+			}
+			properties.setProperty(key.toLowerCase(), value);
+		}
+		else if (key.equalsIgnoreCase(COMPRESSION_THREADS))
+		{
+			try
+			{
+				int numThreads = Integer.parseInt(value);
+				if (numThreads < 0)
+				{
+					System.err.println("'"+key+"' must be at least 0, but "+numThreads+" was given.");
+					return false;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Cannot extract numeric value '"+value+"' from  ' "+key+"'.");
+				return false;
+			}
+			properties.setProperty(key.toLowerCase(), value);
+		}
+		else if (key.equalsIgnoreCase(COORD_PRECISION))
+		{
+			try
+			{
+				int precision = Integer.parseInt(value);
+				if ((precision < 0) || (precision > 15))
+				{
+					System.err.println("'"+key+"' must be between 0 and 15, but "+precision+" was given.");
+					return false;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Cannot extract numeric value '"+value+"' from  ' "+key+"'.");
+				return false;
+			}
+			properties.setProperty(key.toLowerCase(), value);
+		}
+		else if (key.equalsIgnoreCase(OUT_FORMAT))
+		{
+			if ((value.equalsIgnoreCase("text")) || (value.equalsIgnoreCase("auto")))
+			{
+				properties.setProperty(key.toLowerCase(), value);
+			}
+			else
+			{
+				System.err.println("Invalid option for '"+key+"' ("+value+"). Valid options are 'text' or 'auto'.");
+				return false;
+			}
+		}
+		else if (key.equalsIgnoreCase(COORD_ORDER))
+		{
+			if ((value.equalsIgnoreCase("breadthFirst")) || (value.equalsIgnoreCase("depthFirst")))
+			{
+				properties.setProperty(key.toLowerCase(), value);
+			}
+			else
+			{
+				System.err.println("Invalid option for '"+key+"' ("+value+"). Valid options are 'breadthFirst' or 'depthFirst'.");
+				return false;
+			}
+		}
 		else if (key.equalsIgnoreCase(MUTATION))
 		{
 			try
@@ -261,7 +362,7 @@ public class TreeMapProperties
 		}
 		else if ((key.equalsIgnoreCase(WIDTH)) || (key.equalsIgnoreCase(HEIGHT)) || 
 				 (key.equalsIgnoreCase(MAX_LEAF_TEXT)) || (key.equalsIgnoreCase(LEAF_VECTOR_WIDTH)) ||
-				 (key.equalsIgnoreCase(LEAF_BORDER_WEIGHT)) || 
+				 (key.equalsIgnoreCase(LEAF_BORDER_WEIGHT)) || (key.equalsIgnoreCase(MIN_VECTOR_LENGTH)) || 
 				 (key.equalsIgnoreCase(CURVE_RADIUS)))
 		{
 			try
@@ -559,6 +660,14 @@ public class TreeMapProperties
 		return Boolean.parseBoolean(properties.getProperty(VERBOSE.toLowerCase()));
 	}
 
+	/** Reports whether or not a spatial index is to be written with shapefile output.
+	 *  @return True if a spatial index is to be written with shapefile output.
+	 */
+	public boolean getSpatialIndex()
+	{
+		return Boolean.parseBoolean(properties.getProperty(SPATIAL_INDEX.toLowerCase()));
+	}
+
 	/** Reports whether or not treemap statistics are to be reported.
 	 *  @return True if treemap statistics are to be reported.
 	 */
@@ -623,6 +732,38 @@ public class TreeMapProperties
 		return Integer.parseInt(properties.getProperty(RAND_COLOUR_LEVEL.toLowerCase()));
 	}
 
+	/** Provides the compression level used when writing compressed output such as PNG and SVGZ files.
+	 *  @return Compression level between 0 (none) and 9 (maximum) or -1 for the default level.
+	 */
+	public int getCompressionLevel()
+	{
+		return Integer.parseInt(properties.getProperty(COMPRESSION_LEVEL.toLowerCase()));
+	}
+
+	/** Provides the number of threads used to compress output such as PNG and SVGZ files.
+	 *  @return Number of compression threads or 0 if all available processors are to be used.
+	 */
+	public int getCompressionThreads()
+	{
+		return Integer.parseInt(properties.getProperty(COMPRESSION_THREADS.toLowerCase()));
+	}
+
+	/** Provides the number of decimal places used when writing treemap coordinates as CSV.
+	 *  @return Number of decimal places between 0 and 15.
+	 */
+	public int getCoordPrecision()
+	{
+		return Integer.parseInt(properties.getProperty(COORD_PRECISION.toLowerCase()));
+	}
+
+	/** Reports whether treemap nodes written as CSV are written in depth-first rather than breadth-first order.
+	 *  @return True if nodes are written in depth-first order.
+	 */
+	public boolean getCoordDepthFirst()
+	{
+		return properties.getProperty(COORD_ORDER.toLowerCase()).equalsIgnoreCase("depthFirst");
+	}
+
 	/** Provides the random seed when using an evolutionary colour scheme. If the seed is not zero, the same
 	 *  random colours will be used on subsequent renderings of the same treemap data. The particular colours
 	 *  will be dependent on that seed value. If zero, a different random sequence is used each time.
@@ -730,6 +871,14 @@ public class TreeMapProperties
 		return Float.parseFloat(properties.getProperty(LEAF_VECTOR_WIDTH.toLowerCase()));
 	}
 
+	/** Provides the length in pixels below which displacement vectors are not drawn.
+	 *  @return Minimum displacement vector length in pixels, or 0 if all vectors are drawn.
+	 */
+	public float getMinVectorLength()
+	{
+		return Float.parseFloat(properties.getProperty(MIN_VECTOR_LENGTH.toLowerCase()));
+	}
+
 	/** Provides the maximum leaf text size pixels.
 	 *  @return Maximum leaf text size in pixels.
 	 */
@@ -778,6 +927,57 @@ public class TreeMapProperties
 		return properties.getProperty(IN_FILE.toLowerCase());
 	}
 
+	/** Provides the name of the shapefile attribute used to label leaf nodes.
+	 *  @return Name of label attribute, or null if leaves are labelled with their record number.
+	 */
+	public String getLabelField()
+	{
+		return properties.getProperty(LABEL_FIELD.toLowerCase());
+	}
+
+	/** Provides the name of the shapefile attribute used to size leaf nodes.
+	 *  @return Name of size attribute, or null if all leaves have the same size.
+	 */
+	public String getSizeField()
+	{
+		return properties.getProperty(SIZE_FIELD.toLowerCase());
+	}
+
+	/** Provides the name of the shapefile attribute used to colour leaf nodes.
+	 *  @return Name of colour attribute, or null if leaves are not coloured by attribute.
+	 */
+	public String getColourField()
+	{
+		return properties.getProperty(COLOUR_FIELD.toLowerCase());
+	}
+
+	/** Provides the name of the shapefile attribute used to order nodes.
+	 *  @return Name of order attribute, or null if nodes are not ordered by attribute.
+	 */
+	public String getOrderField()
+	{
+		return properties.getProperty(ORDER_FIELD.toLowerCase());
+	}
+
+	/** Provides the names of the shapefile attributes that define the branches of the hierarchy, starting with the
+	 *  branches closest to the root.
+	 *  @return Names of the branch attributes, or an empty array if all leaves are children of the root.
+	 */
+	public String[] getBranchFields()
+	{
+		String fields = properties.getProperty(BRANCH_FIELDS.toLowerCase());
+		if (fields == null)
+		{
+			return new String[0];
+		}
+		String[] names = fields.split(",");
+		for (int i=0; i<names.length; i++)
+		{
+			names[i] = names[i].trim();
+		}
+		return names;
+	}
+
 	/** Provides the name of the file used for treemap coordinate output.
 	 *  @return Name of file used for coordinates output or null if not defined.
 	 */
@@ -786,6 +986,18 @@ public class TreeMapProperties
 		return properties.getProperty(OUT_FILE.toLowerCase());
 	}
 
+	/** Reports whether the format of the output file is chosen from its extension. If so, names ending in
+	 *  <code>.fgb</code>, <code>.geojson</code>, <code>.json</code>, <code>.arrow</code>, <code>.feather</code>,
+	 *  <code>.csv</code> and <code>.csv.gz</code> are written in those formats. Otherwise they are written in the
+	 *  original text format holding the label and coordinates of each node. Shapefiles are always written to
+	 *  names ending in <code>.shp</code>.
+	 *  @return True if the output format is chosen from the file extension.
+	 */
+	public boolean getAutoOutFormat()
+	{
+		return properties.getProperty(OUT_FORMAT.toLowerCase()).equalsIgnoreCase("auto");
+	}
+
 	/** Provides the name of the file used for image output.
 	 *  @return Name of file used for image output or null if not defined.
 	 */
@@ -945,6 +1157,10 @@ public class TreeMapProperties
 		properties.setProperty(BORDER_COLOUR.toLowerCase(),"#000000");
 		properties.setProperty(BRANCH_ALIGN_X.toLowerCase(),"CENTER");
 		properties.setProperty(BRANCH_ALIGN_Y.toLowerCase(),"CENTER");
+		properties.setProperty(COMPRESSION_LEVEL.toLowerCase(),"-1");
+		properties.setProperty(COMPRESSION_THREADS.toLowerCase(),"0");
+		properties.setProperty(COORD_ORDER.toLowerCase(),"breadthFirst");
+		properties.setProperty(COORD_PRECISION.toLowerCase(),"2");
 		properties.setProperty(CURVE_RADIUS.toLowerCase(),"0");
 		properties.setProperty(HEIGHT.toLowerCase(),"400");
 		properties.setProperty(LABEL_BRANCHES.toLowerCase(),"false");
@@ -960,7 +1176,9 @@ public class TreeMapProperties
 		properties.setProperty(LEAF_VECTOR_WIDTH.toLowerCase(),"0.3");
 		properties.setProperty(MAX_BRANCH_TEXT.toLowerCase(),"0");		
 		properties.setProperty(MAX_LEAF_TEXT.toLowerCase(),"8");
+		properties.setProperty(MIN_VECTOR_LENGTH.toLowerCase(),"0");
 		properties.setProperty(MUTATION.toLowerCase(),"0.2");
+		properties.setProperty(OUT_FORMAT.toLowerCase(),"text");
 		properties.setProperty(RAND_COLOUR_LEVEL.toLowerCase(),"1");
 		properties.setProperty(SEED.toLowerCase(),"0");		
 		properties.setProperty(SHOW_ARROW_HEAD.toLowerCase(),"false");
@@ -968,6 +1186,7 @@ public class TreeMapProperties
 		properties.setProperty(SHOW_LEAF_DISP.toLowerCase(),"false");
 		properties.setProperty(SHOW_STATISTICS.toLowerCase(),"false");
 		properties.setProperty(SHOW_TREE_VIEW.toLowerCase(),"false");
+		properties.setProperty(SPATIAL_INDEX.toLowerCase(),"false");
 		properties.setProperty(TEXT_FONT.toLowerCase(),"SanSerif");
 		properties.setProperty(TEXT_ONLY.toLowerCase(),"false");
 		properties.setProperty(TEXT_COLOUR.toLowerCase(),"#00000064");
@@ -987,15 +1206,22 @@ public class TreeMapProperties
 		help.put(BORDER_COLOUR,      new Help(BORDER_COLOUR,     false, new String[]{"#rrggbb_hex_string"},"Sets the colour of branch borders."));
 		help.put(BORDER_WEIGHT,      new Help(BORDER_WEIGHT,     true,  new String[]{"num_pixels"},"Sets the border thickness for any level in the hierarchy."));
 		help.put(BRANCH_ALIGN_X,     new Help(BRANCH_ALIGN_X,    false, new String[]{"LEFT","CENTER","RIGHT"},"Sets the branch label justification in the horizontal direction."));
+		help.put(BRANCH_FIELDS,      new Help(BRANCH_FIELDS,     false, new String[]{"field_name,field_name..."},"Sets the shapefile attributes that define the branches of the hierarchy, starting nearest the root."));
 		help.put(BRANCH_ALIGN_Y,     new Help(BRANCH_ALIGN_Y,    false, new String[]{"TOP","CENTER","BOTTOM"},"Sets the branch label justification in the vertical direction."));
+		help.put(COLOUR_FIELD,       new Help(COLOUR_FIELD,      false, new String[]{"field_name"},"Sets the shapefile attribute used to colour leaves."));
 		help.put(COLOUR_TABLE,       new Help(COLOUR_TABLE,      false, new String[]{"file_name"},"Determines the colour table file to use to match colour codes to leaf colours."));
+		help.put(COMPRESSION_LEVEL,  new Help(COMPRESSION_LEVEL, false, new String[]{"0-9"},"Sets the compression level of PNG, SVGZ and .csv.gz output (-1 for default)."));
+		help.put(COMPRESSION_THREADS,new Help(COMPRESSION_THREADS,false,new String[]{"num_threads"},"Sets the number of threads used to compress PNG, SVGZ and .csv.gz output (0 for all processors)."));
+		help.put(COORD_ORDER,        new Help(COORD_ORDER,       false, new String[]{"breadthFirst","depthFirst"},"Sets the order in which nodes are written to .csv and .csv.gz output files when outFormat is auto."));
+		help.put(COORD_PRECISION,    new Help(COORD_PRECISION,   false, new String[]{"0-15"},"Sets the number of decimal places of coordinates written to .csv and .csv.gz output files when outFormat is auto."));
 		help.put(CURVE_RADIUS,       new Help(CURVE_RADIUS,      false, new String[]{"num_pixels"},"Sets the radius of curvature for rectangle corners."));
-		help.put(FILE_TYPE,          new Help(FILE_TYPE,         false, new String[]{"csv","csvCompact","csvSpatial","treeML"},"Indicates the file format of the tree file to be read."));
+		help.put(FILE_TYPE,          new Help(FILE_TYPE,         false, new String[]{"csv","csvCompact","csvSpatial","treeML","shapefile"},"Indicates the file format of the tree file to be read (files ending in .shp are always read as shapefiles)."));
 		help.put(HEIGHT,             new Help(HEIGHT,            false, new String[]{"num_pixels"},"Sets the vertical size of the treemap."));
 		help.put(HELP,               new Help(HELP   ,           false, null, "Displays a help message listing all command line parameters."));
 		help.put(IMAGE_FILE,         new Help(IMAGE_FILE,        false, new String[]{"file_name"},"Saves an image file with the given name showing the treemap."));
 		help.put(IN_FILE,            new Help(IN_FILE,           false, new String[]{"file_name"},"Determines the name of the tree file to read."));
 		help.put(LABEL_BRANCHES,     new Help(LABEL_BRANCHES,    false, new String[]{"true","false"},"Determins whether branches are to be labelled."));
+		help.put(LABEL_FIELD,        new Help(LABEL_FIELD,       false, new String[]{"field_name"},"Sets the shapefile attribute used to label leaves (record number if not given)."));
 		help.put(LABEL_LEAVES,       new Help(LABEL_LEAVES,      false, new String[]{"true","false"},"Determines whether leaves are to be labelled."));
 		help.put(LAYOUT,             new Help(LAYOUT,            true,  new String[]{"squarified","orderedSquarified","spatial","sliceAndDice","strip","pivotSize","pivotMiddle","pivotSplit","pivotSpace","morton"},"Determines the layout type for any level in the hierarchy"));
 		help.put(LEAF_ALIGN_X,       new Help(LEAF_ALIGN_X,      false, new String[]{"LEFT","CENTER","RIGHT"},"Sets the leaf label justification in the horizontal direction."));
@@ -1008,8 +1234,11 @@ public class TreeMapProperties
 		help.put(LOAD_CONFIG,        new Help(LOAD_CONFIG,       false, new String[]{"file_name"},"Loads a configuration file containing treemap display configuration."));
 		help.put(MAX_BRANCH_TEXT,    new Help(MAX_BRANCH_TEXT,   true,  new String[]{"num_pixels"},"Sets the maximum text size for labels at any level in the hierarchy (or 0 for no maximum size)."));
 		help.put(MAX_LEAF_TEXT,      new Help(MAX_LEAF_TEXT,     false, new String[]{"num_pixels"},"Sets the maximum text size for leaf labels (or 0 for no maximum size)."));
+		help.put(MIN_VECTOR_LENGTH,  new Help(MIN_VECTOR_LENGTH, false, new String[]{"num_pixels"},"Sets the length below which displacement vectors are not drawn (or 0 to draw all vectors)."));
 		help.put(MUTATION,           new Help(MUTATION,          false, new String[]{"mutation_level"},"Sets the colour mutation level for evolutionary colour schemes (0-1)."));
-		help.put(OUT_FILE,           new Help(OUT_FILE,          false, new String[]{"file_name"},"Determines the name and format of an output file representing the treemap."));
+		help.put(ORDER_FIELD,        new Help(ORDER_FIELD,       false, new String[]{"field_name"},"Sets the shapefile attribute used to order nodes."));
+		help.put(OUT_FILE,           new Help(OUT_FILE,          false, new String[]{"file_name"},"Determines the name of an output file representing the treemap (written as a shapefile if ending in .shp, otherwise according to outFormat)."));
+		help.put(OUT_FORMAT,         new Help(OUT_FORMAT,        false, new String[]{"text","auto"},"Determines whether output files other than shapefiles are written as text, or in a format chosen from their extension (.fgb, .geojson, .json, .arrow, .feather, .csv or .csv.gz)."));
 		help.put(RAND_COLOUR_LEVEL,  new Help(RAND_COLOUR_LEVEL, false, new String[]{"hierarchy_level"},"Hierarchy level above and at which random colours are assigned when using evolutionary colour table."));
 		help.put(SAVE_CONFIG, 		 new Help(SAVE_CONFIG,       false, new String[]{"file_name"},"Saves a configuration file with the given name."));
 		help.put(SEED,               new Help(SEED,              false, new String[]{"seed_value"},"Sets a seed for the random evolutionary colour generator."));
@@ -1018,7 +1247,9 @@ public class TreeMapProperties
 		help.put(SHOW_LEAF_BORDER,   new Help(SHOW_LEAF_BORDER,  false, new String[]{"true","false"},"Determines whether or not leaves are shown with a border."));
 		help.put(SHOW_LEAF_DISP,     new Help(SHOW_LEAF_DISP,    false, new String[]{"true","false"},"Determines whether or not leaf displacement vector lines are shown."));
 		help.put(SHOW_STATISTICS,    new Help(SHOW_STATISTICS,   false, new String[]{"true","false"},"Determines whether or not statistics are reported when calculating treemap layout."));
+		help.put(SIZE_FIELD,         new Help(SIZE_FIELD,        false, new String[]{"field_name"},"Sets the shapefile attribute used to size leaves (equal sizes if not given)."));
 		help.put(SHOW_TREE_VIEW,     new Help(SHOW_TREE_VIEW,    false, new String[]{"true","false"},"Determines whether or not a conventional tree view of the hierarhcy is shown."));
+		help.put(SPATIAL_INDEX,      new Help(SPATIAL_INDEX,     false, new String[]{"true","false"},"Determines whether or not a quadtree spatial index (.qix) is written with shapefile output."));
 		help.put(TEXT_COLOUR,        new Help(TEXT_COLOUR,       true,  new String[]{"#rrggbb_hex_string"},"Sets the label text colour for any given level in the hierarchy."));
 		help.put(TEXT_FONT, 		 new Help(TEXT_FONT,		 true,  new String[]{"font_name"},"Sets the name of the font to use for displaying labels at any given level in the hierarchy."));
 		help.put(TEXT_ONLY, 		 new Help(TEXT_ONLY,		 false, new String[]{"true","false"},"Determines if only text output is generated."));
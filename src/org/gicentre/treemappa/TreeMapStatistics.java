@@ -0,0 +1,174 @@
+package org.gicentre.treemappa;
+
+import java.text.DecimalFormat;
+
+//  ***********************************************************************
+/** Summary statistics describing the quality of a treemap layout. These include the mean aspect
+ *  ratio of nodes, the readability of the ordering of leaves, the correlation between leaf order and
+ *  position and, for spatial layouts, the displacement of nodes from their geographic positions.
+ *  Statistics can be calculated by calling <code>TreeMappa.getStatistics()</code>.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */ 
+//  ***********************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class TreeMapStatistics
+{
+	// ------------------ Class and object variables --------------------
+
+	private int numNodes;					// Number of displayable nodes.
+	private int treeDepth;					// Number of levels in the tree.
+	private double meanAspectRatio;
+	private int numAdjacentLeaves;			// Number of leaves used to measure readability.
+	private double readability;
+	private boolean isSpatial;				// True if any level uses a spatial layout.
+	private double distDisplacement;
+	private double angDisplacement;
+	private double orderDistanceRSq;
+
+	// ------------------------- Constructor ----------------------------
+
+	/** Stores a set of treemap statistics.
+	 *  @param numNodes Number of displayable nodes.
+	 *  @param treeDepth Number of levels in the tree.
+	 *  @param meanAspectRatio Mean aspect ratio of displayable nodes.
+	 *  @param numAdjacentLeaves Number of leaves used to measure readability.
+	 *  @param readability Readability of the leaf ordering, or NaN if not measurable.
+	 *  @param isSpatial True if any level of the tree uses a spatial layout.
+	 *  @param distDisplacement Mean distance displacement, or NaN if not a spatial layout.
+	 *  @param angDisplacement Mean angular displacement in degrees, or NaN if not a spatial layout.
+	 *  @param orderDistanceRSq R-squared of the order-distance relationship, or NaN if not measurable.
+	 */
+	TreeMapStatistics(int numNodes, int treeDepth, double meanAspectRatio, int numAdjacentLeaves, double readability,
+			          boolean isSpatial, double distDisplacement, double angDisplacement, double orderDistanceRSq)
+	{
+		this.numNodes = numNodes;
+		this.treeDepth = treeDepth;
+		this.meanAspectRatio = meanAspectRatio;
+		this.numAdjacentLeaves = numAdjacentLeaves;
+		this.readability = readability;
+		this.isSpatial = isSpatial;
+		this.distDisplacement = distDisplacement;
+		this.angDisplacement = angDisplacement;
+		this.orderDistanceRSq = orderDistanceRSq;
+	}
+
+	// ---------------------------- Methods -----------------------------
+
+	/** Reports the number of nodes large enough to be displayed, excluding the root node.
+	 *  @return Number of displayable nodes.
+	 */
+	public int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	/** Reports the number of levels in the tree, including the root level.
+	 *  @return Depth of the tree.
+	 */
+	public int getTreeDepth()
+	{
+		return treeDepth;
+	}
+
+	/** Reports the mean aspect ratio of the displayable nodes. An aspect ratio of 1 indicates a square node.
+	 *  @return Mean aspect ratio (longest side divided by shortest side).
+	 */
+	public double getMeanAspectRatio()
+	{
+		return meanAspectRatio;
+	}
+
+	/** Reports the number of leaves used to measure readability.
+	 *  @return Number of adjacent leaves considered.
+	 */
+	public int getNumAdjacentLeaves()
+	{
+		return numAdjacentLeaves;
+	}
+
+	/** Reports the readability of the layout. This is the proportion of consecutive sibling leaves that do 
+	 *  not change direction when read in order, so 1 indicates the most readable layout.
+	 *  @return Readability between 0 and 1, or NaN if there are not enough adjacent leaves to measure it.
+	 */
+	public double getReadability()
+	{
+		return readability;
+	}
+
+	/** Reports whether any level of the treemap uses a spatial layout.
+	 *  @return True if displacement statistics are available.
+	 */
+	public boolean isSpatial()
+	{
+		return isSpatial;
+	}
+
+	/** Reports the mean distance between each node and its geographic position, as a proportion of the 
+	 *  treemap's size.
+	 *  @return Mean distance displacement or NaN if the treemap does not use a spatial layout.
+	 */
+	public double getDistanceDisplacement()
+	{
+		return distDisplacement;
+	}
+
+	/** Reports the mean angular difference between the direction of siblings in the treemap and the direction
+	 *  of their geographic positions.
+	 *  @return Mean angular displacement in degrees, or NaN if the treemap does not use a spatial layout.
+	 */
+	public double getAngularDisplacement()
+	{
+		return angDisplacement;
+	}
+
+	/** Reports the R-squared value of the relationship between the order of leaves and their distance from the 
+	 *  top-left corner of the treemap.
+	 *  @return Order-distance R-squared, or NaN if the treemap uses a spatial layout or has too few leaves.
+	 */
+	public double getOrderDistanceRSquared()
+	{
+		return orderDistanceRSq;
+	}
+
+	/** Provides a textual summary of the statistics with one statistic per line.
+	 *  @return Summary of the statistics.
+	 */
+	@Override
+	public String toString()
+	{
+		DecimalFormat df = new DecimalFormat("#0.##");
+		StringBuilder summary = new StringBuilder();
+		summary.append("\tNumber of nodes:\t").append(numNodes).append('\n');
+		summary.append("\tMaximum tree depth:\t").append(treeDepth).append('\n');
+		summary.append("\tMean aspect ratio:\t").append(df.format(meanAspectRatio)).append('\n');
+		if (numAdjacentLeaves > 0)
+		{
+			summary.append("\tReadability:     \t").append(df.format(readability)).append('\n');
+		}
+		if (isSpatial)
+		{
+			summary.append("\tDistance displacement:\t").append(df.format(distDisplacement)).append('\n');
+			summary.append("\tAngular displacement:\t").append(df.format(angDisplacement)).append('\n');
+		}
+		else if (Double.isNaN(orderDistanceRSq) == false)
+		{
+			summary.append("\tOrder-distance R-sq:\t").append(df.format(orderDistanceRSq)).append('\n');
+		}
+		return summary.toString();
+	}
+}
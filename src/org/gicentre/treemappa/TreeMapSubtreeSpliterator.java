@@ -0,0 +1,236 @@
+package org.gicentre.treemappa;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+//****************************************************************************************************
+/** Traverses part of a tree map hierarchy either depth-first or breadth-first, splitting the traversal
+ *  between subtrees so that it may be shared between several threads. A depth-first traversal is split
+ *  so that each part precedes the remainder in pre-order, allowing ordered parallel streams. A breadth-first
+ *  traversal visits the subtrees held by each part breadth-first, but there is no overall order between parts.
+ *  @author Jo Wood, giCentre.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// ****************************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class TreeMapSubtreeSpliterator implements Spliterator<TreeMapNode>
+{
+	// --------------------------- Object variables -------------------------------
+
+	private TreeMapNode first;					// Node provided before the pending subtrees without its children (or null).
+	private ArrayDeque<TreeMapNode> pending;	// Roots of subtrees still to be traversed, next first.
+	private boolean depthFirst;					// Depth-first if true, breadth-first if false.
+	private long estimate;						// Estimated number of nodes still to be provided.
+	private TreeMapNode[] childBuffer;			// Workspace for copying a node's children.
+
+	// ----------------------------- Constructors ---------------------------------
+
+	/** Initialises the spliterator with the tree map node at the start of the traversal. The first
+	 *  item to be provided will be the first child of the given node.
+	 *  @param startNode Parent node from which to traverse the tree.
+	 *  @param depthFirst Traverses the tree depth-first if true or breadth-first if false.
+	 */
+	TreeMapSubtreeSpliterator(TreeMapNode startNode, boolean depthFirst)
+	{
+		// As the size of the tree is not known, the estimate is shared between parts on each split.
+		this(null, new ArrayDeque<TreeMapNode>(startNode.getChildren()), depthFirst, Long.MAX_VALUE);
+	}
+
+	/** Creates a spliterator over the given set of subtrees.
+	 *  @param first Node to provide before the subtrees without visiting its children, or null if none.
+	 *  @param pending Roots of the subtrees to traverse.
+	 *  @param depthFirst Traverses the tree depth-first if true or breadth-first if false.
+	 *  @param estimate Estimated number of nodes to be provided.
+	 */
+	private TreeMapSubtreeSpliterator(TreeMapNode first, ArrayDeque<TreeMapNode> pending, boolean depthFirst, long estimate)
+	{
+		this.first = first;
+		this.pending = pending;
+		this.depthFirst = depthFirst;
+		this.estimate = estimate;
+		this.childBuffer = new TreeMapNode[16];
+	}
+
+	// ------------------------------- Methods ------------------------------------
+
+	/** Provides the next node in the traversal to the given action if there are any left.
+	 *  @param action Action to perform on the next node.
+	 *  @return True if a node was provided, false if there are no more nodes to traverse.
+	 */
+	public boolean tryAdvance(Consumer<? super TreeMapNode> action)
+	{
+		if (action == null)
+		{
+			throw new NullPointerException("Null 'action' argument.");
+		}
+
+		TreeMapNode node = next();
+		if (node == null)
+		{
+			return false;
+		}
+		action.accept(node);
+		return true;
+	}
+
+	/** Provides all remaining nodes in the traversal to the given action.
+	 *  @param action Action to perform on each node.
+	 */
+	public void forEachRemaining(Consumer<? super TreeMapNode> action)
+	{
+		if (action == null)
+		{
+			throw new NullPointerException("Null 'action' argument.");
+		}
+
+		TreeMapNode node = next();
+		while (node != null)
+		{
+			action.accept(node);
+			node = next();
+		}
+	}
+
+	/** Splits off the subtrees at the start of the remaining traversal so they can be traversed separately.
+	 *  If only one subtree remains, its root is split off, leaving its children to be traversed by this spliterator.
+	 *  @return Spliterator covering the first part of the remaining traversal, or null if it cannot be split.
+	 */
+	public Spliterator<TreeMapNode> trySplit()
+	{
+		int numPending = pending.size();
+
+		if (numPending >= 2)
+		{
+			// Weight each subtree by the size of its root's family, as the full size of a subtree is not known.
+			long totalWeight = 0;
+			for (TreeMapNode root : pending)
+			{
+				totalWeight += 1 + root.getChildCount();
+			}
+
+			// Split off the first subtrees, up to about half the total weight, keeping at least one subtree.
+			ArrayDeque<TreeMapNode> prefix = new ArrayDeque<TreeMapNode>();
+			long prefixWeight = 0;
+			while (pending.size() > 1)
+			{
+				long weight = 1 + pending.peekFirst().getChildCount();
+				if ((prefix.isEmpty() == false) && (2*(prefixWeight+weight) > totalWeight+weight))
+				{
+					break;
+				}
+				prefix.addLast(pending.pollFirst());
+				prefixWeight += weight;
+			}
+
+			long prefixEstimate = Math.max(1, (long)(estimate*((double)prefixWeight/totalWeight)));
+			estimate = Math.max(1, estimate-prefixEstimate);
+			Spliterator<TreeMapNode> split = new TreeMapSubtreeSpliterator(first, prefix, depthFirst, prefixEstimate);
+			first = null;
+			return split;
+		}
+
+		if (first != null)
+		{
+			// Split off the single node that has to be provided first.
+			Spliterator<TreeMapNode> split = new TreeMapSubtreeSpliterator(first, new ArrayDeque<TreeMapNode>(0), depthFirst, 1);
+			first = null;
+			return split;
+		}
+
+		if ((numPending == 1) && (pending.peekFirst().isLeaf() == false))
+		{
+			// Split off the root of the only remaining subtree and keep its children.
+			TreeMapNode root = next();
+			return new TreeMapSubtreeSpliterator(root, new ArrayDeque<TreeMapNode>(0), depthFirst, 1);
+		}
+
+		return null;
+	}
+
+	/** Reports an estimate of the number of nodes still to be traversed. As the size of each subtree is
+	 *  not known without traversing it, the estimate is shared between the parts of each split in proportion
+	 *  to the number of children of the subtrees' roots.
+	 *  @return Estimated number of nodes still to be provided.
+	 */
+	public long estimateSize()
+	{
+		if ((first == null) && pending.isEmpty())
+		{
+			return 0;
+		}
+		return estimate;
+	}
+
+	/** Reports the characteristics of this spliterator. Each node is provided only once and is never null.
+	 *  Depth-first traversals are also ordered.
+	 *  @return Characteristics of this spliterator.
+	 */
+	public int characteristics()
+	{
+		if (depthFirst)
+		{
+			return ORDERED | DISTINCT | NONNULL;
+		}
+		return DISTINCT | NONNULL;
+	}
+
+	// ----------------------------- Private methods ------------------------------
+
+	/** Provides the next node in the traversal, adding its children to the subtrees to be traversed.
+	 *  @return Next node in the traversal or null if there are no more.
+	 */
+	private TreeMapNode next()
+	{
+		if (first != null)
+		{
+			TreeMapNode node = first;
+			first = null;
+			return node;
+		}
+
+		TreeMapNode node = pending.pollFirst();
+		if (node == null)
+		{
+			return null;
+		}
+
+		// Copy the children in one go rather than locking the (synchronized) list for each child.
+		List<TreeMapNode> children = node.getChildren();
+		int numChildren = children.size();
+		if (numChildren > 0)
+		{
+			childBuffer = children.toArray(childBuffer);
+			if (depthFirst)
+			{
+				for (int i=numChildren-1; i>=0; i--)
+				{
+					pending.addFirst(childBuffer[i]);
+				}
+			}
+			else
+			{
+				for (int i=0; i<numChildren; i++)
+				{
+					pending.addLast(childBuffer[i]);
+				}
+			}
+		}
+		return node;
+	}
+}
@@ -10,13 +10,23 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.Vector;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
 
+import org.gicentre.io.ArrowWriter;
+import org.gicentre.io.CoordinateWriter;
+import org.gicentre.io.DbaseFileReader;
+import org.gicentre.io.FlatGeobufWriter;
+import org.gicentre.io.GeoJSONWriter;
+import org.gicentre.io.ShapefileReader;
 import org.gicentre.io.ShapefileWriter;
 import org.gicentre.utils.colour.ColourTable;
 import org.gicentre.utils.io.DOMProcessor;
@@ -56,13 +66,10 @@ public class TreeMappa
 
 	private Rectangle2D m_r  = new Rectangle2D.Double();
 	private List<TreeMapNode>nodesToLayout;			// Children to be laid out in given node.
-	private Vector<OrderDistance> leafDistances;	// For R-squared calculation of order-distance relationship.
 
 	private double[] borderWidths;					// Width of border surrounding node in treemap.
 	private boolean allowLeafBorders;				// Determines if leaf nodes are to be drawn with borders.
 
-	private double aspectRatio,readability,distDisplacement,angDisplacement;
-	private int numNodes, numAdjacentLeaves, numSpatialNodes;
 	private double west,south,east,north;			// Geographic bounds of spatial layouts.
 
 	private Layout[] layoutTypes;
@@ -78,6 +85,15 @@ public class TreeMappa
 	private double targetAR = 1f;					// TODO: Replace this with an AR stored in node.
 
 	private TreeMapProperties props;				// Treemap configuration properties.
+
+	private static final int PROGRESS_INTERVAL = 1024;	// Number of items processed between progress reports.
+	private ProgressListener progressListener;		// Informed of progress while reading, building and writing (or null).
+	private CancellationToken cancellationToken;	// Checked for cancellation while reading, building and writing (or null).
+	private long progressCount;						// Number of items processed so far in the current phase.
+	private long progressTotal;						// Number of items to process in the current phase.
+	private PhaseTimings timings;					// Durations of each phase of treemap creation.
+	private MetricsRegistry metrics;				// Collects counts of work done while reading, building and writing.
+	private long numAspectRatioEvaluations;			// Number of aspect ratio evaluations in the current layout.
 	
 	// ------------------------- Constructor ----------------------------
 
@@ -94,6 +110,8 @@ public class TreeMappa
 		south =  Float.MAX_VALUE;
 		north = -Float.MAX_VALUE;
 		needsRebuild = true;
+		timings = new PhaseTimings();
+		metrics = new NullMetricsRegistry();
 	}
 
 	// ---------------------------------------- Methods ----------------------------------------
@@ -120,8 +138,18 @@ public class TreeMappa
 		{
 			System.out.println("Reading data.");
 		}
+		PhaseTimer timer = new PhaseTimer(BuildPhase.READ, timings);
 
-		if  (fileType.equalsIgnoreCase("treeml"))
+		if ((fileType.equalsIgnoreCase("shapefile")) || (inFileName.toLowerCase(Locale.ROOT).endsWith(".shp")))
+		{
+			if (readShapefile(inFileName) == false)
+			{
+				System.err.println("Problem reading shapefile.");
+				return false;
+			}
+			fileType = "shapefile";
+		}
+		else if  (fileType.equalsIgnoreCase("treeml"))
 		{
 			if (readTreeML(inFileName,useLabels) == false)
 			{
@@ -160,6 +188,7 @@ public class TreeMappa
 		}
 
 		// No problems if we get this far.
+		timer.stop(countNodes(), fileType);
 		needsRebuild = true;
 		return true;
 	}
@@ -189,6 +218,7 @@ public class TreeMappa
 		{
 			System.out.println("Reading data.");
 		}
+		PhaseTimer timer = new PhaseTimer(BuildPhase.READ, timings);
 
 		if  (fileType.equalsIgnoreCase("treeml"))
 		{
@@ -218,7 +248,7 @@ public class TreeMappa
 		}
 		else if (fileType.equalsIgnoreCase("csv"))
 		{
-			if (readCSV(bReader,useLabels,CSV) == false)
+			if (readCSV(bReader,useLabels,CSV,-1) == false)
 			{
 				System.err.println("Problem reading CSV file.");
 				try
@@ -234,7 +264,7 @@ public class TreeMappa
 		}
 		else if (fileType.equalsIgnoreCase("csvcompact"))
 		{
-			if (readCSV(bReader,useLabels,CSV_COMPACT) == false)
+			if (readCSV(bReader,useLabels,CSV_COMPACT,-1) == false)
 			{
 				System.err.println("Problem reading compact CSV file.");
 				try
@@ -250,7 +280,7 @@ public class TreeMappa
 		}
 		else if (fileType.equalsIgnoreCase("csvspatial"))
 		{
-			if (readCSV(bReader,useLabels,CSV_SPATIAL) == false)
+			if (readCSV(bReader,useLabels,CSV_SPATIAL,-1) == false)
 			{
 				System.err.println("Problem reading spatial CSV file.");
 				try
@@ -279,6 +309,7 @@ public class TreeMappa
 		}
 
 		// No problems if we get this far.
+		timer.stop(countNodes(), fileType);
 		needsRebuild = true;
 		try
 		{	
@@ -312,12 +343,22 @@ public class TreeMappa
 			return false;
 		}
 
+		// Count nodes so that progress through each phase can be reported.
+		progressTotal = countNodes();
+
 		// Ensure size values have be propagated up the entire tree and that nodes are sorted correctly.
-		root.resetAccumulation();	
+		PhaseTimer timer = new PhaseTimer(BuildPhase.SORT, timings);
+		root.updateAccumulation();
 		for (int i=0; i<=maxDepth; i++)
 		{
 			root.sortAtLevel(i);
+			reportProgress(BuildPhase.SORT, i+1, maxDepth+1);
+			if (isCancelled())
+			{
+				return cancelBuild();
+			}
 		}
+		timer.stop(progressTotal);
 
 		// Build the treeMap.
 		rootNode = (TreeMapNode)tree.getRoot();
@@ -335,25 +376,62 @@ public class TreeMappa
 		{
 			System.out.println("Computing areas.");
 		}
+		timer = new PhaseTimer(BuildPhase.AREA, timings);
 		rootNode.setRectangle(new Rectangle2D.Double(rootSize.getX(),rootSize.getY(),rootSize.getWidth(),rootSize.getHeight()));
 		m_r.setRect(rootSize.getX(),rootSize.getY(),rootSize.getWidth(),rootSize.getHeight()); 
 		rootNode.setArea(rootNode.getRectangle().getWidth()*rootNode.getRectangle().getHeight()); 
+		progressCount = 1;
 		computeAreas(rootNode);    
+		if (isCancelled())
+		{
+			return cancelBuild();
+		}
+		reportProgress(BuildPhase.AREA, progressTotal, progressTotal);
 		updateArea(root, m_r);
+		timer.stop(progressTotal);
 
 		if ((textOnly == false) && (isVerbose))
 		{
 			System.out.println("Laying out nodes.");      
 		}
+		timer = new PhaseTimer(BuildPhase.LAYOUT, timings);
+		progressCount = 1;
+		numAspectRatioEvaluations = 0;
 		layout(root, m_r);
+		if (isCancelled())
+		{
+			return cancelBuild();
+		}
+		metrics.add(MetricsRegistry.ASPECT_RATIO_EVALUATIONS, numAspectRatioEvaluations);
+		if (metrics.isEnabled())
+		{
+			long numLaidOut = 0;
+			for (TreeMapNode node : root)
+			{
+				if (node.getRectangle() != null)
+				{
+					numLaidOut++;
+				}
+			}
+			metrics.add(MetricsRegistry.NODES_LAID_OUT, numLaidOut);
+			metrics.add(MetricsRegistry.NODES_SKIPPED, progressTotal-numLaidOut);
+		}
+		reportProgress(BuildPhase.LAYOUT, progressTotal, progressTotal);
+		timer.stop(progressTotal);
 
 		// Build adjacencies
 		//System.err.println("Building adjacencies -----------------------");
 
+		timer = new PhaseTimer(BuildPhase.ADJACENCY, timings);
 		root.resetNeighbours();
+		progressCount = 0;
 
 		for (TreeMapNode node : root)
 		{
+			if (checkProgress(BuildPhase.ADJACENCY, ++progressCount, progressTotal) == false)
+			{
+				return cancelBuild();
+			}
 			TreeSet<TreeMapNode>candidates = new TreeSet<TreeMapNode>();
 			if (node.getNeighbours() == null)
 			{
@@ -383,10 +461,83 @@ public class TreeMappa
 			}
 		}
 
+		reportProgress(BuildPhase.ADJACENCY, progressTotal, progressTotal);
+		timer.stop(progressTotal);
+
 		needsRebuild = false;
 		return true;
 	}
 
+	/** Determines the object to be informed of progress while reading, building and writing the treemap.
+	 *  Progress is reported on the thread calling <code>readData()</code>, <code>buildTreeMap()</code> 
+	 *  or <code>writeOutput()</code>.
+	 *  @param listener Listener to inform of progress, or null if progress is not to be reported.
+	 */
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.progressListener = listener;
+	}
+
+	/** Determines the token checked for cancellation while reading, building and writing the treemap. If 
+	 *  the token is cancelled, the operation in progress is abandoned at the next opportunity and reports
+	 *  failure. A cancelled build leaves the treemap needing to be rebuilt.
+	 *  @param token Token to check for cancellation, or null if operations cannot be cancelled.
+	 */
+	public void setCancellationToken(CancellationToken token)
+	{
+		this.cancellationToken = token;
+	}
+
+	/** Reports the object informed of progress while reading, building and writing the treemap.
+	 *  @return Progress listener, or null if progress is not reported.
+	 */
+	public ProgressListener getProgressListener()
+	{
+		return progressListener;
+	}
+
+	/** Reports the token checked for cancellation while reading, building and writing the treemap.
+	 *  @return Cancellation token, or null if operations cannot be cancelled.
+	 */
+	public CancellationToken getCancellationToken()
+	{
+		return cancellationToken;
+	}
+
+	/** Provides a snapshot of the time taken by each phase of reading, building, drawing and writing the treemap.
+	 *  Phases are also reported as JDK Flight Recorder events when the Flight Recorder is available.
+	 *  @return Durations and node counts of each phase that has been completed so far.
+	 */
+	public PhaseTimings getPhaseTimings()
+	{
+		return new PhaseTimings(timings);
+	}
+
+	/** Determines the registry that collects counts of the work done while reading, building and writing the
+	 *  treemap, such as the number of rows parsed, nodes laid out and bytes written. 
+	 *  @param registry Registry in which to record counts, or null if counts are not to be collected.
+	 */
+	public void setMetricsRegistry(MetricsRegistry registry)
+	{
+		this.metrics = (registry == null) ? new NullMetricsRegistry() : registry;
+	}
+
+	/** Reports the registry that collects counts of the work done while reading, building and writing the treemap.
+	 *  @return Registry in which counts are recorded. 
+	 */
+	public MetricsRegistry getMetricsRegistry()
+	{
+		return metrics;
+	}
+
+	/** Provides the timings to which treemap phases should be added. Used by the panel displaying the treemap.
+	 *  @return Timings of each phase of treemap creation.
+	 */
+	PhaseTimings getTimings()
+	{
+		return timings;
+	}
+
 	private static boolean isAdjacent(TreeMapNode n1, TreeMapNode n2)
 	{
 		if (n1.equals(n2))
@@ -409,8 +560,13 @@ public class TreeMappa
 		return true;
 	}
 
-	/** Saves the current treeMap as a file. This might be a shapefile or text file depending on options
-	 *  specified by the configuration properties supplied to the constructor.
+	/** Saves the current treeMap as a file. This might be a shapefile, FlatGeobuf file, GeoJSON file, Arrow file,
+	 *  CSV file or text file depending on options specified by the configuration properties supplied to the constructor.
+	 *  Output file names ending in <code>.shp</code> are written as shapefiles. If the <code>outFormat</code> property
+	 *  is <code>auto</code>, the format of other names is chosen from their extension (<code>.fgb</code>,
+	 *  <code>.geojson</code>, <code>.json</code>, <code>.arrow</code>, <code>.feather</code>, <code>.csv</code> or
+	 *  <code>.csv.gz</code>). Any other name, or any name at all if <code>outFormat</code> is <code>text</code>,
+	 *  is written as text.
 	 *  @return True if output written successfully.
 	 */
 	public boolean writeOutput()
@@ -435,20 +591,30 @@ public class TreeMappa
 			return false;
 		}
 
-		if (outFileName.toLowerCase().endsWith(".shp"))
+		// Nodes are counted before timing starts so that only writing is timed.
+		long numNodes = countNodes();
+		OutputWriter writer = findOutputWriter(outFileName);
+		PhaseTimer timer = new PhaseTimer(BuildPhase.WRITE, timings);
+		if (writer != null)
 		{
-			if (ShapefileWriter.writeNodes(root, outFileName) == true)
+			if (writer.write(outFileName) == false)
 			{
-				if ((textOnly == false) && (isVerbose))
+				if (isCancelled())
 				{
-					System.out.println("\tTreeMap written as shapefile to '"+outFileName+"'");
+					System.err.println("\tWriting of treeMap as "+writer.description+" to '"+outFileName+"' cancelled.");
 				}
+				else
+				{
+					System.err.println("\tProblem writing treeMap as "+writer.description+" to '"+outFileName+"'");
+				}
+				return false;
 			}
-			else
+			if ((textOnly == false) && (isVerbose))
 			{
-				System.err.println("\tProblem writing treeMap as shapefile to '"+outFileName+"'");
-				return false;
+				System.out.println("\tTreeMap written as "+writer.description+" to '"+outFileName+"'");
 			}
+			timer.stop(writer.includesRoot ? numNodes : numNodes-1, writer.name);
+			writer.countBytes(outFileName);
 		}
 		else
 		{
@@ -456,8 +622,20 @@ public class TreeMappa
 			try 
 			{
 				BufferedWriter out = new BufferedWriter(new FileWriter(outFile));
-				writeTreeMapAsText(out);
+				boolean isComplete = writeTreeMapAsText(out, numNodes-1);		// Root node is not written.
 				out.close();
+				if (isComplete == false)
+				{
+					// Remove the incomplete file so it cannot be mistaken for complete output.
+					if (outFile.delete() == false)
+					{
+						System.err.println("Could not remove incomplete output file '"+outFile.getAbsolutePath()+"'");
+					}
+					System.err.println("Writing of treeMap coordinates to '"+outFile.getAbsolutePath()+"' cancelled.");
+					return false;
+				}
+				timer.stop(numNodes-1, "text");
+				countBytesWritten("txt", outFile);
 				if ((textOnly == false) && (isVerbose))
 				{
 					System.out.println("\tTreeMap coordinates written as text file to '"+outFile.getAbsolutePath()+"'");
@@ -584,104 +762,38 @@ public class TreeMappa
 	 */
 	public boolean showStatistics()
 	{
-		if ((rootNode == null) || (needsRebuild == true))
+		TreeMapStatistics stats = getStatistics();
+		if (stats == null)
 		{
-			System.err.println("Error: Must build treeMap before calculating summary statistics.");
 			return false;
 		}
 
-		boolean textOnly  = props.getTextOnly();
-		double rootWidth  = props.getWidth();
-		double rootHeight = props.getHeight();
-
-		if ((textOnly == false) && (isVerbose))
-		{
-			System.out.println("Calculating statistics.");
-		}
-		numNodes = 0;
-		numAdjacentLeaves = 0;
-		numSpatialNodes = 0;
-		aspectRatio = 0;
-		readability = 0;
-		distDisplacement = 0;
-		angDisplacement = 0;
-		leafDistances = new Vector<OrderDistance>();
-
-		TreeMapNode startNode = rootNode;
-		if (layoutsContainSpatial())
-		{
-			calcDisplacementStatistics(startNode);
-		}
-		distDisplacement /= (numSpatialNodes*Math.sqrt(rootWidth*rootHeight));
-		angDisplacement = (angDisplacement*180/Math.PI)/numSpatialNodes;
-
-		/*
-        if (startNode.getChildCount() == 1)
-        {
-        	// Ignore single level 1 node as it will simply reflect the aspect ratio of the user-defined parent rectangle.
-        	startNode = startNode.getChildren().get(0);
-        }*/
-
-		for (TreeMapNode child : startNode.getChildren())
-		{
-			calcStatistics(child);
-		}        
-		aspectRatio /= numNodes;
-
-
-		DecimalFormat df = new DecimalFormat("#0.##");
 		for (int i=0; i<=maxDepth; i++)
 		{
 			System.out.println("\tLevel "+i+":\t"+layoutTypes[i]+" with border of "+borderWidths[i]);
 		}
-		System.out.println("\tNumber of nodes:\t"+numNodes);
-		System.out.println("\tMaximum tree depth:\t"+(maxDepth+1));
-		System.out.println("\tMean aspect ratio:\t"+df.format(aspectRatio));
-		if (numAdjacentLeaves > 0)
-		{
-			readability = 1 - readability/numAdjacentLeaves;
-			System.out.println("\tReadability:     \t"+df.format(readability));
-		}
-		if (layoutsContainSpatial())
+		System.out.print(stats);
+		return true;
+	}
+
+	/** Calculates the summary statistics describing the quality of the treemap layout. These include the mean
+	 *  aspect ratio of nodes, the readability of leaf ordering and either the order-distance correlation or, for
+	 *  spatial layouts, the displacement of nodes from their geographic positions.
+	 *  @return Summary statistics or null if the treemap has not been built or the calculation was interrupted.
+	 */
+	public TreeMapStatistics getStatistics()
+	{
+		if ((rootNode == null) || (needsRebuild == true))
 		{
-			System.out.println("\tDistance displacement:\t"+df.format(distDisplacement));
-			System.out.println("\tAngular displacement:\t"+df.format(angDisplacement));
+			System.err.println("Error: Must build treeMap before calculating summary statistics.");
+			return null;
 		}
-		else
-		{
-			if (leafDistances.size() > 2)
-			{
-				// Calculate R-squared for order-distance relationship.
-				Collections.sort(leafDistances);
-
-				// Pass one to establish mean of rank order and distances.
-				double xBar=0, yBar=0;
-				double xt,yt, sXX=0,sYY=0, sXY=0;
-				double r;
-				for (int i=0; i<leafDistances.size(); i++)
-				{
-					xBar += i;		// Rank order for orders.
-					yBar += leafDistances.get(i).getDistance();	  	        		
-				}
-
-				xBar /= leafDistances.size();
-				yBar /= leafDistances.size();
-
-				// Pass two to establish correlation coefficients.
-				for (int i=0; i<leafDistances.size(); i++)
-				{
-					xt = i-xBar;
-					yt = leafDistances.get(i).getDistance()-yBar;
-					sXX += xt*xt;
-					sYY += yt*yt;
-					sXY += xt*yt;
-				}
 
-				r = sXY/Math.sqrt(sXX*sYY);
-				System.out.println("\tOrder-distance R-sq:\t"+df.format(r*r));
-			}
+		if ((props.getTextOnly() == false) && (isVerbose))
+		{
+			System.out.println("Calculating statistics.");
 		}
-		return true;
+		return StatisticsEngine.calculate(rootNode, layoutTypes, layoutsContainSpatial(), props.getWidth(), props.getHeight(), maxDepth+1);
 	}
 
 
@@ -897,6 +1009,187 @@ public class TreeMappa
 
 	// ------------------------------------ Private methods ------------------------------------
 
+	/** Finds the writer for the output file with the given name. Shapefiles are always written to names ending in
+	 *  <code>.shp</code>, but other formats are only chosen from the file extension if the <code>outFormat</code>
+	 *  property is <code>auto</code>.
+	 *  @param outFileName Name of the output file.
+	 *  @return Writer for the output file, or null if the file is to be written as text.
+	 */
+	private OutputWriter findOutputWriter(String outFileName)
+	{
+		Map<String,OutputWriter> writers = new LinkedHashMap<String,OutputWriter>();
+		writers.put(".shp", new OutputWriter("shapefile", "shapefile", false)
+		{
+			boolean write(String fileName)
+			{
+				ShapefileWriter shapefileWriter = new ShapefileWriter();
+				shapefileWriter.setWriteIndex(props.getSpatialIndex());
+				shapefileWriter.setProgress(progressListener, cancellationToken);
+				return shapefileWriter.write(root, fileName);
+			}
+
+			void countBytes(String fileName)
+			{
+				String baseName = fileName.substring(0, fileName.length()-4);
+				countBytesWritten("shp", new File(baseName+".shp"));
+				countBytesWritten("shx", new File(baseName+".shx"));
+				countBytesWritten("dbf", new File(baseName+".dbf"));
+				if (props.getSpatialIndex())
+				{
+					countBytesWritten("qix", new File(baseName+".qix"));
+				}
+			}
+		});
+
+		if (props.getAutoOutFormat())
+		{
+			OutputWriter flatGeobuf = new OutputWriter("FlatGeobuf", "flatgeobuf", false)
+			{
+				boolean write(String fileName)
+				{
+					FlatGeobufWriter flatGeobufWriter = new FlatGeobufWriter();
+					flatGeobufWriter.setProgress(progressListener, cancellationToken);
+					return flatGeobufWriter.write(root, fileName);
+				}
+
+				void countBytes(String fileName)
+				{
+					countBytesWritten("fgb", new File(fileName));
+				}
+			};
+			writers.put(".fgb", flatGeobuf);
+
+			OutputWriter geoJSON = new OutputWriter("GeoJSON", "geojson", false)
+			{
+				boolean write(String fileName)
+				{
+					GeoJSONWriter geoJSONWriter = new GeoJSONWriter();
+					geoJSONWriter.setProgress(progressListener, cancellationToken);
+					return geoJSONWriter.write(root, fileName);
+				}
+			};
+			writers.put(".geojson", geoJSON);
+			writers.put(".json", geoJSON);
+
+			// Arrow files include the root node.
+			OutputWriter arrow = new OutputWriter("Arrow file", "arrow", true)
+			{
+				boolean write(String fileName)
+				{
+					ArrowWriter arrowWriter = new ArrowWriter();
+					arrowWriter.setProgress(progressListener, cancellationToken);
+					return arrowWriter.write(root, fileName);
+				}
+			};
+			writers.put(".arrow", arrow);
+			writers.put(".feather", arrow);
+
+			OutputWriter csv = new OutputWriter("CSV file", "csv", false)
+			{
+				boolean write(String fileName)
+				{
+					CoordinateWriter coordWriter = new CoordinateWriter();
+					coordWriter.setPrecision(props.getCoordPrecision());
+					coordWriter.setDepthFirst(props.getCoordDepthFirst());
+					coordWriter.setCompression(props.getCompressionLevel(), props.getCompressionThreads());
+					coordWriter.setProgress(progressListener, cancellationToken);
+					return coordWriter.write(root, fileName);
+				}
+
+				void countBytes(String fileName)
+				{
+					countBytesWritten(fileName.toLowerCase().endsWith(".gz") ? "csv.gz" : "csv", new File(fileName));
+				}
+			};
+			writers.put(".csv", csv);
+			writers.put(".csv.gz", csv);
+		}
+
+		String lowerName = outFileName.toLowerCase();
+		for (Map.Entry<String,OutputWriter> entry : writers.entrySet())
+		{
+			if (lowerName.endsWith(entry.getKey()))
+			{
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	/** Reports whether the current operation has been cancelled.
+	 *  @return True if the cancellation token has been cancelled.
+	 */
+	private boolean isCancelled()
+	{
+		return (cancellationToken != null) && cancellationToken.isCancelled();
+	}
+
+	/** Adds the size of the given output file to the count of bytes written in the given format.
+	 *  @param format Format of the output file.
+	 *  @param file File that has been written.
+	 */
+	void countBytesWritten(String format, File file)
+	{
+		if (metrics.isEnabled())
+		{
+			metrics.add(MetricsRegistry.BYTES_WRITTEN+format, file.length());
+		}
+	}
+
+	/** Counts the number of nodes in the tree including the root.
+	 *  @return Number of nodes in the tree, or 0 if no tree has been read.
+	 */
+	private long countNodes()
+	{
+		long numTreeNodes = 0;
+		if (root != null)
+		{
+			for (@SuppressWarnings("unused") TreeMapNode node : root)
+			{
+				numTreeNodes++;
+			}
+		}
+		return numTreeNodes;
+	}
+
+	/** Informs the progress listener, if there is one, of progress made.
+	 *  @param phase Phase of treemap creation being reported.
+	 *  @param done Amount of work completed so far in this phase.
+	 *  @param total Total amount of work in this phase, or -1 if not known.
+	 */
+	private void reportProgress(BuildPhase phase, long done, long total)
+	{
+		if (progressListener != null)
+		{
+			progressListener.progressMade(phase, done, total);
+		}
+	}
+
+	/** Records the processing of an item, reporting progress periodically and checking for cancellation.
+	 *  @param phase Phase of treemap creation being reported.
+	 *  @param done Number of items processed so far in this phase.
+	 *  @param total Total number of items in this phase, or -1 if not known.
+	 *  @return True if processing should continue or false if it has been cancelled.
+	 */
+	private boolean checkProgress(BuildPhase phase, long done, long total)
+	{
+		if (done % PROGRESS_INTERVAL == 0)
+		{
+			reportProgress(phase, done, total);
+		}
+		return isCancelled() == false;
+	}
+
+	/** Abandons a treemap build in response to a cancellation request.
+	 *  @return False, indicating that the treemap was not built.
+	 */
+	private boolean cancelBuild()
+	{
+		System.err.println("Treemap build cancelled.");
+		needsRebuild = true;
+		return false;
+	}
+
 	/** Determines if there are any spatial layouts in the treemap at any level.
 	 * This can be used to check if spatial displacement statistics need to be calculated.
 	 * @return True if there is a spatial layout of some kind at one or more levels. 
@@ -1011,243 +1304,12 @@ public class TreeMappa
 		}
 	}
 
-	/** Recursively accumulates the aspect ratios and distance correlations
-	 * of all descendants of the given node in the tree.
-	 * @param node Node whose children will be used to accumulate statistics. 
-	 */
-	private void calcStatistics(TreeMapNode node)
-	{
-		Rectangle2D rect=  node.getRectangle();
-
-		// Ignore nodes too small to display.
-		if ((rect == null) || (rect.getWidth() < 1) || (rect.getHeight() < 1))
-		{
-			return;
-		}
-
-		boolean isDummy = node.getSizeValue() < 0;
-
-		if (!isDummy)
-		{
-			aspectRatio += Math.max(rect.getWidth()/rect.getHeight(), rect.getHeight()/rect.getWidth());
-			numNodes++;
-		}
-
-		if (node.getChildCount() > 0)
-		{
-			List<TreeMapNode> children = node.getChildren();
-
-			//double originX = node.getRectangle().getX();
-			//double originY = node.getRectangle().getY();
-
-			double originX = root.getRectangle().getX();
-			double originY = root.getRectangle().getY();
-
-			int nodeLevel = node.getLevel();
-
-			for (TreeMapNode child : children)
-			{
-				// Establish size-distance relationship for layouts that can order by size
-				if ((child.isLeaf()) && (layoutTypes[nodeLevel] != Layout.SPATIAL) && (layoutTypes[nodeLevel] != Layout.SPATIAL_AV) && (layoutTypes[nodeLevel] != Layout.PIVOT_SPACE))
-				{
-					if ((child.getSizeValue() > 0) && (child.getRectangle() != null))	// Non-dummy children only.
-					{
-						double childX = child.getRectangle().getX();
-						double childY = child.getRectangle().getY();
-						double distance = Math.sqrt((childX-originX)*(childX-originX) + (childY-originY)*(childY-originY));
-						leafDistances.add(new OrderDistance(child.getOrder(),distance));
-					}
-				}
-				// Recurse looking for leaves.
-				calcStatistics(child);
-			}
-
-			// Look for enough leaves to calculate readability measure.
-			double oldDirection = 0;
-			TreeMapNode oldChild;    		
-			int nextLeafNum = -1;
-			TreeMapNode child1 = null, child2 = null;
-
-			for (int i=0; i<children.size()-1; i++)
-			{
-				TreeMapNode child = children.get(i);
-				if (child.isLeaf() && (child.getSizeValue() >0))
-				{
-					if (child1 == null)
-					{
-						child1 = child;
-					}
-					else if (child2 == null)
-					{
-						child2 = child;
-						nextLeafNum = i+1;
-					}
-				}
-				if (nextLeafNum != -1)
-				{
-					break;
-				}
-			}
-
-			if (nextLeafNum == -1)
-			{
-				return;
-			}
-
-			// Find initial vector.
-			if ((child1 == null) || (child2 == null))
-			{
-				return;
-			}
-			
-			Rectangle2D r1 = child1.getRectangle();
-			Rectangle2D r2 = child2.getRectangle();
-			if ((r1 == null) || (r2 == null))
-			{
-				return;
-			}
-			double c1x = r1.getCenterX();
-			double c1y= r1.getCenterY();
-			double c2x = r2.getCenterX();
-			double c2y= r2.getCenterY();
-
-			oldDirection = Math.atan2(c2y-c1y, c2x-c1x);
-			oldChild = child2;
-
-			boolean foundNewLeaf = false;
-
-			for (int i=nextLeafNum; i<children.size(); i++)
-			{
-				TreeMapNode child = children.get(i);
-				if (!(child.isLeaf()) || (child.getSizeValue() < 0) || (child.getRectangle()==null))
-				{
-					continue;
-				}
-
-				c1x = oldChild.getRectangle().getCenterX();
-				c1y= oldChild.getRectangle().getCenterY();
-				c2x = child.getRectangle().getCenterX();
-				c2y= child.getRectangle().getCenterY();
-				numAdjacentLeaves++;
-				foundNewLeaf = true;
-
-				double direction = Math.atan2(c2y-c1y, c2x-c1x);
-				if (Math.abs(direction-oldDirection) > 0.1)
-				{
-					readability++;
-				}
-				oldDirection = direction;
-				oldChild = child;
-			}
-
-			if (foundNewLeaf)
-			{
-				numAdjacentLeaves+=2;		// Account for first two nodes used to find initial vector.
-			}
-		}
-	}
-
-	/** Recursively calculates the displacement statistics of the given spatial node.
-	 * @param node Node whose children will be used to accumulate statistics. 
-	 */
-	private void calcDisplacementStatistics(TreeMapNode node)
-	{
-		Rectangle2D rect=  node.getRectangle();
-
-		// Ignore leaves and nodes too small to display.
-		if (node.isLeaf() || (rect == null))
-		{
-			return;
-		}
-
-		if (node.getChildCount() > 0)
-		{
-			List<TreeMapNode> children = node.getChildren();
-
-			// Find geographic range of children.
-			double minEasting = Float.MAX_VALUE,minNorthing = Float.MAX_VALUE;
-			double maxEasting = -Float.MAX_VALUE,maxNorthing = -Float.MAX_VALUE;
-			double eastingRange,northingRange;
-
-			for (TreeMapNode child : children)
-			{
-				minEasting = Math.min(minEasting,child.getLocation().getX());
-				minNorthing = Math.min(minNorthing,child.getLocation().getY());
-				maxEasting = Math.max(maxEasting,child.getLocation().getX());
-				maxNorthing = Math.max(maxNorthing,child.getLocation().getY());
-			}
-			eastingRange = maxEasting-minEasting;
-			northingRange = maxNorthing-minNorthing;
-
-			for (TreeMapNode child : children)
-			{
-				if ((child.getRectangle() != null) && (eastingRange > 0) && (northingRange > 0))
-				{
-					Point2D geoCentre = new Point2D.Double(node.getRectangle().getX() + node.getRectangle().getWidth()*(child.getLocation().getX()-minEasting)/eastingRange,
-							node.getRectangle().getY()+node.getRectangle().getHeight() - (node.getRectangle().getHeight()*(child.getLocation().getY()-minNorthing)/northingRange));  				
-
-					// TODO: Calculate angular displacement to all other siblings for the moment, but this is an n^2 search, so should
-					// be capped at nearest m neighbours.
-					int numSiblings = 0;
-					double angTotal = 0;
-					for (TreeMapNode sibling: children)
-					{
-						if ((sibling != child) && (sibling.getRectangle() != null))
-						{
-							Point2D siblingGeoCentre = new Point2D.Double(node.getRectangle().getX() + node.getRectangle().getWidth()*(sibling.getLocation().getX()-minEasting)/eastingRange,
-									node.getRectangle().getY()+node.getRectangle().getHeight() - (node.getRectangle().getHeight()*(sibling.getLocation().getY()-minNorthing)/northingRange));
-
-
-							// Create two normalised vectors and their dot product to find angular deviation between them.
-							double geoVectX = siblingGeoCentre.getX()-geoCentre.getX();
-							double geoVectY = siblingGeoCentre.getY()-geoCentre.getY();
-							double geoLength = Math.sqrt(geoVectX*geoVectX + geoVectY*geoVectY);
-
-							if (geoLength > 0)
-							{
-								geoVectX /= geoLength;
-								geoVectY /= geoLength;
-
-								double tmVectX = sibling.getRectangle().getCenterX()-child.getRectangle().getCenterX();
-								double tmVectY = sibling.getRectangle().getCenterY()-child.getRectangle().getCenterY();
-								double tmLength = Math.sqrt(tmVectX*tmVectX + tmVectY*tmVectY);
-								tmVectX /= tmLength;
-								tmVectY /= tmLength;
-
-								double arg = geoVectX*tmVectX + geoVectY*tmVectY;
-								// Account for rounding errors.
-								if (arg > 1)
-								{
-									arg = 1;
-								}
-								else if (arg <-1)
-								{
-									arg = -1;
-								}
-								double angle = Math.acos(arg);
-								angTotal += angle;
-								numSiblings++;			
-							}
-						}
-
-					}
-					angTotal /= numSiblings;
-					angDisplacement += angTotal;
-					double dist = Math.sqrt((child.getRectangle().getCenterX()-geoCentre.getX())*(child.getRectangle().getCenterX()-geoCentre.getX()) +
-							(child.getRectangle().getCenterY()-geoCentre.getY())*(child.getRectangle().getCenterY()-geoCentre.getY()));
-					distDisplacement += dist;    				
-					numSpatialNodes++;
-				}
-				calcDisplacementStatistics(child);
-			}
-		}
-
-	}
-
 	/** Writes out the coordinates of the treemap as a text file for external processing.
 	 * @param out File to write to. 
+	 * @param numToWrite Number of nodes to be written, used for reporting progress.
+	 * @return True if all nodes were written, or false if writing was cancelled.
 	 */
-	private void writeTreeMapAsText(BufferedWriter out) throws IOException
+	private boolean writeTreeMapAsText(BufferedWriter out, long numToWrite) throws IOException
 	{
 		//DecimalFormat valueFormatter = new DecimalFormat("#0.##########");
 		DecimalFormat cf = new DecimalFormat("#0.##");
@@ -1261,8 +1323,15 @@ public class TreeMappa
 			queue.add(child);
 		} 
 
+		long numWritten = 0;
+
 		while (!queue.isEmpty())
 		{
+			if (checkProgress(BuildPhase.WRITE, numWritten++, numToWrite) == false)
+			{
+				return false;
+			}
+
 			// Write out the node at the head of the queue.
 			TreeMapNode node = queue.removeFirst();
 			Rectangle2D rect = node.getRectangle();
@@ -1283,12 +1352,18 @@ public class TreeMappa
 				System.err.println("  Node "+node.getLabel()+" not written to file since it is too small to display.");
 			}
 		}    	
+		reportProgress(BuildPhase.WRITE, numToWrite, numToWrite);
+		return true;
 	}
 
 	private void computeAreas(TreeMapNode parent)
 	{
 		for (TreeMapNode child : parent.getChildren())
 		{
+			if (checkProgress(BuildPhase.AREA, ++progressCount, progressTotal) == false)
+			{
+				return;
+			}
 			child.setArea(parent.getArea()*child.getAccumSize()/parent.getAccumSize());
 			//System.err.println("CA/CN for "+child.getLabel()+" is "+child.getAccum()+" / "+child.getNumLeaves()+" = "+(child.getAccum()/child.getNumLeaves()));
 			//System.err.println("Area of "+child.getLabel()+" is "+child.getArea());
@@ -1343,7 +1418,18 @@ public class TreeMappa
 		// We need to store the layout types before building tree as layout determines if nodes are sorted.
 		storeLayoutTypes(props.getLayouts());
 
+		progressCount = 0;
 		buildTreeFromDOM(children,null);
+		if (isCancelled())
+		{
+			System.err.println("Reading of TreeML data cancelled.");
+			return false;
+		}
+		reportProgress(BuildPhase.READ, progressCount, progressCount);
+		if (metrics.isEnabled())
+		{
+			metrics.add(MetricsRegistry.NODES_CREATED, countNodes());
+		}
 		return true; 
 	}
 
@@ -1381,7 +1467,7 @@ public class TreeMappa
 				System.err.println("Cannot find file "+inFile.getCanonicalPath());
 				return false;
 			}
-			return readCSV(new BufferedReader(new FileReader(inFileName)),useLabels,flavour);
+			return readCSV(new BufferedReader(new FileReader(inFileName)),useLabels,flavour,inFile.length());
 		}
 		catch (IOException e)
 		{
@@ -1412,9 +1498,10 @@ public class TreeMappa
 	 * @param bReader Buffered reader pointing to the file containing the CSV data.
 	 * @param useLabels Node labels used to define hierarchy if true. Otherwise tree structure only defined by level0, level1, level2 etc.
 	 * @param flavour Type of CSV format. Can be one of <code>CSV</code>, <code>CSV_COMPACT</code> or <code>CSV_SPATIAL</code>.
+	 * @param inputLength Number of characters in the CSV file used for progress reporting, or -1 if not known.
 	 * @return True if file read without problems.
 	 */
-	private boolean readCSV(BufferedReader bReader, boolean useLabels, int flavour)
+	private boolean readCSV(BufferedReader bReader, boolean useLabels, int flavour, long inputLength)
 	{
 		try
 		{
@@ -1442,11 +1529,26 @@ public class TreeMappa
 				itemsPerBranch=3;
 			}
 			//int ln = 0;	        	        
+			long numLines = 0;
+			long numChars = 0;
+			long numRows = 0;
+			long numRejected = 0;
 			while (bReader.ready())
 			{
 				//if (++ln%500 == 0) System.err.println(ln);
 
 				String inputLine = bReader.readLine();
+				numChars += inputLine.length()+1;
+				if (++numLines % PROGRESS_INTERVAL == 0)
+				{
+					reportProgress(BuildPhase.READ, numChars, inputLength);
+					if (isCancelled())
+					{
+						System.err.println("Reading of CSV data cancelled.");
+						bReader.close();
+						return false;
+					}
+				}
 				int leafIndex = 0;
 				int lastBranchIndex;
 
@@ -1463,6 +1565,7 @@ public class TreeMappa
 				if (tokens.length < minTokens)
 				{
 					System.err.println("Warning: Line contains fewer than the minimum "+minTokens+" values: "+inputLine);
+					numRejected++;
 					continue;
 				}
 
@@ -1613,8 +1716,16 @@ public class TreeMappa
 				TreeMapNode node = new TreeMapNode(tokens[leafIndex],orderValue,sizeValue,colourValue,location);
 				node.setLabel(tokens[0]);
 				parent.add(node);
+				numRows++;
 			}
-			bReader.close();	    	
+			bReader.close();
+			metrics.add(MetricsRegistry.ROWS_PARSED, numRows);
+			metrics.add(MetricsRegistry.ROWS_REJECTED, numRejected);
+			if (metrics.isEnabled())
+			{
+				metrics.add(MetricsRegistry.NODES_CREATED, countNodes());
+			}
+			reportProgress(BuildPhase.READ, numChars, numChars);
 		}
 		catch (IOException e)
 		{
@@ -1624,6 +1735,219 @@ public class TreeMappa
 		return true;
 	}
 
+	/** Creates a tree from the given shapefile and its <code>.dbf</code> attribute table. Each shapefile record becomes
+	 *  a leaf located at the centroid of its geometry. The attributes used to label, size, colour and order leaves and
+	 *  to define the branches above them are given by the <code>labelField</code>, <code>sizeField</code>, 
+	 *  <code>colourField</code>, <code>orderField</code> and <code>branchFields</code> properties. Leaves sharing the
+	 *  same branch attribute values (ignoring case) share the same branch nodes. Branches are located at the mean 
+	 *  centre of their leaves.
+	 *  @param inFileName Name of the <code>.shp</code> file to read.
+	 *  @return True if file read without problems.
+	 */
+	private boolean readShapefile(String inFileName)
+	{
+		String baseName = inFileName.toLowerCase(Locale.ROOT).endsWith(".shp") ? inFileName.substring(0, inFileName.length()-4) : inFileName;
+		String labelField = props.getLabelField();
+		String sizeField = props.getSizeField();
+		String colourField = props.getColourField();
+		String orderField = props.getOrderField();
+		String[] branchFields = props.getBranchFields();
+
+		ShapefileReader shpReader = null;
+		DbaseFileReader dbfReader = null;
+		try
+		{
+			shpReader = new ShapefileReader(baseName+".shp");
+			File dbfFile = new File(baseName+".dbf");
+			if (dbfFile.canRead())
+			{
+				dbfReader = new DbaseFileReader(dbfFile.getPath());
+			}
+			else if ((labelField != null) || (sizeField != null) || (colourField != null) || (orderField != null) || (branchFields.length > 0))
+			{
+				System.err.println("Cannot find shapefile attributes in "+dbfFile.getCanonicalPath());
+				shpReader.close();
+				return false;
+			}
+
+			// Find the columns holding each of the attributes that define the tree.
+			int labelCol = findField(dbfReader, labelField);
+			int sizeCol = findField(dbfReader, sizeField);
+			int colourCol = findField(dbfReader, colourField);
+			int orderCol = findField(dbfReader, orderField);
+			int[] branchCols = new int[branchFields.length];
+			boolean foundAll = (labelCol != -2) && (sizeCol != -2) && (colourCol != -2) && (orderCol != -2);
+			for (int i=0; i<branchFields.length; i++)
+			{
+				branchCols[i] = findField(dbfReader, branchFields[i]);
+				foundAll = foundAll && (branchCols[i] >= 0);
+			}
+			if (foundAll == false)
+			{
+				shpReader.close();
+				dbfReader.close();
+				return false;
+			}
+
+			root = new TreeMapNode("root",0,null,null,null);
+			tree = new DefaultTreeModel(root);
+
+			// Branches are found by their path from the root so that each is found without searching its siblings.
+			HashMap<String,TreeMapNode> branches = new HashMap<String,TreeMapNode>();
+			StringBuilder path = new StringBuilder();
+			int numRecords = (dbfReader == null) ? -1 : dbfReader.getNumRecords();
+			long numRows = 0;
+			long numRejected = 0;
+
+			while (shpReader.next())
+			{
+				int record = shpReader.getRecordIndex();
+				if ((record+1) % PROGRESS_INTERVAL == 0)
+				{
+					reportProgress(BuildPhase.READ, record+1, numRecords);
+					if (isCancelled())
+					{
+						System.err.println("Reading of shapefile cancelled.");
+						shpReader.close();
+						if (dbfReader != null)
+						{
+							dbfReader.close();
+						}
+						return false;
+					}
+				}
+
+				if (dbfReader != null)
+				{
+					if (record >= numRecords)
+					{
+						System.err.println("Warning: Shapefile record "+(record+1)+" has no attributes.");
+						numRejected++;
+						continue;
+					}
+					if (dbfReader.isDeleted(record))
+					{
+						numRejected++;
+						continue;
+					}
+				}
+
+				TreeMapNode parent = root;
+				path.setLength(0);
+				for (int col : branchCols)
+				{
+					String branchLabel = dbfReader.readString(record, col);
+					path.append(branchLabel.toLowerCase(Locale.ROOT)).append('\n');
+					String key = path.toString();
+					TreeMapNode branch = branches.get(key);
+					if (branch == null)
+					{
+						double order = readAttribute(dbfReader, record, orderCol);
+						branch = new TreeMapNode(branchLabel, Double.isNaN(order) ? 0 : order,null,null,null);
+						parent.add(branch);
+						branches.put(key, branch);
+					}
+					parent = branch;
+				}
+
+				String label = (labelCol >= 0) ? dbfReader.readString(record, labelCol) : Integer.toString(record+1);
+				double size = readAttribute(dbfReader, record, sizeCol);
+				double colour = readAttribute(dbfReader, record, colourCol);
+				Point2D location = null;
+				if (shpReader.hasCentroid())
+				{
+					location = new Point2D.Double(shpReader.getCentroidX(), shpReader.getCentroidY());
+					west  = Math.min(west,  location.getX());
+					east  = Math.max(east,  location.getX());
+					south = Math.min(south, location.getY());
+					north = Math.max(north, location.getY());
+				}
+
+				double order = readAttribute(dbfReader, record, orderCol);
+
+				TreeMapNode node = new TreeMapNode(label, Double.isNaN(order) ? 0 : order,
+						                           Double.isNaN(size) ? null : Float.valueOf((float)size),
+						                           Double.isNaN(colour) ? null : Float.valueOf((float)colour), location);
+				parent.add(node);
+				numRows++;
+			}
+
+			// All leaves are at the same depth, below one level for each branch attribute.
+			if (numRows > 0)
+			{
+				maxDepth = Math.max(maxDepth, branchCols.length+1);
+			}
+			shpReader.close();
+			if (dbfReader != null)
+			{
+				dbfReader.close();
+			}
+			metrics.add(MetricsRegistry.ROWS_PARSED, numRows);
+			metrics.add(MetricsRegistry.ROWS_REJECTED, numRejected);
+			if (metrics.isEnabled())
+			{
+				metrics.add(MetricsRegistry.NODES_CREATED, countNodes());
+			}
+			reportProgress(BuildPhase.READ, numRows, numRows);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problem reading shapefile: "+e);
+			try
+			{
+				if (shpReader != null)
+				{
+					shpReader.close();
+				}
+				if (dbfReader != null)
+				{
+					dbfReader.close();
+				}
+			}
+			catch (IOException e2)
+			{
+				System.err.println("Problem closing shapefile.");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/** Finds the column of the given shapefile attribute.
+	 *  @param dbfReader Reader of the shapefile's attribute table, or null if there is no table.
+	 *  @param fieldName Name of the attribute to find, or null if the attribute is not used.
+	 *  @return Column of the attribute, -1 if the attribute is not used or -2 if it could not be found.
+	 */
+	private static int findField(DbaseFileReader dbfReader, String fieldName)
+	{
+		if ((fieldName == null) || (dbfReader == null))
+		{
+			return -1;
+		}
+		int col = dbfReader.findField(fieldName);
+		if (col < 0)
+		{
+			System.err.println("Cannot find attribute '"+fieldName+"' in shapefile.");
+			return -2;
+		}
+		return col;
+	}
+
+	/** Reads the numeric value of the given shapefile attribute.
+	 *  @param dbfReader Reader of the shapefile's attribute table.
+	 *  @param record Index of the record to read.
+	 *  @param col Column of the attribute, or a negative number if the attribute is not used.
+	 *  @return Numeric value of the attribute, or NaN if it is not a number or the attribute is not used.
+	 */
+	private static double readAttribute(DbaseFileReader dbfReader, int record, int col)
+	{
+		if (col < 0)
+		{
+			return Double.NaN;
+		}
+		return dbfReader.readDouble(record, col);
+	}
+
 	/** Computes the treemap layout. Lays out all the children of the given parent node
 	 *  then recursively calls itself to lay out all descendants. 
 	 *  @param parent Parent node whose children will be laid out. 
@@ -1634,9 +1958,18 @@ public class TreeMappa
 		int level = parent.getLevel();
 		Rectangle2D rect = rectangle;
 
+		if (isCancelled())
+		{
+			return;
+		}
+
 		for (TreeMapNode child : parent.getChildren())
 		{
 			nodesToLayout.add(child);
+			if ((progressListener != null) && (++progressCount % PROGRESS_INTERVAL == 0))
+			{
+				progressListener.progressMade(BuildPhase.LAYOUT, progressCount, progressTotal);
+			}
 		}
 
 		//System.err.println("About to lay out "+nodesToLayout.size()+" nodes at level "+nodesToLayout.get(0).getLevel()+" First is "+nodesToLayout.get(0).getLabel());   	
@@ -1930,6 +2263,7 @@ public class TreeMappa
 			{
 				newAspectRatio = getWorstAspectRatio(row, layoutSide,stripAR);
 			}
+			numAspectRatioEvaluations++;
 
 			if (newAspectRatio <= oldAspectRatio) 
 			{
@@ -2109,6 +2443,7 @@ public class TreeMappa
 
 			row.add(item);         
 			nworst = getWorstAspectRatio(row, layoutSide,stripAR);
+			numAspectRatioEvaluations++;
 
 			if (nworst <= worst) 
 			{
@@ -2153,7 +2488,7 @@ public class TreeMappa
 	 * @param rect Rectangle in which to lay out nodes.
 	 * @param alignment Alignment constraint (HORIZONTAL, VERTICAL or FREE if no constraint).
 	 */
-	private static void stripMap(List<TreeMapNode>nodes, Rectangle2D rect, Layout alignment) 
+	private void stripMap(List<TreeMapNode>nodes, Rectangle2D rect, Layout alignment) 
 	{
 		List<TreeMapNode> row = new Vector<TreeMapNode>();
 		double avAspectRatio = Double.MAX_VALUE, newAvAspectRatio,layoutSide=0;
@@ -2181,6 +2516,7 @@ public class TreeMappa
 			}
 
 			newAvAspectRatio = getAvAspectRatio(row, layoutSide);
+			numAspectRatioEvaluations++;
 
 			if (newAvAspectRatio <= avAspectRatio) 
 			{
@@ -2416,7 +2752,7 @@ public class TreeMappa
 	 * @param row1AR Aspect ratio of the current row to lay out.
 	 * @param width Width of strip in which to place nodes.
 	 */
-	private static void lookahead(List<TreeMapNode>nodes, List<TreeMapNode>row1, double row1AR, double width) 
+	private void lookahead(List<TreeMapNode>nodes, List<TreeMapNode>row1, double row1AR, double width) 
 	{
 		List<TreeMapNode> row2 = new Vector<TreeMapNode>();
 		double row2AR = Double.MAX_VALUE, newRow2AR;
@@ -2440,6 +2776,7 @@ public class TreeMappa
 
 			row2.add(item);         
 			newRow2AR = getAvAspectRatio(row2, width);
+			numAspectRatioEvaluations++;
 
 			if (newRow2AR <= row2AR) 
 			{
@@ -2459,6 +2796,7 @@ public class TreeMappa
 		combinedRows.addAll(row1);
 		combinedRows.addAll(row2);
 		double combinedAR = getAvAspectRatio(combinedRows, width);
+		numAspectRatioEvaluations++;
 
 		// Combining this and the next row would produce better overall aspect ratio
 		if (combinedAR < row12AR)
@@ -2836,6 +3174,10 @@ public class TreeMappa
 		// TODO: Add location extraction from DOM reader.
 		for (Node branch : branches)
 		{
+			if (checkProgress(BuildPhase.READ, ++progressCount, -1) == false)
+			{
+				return;
+			}
 			TreeMapNode thisNode = null;
 
 			// See if we have an attribute attached to this branch.
@@ -2936,69 +3278,40 @@ public class TreeMappa
 		return node.getArea();
 	}
 
-	// ------------------------------------- Nested Classes -------------------------------------
+	// ------------------------------------ Nested classes ------------------------------------
 
-	/** Class for storing a order-distance pair that can be sorted in by the 'order' value.
+	/** Writes the treemap in one of the output file formats chosen by file extension.
 	 */
-	private class OrderDistance implements Comparable<OrderDistance>
+	private abstract class OutputWriter
 	{
-		// --------------------------- Object variables ---------------------------
-
-		private double order,distance;
-
-		// ----------------------------- Constructor ------------------------------
-
-		/** Stores the given order and distance values.
-		 * @param order Order to store.
-		 * @param distance Distance to store. 
-		 */
-		public OrderDistance(double order, double distance)
-		{
-			this.order = order;
-			this.distance = distance;
-		}
-
-		// ------------------------------- Methods --------------------------------
-
-		/** Performs a numerical comparison between the order value stored here and that in given <code>OrderDistance</code> object.
-		 * @param other Another <code>OrderDistance</code> object with which to make the comparison. 
-		 * @return -1 if this order is smaller than that in the given object, +1 if it is greater or 0 if identical.  
+		final String description;	// Description of the format used in messages.
+		final String name;			// Name of the format used in timings and metrics.
+		final boolean includesRoot;	// Indicates the root node is written along with its descendants.
+
+		/** Describes the output format.
+		 *  @param description Description of the format used in messages.
+		 *  @param name Name of the format used in timings and metrics.
+		 *  @param includesRoot True if the root node is written along with its descendants.
 		 */
-		public int compareTo(OrderDistance other)
+		OutputWriter(String description, String name, boolean includesRoot)
 		{
-			if (order < other.getOrder())
-			{
-				return -1;
-			}
-			if (order > other.getOrder())
-			{
-				return 1;
-			}
-			return 0;
+			this.description = description;
+			this.name = name;
+			this.includesRoot = includesRoot;
 		}
 
-		/** Reports the order value stored in this object.
-		 * @return Stored order value.
+		/** Writes the treemap to the given file.
+		 *  @param fileName Name of the file to write.
+		 *  @return True if written successfully.
 		 */
-		public double getOrder()
-		{
-			return order;
-		}
+		abstract boolean write(String fileName);
 
-		/** Reports the distance value stored in this object.
-		 * @return Stored distance value.
+		/** Adds the size of the written output to the count of bytes written in this format.
+		 *  @param fileName Name of the file that was written.
 		 */
-		public double getDistance()
+		void countBytes(String fileName)
 		{
-			return distance;
+			countBytesWritten(name, new File(fileName));
 		}
-
-		/** Provides a textual description of this object.
-		 *@return Textual description.  
-		 */
-		public String toString()
-		{
-			return new String("Order: "+order+" Distance: "+distance);
-		}    	
 	}
 }
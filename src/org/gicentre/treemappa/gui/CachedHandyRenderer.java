@@ -0,0 +1,483 @@
+package org.gicentre.treemappa.gui;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.gicentre.handy.HandyRenderer;
+import org.gicentre.treemappa.gui.StrokeRecorder.RecordedShape;
+
+import processing.core.PApplet;
+
+// *****************************************************************************************
+/** Drawable renderer that caches the sketchy strokes generated by a Handy renderer. When a shape
+ *  is drawn for a second time, the strokes generated by the Handy renderer are recorded. Later requests
+ *  to draw the same shape with the same style are replayed from the recorded vertices without
+ *  being sketched again, which is much faster for sketches that redraw an unchanged scene each frame.
+ *  Shapes whose geometry changes every frame are never drawn twice, so are sketched directly without
+ *  filling the cache. Each shape is sketched with a random seed derived from its geometry, so a shape
+ *  always has the same appearance even if it has to be sketched again after being removed from the
+ *  cache. The least recently drawn shapes are removed when the cache exceeds its maximum size.
+ *  <br /><br />
+ *  Recorded strokes depend on the settings of the Handy renderer, so settings should be changed with
+ *  this renderer's methods, which discard the recorded strokes. If the Handy renderer's settings are
+ *  changed directly, <code>clearCache()</code> should be called.
+ *  @author Jo Wood, giCentre, City University London.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// *****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class CachedHandyRenderer implements Drawable
+{
+	// ------------------------------ Class and object variables -------------------------------
+
+	private static final int POINT = 0;			// Types of drawing operation.
+	private static final int LINE = 1;
+	private static final int RECT = 2;
+	private static final int ELLIPSE = 3;
+	private static final int TRIANGLE = 4;
+	private static final int POLYLINE = 5;
+	private static final int SHAPE = 6;
+	private static final int MAX_SEEN_SHAPES = 10000;	// Number of shapes drawn once that are remembered.
+
+	private HandyRenderer handy;
+	private PApplet sketch;
+	private StrokeRecorder recorder;
+	private Map<ShapeKey,List<RecordedShape>> cache;	// Recorded strokes in least recently used order.
+	private Map<ShapeKey,Boolean> seenShapes;	// Shapes drawn once but not yet recorded, in least recently drawn order.
+	private Random seeds;						// Provides the seeds that continue the Handy renderer's own random sequence.
+	private long maxPoints;						// Maximum number of coordinate pairs held in the cache.
+	private long numPoints;						// Number of coordinate pairs currently held in the cache, including keys.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a caching renderer that records the output of the given Handy renderer.
+	 *  @param handy Handy renderer that draws into the given sketch.
+	 *  @param sketch Sketch in which shapes are drawn.
+	 *  @param maxPoints Maximum number of coordinate pairs to store before the least recently drawn shapes are discarded.
+	 *                   The coordinates identifying each shape are counted as well as its recorded strokes.
+	 */
+	CachedHandyRenderer(HandyRenderer handy, PApplet sketch, long maxPoints)
+	{
+		this.handy = handy;
+		this.sketch = sketch;
+		this.maxPoints = maxPoints;
+		this.recorder = new StrokeRecorder();
+		this.cache = new LinkedHashMap<ShapeKey,List<RecordedShape>>(256, 0.75f, true);
+		this.seenShapes = new LinkedHashMap<ShapeKey,Boolean>(256, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ShapeKey,Boolean> eldest)
+			{
+				return size() > MAX_SEEN_SHAPES;
+			}
+		};
+		this.seeds = new Random();
+		this.numPoints = 0;
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Draws a sketchy 2D point at the given coordinates.
+	 *  @param x x coordinate of the point.
+	 *  @param y y coordinate of the point.
+	 */
+	public void point(float x, float y)
+	{
+		draw(new ShapeKey(POINT, new float[] {x,y}, sketch));
+	}
+
+	/** Draws a sketchy 2D line between the given coordinate pairs.
+	 *  @param x1 x coordinate of the start of the line.
+	 *  @param y1 y coordinate of the start of the line.
+	 *  @param x2 x coordinate of the end of the line.
+	 *  @param y2 y coordinate of the end of the line.
+	 */
+	public void line(float x1, float y1, float x2, float y2)
+	{
+		draw(new ShapeKey(LINE, new float[] {x1,y1,x2,y2}, sketch));
+	}
+
+	/** Draws a sketchy rectangle using the given location and dimensions.
+	 *  @param x x coordinate of the rectangle position
+	 *  @param y y coordinate of the rectangle position.
+	 *  @param w Width of the rectangle.
+	 *  @param h Height of the rectangle.
+	 */
+	public void rect(float x, float y, float w, float h)
+	{
+		draw(new ShapeKey(RECT, new float[] {x,y,w,h}, sketch));
+	}
+
+	/** Draws a sketchy rectangle using the given location and dimensions. Curved corners are not
+	 *  currently supported by the Handy renderer so the radii of curvature are ignored.
+	 *  @param x x coordinate of the rectangle position
+	 *  @param y y coordinate of the rectangle position.
+	 *  @param w Width of the rectangle.
+	 *  @param h Height of the rectangle.
+	 *  @param rx Radius of curvature of the rectangle's corners in the horizontal direction.
+	 *  @param ry Radius of curvature of the rectangle's corners in the vertical direction.
+	 */
+	public void rect(float x, float y, float w, float h, float rx, float ry)
+	{
+		draw(new ShapeKey(RECT, new float[] {x,y,w,h}, sketch));
+	}
+
+	/** Draws a sketchy ellipse using the given location and dimensions.
+	 *  @param x x coordinate of the ellipse's position
+	 *  @param y y coordinate of the ellipse's position.
+	 *  @param w Width of the ellipse.
+	 *  @param h Height of the ellipse.
+	 */
+	public void ellipse(float x, float y, float w, float h)
+	{
+		draw(new ShapeKey(ELLIPSE, new float[] {x,y,w,h}, sketch));
+	}
+
+	/** Draws a sketchy triangle through the three pairs of coordinates.
+	 *  @param x1 x coordinate of the first triangle vertex.
+	 *  @param y1 y coordinate of the first triangle vertex.
+	 *  @param x2 x coordinate of the second triangle vertex.
+	 *  @param y2 y coordinate of the second triangle vertex.
+	 *  @param x3 x coordinate of the third triangle vertex.
+	 *  @param y3 y coordinate of the third triangle vertex.
+	 */
+	public void triangle(float x1, float y1, float x2, float y2, float x3, float y3)
+	{
+		draw(new ShapeKey(TRIANGLE, new float[] {x1,y1,x2,y2,x3,y3}, sketch));
+	}
+
+	/** Draws a sketchy line that links the given coordinates.
+	 *  @param xCoords x coordinates of the line.
+	 *  @param yCoords y coordinates of the line.
+	 */
+	public void polyLine(float[] xCoords, float[] yCoords)
+	{
+		draw(new ShapeKey(POLYLINE, join(xCoords,yCoords), sketch));
+	}
+
+	/** Draws a sketchy closed polygon shape based on the given arrays of vertices.
+	 *  @param xCoords x coordinates of the shape.
+	 *  @param yCoords y coordinates of the shape.
+	 */
+	public void shape(float[] xCoords, float[] yCoords)
+	{
+		draw(new ShapeKey(SHAPE, join(xCoords,yCoords), sketch));
+	}
+
+	/** Discards all recorded strokes. This should be called if the settings of the Handy renderer are changed
+	 *  other than through this renderer, since recorded shapes would otherwise keep their old appearance.
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+		seenShapes.clear();
+		numPoints = 0;
+	}
+
+	/** Sets the roughness of the Handy renderer, discarding any strokes recorded with the previous roughness.
+	 *  @param roughness New roughness of the sketchy strokes.
+	 */
+	public void setRoughness(float roughness)
+	{
+		handy.setRoughness(roughness);
+		clearCache();
+	}
+
+	/** Sets the bowing of lines drawn by the Handy renderer, discarding any strokes recorded with the previous bowing.
+	 *  @param bowing New amount of bowing of sketchy lines.
+	 */
+	public void setBowing(float bowing)
+	{
+		handy.setBowing(bowing);
+		clearCache();
+	}
+
+	/** Sets the angle of the hachuring used by the Handy renderer to fill shapes, discarding any strokes recorded
+	 *  with the previous angle.
+	 *  @param degrees New hachure angle in degrees.
+	 */
+	public void setHachureAngle(float degrees)
+	{
+		handy.setHachureAngle(degrees);
+		clearCache();
+	}
+
+	/** Sets the random variation in hachure angle used by the Handy renderer, discarding any strokes recorded with
+	 *  the previous variation.
+	 *  @param degrees New maximum variation in hachure angle in degrees.
+	 */
+	public void setHachurePerturbationAngle(float degrees)
+	{
+		handy.setHachurePerturbationAngle(degrees);
+		clearCache();
+	}
+
+	/** Sets the gap between hachure lines used by the Handy renderer, discarding any strokes recorded with the
+	 *  previous gap.
+	 *  @param gap New gap between hachure lines.
+	 */
+	public void setFillGap(float gap)
+	{
+		handy.setFillGap(gap);
+		clearCache();
+	}
+
+	/** Sets the weight of hachure lines used by the Handy renderer, discarding any strokes recorded with the
+	 *  previous weight.
+	 *  @param weight New weight of hachure lines.
+	 */
+	public void setFillWeight(float weight)
+	{
+		handy.setFillWeight(weight);
+		clearCache();
+	}
+
+	/** Determines whether the Handy renderer draws sketchily or as normal Processing graphics, discarding any
+	 *  strokes recorded in the previous style.
+	 *  @param isHandy True if shapes are to be drawn sketchily.
+	 */
+	public void setIsHandy(boolean isHandy)
+	{
+		handy.setIsHandy(isHandy);
+		clearCache();
+	}
+
+	/** Sets the seed of the Handy renderer's random sequence. Shapes drawn by this renderer use seeds based
+	 *  on their geometry, so the seed only affects shapes drawn directly with the Handy renderer. Those shapes
+	 *  are drawn with the same sequence of random seeds however many shapes this renderer draws in between.
+	 *  @param seed New random seed.
+	 */
+	public void setSeed(long seed)
+	{
+		seeds = new Random(seed);
+		handy.setSeed(seeds.nextLong());
+	}
+
+	// ------------------------------------ Private methods ------------------------------------
+
+	/** Draws the shape identified by the given key, replaying its recorded strokes if they are in the cache.
+	 *  @param key Drawing operation, geometry and style of the shape to draw.
+	 */
+	private void draw(ShapeKey key)
+	{
+		List<RecordedShape> strokes = cache.get(key);
+
+		if ((strokes == null) && (seenShapes.remove(key) == null))
+		{
+			// Only shapes that are drawn again are recorded, so changing geometry does not fill the cache.
+			seenShapes.put(key, Boolean.TRUE);
+			sketch(key);
+			return;
+		}
+
+		if (strokes == null)
+		{
+			// Record the sketchy strokes generated for this shape.
+			recorder.startRecording(sketch.g.getStyle());
+			handy.setGraphics(recorder);
+			try
+			{
+				sketch(key);
+			}
+			finally
+			{
+				handy.setGraphics(sketch.g);
+			}
+			strokes = recorder.stopRecording();
+
+			if (strokes == null)
+			{
+				// Shape uses operations that cannot be replayed, so store an empty list to indicate it is always sketched directly.
+				strokes = Collections.emptyList();
+			}
+			cache.put(key, strokes);
+			numPoints += countPoints(key, strokes);
+			removeOldest();
+		}
+
+		if (strokes.isEmpty())
+		{
+			sketch(key);
+			return;
+		}
+
+		sketch.pushStyle();
+		for (RecordedShape stroke : strokes)
+		{
+			stroke.replay(sketch);
+		}
+		sketch.popStyle();
+	}
+
+	/** Sketches the shape identified by the given key with the Handy renderer, using a random seed based on
+	 *  the shape's geometry. The Handy renderer is then given the next seed in its own random sequence, so
+	 *  shapes drawn directly with it are unaffected by the seed used for this shape.
+	 *  @param key Drawing operation, geometry and style of the shape to draw.
+	 */
+	private void sketch(ShapeKey key)
+	{
+		handy.setSeed(key.seed);
+		try
+		{
+			sketchShape(key);
+		}
+		finally
+		{
+			handy.setSeed(seeds.nextLong());
+		}
+	}
+
+	/** Sketches the shape identified by the given key with the Handy renderer's current settings.
+	 *  @param key Drawing operation, geometry and style of the shape to draw.
+	 */
+	private void sketchShape(ShapeKey key)
+	{
+		float[] p = key.params;
+
+		switch (key.op)
+		{
+			case POINT:
+				handy.point(p[0], p[1]);
+				break;
+			case LINE:
+				handy.line(p[0], p[1], p[2], p[3]);
+				break;
+			case RECT:
+				handy.rect(p[0], p[1], p[2], p[3]);
+				break;
+			case ELLIPSE:
+				handy.ellipse(p[0], p[1], p[2], p[3]);
+				break;
+			case TRIANGLE:
+				handy.triangle(p[0], p[1], p[2], p[3], p[4], p[5]);
+				break;
+			case POLYLINE:
+				handy.polyLine(Arrays.copyOfRange(p, 0, p.length/2), Arrays.copyOfRange(p, p.length/2, p.length));
+				break;
+			default:
+				handy.shape(Arrays.copyOfRange(p, 0, p.length/2), Arrays.copyOfRange(p, p.length/2, p.length));
+		}
+	}
+
+	/** Discards the least recently drawn shapes until the cache is within its size limit.
+	 */
+	private void removeOldest()
+	{
+		Iterator<Map.Entry<ShapeKey,List<RecordedShape>>> i = cache.entrySet().iterator();
+		while ((numPoints > maxPoints) && i.hasNext())
+		{
+			Map.Entry<ShapeKey,List<RecordedShape>> entry = i.next();
+			numPoints -= countPoints(entry.getKey(), entry.getValue());
+			i.remove();
+		}
+	}
+
+	/** Counts the number of coordinate pairs stored in a cache entry. The key's own coordinates are included so
+	 *  that every entry, including the empty ones stored for shapes that cannot be replayed, counts towards the
+	 *  size of the cache and can be discarded.
+	 *  @param key Key identifying the shape.
+	 *  @param strokes Strokes recorded for the shape.
+	 *  @return Number of coordinate pairs.
+	 */
+	private static long countPoints(ShapeKey key, List<RecordedShape> strokes)
+	{
+		long count = Math.max(1, key.params.length/2);
+		for (RecordedShape stroke : strokes)
+		{
+			count += stroke.getNumPoints();
+		}
+		return count;
+	}
+
+	/** Joins the given x and y coordinate arrays into a single array.
+	 *  @param xCoords x coordinates.
+	 *  @param yCoords y coordinates.
+	 *  @return Array holding the x coordinates followed by the y coordinates.
+	 */
+	private static float[] join(float[] xCoords, float[] yCoords)
+	{
+		float[] coords = Arrays.copyOf(xCoords, xCoords.length+yCoords.length);
+		System.arraycopy(yCoords, 0, coords, xCoords.length, yCoords.length);
+		return coords;
+	}
+
+	// ------------------------------------- Nested classes ------------------------------------
+
+	/** Identifies a drawn shape by its drawing operation, geometry and drawing style.
+	 */
+	private static class ShapeKey
+	{
+		int op;
+		float[] params;
+		int seed;							// Random seed based on geometry alone so restyled shapes keep their appearance.
+		private boolean fill, stroke;
+		private int fillColour, strokeColour;
+		private float strokeWeight;
+		private int hash;
+
+		/** Creates a key for the given drawing operation using the current style of the given sketch.
+		 *  @param op Type of drawing operation.
+		 *  @param params Geometry of the shape.
+		 *  @param sketch Sketch whose current style will be used to draw the shape.
+		 */
+		ShapeKey(int op, float[] params, PApplet sketch)
+		{
+			this.op = op;
+			this.params = params;
+			this.fill = sketch.g.fill;
+			this.fillColour = sketch.g.fillColor;
+			this.stroke = sketch.g.stroke;
+			this.strokeColour = sketch.g.strokeColor;
+			this.strokeWeight = sketch.g.strokeWeight;
+
+			seed = 31*op + Arrays.hashCode(params);
+			int h = 31*seed + (fill ? fillColour : 1);
+			h = 31*h + (stroke ? strokeColour : 1);
+			hash = 31*h + Float.floatToIntBits(strokeWeight);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+			{
+				return true;
+			}
+			if ((obj instanceof ShapeKey) == false)
+			{
+				return false;
+			}
+			ShapeKey other = (ShapeKey)obj;
+			return (hash == other.hash) && (op == other.op) && (fill == other.fill) && (stroke == other.stroke) &&
+				   (fillColour == other.fillColour) && (strokeColour == other.strokeColour) &&
+				   (strokeWeight == other.strokeWeight) && Arrays.equals(params, other.params);
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.gicentre.treemappa.gui;
 
+import processing.core.PApplet;
+
 // *****************************************************************************************
 /** Factory to produce drawable renderers. This factory will allow renderers created in 
  *  external libraries to be used by treeMappa. It's main purpose is to allow sketchy
@@ -25,6 +27,8 @@ package org.gicentre.treemappa.gui;
 
 public class DrawableFactory 
 {
+	private static final long DEFAULT_MAX_CACHED_POINTS = 1000000;	// Default size of the sketchy stroke cache.
+	
 	/** Creates a Drawable instance from the given Handy (sketchy hand-drawn library) renderer.
 	 *  @param handy Hand-drawn renderer.
 	 *  @return Instance of the Drawable interface capable of sketchy hand-drawn rendering.
@@ -34,6 +38,35 @@ public class DrawableFactory
 		return new HandyUtilsRenderer(handy);
 	}
 	
+	/** Creates a Drawable instance from the given Handy renderer that caches the sketchy strokes it generates.
+	 *  Shapes that are drawn repeatedly with the same geometry and style, such as the nodes of an unchanged
+	 *  treemap, are replayed from the cache rather than being sketched again each frame. Up to one million
+	 *  vertices are cached.
+	 *  @param handy Hand-drawn renderer that draws into the given sketch.
+	 *  @param sketch Sketch in which shapes are to be drawn.
+	 *  @return Instance of the Drawable interface capable of cached sketchy hand-drawn rendering. Its methods
+	 *          should be used to change the Handy renderer's settings so that out of date strokes are discarded.
+	 */
+	public static CachedHandyRenderer createCachedHandyRenderer(org.gicentre.handy.HandyRenderer handy, PApplet sketch)
+	{
+		return createCachedHandyRenderer(handy, sketch, DEFAULT_MAX_CACHED_POINTS);
+	}
+	
+	/** Creates a Drawable instance from the given Handy renderer that caches up to the given number of vertices of
+	 *  the sketchy strokes it generates. Shapes that are drawn repeatedly with the same geometry and style, such as
+	 *  the nodes of an unchanged treemap, are replayed from the cache rather than being sketched again each frame.
+	 *  The least recently drawn shapes are discarded when the cache is full.
+	 *  @param handy Hand-drawn renderer that draws into the given sketch.
+	 *  @param sketch Sketch in which shapes are to be drawn.
+	 *  @param maxCachedPoints Maximum number of vertices to store in the cache.
+	 *  @return Instance of the Drawable interface capable of cached sketchy hand-drawn rendering. Its methods
+	 *          should be used to change the Handy renderer's settings so that out of date strokes are discarded.
+	 */
+	public static CachedHandyRenderer createCachedHandyRenderer(org.gicentre.handy.HandyRenderer handy, PApplet sketch, long maxCachedPoints)
+	{
+		return new CachedHandyRenderer(handy, sketch, maxCachedPoints);
+	}
+	
 	// ----------------------------------- Inner classes -----------------------------------
 	
 	/** Bridging class that wraps a HandyRenderer object into an instance of the Drawable interface.
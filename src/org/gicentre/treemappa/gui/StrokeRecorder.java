@@ -0,0 +1,339 @@
+package org.gicentre.treemappa.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PStyle;
+
+// *****************************************************************************************
+/** Graphics context that records the shapes drawn into it rather than rendering them. This
+ *  allows the vertices generated by a renderer such as the Handy sketchy renderer to be stored
+ *  and later replayed into a sketch without being recalculated. Only shapes built from vertices
+ *  can be recorded. If any other drawing operation such as a transformation is used, the
+ *  recording is marked as unsupported.
+ *  @author Jo Wood, giCentre, City University London.
+ *  @version 3.3.0, 18th April, 2016.
+ */
+// *****************************************************************************************
+
+/* This file is part of the giCentre treeMappa library. treeMappa is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * treeMappa is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+class StrokeRecorder extends PGraphics
+{
+	// ------------------------------ Class and object variables -------------------------------
+
+	static final byte VERTEX = 0;				// Types of recorded vertex.
+	static final byte CURVE_VERTEX = 1;
+	static final byte BEZIER_VERTEX = 2;
+	static final byte QUADRATIC_VERTEX = 3;
+
+	private List<RecordedShape> shapes;			// Shapes recorded so far.
+	private int shapeKind;						// Kind of shape currently being recorded.
+	private byte[] types;						// Types of vertex in the current shape.
+	private float[] coords;						// Coordinates of the current shape.
+	private int numTypes, numCoords;
+	private boolean isSupported;				// False if an operation that cannot be recorded has been used.
+
+	// ------------------------------------- Constructor ---------------------------------------
+
+	/** Creates a recorder ready to record shapes.
+	 */
+	StrokeRecorder()
+	{
+		super();
+		shapes = new ArrayList<RecordedShape>();
+		types = new byte[64];
+		coords = new float[128];
+	}
+
+	// --------------------------------------- Methods -----------------------------------------
+
+	/** Starts a new recording using the given style as the initial drawing style.
+	 *  @param initialStyle Style of the sketch into which the recording will be replayed.
+	 */
+	void startRecording(PStyle initialStyle)
+	{
+		style(initialStyle);
+		shapes = new ArrayList<RecordedShape>();
+		numTypes = 0;
+		numCoords = 0;
+		isSupported = true;
+	}
+
+	/** Stops recording and provides the shapes recorded since the recording started.
+	 *  @return Recorded shapes or null if an operation was used that could not be recorded.
+	 */
+	List<RecordedShape> stopRecording()
+	{
+		return isSupported ? shapes : null;
+	}
+
+	/** Starts recording a new shape of the given kind.
+	 *  @param kind Processing shape kind, such as POLYGON or LINES.
+	 */
+	@Override
+	public void beginShape(int kind)
+	{
+		shapeKind = kind;
+		numTypes = 0;
+		numCoords = 0;
+	}
+
+	/** Adds a vertex to the shape being recorded.
+	 *  @param x x coordinate of the vertex.
+	 *  @param y y coordinate of the vertex.
+	 */
+	@Override
+	public void vertex(float x, float y)
+	{
+		addVertex(VERTEX, x, y);
+	}
+
+	/** Adds a curve vertex to the shape being recorded.
+	 *  @param x x coordinate of the vertex.
+	 *  @param y y coordinate of the vertex.
+	 */
+	@Override
+	public void curveVertex(float x, float y)
+	{
+		addVertex(CURVE_VERTEX, x, y);
+	}
+
+	/** Adds a Bezier vertex to the shape being recorded.
+	 *  @param x2 x coordinate of the first control point.
+	 *  @param y2 y coordinate of the first control point.
+	 *  @param x3 x coordinate of the second control point.
+	 *  @param y3 y coordinate of the second control point.
+	 *  @param x4 x coordinate of the anchor point.
+	 *  @param y4 y coordinate of the anchor point.
+	 */
+	@Override
+	public void bezierVertex(float x2, float y2, float x3, float y3, float x4, float y4)
+	{
+		addVertex(BEZIER_VERTEX, x2, y2);
+		addCoords(x3, y3);
+		addCoords(x4, y4);
+	}
+
+	/** Adds a quadratic Bezier vertex to the shape being recorded.
+	 *  @param cx x coordinate of the control point.
+	 *  @param cy y coordinate of the control point.
+	 *  @param x3 x coordinate of the anchor point.
+	 *  @param y3 y coordinate of the anchor point.
+	 */
+	@Override
+	public void quadraticVertex(float cx, float cy, float x3, float y3)
+	{
+		addVertex(QUADRATIC_VERTEX, cx, cy);
+		addCoords(x3, y3);
+	}
+
+	/** Completes the shape being recorded, storing it along with the current fill and stroke style.
+	 *  @param mode Either OPEN or CLOSE.
+	 */
+	@Override
+	public void endShape(int mode)
+	{
+		shapes.add(new RecordedShape(shapeKind, mode, Arrays.copyOf(types, numTypes), Arrays.copyOf(coords, numCoords),
+				                     fill, fillColor, stroke, strokeColor, strokeWeight));
+		numTypes = 0;
+		numCoords = 0;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 */
+	@Override
+	public void pushMatrix()
+	{
+		isSupported = false;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 */
+	@Override
+	public void popMatrix()
+	{
+		isSupported = false;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 *  @param x Horizontal translation.
+	 *  @param y Vertical translation.
+	 */
+	@Override
+	public void translate(float x, float y)
+	{
+		isSupported = false;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 *  @param angle Angle of rotation.
+	 */
+	@Override
+	public void rotate(float angle)
+	{
+		isSupported = false;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 *  @param s Scaling factor.
+	 */
+	@Override
+	public void scale(float s)
+	{
+		isSupported = false;
+	}
+
+	/** Marks the recording as unsupported since transformations cannot be recorded.
+	 *  @param sx Horizontal scaling factor.
+	 *  @param sy Vertical scaling factor.
+	 */
+	@Override
+	public void scale(float sx, float sy)
+	{
+		isSupported = false;
+	}
+
+	// ------------------------------------ Private methods ------------------------------------
+
+	/** Adds a vertex of the given type to the shape being recorded.
+	 *  @param type Type of vertex.
+	 *  @param x x coordinate of the vertex.
+	 *  @param y y coordinate of the vertex.
+	 */
+	private void addVertex(byte type, float x, float y)
+	{
+		if (numTypes == types.length)
+		{
+			types = Arrays.copyOf(types, numTypes*2);
+		}
+		types[numTypes++] = type;
+		addCoords(x, y);
+	}
+
+	/** Adds a coordinate pair to the shape being recorded.
+	 *  @param x x coordinate.
+	 *  @param y y coordinate.
+	 */
+	private void addCoords(float x, float y)
+	{
+		if (numCoords+2 > coords.length)
+		{
+			coords = Arrays.copyOf(coords, coords.length*2);
+		}
+		coords[numCoords++] = x;
+		coords[numCoords++] = y;
+	}
+
+	// ------------------------------------- Nested classes ------------------------------------
+
+	/** A single recorded shape along with the style with which it was drawn.
+	 */
+	static class RecordedShape
+	{
+		private int kind, mode;
+		private byte[] types;
+		private float[] coords;
+		private boolean fill, stroke;
+		private int fillColour, strokeColour;
+		private float strokeWeight;
+
+		/** Stores a recorded shape.
+		 *  @param kind Processing shape kind.
+		 *  @param mode Either OPEN or CLOSE.
+		 *  @param types Type of each vertex.
+		 *  @param coords Coordinates of the vertices and their control points.
+		 *  @param fill True if the shape is filled.
+		 *  @param fillColour Fill colour.
+		 *  @param stroke True if the shape is outlined.
+		 *  @param strokeColour Outline colour.
+		 *  @param strokeWeight Thickness of the outline.
+		 */
+		RecordedShape(int kind, int mode, byte[] types, float[] coords, boolean fill, int fillColour,
+				      boolean stroke, int strokeColour, float strokeWeight)
+		{
+			this.kind = kind;
+			this.mode = mode;
+			this.types = types;
+			this.coords = coords;
+			this.fill = fill;
+			this.fillColour = fillColour;
+			this.stroke = stroke;
+			this.strokeColour = strokeColour;
+			this.strokeWeight = strokeWeight;
+		}
+
+		/** Reports the number of coordinate pairs stored by this shape.
+		 *  @return Number of stored coordinate pairs.
+		 */
+		int getNumPoints()
+		{
+			return coords.length/2;
+		}
+
+		/** Draws this shape in the given sketch. The sketch's style will be changed to that of the shape.
+		 *  @param sketch Sketch in which to draw the shape.
+		 */
+		void replay(PApplet sketch)
+		{
+			if (fill)
+			{
+				sketch.fill(fillColour);
+			}
+			else
+			{
+				sketch.noFill();
+			}
+
+			if (stroke)
+			{
+				sketch.stroke(strokeColour);
+				sketch.strokeWeight(strokeWeight);
+			}
+			else
+			{
+				sketch.noStroke();
+			}
+
+			sketch.beginShape(kind);
+			int c=0;
+			for (byte type : types)
+			{
+				switch (type)
+				{
+					case CURVE_VERTEX:
+						sketch.curveVertex(coords[c], coords[c+1]);
+						c += 2;
+						break;
+					case BEZIER_VERTEX:
+						sketch.bezierVertex(coords[c], coords[c+1], coords[c+2], coords[c+3], coords[c+4], coords[c+5]);
+						c += 6;
+						break;
+					case QUADRATIC_VERTEX:
+						sketch.quadraticVertex(coords[c], coords[c+1], coords[c+2], coords[c+3]);
+						c += 4;
+						break;
+					default:
+						sketch.vertex(coords[c], coords[c+1]);
+						c += 2;
+				}
+			}
+			sketch.endShape(mode);
+		}
+	}
+}